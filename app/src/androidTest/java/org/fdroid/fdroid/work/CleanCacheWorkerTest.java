@@ -1,6 +1,7 @@
 package org.fdroid.fdroid.work;
 
 import android.app.Instrumentation;
+import android.content.Context;
 import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
 import androidx.test.filters.LargeTest;
 import androidx.test.platform.app.InstrumentationRegistry;
@@ -46,13 +47,15 @@ public class CleanCacheWorkerTest {
     }
 
     @Test
-    public void testClearOldFiles() throws IOException, InterruptedException {
+    public void testCacheJanitor() throws IOException, InterruptedException {
         Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
         File tempDir = FileCompatTest.getWriteableDir(instrumentation);
         assertTrue(tempDir.isDirectory());
         assertTrue(tempDir.canWrite());
 
-        File dir = new File(tempDir, "F-Droid-test.clearOldFiles");
+        File dir = new File(tempDir, "F-Droid-test.CacheJanitor");
+        File stateFile = new File(tempDir, "F-Droid-test.CacheJanitor.state");
+        FileUtils.deleteQuietly(stateFile);
         FileUtils.deleteQuietly(dir);
         assertTrue(dir.mkdirs());
         assertTrue(dir.isDirectory());
@@ -73,19 +76,34 @@ public class CleanCacheWorkerTest {
         assertTrue(second.createNewFile());
         assertTrue(second.exists());
 
-        CleanCacheWorker.clearOldFiles(dir, 3000); // check all in dir
+        Context context = instrumentation.getTargetContext();
+        CacheJanitor.Root root = new CacheJanitor.Root(CacheJanitor.Category.ICONS, dir, 3000, false);
+        CacheJanitor janitor = new CacheJanitor(context, stateFile, root);
+        runPass(janitor);
         assertFalse(first.exists());
         assertTrue(second.exists());
+        janitor.save();
 
         Thread.sleep(7000);
-        CleanCacheWorker.clearOldFiles(second, 3000); // check just second file
+        janitor = new CacheJanitor(context, stateFile, root); // picks up the saved index
+        runPass(janitor);
         assertFalse(first.exists());
         assertFalse(second.exists());
+        assertTrue("the root dir is kept", dir.exists());
 
-        // make sure it doesn't freak out on a non-existent file
+        // make sure it doesn't freak out on a non-existent dir
         File nonexistent = new File(tempDir, "nonexistent");
-        CleanCacheWorker.clearOldFiles(nonexistent, 1);
-        CleanCacheWorker.clearOldFiles(null, 1);
+        runPass(new CacheJanitor(context, stateFile,
+                new CacheJanitor.Root(CacheJanitor.Category.ICONS, nonexistent, 1, false)));
+        runPass(new CacheJanitor(context, stateFile,
+                new CacheJanitor.Root(CacheJanitor.Category.ICONS, null, 1, false)));
+        FileUtils.deleteQuietly(stateFile);
+    }
+
+    private static void runPass(CacheJanitor janitor) {
+        while (!janitor.runSlice()) {
+            // keep going until the whole pass is done
+        }
     }
 
     /*
@@ -102,7 +120,10 @@ public class CleanCacheWorkerTest {
                 oldIcon.setLastModified(System.currentTimeMillis() - (DateUtils.DAY_IN_MILLIS * 370)));
         File currentIcon = new File(imageCacheDir, "current.png");
         assertTrue(currentIcon.createNewFile());
-        CleanCacheWorker.deleteOldIcons(context);
+        CacheJanitor janitor = CacheJanitor.create(context);
+        while (!janitor.runSlice()) {
+            // keep going until the whole pass is done
+        }
         assertTrue(currentIcon.exists());
         assertFalse(oldIcon.exists());
     }
@@ -31,4 +31,11 @@ public class BluetoothClient {
     public BluetoothConnection openConnection() {
         return null;
     }
+
+    public BluetoothConnection takeIdleConnection() {
+        return null;
+    }
+
+    public void keepIdle(BluetoothConnection ignored) {
+    }
 }
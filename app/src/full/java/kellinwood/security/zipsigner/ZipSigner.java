@@ -73,6 +73,11 @@ import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
@@ -82,6 +87,8 @@ import java.util.regex.Pattern;
  * This is a modified copy of com.android.signapk.SignApk.java.  It provides an
  * API to sign JAR files (including APKs and Zip/OTA updates) in
  * a way compatible with the mincrypt verifier, using SHA1 and RSA keys.
+ * The digests of the entries can also be SHA-256, see
+ * {@link #setDigestAlgorithm(String)}, and are computed on all cores.
  * <p>
  * Please see the README.txt file in the root of this project for usage instructions.
  */
@@ -97,6 +104,22 @@ public class ZipSigner {
     private static final String CERT_SF_NAME = "META-INF/CERT.SF";
     private static final String CERT_RSA_NAME = "META-INF/CERT.RSA";
 
+    public static final String DIGEST_SHA1 = "SHA1";
+    public static final String DIGEST_SHA256 = "SHA-256";
+
+    private static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+
+    private String digestAlgorithm = DIGEST_SHA1;
+
+    // The optional signature block generator, looked up only once.
+    private static Method signatureBlockGenerator;
+
+    // How long each phase of the last signZip() took.
+    private long digestMillis;
+    private long signatureFileMillis;
+    private long signatureBlockMillis;
+    private long copyMillis;
+
     // Files matching this pattern are not copied to the output.
     private static Pattern stripPattern =
             Pattern.compile("^META-INF/(.*)[.](SF|RSA|DSA)$");
@@ -267,6 +290,49 @@ public class ZipSigner {
         keySet = new KeySet(name, publicKey, privateKey, signatureAlgorithm, signatureBlockTemplate);
     }
 
+    /**
+     * Set the digest used in the manifest and the signature file, either
+     * {@link #DIGEST_SHA1}, which every verifier knows, or {@link #DIGEST_SHA256},
+     * which is verified by Android 4.3 and newer.
+     */
+    public void setDigestAlgorithm(String algorithm) {
+        if (!DIGEST_SHA1.equals(algorithm) && !DIGEST_SHA256.equals(algorithm)) {
+            throw new IllegalArgumentException("Unsupported digest: " + algorithm);
+        }
+        digestAlgorithm = algorithm;
+    }
+
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * @return the name of the manifest attribute, e.g. {@code SHA-256-Digest}
+     */
+    private String getDigestAttributeName() {
+        return digestAlgorithm + "-Digest";
+    }
+
+    /**
+     * @return how long computing the digests of all entries took in the last
+     * {@link #signZip(Map, OutputStream, String)}
+     */
+    public long getDigestMillis() {
+        return digestMillis;
+    }
+
+    public long getSignatureFileMillis() {
+        return signatureFileMillis;
+    }
+
+    public long getSignatureBlockMillis() {
+        return signatureBlockMillis;
+    }
+
+    public long getCopyMillis() {
+        return copyMillis;
+    }
+
     public KeySet getKeySet() {
         return keySet;
     }
@@ -390,7 +456,9 @@ public class ZipSigner {
     }
 
     /**
-     * Add the SHA1 of every file to the manifest, creating it if necessary.
+     * Add the digest of every file to the manifest, creating it if necessary.
+     * The entries are digested in parallel, one task per entry, with as many
+     * threads as there are cores.
      */
     private Manifest addDigestsToManifest(Map<String, ZioEntry> entries)
             throws IOException, GeneralSecurityException {
@@ -409,10 +477,9 @@ public class ZipSigner {
             main.putValue("Created-By", "1.0 (Android SignApk)");
         }
 
-        // BASE64Encoder base64 = new BASE64Encoder();
-        MessageDigest md = MessageDigest.getInstance("SHA1");
-        byte[] buffer = new byte[512];
-        int num;
+        // Fail early if the digest is not available
+        MessageDigest.getInstance(digestAlgorithm);
+        String digestAttributeName = getDigestAttributeName();
 
         // We sort the input entries by name, and add them to the
         // output manifest in sorted order.  We expect that the output
@@ -423,20 +490,36 @@ public class ZipSigner {
 
         boolean debug = getLogger().isDebugEnabled();
         if (debug) getLogger().debug("Manifest entries:");
+        List<ZioEntry> toDigest = new ArrayList<ZioEntry>();
         for (ZioEntry entry : byName.values()) {
-            if (canceled) break;
             String name = entry.getName();
             if (debug) getLogger().debug(name);
             if (!entry.isDirectory() && !name.equals(JarFile.MANIFEST_NAME) &&
                     !name.equals(CERT_SF_NAME) && !name.equals(CERT_RSA_NAME) &&
                     (stripPattern == null ||
                             !stripPattern.matcher(name).matches())) {
+                toDigest.add(entry);
+            }
+        }
+
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), toDigest.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<byte[]>> digests = new ArrayList<Future<byte[]>>(toDigest.size());
+            for (final ZioEntry entry : toDigest) {
+                digests.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return digest(entry);
+                    }
+                }));
+            }
 
+            for (int i = 0; i < toDigest.size(); i++) {
+                if (canceled) break;
+                String name = toDigest.get(i).getName();
                 progressHelper.progress(ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.GENERATING_MANIFEST));
-                InputStream data = entry.getInputStream();
-                while ((num = data.read(buffer)) > 0) {
-                    md.update(buffer, 0, num);
-                }
+                byte[] digest = getDigest(digests.get(i));
 
                 Attributes attr = null;
                 if (input != null) {
@@ -444,14 +527,43 @@ public class ZipSigner {
                     if (inAttr != null) attr = new Attributes(inAttr);
                 }
                 if (attr == null) attr = new Attributes();
-                attr.putValue("SHA1-Digest", Base64.encode(md.digest()));
+                attr.putValue(digestAttributeName, Base64.encode(digest));
                 output.getEntries().put(name, attr);
             }
+        } finally {
+            executor.shutdownNow();
         }
 
         return output;
     }
 
+    private byte[] digest(ZioEntry entry) throws IOException, NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance(digestAlgorithm);
+        byte[] buffer = new byte[Math.max(1, Math.min(DIGEST_BUFFER_SIZE, entry.getSize()))];
+        InputStream data = entry.getInputStream();
+        int num;
+        while ((num = data.read(buffer)) > 0) {
+            if (canceled) break;
+            md.update(buffer, 0, num);
+        }
+        return md.digest();
+    }
+
+    private static byte[] getDigest(Future<byte[]> future) throws IOException, GeneralSecurityException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while computing digests", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
 
     /**
      * Write the signature file to the given output stream.
@@ -463,7 +575,7 @@ public class ZipSigner {
 
 
         // BASE64Encoder base64 = new BASE64Encoder();
-        MessageDigest md = MessageDigest.getInstance("SHA1");
+        MessageDigest md = MessageDigest.getInstance(digestAlgorithm);
         PrintStream print = new PrintStream(
                 new DigestOutputStream(new ByteArrayOutputStream(), md),
                 true, "UTF-8");
@@ -472,7 +584,7 @@ public class ZipSigner {
         manifest.write(print);
         print.flush();
 
-        out.write(("SHA1-Digest-Manifest: " + Base64.encode(md.digest()) + "\r\n\r\n").getBytes());
+        out.write((getDigestAttributeName() + "-Manifest: " + Base64.encode(md.digest()) + "\r\n\r\n").getBytes());
 
         Map<String, Attributes> entries = manifest.getEntries();
         for (Map.Entry<String, Attributes> entry : entries.entrySet()) {
@@ -488,7 +600,7 @@ public class ZipSigner {
             print.flush();
 
             out.write(nameEntry.getBytes());
-            out.write(("SHA1-Digest: " + Base64.encode(md.digest()) + "\r\n\r\n").getBytes());
+            out.write((getDigestAttributeName() + ": " + Base64.encode(md.digest()) + "\r\n\r\n").getBytes());
         }
 
     }
@@ -531,8 +643,12 @@ public class ZipSigner {
             try {
                 byte[] sigBlock = null;
                 // Use reflection to call the optional generator.
-                Class generatorClass = Class.forName("kellinwood.security.zipsigner.optional.SignatureBlockGenerator");
-                Method generatorMethod = generatorClass.getMethod("generate", KeySet.class, (new byte[1]).getClass());
+                Method generatorMethod = signatureBlockGenerator;
+                if (generatorMethod == null) {
+                    Class generatorClass = Class.forName("kellinwood.security.zipsigner.optional.SignatureBlockGenerator");
+                    generatorMethod = generatorClass.getMethod("generate", KeySet.class, (new byte[1]).getClass());
+                    signatureBlockGenerator = generatorMethod;
+                }
                 sigBlock = (byte[]) generatorMethod.invoke(null, keySet, signatureFileBytes);
                 out.write(sigBlock);
             } catch (Exception x) {
@@ -729,7 +845,9 @@ public class ZipSigner {
 
             // MANIFEST.MF
             // progress(ProgressEvent.PRORITY_NORMAL, JarFile.MANIFEST_NAME);
+            long start = System.currentTimeMillis();
             Manifest manifest = addDigestsToManifest(zioEntries);
+            digestMillis = System.currentTimeMillis() - start;
             if (canceled) return;
             ZioEntry ze = new ZioEntry(JarFile.MANIFEST_NAME);
             ze.setTime(timestamp);
@@ -741,8 +859,10 @@ public class ZipSigner {
             ze = new ZioEntry(CERT_SF_NAME);
             ze.setTime(timestamp);
 
+            start = System.currentTimeMillis();
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             generateSignatureFile(manifest, out);
+            signatureFileMillis = System.currentTimeMillis() - start;
             if (canceled) return;
             byte[] sfBytes = out.toByteArray();
             if (debug) {
@@ -756,12 +876,16 @@ public class ZipSigner {
             progressHelper.progress(ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.GENERATING_SIGNATURE_BLOCK));
             ze = new ZioEntry(CERT_RSA_NAME);
             ze.setTime(timestamp);
+            start = System.currentTimeMillis();
             writeSignatureBlock(keySet, sfBytes, ze.getOutputStream());
+            signatureBlockMillis = System.currentTimeMillis() - start;
             zipOutput.write(ze);
             if (canceled) return;
 
             // Everything else
+            start = System.currentTimeMillis();
             copyFiles(manifest, zioEntries, zipOutput, timestamp);
+            copyMillis = System.currentTimeMillis() - start;
             if (canceled) return;
 
         } finally {
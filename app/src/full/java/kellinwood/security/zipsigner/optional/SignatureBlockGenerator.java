@@ -19,15 +19,20 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- *
+ * The signer for the last key set and the digest calculators are kept, so
+ * signing again with the same keys does not set up the crypto again.
  */
 public class SignatureBlockGenerator {
 
+    private static DigestCalculatorProvider digestCalculatorProvider;
+    private static KeySet signerKeySet;
+    private static ContentSigner contentSigner;
+
     /**
      * Sign the given content using the private and public keys from the keySet, and return the encoded CMS (PKCS#7) data.
      * Use of direct signature and DER encoding produces a block that is verifiable by Android recovery programs.
      */
-    public static byte[] generate(KeySet keySet, byte[] content) {
+    public static synchronized byte[] generate(KeySet keySet, byte[] content) {
         try {
             List certList = new ArrayList();
             CMSTypedData msg = new CMSProcessableByteArray(content);
@@ -38,11 +43,17 @@ public class SignatureBlockGenerator {
 
             CMSSignedDataGenerator gen = new CMSSignedDataGenerator();
 
-            JcaContentSignerBuilder jcaContentSignerBuilder = new JcaContentSignerBuilder(keySet.getSignatureAlgorithm()).setProvider("BC");
-            ContentSigner sha1Signer = jcaContentSignerBuilder.build(keySet.getPrivateKey());
+            if (keySet != signerKeySet) {
+                JcaContentSignerBuilder jcaContentSignerBuilder = new JcaContentSignerBuilder(keySet.getSignatureAlgorithm()).setProvider("BC");
+                contentSigner = jcaContentSignerBuilder.build(keySet.getPrivateKey());
+                signerKeySet = keySet;
+            }
+            ContentSigner sha1Signer = contentSigner;
 
-            JcaDigestCalculatorProviderBuilder jcaDigestCalculatorProviderBuilder = new JcaDigestCalculatorProviderBuilder().setProvider("BC");
-            DigestCalculatorProvider digestCalculatorProvider = jcaDigestCalculatorProviderBuilder.build();
+            if (digestCalculatorProvider == null) {
+                JcaDigestCalculatorProviderBuilder jcaDigestCalculatorProviderBuilder = new JcaDigestCalculatorProviderBuilder().setProvider("BC");
+                digestCalculatorProvider = jcaDigestCalculatorProviderBuilder.build();
+            }
 
             JcaSignerInfoGeneratorBuilder jcaSignerInfoGeneratorBuilder = new JcaSignerInfoGeneratorBuilder(digestCalculatorProvider);
             jcaSignerInfoGeneratorBuilder.setDirectSignature(true);
@@ -56,6 +67,8 @@ public class SignatureBlockGenerator {
             return sigData.toASN1Structure().getEncoded("DER");
 
         } catch (Exception x) {
+            signerKeySet = null;
+            contentSigner = null;
             throw new RuntimeException(x.getMessage(), x);
         }
     }
@@ -22,16 +22,19 @@ import kellinwood.logging.LoggerManager;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.util.Locale;
 
 
 /**
- * Input stream used to read just the data from a zip file entry.
+ * Input stream used to read just the data from a zip file entry.  It keeps
+ * its own position, so streams of different entries of the same
+ * {@link ZipInput} can be read at the same time.
  */
 public class ZioEntryInputStream extends InputStream {
 
-    RandomAccessFile raf;
+    ZipInput zipInput;
+    long position;
+    byte[] single = new byte[1];
     int size;
     int offset;
     LoggerInterface log;
@@ -45,16 +48,18 @@ public class ZioEntryInputStream extends InputStream {
         debug = log.isDebugEnabled();
         offset = 0;
         size = entry.getCompressedSize();
-        raf = entry.getZipInput().in;
+        zipInput = entry.getZipInput();
         long dpos = entry.getDataPosition();
-        if (dpos >= 0) {
-            if (debug) log.debug(String.format(Locale.ENGLISH, "Seeking to %d", entry.getDataPosition()));
-            raf.seek(entry.getDataPosition());
-        } else {
-            // seeks to, then reads, the local header, causing the 
-            // file pointer to be positioned at the start of the data.
-            entry.readLocalHeader();
+        if (dpos < 0) {
+            // seeks to, then reads, the local header, which ends at the
+            // start of the data.
+            synchronized (zipInput) {
+                entry.readLocalHeader();
+            }
+            dpos = entry.getDataPosition();
         }
+        if (debug) log.debug(String.format(Locale.ENGLISH, "Reading from %d", dpos));
+        position = dpos;
 
     }
 
@@ -92,11 +97,12 @@ public class ZioEntryInputStream extends InputStream {
                 return 0;
             } else return -1;
         }
-        int b = raf.read();
+        int b = zipInput.readAt(position, single, 0, 1) > 0 ? single[0] & 0xff : -1;
         if (b >= 0) {
             if (monitor != null) monitor.write(b);
             if (debug) log.debug("Read 1 byte");
             offset += 1;
+            position += 1;
         } else if (debug) log.debug("Read 0 bytes");
         return b;
     }
@@ -115,10 +121,11 @@ public class ZioEntryInputStream extends InputStream {
             } else return -1;
         }
         int numToRead = Math.min(len, available());
-        int numRead = raf.read(b, off, numToRead);
+        int numRead = zipInput.readAt(position, b, off, numToRead);
         if (numRead > 0) {
             if (monitor != null) monitor.write(b, off, numRead);
             offset += numRead;
+            position += numRead;
         }
         if (debug) log.debug(String.format(Locale.ENGLISH, "Read %d bytes for read(b,%d,%d)", numRead, off, len));
         return numRead;
@@ -131,8 +138,9 @@ public class ZioEntryInputStream extends InputStream {
 
     @Override
     public long skip(long n) throws IOException {
-        long numToSkip = Math.min(n, available());
-        raf.seek(raf.getFilePointer() + numToSkip);
+        long numToSkip = Math.min(n, size - offset);
+        position += numToSkip;
+        offset += numToSkip;
         if (debug) log.debug(String.format(Locale.ENGLISH, "Skipped %d bytes", numToSkip));
         return numToSkip;
     }
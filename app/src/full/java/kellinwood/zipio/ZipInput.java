@@ -20,9 +20,13 @@ import kellinwood.logging.LoggerInterface;
 import kellinwood.logging.LoggerManager;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Locale;
@@ -34,13 +38,28 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- *
+ * Reads a zip file through a read-only memory map of the whole file, so the
+ * little-endian header fields are decoded straight from memory instead of one
+ * {@link RandomAccessFile#readUnsignedByte()} call per byte.  Files too big to
+ * map in one go are read through {@link #in} in bulk instead.
+ * <p>
+ * All access to the file, including the data of entries, goes through the
+ * positioned read methods here, since the map has its own position.
  */
 public class ZipInput implements Closeable {
     static LoggerInterface log;
 
+    /**
+     * The EOCDR is 22 bytes plus a comment of up to 65535 bytes.
+     */
+    private static final int MAX_EOCDR_SIZE = 22 + 65535;
+
     public String inputFilename;
     RandomAccessFile in = null;
+    /**
+     * The whole file, or {@code null} if it could not be mapped.
+     */
+    ByteBuffer mapped;
     long fileLength;
     int scanIterations = 0;
 
@@ -52,6 +71,14 @@ public class ZipInput implements Closeable {
         this.inputFilename = filename;
         in = new RandomAccessFile(new File(inputFilename), "r");
         fileLength = in.length();
+        if (fileLength <= Integer.MAX_VALUE) {
+            try {
+                mapped = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+                mapped.order(ByteOrder.LITTLE_ENDIAN);
+            } catch (IOException e) {
+                getLogger().warning("Could not map " + inputFilename + ", reading it instead: " + e);
+            }
+        }
     }
 
     private static LoggerInterface getLogger() {
@@ -116,9 +143,23 @@ public class ZipInput implements Closeable {
     /**
      * Scan the end of the file for the end of central directory record (EOCDR).
      * Returns the file offset of the EOCD signature.  The size parameter is an
-     * initial buffer size (e.g., 256).
+     * initial buffer size (e.g., 256).  When the file is mapped, the whole
+     * area the EOCDR can be in is searched right in the map, starting from the
+     * end, so {@code size} does not matter.
      */
     public long scanForEOCDR(int size) throws IOException {
+        if (mapped != null) {
+            int end = (int) fileLength - 22;
+            int start = (int) Math.max(0, fileLength - MAX_EOCDR_SIZE);
+            for (int i = end; i >= start; i--) {
+                scanIterations += 1;
+                if (mapped.getInt(i) == 0x06054b50) {
+                    return i;
+                }
+            }
+            throw new IllegalStateException("End of central directory not found in " + inputFilename);
+        }
+
         if (size > fileLength || size > 65536)
             throw new IllegalStateException("End of central directory not found in " + inputFilename);
 
@@ -172,6 +213,7 @@ public class ZipInput implements Closeable {
 
     @Override
     public void close() {
+        mapped = null;
         if (in != null) try {
             in.close();
         } catch (Throwable t) {
@@ -179,54 +221,110 @@ public class ZipInput implements Closeable {
     }
 
     public long getFilePointer() throws IOException {
+        if (mapped != null) return mapped.position();
         return in.getFilePointer();
     }
 
     public void seek(long position) throws IOException {
-        in.seek(position);
+        if (mapped != null) {
+            if (position < 0 || position > fileLength) {
+                throw new EOFException("Seek to " + position + " outside of " + inputFilename);
+            }
+            mapped.position((int) position);
+        } else {
+            in.seek(position);
+        }
     }
 
     public byte readByte() throws IOException {
+        if (mapped != null) {
+            require(1);
+            return mapped.get();
+        }
         return in.readByte();
     }
 
     public int readInt() throws IOException {
-        int result = 0;
-        for (int i = 0; i < 4; i++) {
-            result |= (in.readUnsignedByte() << (8 * i));
+        if (mapped != null) {
+            require(4);
+            return mapped.getInt();
         }
-        return result;
+        byte[] b = readBytes(4);
+        return (b[0] & 0xff) | (b[1] & 0xff) << 8 | (b[2] & 0xff) << 16 | (b[3] & 0xff) << 24;
     }
 
     public short readShort() throws IOException {
-        short result = 0;
-        for (int i = 0; i < 2; i++) {
-            result |= (in.readUnsignedByte() << (8 * i));
+        if (mapped != null) {
+            require(2);
+            return mapped.getShort();
         }
-        return result;
+        byte[] b = readBytes(2);
+        return (short) ((b[0] & 0xff) | (b[1] & 0xff) << 8);
     }
 
     public String readString(int length) throws IOException {
-
-        byte[] buffer = new byte[length];
-        for (int i = 0; i < length; i++) {
-            buffer[i] = in.readByte();
-        }
-        return new String(buffer);
+        return new String(readBytes(length));
     }
 
     public byte[] readBytes(int length) throws IOException {
-
         byte[] buffer = new byte[length];
-        for (int i = 0; i < length; i++) {
-            buffer[i] = in.readByte();
+        if (mapped != null) {
+            require(length);
+            mapped.get(buffer);
+        } else {
+            in.readFully(buffer);
         }
         return buffer;
     }
 
+    /**
+     * @return the next byte, or -1 at the end of the file
+     */
+    public int read() throws IOException {
+        if (mapped != null) {
+            return mapped.hasRemaining() ? mapped.get() & 0xff : -1;
+        }
+        return in.read();
+    }
+
     public int read(byte[] b, int offset, int length) throws IOException {
+        if (mapped != null) {
+            if (length == 0) return 0;
+            if (!mapped.hasRemaining()) return -1;
+            int count = Math.min(length, mapped.remaining());
+            mapped.get(b, offset, count);
+            return count;
+        }
         return in.read(b, offset, length);
     }
-}
 
+    /**
+     * Read from {@code position} without using or moving the position of
+     * this, so several threads can read different entries at once.
+     *
+     * @return the number of bytes read, or -1 at the end of the file
+     */
+    public int readAt(long position, byte[] b, int offset, int length) throws IOException {
+        ByteBuffer map = mapped;
+        if (map != null) {
+            if (length == 0) return 0;
+            if (position >= fileLength) return -1;
+            ByteBuffer view = map.duplicate();
+            view.position((int) position);
+            int count = Math.min(length, view.remaining());
+            view.get(b, offset, count);
+            return count;
+        }
+        synchronized (this) {
+            in.seek(position);
+            return in.read(b, offset, length);
+        }
+    }
 
+    private void require(int length) throws EOFException {
+        if (length < 0 || mapped.remaining() < length) {
+            throw new EOFException(String.format(Locale.ENGLISH, "Reading %d bytes at %d past the end of %s",
+                    length, mapped.position(), inputFilename));
+        }
+    }
+}
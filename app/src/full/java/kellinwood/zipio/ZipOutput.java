@@ -29,15 +29,34 @@ import java.util.List;
 import java.util.Set;
 
 /**
- *
+ * Writes a zip file through one reusable buffer, so the many small header
+ * fields do not each cost an allocation and a {@code write} call.
+ * <p>
+ * Offsets are tracked as {@code long}.  When the central directory starts
+ * past 4 GiB, is bigger than that, or has more than 65535 entries, a ZIP64
+ * end of central directory record and locator are written before the
+ * classic one, which then only has the "see ZIP64" markers.  The entries
+ * themselves still use 32-bit fields, so an entry cannot start past 4 GiB.
  */
 public class ZipOutput {
 
     static LoggerInterface log;
 
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final long MAX_UINT32 = 0xFFFFFFFFL;
+    private static final int MAX_UINT16 = 0xFFFF;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_END_SIZE = 44;
+    private static final short ZIP64_VERSION = 45;
+
     String outputFilename;
     OutputStream out = null;
-    int filePointer = 0;
+    long filePointer = 0;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int buffered = 0;
 
     List<ZioEntry> entriesWritten = new LinkedList<ZioEntry>();
     Set<String> namesWritten = new HashSet<String>();
@@ -76,6 +95,9 @@ public class ZipOutput {
             getLogger().warning("Skipping duplicate file in output: " + entryName);
             return;
         }
+        if (filePointer > MAX_UINT32) {
+            throw new IOException("Entry " + entryName + " would start past 4 GiB, which needs ZIP64 entries");
+        }
         entry.writeLocalEntry(this);
         entriesWritten.add(entry);
         namesWritten.add(entryName);
@@ -85,70 +107,131 @@ public class ZipOutput {
 
 
     public void close() throws IOException {
-        CentralEnd centralEnd = new CentralEnd();
-
-        centralEnd.centralStartOffset = (int) getFilePointer();
-        centralEnd.numCentralEntries = centralEnd.totalCentralEntries = (short) entriesWritten.size();
-
-        for (ZioEntry entry : entriesWritten) {
-            entry.write(this);
+        try {
+            CentralEnd centralEnd = new CentralEnd();
+
+            long centralStartOffset = getFilePointer();
+            int entryCount = entriesWritten.size();
+
+            for (ZioEntry entry : entriesWritten) {
+                entry.write(this);
+            }
+
+            long centralDirectorySize = getFilePointer() - centralStartOffset;
+            if (centralStartOffset >= MAX_UINT32 || centralDirectorySize >= MAX_UINT32 || entryCount >= MAX_UINT16) {
+                writeZip64End(centralStartOffset, centralDirectorySize, entryCount);
+                centralEnd.centralStartOffset = (int) MAX_UINT32;
+                centralEnd.centralDirectorySize = (int) MAX_UINT32;
+                centralEnd.numCentralEntries = centralEnd.totalCentralEntries = (short) MAX_UINT16;
+            } else {
+                centralEnd.centralStartOffset = (int) centralStartOffset;
+                centralEnd.centralDirectorySize = (int) centralDirectorySize;
+                centralEnd.numCentralEntries = centralEnd.totalCentralEntries = (short) entryCount;
+            }
+            centralEnd.fileComment = "";
+
+            centralEnd.write(this);
+            flush();
+        } finally {
+            if (out != null) try {
+                out.close();
+            } catch (Throwable t) {
+            }
         }
+    }
 
-        centralEnd.centralDirectorySize = (int) (getFilePointer() - centralEnd.centralStartOffset);
-        centralEnd.fileComment = "";
+    /**
+     * The ZIP64 end of central directory record, then the locator pointing
+     * to it, as in section 4.3.14 and 4.3.15 of the APPNOTE.
+     */
+    private void writeZip64End(long centralStartOffset, long centralDirectorySize, long entryCount)
+            throws IOException {
+        long zip64EndOffset = getFilePointer();
+        writeInt(ZIP64_END_SIGNATURE);
+        writeLong(ZIP64_END_SIZE);
+        writeShort(ZIP64_VERSION); // version made by
+        writeShort(ZIP64_VERSION); // version needed to extract
+        writeInt(0); // number of this disk
+        writeInt(0); // disk with the start of the central directory
+        writeLong(entryCount); // entries on this disk
+        writeLong(entryCount); // entries in total
+        writeLong(centralDirectorySize);
+        writeLong(centralStartOffset);
+
+        writeInt(ZIP64_LOCATOR_SIGNATURE);
+        writeInt(0); // disk with the ZIP64 end of central directory
+        writeLong(zip64EndOffset);
+        writeInt(1); // total number of disks
+    }
 
-        centralEnd.write(this);
+    public long getFilePointer() throws IOException {
+        return filePointer;
+    }
 
-        if (out != null) try {
-            out.close();
-        } catch (Throwable t) {
+    /**
+     * Write out everything that is buffered.
+     */
+    public void flush() throws IOException {
+        if (buffered > 0) {
+            out.write(buffer, 0, buffered);
+            buffered = 0;
         }
+        out.flush();
     }
 
-    public int getFilePointer() throws IOException {
-        return filePointer;
+    private void ensureBuffer(int length) throws IOException {
+        if (BUFFER_SIZE - buffered < length) {
+            out.write(buffer, 0, buffered);
+            buffered = 0;
+        }
     }
 
+    public void writeLong(long value) throws IOException {
+        ensureBuffer(8);
+        for (int i = 0; i < 8; i++) {
+            buffer[buffered++] = (byte) (value >>> (8 * i));
+        }
+        filePointer += 8;
+    }
 
     public void writeInt(int value) throws IOException {
-        byte[] data = new byte[4];
-        for (int i = 0; i < 4; i++) {
-            data[i] = (byte) (value & 0xFF);
-            value = value >> 8;
-        }
-        out.write(data);
+        ensureBuffer(4);
+        buffer[buffered++] = (byte) value;
+        buffer[buffered++] = (byte) (value >>> 8);
+        buffer[buffered++] = (byte) (value >>> 16);
+        buffer[buffered++] = (byte) (value >>> 24);
         filePointer += 4;
     }
 
     public void writeShort(short value) throws IOException {
-        byte[] data = new byte[2];
-        for (int i = 0; i < 2; i++) {
-            data[i] = (byte) (value & 0xFF);
-            value = (short) (value >> 8);
-        }
-        out.write(data);
+        ensureBuffer(2);
+        buffer[buffered++] = (byte) value;
+        buffer[buffered++] = (byte) (value >>> 8);
         filePointer += 2;
     }
 
     public void writeString(String value) throws IOException {
-
-        byte[] data = value.getBytes();
-        out.write(data);
-        filePointer += data.length;
+        writeBytes(value.getBytes());
     }
 
     public void writeBytes(byte[] value) throws IOException {
-
-        out.write(value);
-        filePointer += value.length;
+        writeBytes(value, 0, value.length);
     }
 
+    /**
+     * Small writes are collected in the buffer, big ones go straight out
+     * after whatever was buffered before them.
+     */
     public void writeBytes(byte[] value, int offset, int length) throws IOException {
-
-        out.write(value, offset, length);
+        if (length >= BUFFER_SIZE) {
+            ensureBuffer(BUFFER_SIZE);
+            out.write(value, offset, length);
+        } else {
+            ensureBuffer(length);
+            System.arraycopy(value, offset, buffer, buffered, length);
+            buffered += length;
+        }
         filePointer += length;
     }
 
 }
-
-
@@ -3,30 +3,145 @@ package org.fdroid.fdroid.nearby;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
+import android.os.SystemClock;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
 
 public class BluetoothClient {
     private static final String TAG = "BluetoothClient";
 
+    /**
+     * Kept a bit below the 60 seconds after which {@link BluetoothServer}
+     * closes idle connections, so this never reuses one that the other side
+     * is just closing.
+     */
+    private static final long IDLE_TIMEOUT_MILLIS = 50 * 1000;
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+
+    /**
+     * Connections that finished their last request and were kept open for
+     * the next one, at most one per device, oldest first.  Setting up an
+     * RFCOMM connection takes a lot longer than sending a request over one.
+     * Each one also keeps a thread busy on the other device, so they are
+     * closed once they have been idle for {@link #IDLE_TIMEOUT_MILLIS}.
+     */
+    private static final Map<String, IdleConnection> IDLE_CONNECTIONS = new LinkedHashMap<>();
+    private static final ScheduledThreadPoolExecutor REAPER = new ScheduledThreadPoolExecutor(1);
+
+    static {
+        REAPER.setKeepAliveTime(IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        REAPER.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Runnable CLOSE_STALE_CONNECTIONS = new Runnable() {
+        @Override
+        public void run() {
+            closeStaleConnections();
+        }
+    };
+
+    private final String macAddress;
     private final BluetoothDevice device;
 
     public BluetoothClient(String macAddress) {
+        this.macAddress = macAddress;
         device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(macAddress);
     }
 
     public BluetoothConnection openConnection() throws IOException {
 
         BluetoothConnection connection = null;
+        boolean opened = false;
         try {
             BluetoothSocket socket = device.createInsecureRfcommSocketToServiceRecord(BluetoothConstants.fdroidUuid());
             connection = new BluetoothConnection(socket);
             connection.open();
+            opened = true;
             return connection;
         } finally {
-            if (connection != null) {
+            if (connection != null && !opened) {
                 connection.closeQuietly();
             }
         }
     }
+
+    /**
+     * @return a connection to this device that was kept open by
+     * {@link #keepIdle(BluetoothConnection)}, if there is one.  The other side
+     * might have closed it in the meantime, so be ready to open a new one.
+     */
+    @Nullable
+    public BluetoothConnection takeIdleConnection() {
+        closeStaleConnections();
+        IdleConnection idle;
+        synchronized (IDLE_CONNECTIONS) {
+            idle = IDLE_CONNECTIONS.remove(macAddress);
+        }
+        return idle == null ? null : idle.connection;
+    }
+
+    /**
+     * Keep {@code connection} open for the next request to this device.  It
+     * must not be in the middle of a request.
+     */
+    public void keepIdle(BluetoothConnection connection) {
+        IdleConnection previous;
+        IdleConnection oldest = null;
+        synchronized (IDLE_CONNECTIONS) {
+            previous = IDLE_CONNECTIONS.remove(macAddress);
+            IDLE_CONNECTIONS.put(macAddress, new IdleConnection(connection));
+            if (IDLE_CONNECTIONS.size() > MAX_IDLE_CONNECTIONS) {
+                Iterator<IdleConnection> iterator = IDLE_CONNECTIONS.values().iterator();
+                oldest = iterator.next();
+                iterator.remove();
+            }
+        }
+        if (previous != null && previous.connection != connection) {
+            previous.connection.closeQuietly();
+        }
+        if (oldest != null) {
+            oldest.connection.closeQuietly();
+        }
+        REAPER.schedule(CLOSE_STALE_CONNECTIONS, IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close the connections that have been idle for longer than
+     * {@link #IDLE_TIMEOUT_MILLIS}.  Since they are kept in the order they
+     * went idle, this can stop at the first one that is still fresh.
+     */
+    private static void closeStaleConnections() {
+        long oldest = SystemClock.elapsedRealtime() - IDLE_TIMEOUT_MILLIS;
+        while (true) {
+            IdleConnection stale;
+            synchronized (IDLE_CONNECTIONS) {
+                Iterator<IdleConnection> iterator = IDLE_CONNECTIONS.values().iterator();
+                if (!iterator.hasNext()) {
+                    return;
+                }
+                stale = iterator.next();
+                if (stale.idleSince > oldest) {
+                    return;
+                }
+                iterator.remove();
+            }
+            stale.connection.closeQuietly();
+        }
+    }
+
+    private static class IdleConnection {
+        final BluetoothConnection connection;
+        final long idleSince = SystemClock.elapsedRealtime();
+
+        IdleConnection(BluetoothConnection connection) {
+            this.connection = connection;
+        }
+    }
 }
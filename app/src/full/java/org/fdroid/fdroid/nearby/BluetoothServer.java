@@ -3,54 +3,91 @@ package org.fdroid.fdroid.nearby;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
+import android.os.SystemClock;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
+import org.apache.commons.io.input.BoundedInputStream;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.nearby.httpish.Request;
 import org.fdroid.fdroid.nearby.httpish.Response;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import fi.iki.elonen.NanoHTTPD;
 
 /**
  * Act as a layer on top of LocalHTTPD server, by forwarding requests served
  * over bluetooth to that server.
+ * <p>
+ * Clients are served on a small fixed pool of threads, since there can only
+ * be a handful of RFCOMM connections anyway.  When that is full, a few more
+ * clients can wait their turn, the rest are turned away.  Clients keep their
+ * connection open between requests, so the ones that go quiet for
+ * {@link #IDLE_TIMEOUT_MILLIS} are closed to make room for others.
  */
 @SuppressWarnings("LineLength")
 public class BluetoothServer extends Thread {
 
     private static final String TAG = "BluetoothServer";
 
+    private static final int MAX_CLIENTS = 4;
+    private static final int MAX_WAITING_CLIENTS = 4;
+    private static final long IDLE_TIMEOUT_MILLIS = 60 * 1000;
+
     private BluetoothServerSocket serverSocket;
-    private final List<ClientConnection> clients = new ArrayList<>();
+    private final Set<ClientConnection> clients =
+            Collections.newSetFromMap(new ConcurrentHashMap<ClientConnection, Boolean>());
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CLIENTS, MAX_CLIENTS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(MAX_WAITING_CLIENTS));
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor();
 
     private final File webRoot;
 
     public BluetoothServer(File webRoot) {
         this.webRoot = webRoot;
+        executor.allowCoreThreadTimeOut(true);
     }
 
     public void close() {
 
-        for (ClientConnection clientConnection : clients) {
-            clientConnection.interrupt();
-        }
-
         interrupt();
 
         if (serverSocket != null) {
             Utils.closeQuietly(serverSocket);
         }
+
+        reaper.shutdownNow();
+        executor.shutdownNow();
+        Utils.debugLog(TAG, "Transfer compression " + TransferCompression.getStats());
+        for (ClientConnection clientConnection : clients) {
+            clientConnection.close();
+        }
+    }
+
+    private void closeIdleClients() {
+        long now = SystemClock.elapsedRealtime();
+        for (ClientConnection clientConnection : clients) {
+            if (clientConnection.isIdleSince(now - IDLE_TIMEOUT_MILLIS)) {
+                Utils.debugLog(TAG, "Closing Bluetooth connection that has been idle for too long.");
+                clientConnection.close();
+            }
+        }
     }
 
     @Override
@@ -65,6 +102,13 @@ public class BluetoothServer extends Thread {
             return;
         }
 
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                closeIdleClients();
+            }
+        }, IDLE_TIMEOUT_MILLIS, IDLE_TIMEOUT_MILLIS / 4, TimeUnit.MILLISECONDS);
+
         while (true) {
             if (isInterrupted()) {
                 Utils.debugLog(TAG, "Server stopped so will terminate loop looking for client connections.");
@@ -83,9 +127,14 @@ public class BluetoothServer extends Thread {
                         Utils.debugLog(TAG, "Server stopped after socket accepted from client, but before initiating connection.");
                         break;
                     }
-                    ClientConnection client = new ClientConnection(clientSocket, webRoot);
-                    client.start();
+                    ClientConnection client = new ClientConnection(clientSocket, webRoot, clients);
                     clients.add(client);
+                    try {
+                        executor.execute(client);
+                    } catch (RejectedExecutionException e) {
+                        Log.i(TAG, "Too many Bluetooth clients, turning this one away.");
+                        client.close();
+                    }
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Error receiving client connection over Bluetooth server socket, will continue listening for other clients", e);
@@ -93,14 +142,37 @@ public class BluetoothServer extends Thread {
         }
     }
 
-    private static class ClientConnection extends Thread {
+    private static class ClientConnection implements Runnable {
 
         private final BluetoothSocket socket;
         private final File webRoot;
+        private final Set<ClientConnection> clients;
 
-        ClientConnection(BluetoothSocket socket, File webRoot) {
+        /**
+         * When the last request finished, or {@link Long#MAX_VALUE} while a
+         * request is being handled, so busy connections are never idle.
+         */
+        private volatile long idleSince = SystemClock.elapsedRealtime();
+        private volatile boolean closed;
+
+        ClientConnection(BluetoothSocket socket, File webRoot, Set<ClientConnection> clients) {
             this.socket = socket;
             this.webRoot = webRoot;
+            this.clients = clients;
+        }
+
+        boolean isIdleSince(long time) {
+            return idleSince < time;
+        }
+
+        /**
+         * Closing the socket also ends a read that is blocked waiting for
+         * the next request.
+         */
+        void close() {
+            closed = true;
+            clients.remove(this);
+            Utils.closeQuietly(socket);
         }
 
         @Override
@@ -114,26 +186,32 @@ public class BluetoothServer extends Thread {
                 connection.open();
             } catch (IOException e) {
                 Log.e(TAG, "Error listening for incoming connections over bluetooth", e);
+                close();
                 return;
             }
 
-            while (true) {
+            while (!closed && !Thread.currentThread().isInterrupted()) {
 
                 try {
                     Utils.debugLog(TAG, "Listening for new Bluetooth request from client.");
                     Request incomingRequest = Request.listenForRequest(connection);
+                    if (incomingRequest == null) {
+                        Utils.debugLog(TAG, "Client closed the Bluetooth connection.");
+                        break;
+                    }
+                    idleSince = Long.MAX_VALUE;
                     handleRequest(incomingRequest).send(connection);
+                    idleSince = SystemClock.elapsedRealtime();
                 } catch (IOException e) {
-                    Log.e(TAG, "Error receiving incoming connection over bluetooth", e);
-                    break;
-                }
-
-                if (isInterrupted()) {
+                    if (!closed) {
+                        Log.e(TAG, "Error receiving incoming connection over bluetooth", e);
+                    }
                     break;
                 }
             }
 
             connection.closeQuietly();
+            close();
 
         }
 
@@ -141,28 +219,29 @@ public class BluetoothServer extends Thread {
 
             Utils.debugLog(TAG, "Received Bluetooth request from client, will process it now.");
 
-            Response.Builder builder = null;
-
             try {
-                int statusCode = HttpURLConnection.HTTP_NOT_FOUND;
-                int totalSize = -1;
-
-                if (request.getMethod().equals(Request.Methods.HEAD)) {
-                    builder = new Response.Builder();
-                } else {
-                    HashMap<String, String> headers = new HashMap<>();
-                    Response resp = respond(headers, "/" + request.getPath());
-
-                    builder = new Response.Builder(resp.toContentStream());
-                    statusCode = resp.getStatusCode();
-                    totalSize = resp.getFileSize();
+                HashMap<String, String> headers = new HashMap<>();
+                String acceptEncoding = request.getHeaderValue("Accept-Encoding");
+                if (acceptEncoding != null) {
+                    headers.put("accept-encoding", acceptEncoding);
+                }
+                String range = request.getHeaderValue("Range");
+                if (range != null) {
+                    headers.put("range", range);
                 }
+                boolean headOnly = request.getMethod().equals(Request.Methods.HEAD);
+                Response resp = respond(headers, "/" + request.getPath(), headOnly);
+
+                // a HEAD gets the same size and ETag as a GET, so they can be checked without downloading
+                Response.Builder builder = headOnly
+                        ? new Response.Builder()
+                        : new Response.Builder(resp.toContentStream());
 
-                // TODO: At this stage, will need to download the file to get this info.
-                // However, should be able to make totalDownloadSize and getCacheTag work without downloading.
                 return builder
-                        .setStatusCode(statusCode)
-                        .setFileSize(totalSize)
+                        .setStatusCode(resp.getStatusCode())
+                        .setFileSize(resp.getFileSize())
+                        .setETag(resp.toFileDetails().getCacheTag())
+                        .setContentEncoding(resp.isGzipped() ? TransferCompression.GZIP : null)
                         .build();
 
             } catch (Exception e) {
@@ -170,11 +249,7 @@ public class BluetoothServer extends Thread {
 
                 Log.e(TAG, "error processing request; sending 500 response", e);
 
-                if (builder == null) {
-                    builder = new Response.Builder();
-                }
-
-                return builder
+                return new Response.Builder()
                         .setStatusCode(500)
                         .setFileSize(0)
                         .build();
@@ -183,7 +258,7 @@ public class BluetoothServer extends Thread {
 
         }
 
-        private Response respond(Map<String, String> headers, String uri) {
+        private Response respond(Map<String, String> headers, String uri, boolean headOnly) {
             // Remove URL arguments
             uri = uri.trim().replace(File.separatorChar, '/');
             if (uri.indexOf('?') >= 0) {
@@ -225,10 +300,10 @@ public class BluetoothServer extends Thread {
                     return createResponse(NanoHTTPD.Response.Status.FORBIDDEN, NanoHTTPD.MIME_PLAINTEXT,
                             "FORBIDDEN: No directory listing.");
                 }
-                return respond(headers, uri + indexFile);
+                return respond(headers, uri + indexFile, headOnly);
             }
 
-            Response response = serveFile(uri, headers, f, getMimeTypeForFile(uri));
+            Response response = serveFile(uri, headers, f, getMimeTypeForFile(uri), headOnly);
             return response != null ? response :
                     createResponse(NanoHTTPD.Response.Status.NOT_FOUND, NanoHTTPD.MIME_PLAINTEXT,
                             "Error 404, file not found.");
@@ -236,9 +311,15 @@ public class BluetoothServer extends Thread {
 
         /**
          * Serves file from homeDir and its' subdirectories (only). Uses only URI,
-         * ignores all headers and HTTP parameters.
+         * ignores all headers and HTTP parameters.  With {@code headOnly}, this
+         * only looks at the file metadata, the file itself is not opened.
+         * <p>
+         * Whole files are compressed if the client takes that and
+         * {@link TransferCompression} thinks it is worth it.  A {@code HEAD}
+         * still gets the uncompressed size, which is what the client shows
+         * progress against, since it counts the bytes after decompressing.
          */
-        Response serveFile(String uri, Map<String, String> header, File file, String mime) {
+        Response serveFile(String uri, Map<String, String> header, File file, String mime, boolean headOnly) {
             Response res;
             try {
                 // Calculate etag
@@ -246,6 +327,13 @@ public class BluetoothServer extends Thread {
                         .toHexString((file.getAbsolutePath() + file.lastModified() + String.valueOf(file.length()))
                                 .hashCode());
 
+                if (headOnly) {
+                    res = createResponse(NanoHTTPD.Response.Status.OK, mime, (InputStream) null);
+                    res.addHeader("Content-Length", String.valueOf(file.length()));
+                    res.addHeader("ETag", etag);
+                    return res;
+                }
+
                 // Support (simple) skipping:
                 long startFrom = 0;
                 long endAt = -1;
@@ -256,7 +344,9 @@ public class BluetoothServer extends Thread {
                     try {
                         if (minus > 0) {
                             startFrom = Long.parseLong(range.substring(0, minus));
-                            endAt = Long.parseLong(range.substring(minus + 1));
+                            if (minus < range.length() - 1) { // open ended ranges resume downloads
+                                endAt = Long.parseLong(range.substring(minus + 1));
+                            }
                         }
                     } catch (NumberFormatException ignored) {
                     }
@@ -292,7 +382,9 @@ public class BluetoothServer extends Thread {
                             throw new IOException("unable to skip the required " + startFrom + " bytes.");
                         }
 
-                        res = createResponse(NanoHTTPD.Response.Status.PARTIAL_CONTENT, mime, fis);
+                        // only the range may be sent, otherwise the next response gets garbled
+                        res = createResponse(NanoHTTPD.Response.Status.PARTIAL_CONTENT, mime,
+                                new BoundedInputStream(fis, dataLen));
                         res.addHeader("Content-Length", String.valueOf(dataLen));
                         res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/"
                                 + fileLen);
@@ -302,8 +394,19 @@ public class BluetoothServer extends Thread {
                     if (etag.equals(header.get("if-none-match"))) {
                         res = createResponse(NanoHTTPD.Response.Status.NOT_MODIFIED, mime, "");
                     } else {
-                        res = createResponse(NanoHTTPD.Response.Status.OK, mime, new FileInputStream(file));
-                        res.addHeader("Content-Length", String.valueOf(fileLen));
+                        byte[] gzipped = null;
+                        if (TransferCompression.shouldCompress(header.get("accept-encoding"), mime, file)) {
+                            gzipped = TransferCompression.gzip(file);
+                        }
+                        if (gzipped != null) {
+                            res = createResponse(NanoHTTPD.Response.Status.OK, mime,
+                                    new ByteArrayInputStream(gzipped));
+                            res.addHeader("Content-Length", String.valueOf(gzipped.length));
+                            res.addHeader("Content-Encoding", TransferCompression.GZIP);
+                        } else {
+                            res = createResponse(NanoHTTPD.Response.Status.OK, mime, new FileInputStream(file));
+                            res.addHeader("Content-Length", String.valueOf(fileLen));
+                        }
                         res.addHeader("ETag", etag);
                     }
                 }
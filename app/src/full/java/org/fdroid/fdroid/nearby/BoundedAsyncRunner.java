@@ -0,0 +1,267 @@
+package org.fdroid.fdroid.nearby;
+
+import android.util.Log;
+
+import org.fdroid.fdroid.Utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.ClientHandler;
+
+/**
+ * Runs the connections to {@link LocalHTTPD} on a bounded pool of threads,
+ * instead of NanoHTTPD's default of a new thread for every connection, which
+ * makes the serving device thrash when a whole room is swapping from it.
+ * <ul>
+ * <li>At most {@code maxWorkers} connections are handled at once, the rest
+ * wait in a queue of at most {@code maxQueued}.</li>
+ * <li>Each client, by IP address, can have at most {@code maxPerClient}
+ * connections running or waiting, so one greedy client cannot take over.</li>
+ * <li>Waiting connections are taken from each client in turn, so a client
+ * with lots of queued requests does not starve the others.</li>
+ * <li>Anything over those limits gets {@code 503 Service Unavailable} with a
+ * {@code Retry-After} header, so clients back off instead of timing out.</li>
+ * </ul>
+ */
+class BoundedAsyncRunner implements NanoHTTPD.AsyncRunner {
+    private static final String TAG = "BoundedAsyncRunner";
+
+    /**
+     * How long to spend reading the request of a connection that is being
+     * rejected.  The request is read so that closing the socket does not
+     * reset the connection before the client sees the response.
+     */
+    private static final int REJECT_TIMEOUT_MILLIS = 1000;
+    private static final int MAX_REQUEST_HEADER_BYTES = 8192;
+
+    private final int maxWorkers;
+    private final int maxQueued;
+    private final int maxPerClient;
+    private final int retryAfterSeconds;
+
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor rejecter;
+
+    /**
+     * Waiting connections per client, in the order the clients get their turn.
+     */
+    private final LinkedHashMap<InetAddress, ArrayDeque<ClientHandler>> queues = new LinkedHashMap<>();
+    private final Map<InetAddress, Integer> connectionsPerClient = new HashMap<>();
+    private final List<ClientHandler> running = new ArrayList<>();
+    private int workerCount;
+    private int queuedCount;
+    private long rejectedCount;
+
+    BoundedAsyncRunner(int maxWorkers, int maxQueued, int maxPerClient, int retryAfterSeconds) {
+        this.maxWorkers = maxWorkers;
+        this.maxQueued = maxQueued;
+        this.maxPerClient = maxPerClient;
+        this.retryAfterSeconds = retryAfterSeconds;
+        workers = new ThreadPoolExecutor(maxWorkers, maxWorkers, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        workers.allowCoreThreadTimeOut(true);
+        rejecter = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(Math.max(1, maxQueued)));
+        rejecter.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the number of connections currently being handled
+     */
+    public synchronized int getActiveCount() {
+        return running.size();
+    }
+
+    /**
+     * @return the number of connections waiting for a free worker
+     */
+    public synchronized int getQueuedCount() {
+        return queuedCount;
+    }
+
+    /**
+     * @return the number of connections turned away with a {@code 503} so far
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    @Override
+    public void exec(final ClientHandler clientHandler) {
+        InetAddress client = getClientAddress(clientHandler);
+        synchronized (this) {
+            Integer count = connectionsPerClient.get(client);
+            int connections = count == null ? 0 : count;
+            if (connections < maxPerClient && queuedCount < maxQueued) {
+                connectionsPerClient.put(client, connections + 1);
+                ArrayDeque<ClientHandler> queue = queues.get(client);
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                    queues.put(client, queue);
+                }
+                queue.add(clientHandler);
+                queuedCount++;
+                if (workerCount < maxWorkers) {
+                    workerCount++;
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            work();
+                        }
+                    });
+                }
+                return;
+            }
+            rejectedCount++;
+        }
+        Utils.debugLog(TAG, "Too busy, rejecting connection from " + client);
+        try {
+            rejecter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    reject(clientHandler);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            clientHandler.close();
+        }
+    }
+
+    @Override
+    public synchronized void closed(ClientHandler clientHandler) {
+        if (!running.remove(clientHandler)) {
+            return;
+        }
+        InetAddress client = getClientAddress(clientHandler);
+        Integer count = connectionsPerClient.get(client);
+        if (count == null || count <= 1) {
+            connectionsPerClient.remove(client);
+        } else {
+            connectionsPerClient.put(client, count - 1);
+        }
+    }
+
+    @Override
+    public synchronized void closeAll() {
+        for (ClientHandler clientHandler : new ArrayList<>(running)) {
+            clientHandler.close();
+        }
+        for (ArrayDeque<ClientHandler> queue : queues.values()) {
+            for (ClientHandler clientHandler : queue) {
+                clientHandler.close();
+            }
+        }
+        queues.clear();
+        connectionsPerClient.clear();
+        queuedCount = 0;
+    }
+
+    /**
+     * Keep handling waiting connections until there are none left.
+     */
+    private void work() {
+        while (true) {
+            ClientHandler next;
+            synchronized (this) {
+                next = pollNextClient();
+                if (next == null) {
+                    workerCount--;
+                    return;
+                }
+                queuedCount--;
+                running.add(next);
+            }
+            try {
+                next.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error handling connection", e);
+                closed(next);
+            }
+        }
+    }
+
+    /**
+     * Take the next connection from the client at the head of the line, then
+     * send that client to the back of the line if it has more waiting.
+     */
+    private ClientHandler pollNextClient() {
+        Iterator<Map.Entry<InetAddress, ArrayDeque<ClientHandler>>> iterator = queues.entrySet().iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        Map.Entry<InetAddress, ArrayDeque<ClientHandler>> entry = iterator.next();
+        iterator.remove();
+        ClientHandler next = entry.getValue().poll();
+        if (!entry.getValue().isEmpty()) {
+            queues.put(entry.getKey(), entry.getValue());
+        }
+        return next;
+    }
+
+    private void reject(ClientHandler clientHandler) {
+        Socket socket = getSocket(clientHandler);
+        try {
+            if (socket != null) {
+                socket.setSoTimeout(REJECT_TIMEOUT_MILLIS);
+                skipRequestHeaders(socket.getInputStream());
+                OutputStream outputStream = socket.getOutputStream();
+                outputStream.write(("HTTP/1.1 503 Service Unavailable\r\n"
+                        + "Retry-After: " + retryAfterSeconds + "\r\n"
+                        + "Content-Length: 0\r\n"
+                        + "Connection: close\r\n"
+                        + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                outputStream.flush();
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "Could not send 503 to client: " + e.getMessage());
+        } finally {
+            clientHandler.close();
+        }
+    }
+
+    private static void skipRequestHeaders(InputStream inputStream) throws IOException {
+        int matched = 0;
+        for (int i = 0; i < MAX_REQUEST_HEADER_BYTES && matched < 4; i++) {
+            int b = inputStream.read();
+            if (b == -1) {
+                return;
+            }
+            if (b == (matched % 2 == 0 ? '\r' : '\n')) {
+                matched++;
+            } else {
+                matched = b == '\r' ? 1 : 0;
+            }
+        }
+    }
+
+    private static InetAddress getClientAddress(ClientHandler clientHandler) {
+        if (clientHandler instanceof LocalHTTPD.ChannelClientHandler) {
+            return ((LocalHTTPD.ChannelClientHandler) clientHandler).getClientAddress();
+        }
+        return null;
+    }
+
+    private static Socket getSocket(ClientHandler clientHandler) {
+        if (clientHandler instanceof LocalHTTPD.ChannelClientHandler) {
+            return ((LocalHTTPD.ChannelClientHandler) clientHandler).getSocket();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,97 @@
+package org.fdroid.fdroid.nearby;
+
+import android.util.Log;
+
+import org.fdroid.fdroid.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+import androidx.annotation.Nullable;
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * A {@link NanoHTTPD.Response} that sends a region of a file using
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, rather than
+ * copying it through NanoHTTPD's buffers via an {@link java.io.InputStream}.
+ * When the client connection has a {@link SocketChannel}, the kernel can send
+ * the file straight to the socket, which keeps the CPU free when lots of
+ * devices are downloading from one phone at once.  Lengths are {@code long}
+ * throughout, so files over 2GB are sent in full.
+ * <p>
+ * NanoHTTPD still writes the status line and headers.  The response is given
+ * an empty body stream with the real length, so NanoHTTPD sends the right
+ * {@code Content-Length} and then nothing, and the file is sent after that.
+ *
+ * @see LocalHTTPD#serveFile(String, java.util.Map, File, String)
+ */
+class FileChannelResponse extends NanoHTTPD.Response {
+    private static final String TAG = "FileChannelResponse";
+
+    /**
+     * The connection of the client being served on the current thread, if it
+     * has a channel.  NanoHTTPD only hands {@link #send(OutputStream)} the
+     * {@link OutputStream}, so {@link LocalHTTPD} sets this for each client.
+     */
+    private static final ThreadLocal<SocketChannel> CLIENT_CHANNEL = new ThreadLocal<>();
+
+    private final File file;
+    private final long offset;
+    private final long length;
+
+    FileChannelResponse(IStatus status, String mimeType, File file, long offset, long length) {
+        super(status, mimeType, new ByteArrayInputStream(new byte[0]), length);
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        addHeader("Content-Length", Long.toString(length));
+    }
+
+    static void setClientChannel(@Nullable SocketChannel channel) {
+        if (channel == null) {
+            CLIENT_CHANNEL.remove();
+        } else {
+            CLIENT_CHANNEL.set(channel);
+        }
+    }
+
+    @Override
+    protected void send(OutputStream outputStream) {
+        super.send(outputStream);
+        if (getRequestMethod() == NanoHTTPD.Method.HEAD || length == 0) {
+            return;
+        }
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            FileChannel fileChannel = input.getChannel();
+            WritableByteChannel target = CLIENT_CHANNEL.get();
+            if (target == null) {
+                // e.g. HTTPS, where the bytes have to go through the SSL engine anyway
+                target = Channels.newChannel(outputStream);
+            }
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                long sent = fileChannel.transferTo(position, end - position, target);
+                if (sent <= 0 && position >= fileChannel.size()) {
+                    throw new EOFException(file + " was truncated while being sent");
+                }
+                position += sent;
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not send " + file + " to the client: " + e.getMessage());
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+}
@@ -35,18 +35,26 @@ package org.fdroid.fdroid.nearby;
 
 import android.content.Context;
 import android.net.Uri;
+import android.util.Log;
 
+import org.apache.commons.io.FileUtils;
 import org.fdroid.fdroid.BuildConfig;
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.Utils;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URLEncoder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
@@ -62,6 +70,8 @@ import java.util.TimeZone;
 
 import javax.net.ssl.SSLServerSocketFactory;
 
+import androidx.annotation.Nullable;
+
 import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.NanoHTTPD.Response.IStatus;
 
@@ -82,7 +92,22 @@ public class LocalHTTPD extends NanoHTTPD {
      */
     public static final String[] INDEX_FILE_NAMES = {"index.html"};
 
+    /**
+     * Where a {@link HaveList} is posted to get an index of only what is new.
+     */
+    public static final String HAVE_LIST_PATH = "/fdroid/repo/" + IndexV1Updater.SIGNED_FILE_NAME;
+
+    /**
+     * Limits for {@link BoundedAsyncRunner}.  A few workers is enough to
+     * saturate WiFi from storage, more just makes the I/O thrash.
+     */
+    private static final int MAX_WORKERS = 4;
+    private static final int MAX_QUEUED_CONNECTIONS = 64;
+    private static final int MAX_CONNECTIONS_PER_CLIENT = 8;
+    private static final int RETRY_AFTER_SECONDS = 5;
+
     private final WeakReference<Context> context;
+    private final BoundedAsyncRunner runner;
 
     protected List<File> rootDirs;
 
@@ -102,18 +127,43 @@ public class LocalHTTPD extends NanoHTTPD {
      */
     public LocalHTTPD(Context context, String hostname, int port, File webRoot, boolean useHttps) {
         super(hostname, port);
+        runner = new BoundedAsyncRunner(MAX_WORKERS, MAX_QUEUED_CONNECTIONS, MAX_CONNECTIONS_PER_CLIENT,
+                RETRY_AFTER_SECONDS);
+        setAsyncRunner(runner);
         rootDirs = Collections.singletonList(webRoot);
         this.context = new WeakReference<>(context.getApplicationContext());
         if (useHttps) {
             enableHTTPS();
+        } else {
+            // sockets accepted from a ServerSocketChannel have a SocketChannel for transferTo()
+            setServerSocketFactory(new ServerSocketFactory() {
+                @Override
+                public ServerSocket create() throws IOException {
+                    return ServerSocketChannel.open().socket();
+                }
+            });
         }
         MIME_TYPES = new HashMap<>(); // ignore nanohttpd's list
         MIME_TYPES.put("apk", "application/vnd.android.package-archive");
         MIME_TYPES.put("html", "text/html");
         MIME_TYPES.put("png", "image/png");
+        MIME_TYPES.put("webp", "image/webp");
         MIME_TYPES.put("xml", "application/xml");
     }
 
+    /**
+     * @return the runner handling the connections, e.g. to read its metrics
+     */
+    BoundedAsyncRunner getRunner() {
+        return runner;
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        Utils.debugLog(TAG, "Transfer compression " + TransferCompression.getStats());
+    }
+
     private boolean canServeUri(String uri, File homeDir) {
         boolean canServeUri;
         File f = new File(homeDir, uri);
@@ -264,6 +314,53 @@ public class LocalHTTPD extends NanoHTTPD {
         return response;
     }
 
+    /**
+     * A {@code 200} with {@code text}, compressed if the client takes that.
+     *
+     * @see #gzipResponse(Response.IStatus, String, byte[])
+     */
+    private static Response newTextResponse(Map<String, String> headers, String mimeType, String text) {
+        byte[] bytes;
+        try {
+            bytes = text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        if (bytes.length >= TransferCompression.MIN_SIZE
+                && TransferCompression.isAccepted(headers.get("accept-encoding"))) {
+            Response response = gzipResponse(Response.Status.OK, mimeType, TransferCompression.gzip(bytes));
+            if (response != null) {
+                return response;
+            }
+        }
+        return newFixedLengthResponse(Response.Status.OK, mimeType, new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    /**
+     * Only text is ever compressed here, i.e. pages for browsers looking at
+     * the swap repo.  Android's {@link java.net.HttpURLConnection} always
+     * asks for {@code gzip}, and then hides the real {@code Content-Length},
+     * which the F-Droid client needs from {@code HEAD} to resume downloads.
+     * The APKs, icons and signed indexes it fetches would not shrink anyway.
+     * <p>
+     * {@link NanoHTTPD}'s own {@code gzip} support is turned off in
+     * {@link #useGzipWhenAccepted(Response)} since it sends chunked, without
+     * a length, and would compress these responses a second time.
+     *
+     * @return {@code null} if {@code gzipped} is, so it was not worth it
+     */
+    @Nullable
+    private static Response gzipResponse(IStatus status, String mimeType, @Nullable byte[] gzipped) {
+        if (gzipped == null) {
+            return null;
+        }
+        Response response = newFixedLengthResponse(status, mimeType, new ByteArrayInputStream(gzipped),
+                gzipped.length);
+        response.addHeader("Content-Encoding", TransferCompression.GZIP);
+        response.addHeader("Vary", "Accept-Encoding");
+        return response;
+    }
+
     private Response respond(Map<String, String> headers, IHTTPSession session, String uri) {
         return defaultRespond(headers, session, uri);
     }
@@ -308,7 +405,7 @@ public class LocalHTTPD extends NanoHTTPD {
             if (indexFile == null) {
                 if (f.canRead()) {
                     // No index file, list the directory if it is readable
-                    return newFixedLengthResponse(Response.Status.OK, NanoHTTPD.MIME_HTML, listDirectory(uri, f));
+                    return newTextResponse(headers, NanoHTTPD.MIME_HTML, listDirectory(uri, f));
                 } else {
                     return getForbiddenResponse("No directory listing.");
                 }
@@ -374,121 +471,245 @@ public class LocalHTTPD extends NanoHTTPD {
                 }
                 SwapWorkflowActivity.requestSwap(context.get(), session.getParms().get("repo"));
                 return newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "Swap request received.");
+            case HAVE_LIST_PATH:
+                return handleHaveList(session.getParms().get(HaveList.PARAM));
         }
         return newFixedLengthResponse("");
     }
 
+    /**
+     * Send a signed {@code index-v1.jar} of only the apps that the client
+     * does not already have, according to its {@link HaveList}.  The jar is
+     * small and made for this one client, so it is sent from memory.
+     */
+    private Response handleHaveList(String encodedHaveList) {
+        HaveList haveList;
+        try {
+            haveList = HaveList.decode(encodedHaveList);
+        } catch (IllegalArgumentException e) {
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+                    "Requires a valid '" + HaveList.PARAM + "' parameter to be posted: " + e.getMessage());
+        }
+        File indexJar = null;
+        try {
+            indexJar = LocalRepoManager.get(context.get()).writeFilteredIndexV1Jar(haveList);
+            byte[] bytes = FileUtils.readFileToByteArray(indexJar);
+            return newFixedLengthResponse(Response.Status.OK, IndexV1Updater.JAR_MIME_TYPE,
+                    new ByteArrayInputStream(bytes), bytes.length);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write filtered index", e);
+            return getInternalErrorResponse("Could not write filtered index.");
+        } finally {
+            FileUtils.deleteQuietly(indexJar);
+        }
+    }
+
     /**
      * Serves file from homeDir and its' subdirectories (only). Uses only URI,
-     * ignores all headers and HTTP parameters.
+     * ignores all headers and HTTP parameters.  A single {@code Range} of
+     * bytes is supported, including suffix ranges like {@code bytes=-500},
+     * and lengths are {@code long} so files over 2GB work.  Requests for
+     * multiple ranges get the whole file, which RFC 7233 allows.
+     *
+     * @see FileChannelResponse
      */
     Response serveFile(String uri, Map<String, String> header, File file, String mime) {
+        if (!file.canRead()) {
+            return addResponseHeaders(getForbiddenResponse("Reading file failed."));
+        }
         Response res;
-        try {
-            // Calculate etag
-            String etag = Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
-
-            // Support (simple) skipping:
-            long startFrom = 0;
-            long endAt = -1;
-            String range = header.get("range");
-            if (range != null) {
-                if (range.startsWith("bytes=")) {
-                    range = range.substring("bytes=".length());
-                    int minus = range.indexOf('-');
-                    try {
-                        if (minus > 0) {
-                            startFrom = Long.parseLong(range.substring(0, minus));
+        long fileLen = file.length();
+        long lastModified = file.lastModified();
+        String lastModifiedString = formatDate(lastModified);
+        String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(fileLen)
+                + "-" + Integer.toHexString(file.getAbsolutePath().hashCode()) + "\"";
+
+        long startFrom = 0;
+        long endAt = -1;
+        String range = header.get("range");
+        if (range != null) {
+            if (range.startsWith("bytes=") && range.indexOf(',') < 0) {
+                range = range.substring("bytes=".length()).trim();
+                int minus = range.indexOf('-');
+                try {
+                    if (minus == 0) {
+                        // suffix range, i.e. the last N bytes
+                        startFrom = Math.max(0, fileLen - Long.parseLong(range.substring(1)));
+                    } else if (minus > 0) {
+                        startFrom = Long.parseLong(range.substring(0, minus));
+                        if (minus < range.length() - 1) {
                             endAt = Long.parseLong(range.substring(minus + 1));
                         }
-                    } catch (NumberFormatException ignored) {
+                    } else {
+                        range = null;
                     }
+                } catch (NumberFormatException e) {
+                    range = null;
                 }
+                if (endAt >= 0 && endAt < startFrom) {
+                    range = null;
+                }
+            } else {
+                range = null;
             }
+        }
 
-            // get if-range header. If present, it must match etag or else we
-            // should ignore the range request
-            String ifRange = header.get("if-range");
-            boolean headerIfRangeMissingOrMatching = (ifRange == null || etag.equals(ifRange));
-
-            String ifNoneMatch = header.get("if-none-match");
-            boolean headerIfNoneMatchPresentAndMatching = ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(etag));
-
-            // Change return code and add Content-Range header when skipping is
-            // requested
-            long fileLen = file.length();
-
-            if (headerIfRangeMissingOrMatching && range != null && startFrom >= 0 && startFrom < fileLen) {
+        // get if-range header. If present, it must match etag or date or else
+        // we should ignore the range request
+        String ifRange = header.get("if-range");
+        boolean headerIfRangeMissingOrMatching = ifRange == null
+                || etag.equals(ifRange) || lastModifiedString.equals(ifRange);
+
+        String ifNoneMatch = header.get("if-none-match");
+        boolean headerIfNoneMatchPresentAndMatching = ifNoneMatch != null && matchesEtag(ifNoneMatch, etag);
+
+        // Change return code and add Content-Range header when skipping is
+        // requested
+        if (headerIfRangeMissingOrMatching && range != null && startFrom >= 0 && startFrom < fileLen) {
+            // range request that matches current etag
+            // and the startFrom of the range is satisfiable
+            if (headerIfNoneMatchPresentAndMatching) {
                 // range request that matches current etag
                 // and the startFrom of the range is satisfiable
-                if (headerIfNoneMatchPresentAndMatching) {
-                    // range request that matches current etag
-                    // and the startFrom of the range is satisfiable
-                    // would return range from file
-                    // respond with not-modified
-                    res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else {
-                    if (endAt < 0) {
-                        endAt = fileLen - 1;
-                    }
-                    long newLen = endAt - startFrom + 1;
-                    if (newLen < 0) {
-                        newLen = 0;
-                    }
-
-                    FileInputStream fis = new FileInputStream(file);
-                    fis.skip(startFrom);
-
-                    res = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, mime, fis, newLen);
-                    res.addHeader("Accept-Ranges", "bytes");
-                    res.addHeader("Content-Length", "" + newLen);
-                    res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
-                    res.addHeader("ETag", etag);
-                    res.addHeader("Last-Modified", RFC_1123.format(new Date(file.lastModified())));
-                }
+                // would return range from file
+                // respond with not-modified
+                res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
+                res.addHeader("ETag", etag);
             } else {
+                if (endAt < 0 || endAt >= fileLen) {
+                    endAt = fileLen - 1;
+                }
+                long newLen = endAt - startFrom + 1;
 
-                if (headerIfRangeMissingOrMatching && range != null && startFrom >= fileLen) {
-                    // return the size of the file
-                    // 4xx responses are not trumped by if-none-match
-                    res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
-                    res.addHeader("Content-Range", "bytes */" + fileLen);
-                    res.addHeader("ETag", etag);
-                } else if (range == null && headerIfNoneMatchPresentAndMatching) {
-                    // full-file-fetch request
-                    // would return entire file
-                    // respond with not-modified
-                    res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else if (!headerIfRangeMissingOrMatching && headerIfNoneMatchPresentAndMatching) {
-                    // range request that doesn't match current etag
-                    // would return entire (different) file
-                    // respond with not-modified
-
-                    res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else {
-                    // supply the file
-                    res = newFixedFileResponse(file, mime);
-                    res.addHeader("Content-Length", "" + fileLen);
-                    res.addHeader("ETag", etag);
-                    res.addHeader("Last-Modified", RFC_1123.format(new Date(file.lastModified())));
+                res = new FileChannelResponse(Response.Status.PARTIAL_CONTENT, mime, file, startFrom, newLen);
+                res.addHeader("Accept-Ranges", "bytes");
+                res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
+                res.addHeader("ETag", etag);
+                res.addHeader("Last-Modified", lastModifiedString);
+            }
+        } else {
+
+            if (headerIfRangeMissingOrMatching && range != null && startFrom >= fileLen) {
+                // return the size of the file
+                // 4xx responses are not trumped by if-none-match
+                res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
+                res.addHeader("Content-Range", "bytes */" + fileLen);
+                res.addHeader("ETag", etag);
+            } else if (range == null && headerIfNoneMatchPresentAndMatching) {
+                // full-file-fetch request
+                // would return entire file
+                // respond with not-modified
+                res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
+                res.addHeader("ETag", etag);
+            } else if (!headerIfRangeMissingOrMatching && headerIfNoneMatchPresentAndMatching) {
+                // range request that doesn't match current etag
+                // would return entire (different) file
+                // respond with not-modified
+
+                res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
+                res.addHeader("ETag", etag);
+            } else {
+                // supply the file
+                res = null;
+                if (range == null && TransferCompression.isTextType(mime)
+                        && TransferCompression.shouldCompress(header.get("accept-encoding"), mime, file)) {
+                    try {
+                        res = gzipResponse(Response.Status.OK, mime, TransferCompression.gzip(file));
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not compress " + file + ", sending it as is: " + e.getMessage());
+                    }
                 }
+                if (res == null) {
+                    res = new FileChannelResponse(Response.Status.OK, mime, file, 0, fileLen);
+                }
+                res.addHeader("Accept-Ranges", "bytes");
+                res.addHeader("ETag", etag);
+                res.addHeader("Last-Modified", lastModifiedString);
             }
-        } catch (IOException ioe) {
-            res = getForbiddenResponse("Reading file failed.");
         }
 
         return addResponseHeaders(res);
     }
 
-    private Response newFixedFileResponse(File file, String mime) throws FileNotFoundException {
-        Response res;
-        res = newFixedLengthResponse(Response.Status.OK, mime, new FileInputStream(file), (int) file.length());
-        addResponseHeaders(res);
-        res.addHeader("Accept-Ranges", "bytes");
-        return res;
+    /**
+     * {@code If-None-Match} can be {@code *} or a list of entity tags, which
+     * might be marked as weak with {@code W/}.
+     */
+    private static boolean matchesEtag(String ifNoneMatch, String etag) {
+        if ("*".equals(ifNoneMatch.trim())) {
+            return true;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (etag.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@link DateFormat} is not thread-safe, and each client is served on
+     * its own thread.
+     */
+    private static String formatDate(long time) {
+        synchronized (RFC_1123) {
+            return RFC_1123.format(new Date(time));
+        }
+    }
+
+    /**
+     * {@link NanoHTTPD} decides this after {@link #serve(IHTTPSession)}, and
+     * that overrides {@link Response#setGzipEncoding(boolean)}, so this is the
+     * only way to stop it from compressing text that
+     * {@link #gzipResponse(Response.IStatus, String, byte[])} already did.
+     */
+    @Override
+    protected boolean useGzipWhenAccepted(Response response) {
+        return false;
+    }
+
+    /**
+     * Clients are served from channel-backed sockets when possible, so
+     * {@link FileChannelResponse} can send files straight to the socket.
+     */
+    @Override
+    protected ClientHandler createClientHandler(Socket finalAccept, InputStream inputStream) {
+        return new ChannelClientHandler(inputStream, finalAccept);
+    }
+
+    class ChannelClientHandler extends ClientHandler {
+        private final Socket socket;
+        private final SocketChannel channel;
+        private final InetAddress clientAddress;
+
+        ChannelClientHandler(InputStream inputStream, Socket acceptSocket) {
+            super(inputStream, acceptSocket);
+            socket = acceptSocket;
+            channel = acceptSocket.getChannel();
+            clientAddress = acceptSocket.getInetAddress();
+        }
+
+        Socket getSocket() {
+            return socket;
+        }
+
+        InetAddress getClientAddress() {
+            return clientAddress;
+        }
+
+        @Override
+        public void run() {
+            FileChannelResponse.setClientChannel(channel);
+            try {
+                super.run();
+            } finally {
+                FileChannelResponse.setClientChannel(null);
+            }
+        }
     }
 
     private void enableHTTPS() {
@@ -45,12 +45,15 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.X509KeyManager;
 
 import kellinwood.security.zipsigner.ZipSigner;
+import kellinwood.zipio.ZioEntry;
 
 // TODO Address exception handling in a uniform way throughout
 
@@ -73,6 +76,18 @@ public final class LocalRepoKeyStore {
     private KeyManager[] keyManagers;
     private File keyStoreFile;
 
+    /**
+     * Kept with the index key already loaded, until {@link #addToStore}
+     * replaces that key.
+     */
+    private ZipSigner zipSigner;
+    private final AtomicLong signCount = new AtomicLong();
+    private final AtomicLong keyLoadCount = new AtomicLong();
+    private final AtomicLong keyLoadMillis = new AtomicLong();
+    private final AtomicLong digestMillis = new AtomicLong();
+    private final AtomicLong signatureMillis = new AtomicLong();
+    private final AtomicLong copyMillis = new AtomicLong();
+
     public static LocalRepoKeyStore get(Context context) throws InitException {
         if (localRepoKeyStore == null) {
             localRepoKeyStore = new LocalRepoKeyStore(context);
@@ -80,6 +95,36 @@ public final class LocalRepoKeyStore {
         return localRepoKeyStore;
     }
 
+    /**
+     * The totals of the time spent signing the swap index, since this was
+     * created.  This is a snapshot, it does not change when more is signed.
+     */
+    public static final class SigningStats {
+        public final long signCount;
+        public final long keyLoadCount;
+        public final long keyLoadMillis;
+        public final long digestMillis;
+        public final long signatureMillis;
+        public final long copyMillis;
+
+        private SigningStats(long signCount, long keyLoadCount, long keyLoadMillis, long digestMillis,
+                             long signatureMillis, long copyMillis) {
+            this.signCount = signCount;
+            this.keyLoadCount = keyLoadCount;
+            this.keyLoadMillis = keyLoadMillis;
+            this.digestMillis = digestMillis;
+            this.signatureMillis = signatureMillis;
+            this.copyMillis = copyMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "signed " + signCount + " jars, " + keyLoadMillis + "ms loading the key " + keyLoadCount
+                    + " times, " + digestMillis + "ms digesting, " + signatureMillis + "ms signing, "
+                    + copyMillis + "ms copying in total";
+        }
+    }
+
     @SuppressWarnings("serial")
     public static class InitException extends Exception {
         public InitException(String detailMessage) {
@@ -203,21 +248,79 @@ public final class LocalRepoKeyStore {
         return keyManagers;
     }
 
-    public void signZip(File input, File output) {
+    public synchronized void signZip(File input, File output) {
         try {
-            ZipSigner zipSigner = new ZipSigner();
+            ZipSigner signer = getZipSigner();
+            signer.signZip(input.getAbsolutePath(), output.getAbsolutePath());
+            addTimings(signer);
+        } catch (ClassNotFoundException | IllegalAccessException | InstantiationException | GeneralSecurityException | IOException e) {
+            Log.e(TAG, "Unable to sign local repo index", e);
+        }
+    }
 
-            X509Certificate cert = (X509Certificate) keyStore.getCertificate(INDEX_CERT_ALIAS);
+    /**
+     * Sign {@code entries} straight into {@code output}, without writing an
+     * unsigned zip file first.
+     */
+    public synchronized void signZip(Map<String, ZioEntry> entries, File output) {
+        try {
+            ZipSigner signer = getZipSigner();
+            signer.signZip(entries, output.getAbsolutePath());
+            addTimings(signer);
+        } catch (ClassNotFoundException | IllegalAccessException | InstantiationException | GeneralSecurityException | IOException e) {
+            Log.e(TAG, "Unable to sign local repo index", e);
+        }
+    }
+
+    /**
+     * Swap peers all run at least {@code minSdkVersion} 22, so they all
+     * verify SHA-256 digests.  The signer is reused for every index, since
+     * the swap repo is signed again each time the selected apps change.
+     */
+    private ZipSigner getZipSigner() throws ClassNotFoundException, IllegalAccessException, InstantiationException,
+            GeneralSecurityException {
+        if (zipSigner != null) {
+            zipSigner.resetCanceled();
+            return zipSigner;
+        }
+        long start = System.currentTimeMillis();
+        ZipSigner signer = new ZipSigner();
 
-            KeyPair kp = getKerplappKeypair();
-            PrivateKey priv = kp.getPrivate();
+        X509Certificate cert = (X509Certificate) keyStore.getCertificate(INDEX_CERT_ALIAS);
 
-            zipSigner.setKeys("kerplapp", cert, priv, DEFAULT_SIG_ALG, null);
-            zipSigner.signZip(input.getAbsolutePath(), output.getAbsolutePath());
+        KeyPair kp = getKerplappKeypair();
+        PrivateKey priv = kp.getPrivate();
 
-        } catch (ClassNotFoundException | IllegalAccessException | InstantiationException | GeneralSecurityException | IOException e) {
-            Log.e(TAG, "Unable to sign local repo index", e);
+        signer.setKeys("kerplapp", cert, priv, DEFAULT_SIG_ALG, null);
+        signer.setDigestAlgorithm(ZipSigner.DIGEST_SHA256);
+        keyLoadCount.incrementAndGet();
+        keyLoadMillis.addAndGet(System.currentTimeMillis() - start);
+        zipSigner = signer;
+        return signer;
+    }
+
+    /**
+     * Add the times of the last signing to the totals and log them.  A
+     * canceled signing did not produce a jar, so it is not counted.
+     */
+    private void addTimings(ZipSigner signer) {
+        if (signer.isCanceled()) {
+            Utils.debugLog(TAG, "Signing was canceled");
+            return;
         }
+        signCount.incrementAndGet();
+        digestMillis.addAndGet(signer.getDigestMillis());
+        signatureMillis.addAndGet(signer.getSignatureFileMillis() + signer.getSignatureBlockMillis());
+        copyMillis.addAndGet(signer.getCopyMillis());
+        Utils.debugLog(TAG, "Signed in " + signer.getDigestMillis() + "ms digesting, "
+                + signer.getSignatureFileMillis() + "ms for the signature file, "
+                + signer.getSignatureBlockMillis() + "ms for the signature block, "
+                + signer.getCopyMillis() + "ms copying; " + getSigningStats());
+    }
+
+    public SigningStats getSigningStats() {
+        return new SigningStats(signCount.get(), keyLoadCount.get(), keyLoadMillis.get(), digestMillis.get(),
+                signatureMillis.get(), copyMillis.get());
     }
 
     private KeyPair getKerplappKeypair() throws KeyStoreException, UnrecoverableKeyException,
@@ -260,6 +363,11 @@ public final class LocalRepoKeyStore {
                 "".toCharArray(), chain);
 
         keyStore.store(new FileOutputStream(keyStoreFile), "".toCharArray());
+        if (INDEX_CERT_ALIAS.equals(alias)) {
+            synchronized (this) {
+                zipSigner = null;
+            }
+        }
 
         /*
          * After adding an entry to the keystore we need to create a fresh
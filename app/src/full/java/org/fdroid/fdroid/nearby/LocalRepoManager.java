@@ -2,26 +2,34 @@ package org.fdroid.fdroid.nearby;
 
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
-import android.graphics.drawable.BitmapDrawable;
+import android.graphics.Color;
 import android.graphics.drawable.Drawable;
+import android.os.Process;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Hasher;
 import org.fdroid.fdroid.IndexUpdater;
+import org.fdroid.fdroid.IndexV1Updater;
 import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.InstalledApp;
 import org.fdroid.fdroid.data.InstalledAppProvider;
+import org.fdroid.fdroid.data.Repo;
 import org.fdroid.fdroid.data.SanitizedFile;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
@@ -41,17 +49,25 @@ import java.security.cert.CertificateEncodingException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import kellinwood.zipio.ZioEntry;
+
 /**
  * The {@link SwapService} deals with managing the entire workflow from selecting apps to
  * swap, to invoking this class to prepare the webroot, to enabling various communication protocols.
@@ -72,16 +88,72 @@ public final class LocalRepoManager {
             "swap-tick-not-done.png",
     };
 
+    /**
+     * The screen densities that clients pick icon directories for, as in
+     * {@link Utils#getIconsDir(Context, double)}.  Each one gets its own
+     * {@code icons-<dpi>/} directory with a 48dp icon at that density.
+     */
+    private static final int[] ICON_DENSITIES = {120, 160, 240, 320, 480, 640};
+    private static final int ICON_SIZE_DP = 48;
+
+    /**
+     * Icons are rendered no bigger than this, which is a 48dp launcher icon
+     * at the highest density bucket, {@code xxxhdpi}.  This is also the size
+     * written to the fallback {@code icons/} directory, which older clients
+     * and the swap web page use.
+     */
+    static final int ICON_MAX_SIZE = ICON_SIZE_DP * 640 / 160;
+
+    private static final int MAX_STAGING_THREADS = 4;
+
+    /**
+     * Lossy WebP keeps the alpha channel, and at this quality icons are a
+     * fraction of the size of a PNG without visibly losing detail.
+     */
+    private static final int ICON_QUALITY = 90;
+
+    /**
+     * The index format version of the swap repo, which tells clients to get
+     * icons from the {@code icons-<dpi>/} directory for their screen.
+     */
+    private static final int INDEX_VERSION = Repo.VERSION_DENSITY_SPECIFIC_ICONS;
+
+    /**
+     * Gets told as each app is staged by {@link #stageApps(List, StagingListener)}.
+     * This is called from the staging threads.
+     */
+    public interface StagingListener {
+        void onAppStaged(String packageName, int staged, int total);
+    }
+
     private final Map<String, App> apps = new ConcurrentHashMap<>();
 
+    /**
+     * What each app in {@link #apps} was built from, as returned by
+     * {@link #getBuildKey(String)}, so it is only built again when the
+     * installed app actually changes.  An app only gets its key once it is
+     * {@link #stageApps(List, StagingListener) staged}, until then it is in
+     * {@link #unstagedBuildKeys}, so an app whose APK could not be linked is
+     * built again the next time.
+     */
+    private final Map<String, String> appBuildKeys = new ConcurrentHashMap<>();
+    private final Map<String, String> unstagedBuildKeys = new ConcurrentHashMap<>();
+
+    /**
+     * Whether the leftovers from a previous run of the app have been cleared
+     * out, after that only the apps that change need to be touched.
+     */
+    private boolean repoCleared;
+
     private final SanitizedFile xmlIndexJar;
-    private final SanitizedFile xmlIndexJarUnsigned;
+    private final SanitizedFile indexV1Jar;
     private final SanitizedFile webRoot;
     private final SanitizedFile fdroidDir;
     private final SanitizedFile fdroidDirCaps;
     private final SanitizedFile repoDir;
     private final SanitizedFile repoDirCaps;
     private final SanitizedFile iconsDir;
+    private final SanitizedFile[] densityIconsDirs = new SanitizedFile[ICON_DENSITIES.length];
 
     @Nullable
     private static LocalRepoManager localRepoManager;
@@ -108,7 +180,7 @@ public final class LocalRepoManager {
         repoDirCaps = new SanitizedFile(fdroidDirCaps, "REPO");
         iconsDir = new SanitizedFile(repoDir, "icons");
         xmlIndexJar = new SanitizedFile(repoDir, IndexUpdater.SIGNED_FILE_NAME);
-        xmlIndexJarUnsigned = new SanitizedFile(repoDir, "index.unsigned.jar");
+        indexV1Jar = new SanitizedFile(repoDir, IndexV1Updater.SIGNED_FILE_NAME);
 
         if (!fdroidDir.exists() && !fdroidDir.mkdir()) {
             Log.e(TAG, "Unable to create empty base: " + fdroidDir);
@@ -121,6 +193,13 @@ public final class LocalRepoManager {
         if (!iconsDir.exists() && !iconsDir.mkdir()) {
             Log.e(TAG, "Unable to create icons folder: " + iconsDir);
         }
+
+        for (int i = 0; i < ICON_DENSITIES.length; i++) {
+            densityIconsDirs[i] = new SanitizedFile(repoDir, "icons-" + ICON_DENSITIES[i]);
+            if (!densityIconsDirs[i].exists() && !densityIconsDirs[i].mkdir()) {
+                Log.e(TAG, "Unable to create icons folder: " + densityIconsDirs[i]);
+            }
+        }
     }
 
     private String writeFdroidApkToWebroot() {
@@ -155,10 +234,8 @@ public final class LocalRepoManager {
                 builder.append("<li><a href=\"/fdroid/repo/")
                         .append(app.installedApk.apkName)
                         .append("\"><img width=\"32\" height=\"32\" src=\"/fdroid/repo/icons/")
-                        .append(app.packageName)
-                        .append("_")
-                        .append(app.installedApk.versionCode)
-                        .append(".png\">")
+                        .append(App.getIconName(app.packageName, app.installedApk.versionCode))
+                        .append("\">")
                         .append(app.name)
                         .append("</a></li>\n");
             }
@@ -255,84 +332,279 @@ public final class LocalRepoManager {
 
     public void deleteRepo() {
         deleteContents(repoDir);
+        apps.clear();
+        appBuildKeys.clear();
+        unstagedBuildKeys.clear();
+        repoCleared = true;
     }
 
-    public void copyApksToRepo() {
-        copyApksToRepo(new ArrayList<>(apps.keySet()));
+    /**
+     * Delete whatever a previous run of the app left in the repo, the first
+     * time this is called.  After that, the repo is kept up to date one app
+     * at a time with {@link #addApp(Context, String)} and
+     * {@link #removeApp(String)}.
+     *
+     * @return whether anything was deleted
+     */
+    public boolean deleteRepoIfStale() {
+        if (repoCleared) {
+            return false;
+        }
+        deleteRepo();
+        return true;
     }
 
-    private void copyApksToRepo(List<String> appsToCopy) {
-        for (final String packageName : appsToCopy) {
-            final App app = apps.get(packageName);
+    /**
+     * @return the package names of all the apps currently in the repo
+     */
+    public List<String> getPackageNames() {
+        return new ArrayList<>(apps.keySet());
+    }
+
+    private void copyApkToRepo(App app) {
+        if (app.installedApk != null) {
+            SanitizedFile outFile = new SanitizedFile(repoDir, app.installedApk.apkName);
+            deleteQuietly(outFile); // an old link could point to where the APK used to be
+            if (Utils.symlinkOrCopyFileQuietly(app.installedApk.installedFile, outFile)) {
+                return;
+            }
+        }
+        // if we got here, something went wrong
+        throw new IllegalStateException("Unable to copy APK");
+    }
 
-            if (app.installedApk != null) {
-                SanitizedFile outFile = new SanitizedFile(repoDir, app.installedApk.apkName);
-                if (Utils.symlinkOrCopyFileQuietly(app.installedApk.installedFile, outFile)) {
-                    continue;
+    /**
+     * Link the APK and write the icon of each of {@code packageNames} into
+     * the repo, a few apps at a time on a small thread pool, since with a
+     * lot of apps selected this is what the user is waiting for.  Each
+     * thread takes the next app until there are none left, drawing all of
+     * its icons into one bitmap, rather than allocating one for every icon.
+     * This returns once all of them are done.
+     *
+     * @throws IllegalStateException if an APK could not be linked or copied
+     */
+    public void stageApps(final List<String> packageNames, @Nullable final StagingListener listener) {
+        final int total = packageNames.size();
+        if (total == 0) {
+            return;
+        }
+        int threads = Math.max(1,
+                Math.min(total, Math.min(MAX_STAGING_THREADS, Runtime.getRuntime().availableProcessors())));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger staged = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    Bitmap bitmap = Bitmap.createBitmap(ICON_MAX_SIZE, ICON_MAX_SIZE, Config.ARGB_8888);
+                    try {
+                        int index;
+                        while ((index = next.getAndIncrement()) < total && !Thread.currentThread().isInterrupted()) {
+                            String packageName = packageNames.get(index);
+                            App app = apps.get(packageName);
+                            if (app != null) {
+                                copyApkToRepo(app);
+                                copyIconToRepo(app, bitmap);
+                                String buildKey = unstagedBuildKeys.remove(packageName);
+                                if (buildKey != null) {
+                                    appBuildKeys.put(packageName, buildKey);
+                                }
+                            }
+                            if (listener != null) {
+                                listener.onAppStaged(packageName, staged.incrementAndGet(), total);
+                            }
+                        }
+                    } finally {
+                        bitmap.recycle();
+                    }
                 }
+            }));
+        }
+        executor.shutdown();
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
-            // if we got here, something went wrong
-            throw new IllegalStateException("Unable to copy APK");
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
         }
     }
 
-    public void addApp(Context context, String packageName) {
-        App app = null;
+    /**
+     * @return whether {@code packageName} is already in the repo, built from
+     * the version of it that is installed now
+     */
+    public boolean isAppCurrent(String packageName) {
+        String buildKey = appBuildKeys.get(packageName);
+        if (buildKey == null || !apps.containsKey(packageName)) {
+            return false;
+        }
         try {
+            return buildKey.equals(getBuildKey(packageName));
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Uniquely identifies the installed version of an app, without having to
+     * open the APK like {@link App#getInstance(Context, PackageManager, InstalledApp, String)}.
+     */
+    private String getBuildKey(String packageName) throws PackageManager.NameNotFoundException {
+        PackageInfo packageInfo = pm.getPackageInfo(packageName, 0);
+        return packageInfo.versionCode + ":" + packageInfo.lastUpdateTime;
+    }
+
+    /**
+     * Add {@code packageName} to the repo, or replace the entry that is there
+     * with the version that is installed now.  If it can no longer be added,
+     * e.g. because it was uninstalled, any entry that is there is removed.
+     *
+     * @return whether the app was added
+     */
+    public boolean addApp(Context context, String packageName) {
+        App app;
+        String buildKey;
+        try {
+            buildKey = getBuildKey(packageName);
             InstalledApp installedApp = InstalledAppProvider.Helper.findByPackageName(context, packageName);
             app = App.getInstance(context, pm, installedApp, packageName);
-            if (app == null || !app.isValid()) {
-                return;
-            }
         } catch (PackageManager.NameNotFoundException | CertificateEncodingException | IOException e) {
             Log.e(TAG, "Error adding app to local repo", e);
-            return;
+            removeApp(packageName);
+            return false;
+        }
+        if (app == null || !app.isValid()) {
+            removeApp(packageName);
+            return false;
         }
         Utils.debugLog(TAG, "apps.put: " + packageName);
-        apps.put(packageName, app);
+        App previous = apps.put(packageName, app);
+        appBuildKeys.remove(packageName);
+        unstagedBuildKeys.put(packageName, buildKey);
+        if (previous != null && previous.installedApk != null
+                && !previous.installedApk.apkName.equals(app.installedApk.apkName)) {
+            deleteAppFiles(previous);
+        }
+        return true;
     }
 
-    public void copyIconsToRepo() {
-        ApplicationInfo appInfo;
-        for (final App app : apps.values()) {
-            if (app.installedApk != null) {
-                try {
-                    appInfo = pm.getApplicationInfo(app.packageName, PackageManager.GET_META_DATA);
-                    copyIconToRepo(appInfo.loadIcon(pm), app.packageName, app.installedApk.versionCode);
-                } catch (PackageManager.NameNotFoundException e) {
-                    Log.e(TAG, "Error getting app icon", e);
-                }
+    /**
+     * Take {@code packageName} out of the repo, including its APK and icon.
+     * The index needs to be written again afterwards.
+     */
+    public void removeApp(String packageName) {
+        appBuildKeys.remove(packageName);
+        unstagedBuildKeys.remove(packageName);
+        App app = apps.remove(packageName);
+        if (app != null) {
+            Utils.debugLog(TAG, "apps.remove: " + packageName);
+            deleteAppFiles(app);
+        }
+    }
+
+    private void deleteAppFiles(App app) {
+        if (app.installedApk != null) {
+            deleteQuietly(new File(repoDir, app.installedApk.apkName));
+            String iconName = App.getIconName(app.packageName, app.installedApk.versionCode);
+            deleteQuietly(new File(iconsDir, iconName));
+            for (File dir : densityIconsDirs) {
+                deleteQuietly(new File(dir, iconName));
             }
         }
     }
 
     /**
-     * Extracts the icon from an APK and writes it to the repo as a PNG
+     * Like {@link #attemptToDelete(File)}, but for files which might well not
+     * be there.  This also removes dangling symlinks, which
+     * {@link File#exists()} does not see.
      */
-    private void copyIconToRepo(Drawable drawable, String packageName, int versionCode) {
-        Bitmap bitmap;
-        if (drawable instanceof BitmapDrawable) {
-            bitmap = ((BitmapDrawable) drawable).getBitmap();
-        } else {
-            bitmap = Bitmap.createBitmap(drawable.getIntrinsicWidth(),
-                    drawable.getIntrinsicHeight(), Config.ARGB_8888);
-            Canvas canvas = new Canvas(bitmap);
-            drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
-            drawable.draw(canvas);
-        }
-        File png = getIconFile(packageName, versionCode);
-        OutputStream out;
+    private static void deleteQuietly(@NonNull File file) {
+        if (!file.delete() && file.exists()) {
+            Log.e(TAG, "Could not delete \"" + file.getAbsolutePath() + "\".");
+        }
+    }
+
+    private void copyIconToRepo(App app, Bitmap bitmap) {
+        if (app.installedApk == null) {
+            return;
+        }
         try {
-            out = new BufferedOutputStream(new FileOutputStream(png));
-            bitmap.compress(CompressFormat.PNG, 100, out);
-            out.close();
-        } catch (Exception e) {
-            Log.e(TAG, "Error copying icon to repo", e);
+            ApplicationInfo appInfo = pm.getApplicationInfo(app.packageName, PackageManager.GET_META_DATA);
+            copyIconToRepo(appInfo.loadIcon(pm), app.packageName, app.installedApk.versionCode, bitmap);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(TAG, "Error getting app icon", e);
         }
     }
 
-    private File getIconFile(String packageName, int versionCode) {
-        return new File(iconsDir, App.getIconName(packageName, versionCode));
+    /**
+     * Renders the icon from an APK once for each of {@link #ICON_DENSITIES},
+     * and once at {@link #ICON_MAX_SIZE} for the fallback {@code icons/}
+     * directory, as WebP, which every client since Android 4.3 can show.
+     * Sizes that come out the same, like {@code icons-640/} and
+     * {@code icons/}, or all of them for an icon smaller than 36px, are only
+     * encoded once and linked for the others.
+     */
+    private void copyIconToRepo(Drawable drawable, String packageName, int versionCode, Bitmap bitmap) {
+        String iconName = App.getIconName(packageName, versionCode);
+        SanitizedFile previous = new SanitizedFile(iconsDir, iconName);
+        int[] previousSize = getIconSize(drawable, ICON_MAX_SIZE);
+        writeIcon(drawable, previousSize, previous, bitmap);
+        for (int i = ICON_DENSITIES.length - 1; i >= 0; i--) {
+            SanitizedFile file = new SanitizedFile(densityIconsDirs[i], iconName);
+            int[] size = getIconSize(drawable, ICON_SIZE_DP * ICON_DENSITIES[i] / 160);
+            deleteQuietly(file); // an old link would write through to another size
+            if (Arrays.equals(size, previousSize) && Utils.symlinkOrCopyFileQuietly(previous, file)) {
+                continue;
+            }
+            writeIcon(drawable, size, file, bitmap);
+            previous = file;
+            previousSize = size;
+        }
+    }
+
+    /**
+     * @return the width and height of {@code drawable} scaled down to fit in {@code maxSize}
+     */
+    private static int[] getIconSize(Drawable drawable, int maxSize) {
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            return new int[]{maxSize, maxSize};
+        }
+        float scale = Math.min(1f, (float) maxSize / Math.max(width, height));
+        return new int[]{Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale))};
+    }
+
+    private static void writeIcon(Drawable drawable, int[] size, File file, Bitmap bitmap) {
+        int width = size[0];
+        int height = size[1];
+        bitmap.reconfigure(width, height, Config.ARGB_8888);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(canvas);
+
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            bitmap.compress(CompressFormat.WEBP, ICON_QUALITY, out);
+        } catch (Exception e) {
+            Log.e(TAG, "Error copying icon to repo", e);
+        } finally {
+            Utils.closeQuietly(out);
+        }
     }
 
     /**
@@ -363,7 +635,7 @@ public final class LocalRepoManager {
             serializer.attribute("", "pubkey", Hasher.hex(LocalRepoKeyStore.get(context).getCertificate()));
             long timestamp = System.currentTimeMillis() / 1000L;
             serializer.attribute("", "timestamp", String.valueOf(timestamp));
-            serializer.attribute("", "version", "10");
+            serializer.attribute("", "version", String.valueOf(INDEX_VERSION));
             tag("description", "A local FDroid repo generated from apps installed on "
                     + Preferences.get().getLocalRepoName());
             serializer.endTag("", "repo");
@@ -501,23 +773,227 @@ public final class LocalRepoManager {
         }
     }
 
+    /**
+     * Helper class to write {@code index-v1.json}, streaming it out with
+     * {@link JsonGenerator} rather than building it all in memory first.
+     * This has the same contents as {@link IndexXmlBuilder}, in the format
+     * that {@link IndexV1Updater} parses.
+     */
+    public static final class IndexV1Builder {
+        private JsonGenerator json;
+
+        IndexV1Builder() {
+        }
+
+        public void build(Context context, Map<String, App> apps, OutputStream output)
+                throws IOException, LocalRepoKeyStore.InitException {
+            build(context, apps, null, output);
+        }
+
+        /**
+         * @param omitted the apps left out of a filtered index, which are
+         *                listed under {@link HaveList#OMITTED}
+         */
+        public void build(Context context, Map<String, App> apps, @Nullable Map<String, App> omitted,
+                          OutputStream output) throws IOException, LocalRepoKeyStore.InitException {
+            json = new JsonFactory().createGenerator(output, JsonEncoding.UTF8);
+            json.writeStartObject();
+
+            json.writeObjectFieldStart("repo");
+            json.writeNumberField("timestamp", System.currentTimeMillis());
+            json.writeNumberField("version", INDEX_VERSION);
+            json.writeStringField("name", Preferences.get().getLocalRepoName()
+                    + " on " + FDroidApp.ipAddressString);
+            json.writeStringField("icon", "blah.png");
+            json.writeStringField("description", "A local FDroid repo generated from apps installed on "
+                    + Preferences.get().getLocalRepoName());
+            json.writeStringField("pubkey", Hasher.hex(LocalRepoKeyStore.get(context).getCertificate()));
+            if (omitted != null) {
+                json.writeObjectFieldStart(HaveList.OMITTED);
+                for (App app : omitted.values()) {
+                    json.writeObjectFieldStart(app.packageName);
+                    json.writeNumberField("versionCode", app.installedApk.versionCode);
+                    json.writeStringField("sig", app.installedApk.sig.toLowerCase(Locale.US));
+                    json.writeEndObject();
+                }
+                json.writeEndObject();
+            }
+            json.writeEndObject();
+
+            json.writeObjectFieldStart("requests");
+            json.writeArrayFieldStart("install");
+            json.writeEndArray();
+            json.writeArrayFieldStart("uninstall");
+            json.writeEndArray();
+            json.writeEndObject();
+
+            json.writeArrayFieldStart("apps");
+            for (App app : apps.values()) {
+                writeApp(app);
+            }
+            json.writeEndArray();
+
+            json.writeObjectFieldStart("packages");
+            for (App app : apps.values()) {
+                json.writeArrayFieldStart(app.packageName);
+                writePackage(app);
+                json.writeEndArray();
+            }
+            json.writeEndObject();
+
+            json.writeEndObject();
+            json.close();
+        }
+
+        private void writeApp(App app) throws IOException {
+            json.writeStartObject();
+            json.writeStringField("packageName", app.packageName);
+            writeStringField("name", app.name);
+            writeStringField("summary", app.summary);
+            writeStringField("icon", app.iconFromApk);
+            writeStringField("description", app.description);
+            json.writeStringField("license", "Unknown");
+            json.writeArrayFieldStart("categories");
+            json.writeString("LocalRepo");
+            json.writeString(Preferences.get().getLocalRepoName());
+            json.writeEndArray();
+            writeDateField("added", app.added);
+            writeDateField("lastUpdated", app.lastUpdated);
+            writeStringField("suggestedVersionName", app.installedApk.versionName);
+            json.writeNumberField("suggestedVersionCode", app.installedApk.versionCode);
+            json.writeEndObject();
+        }
+
+        private void writePackage(App app) throws IOException {
+            Apk apk = app.installedApk;
+            json.writeStartObject();
+            json.writeStringField("packageName", app.packageName);
+            writeStringField("versionName", apk.versionName);
+            json.writeNumberField("versionCode", apk.versionCode);
+            json.writeStringField("apkName", apk.apkName);
+            json.writeStringField("hashType", apk.hashType);
+            json.writeStringField("hash", apk.hash);
+            json.writeStringField("sig", apk.sig.toLowerCase(Locale.US));
+            json.writeNumberField("size", apk.installedFile.length());
+            writeDateField("added", apk.added);
+            if (apk.minSdkVersion > Apk.SDK_VERSION_MIN_VALUE) {
+                json.writeNumberField("minSdkVersion", apk.minSdkVersion);
+            }
+            if (apk.targetSdkVersion > apk.minSdkVersion) {
+                json.writeNumberField("targetSdkVersion", apk.targetSdkVersion);
+            }
+            if (apk.maxSdkVersion < Apk.SDK_VERSION_MAX_VALUE) {
+                json.writeNumberField("maxSdkVersion", apk.maxSdkVersion);
+            }
+            writeStringArrayField("features", apk.features);
+            writeStringArrayField("nativecode", apk.nativecode);
+            if (apk.requestedPermissions != null) {
+                json.writeArrayFieldStart("uses-permission");
+                for (String permission : apk.requestedPermissions) {
+                    json.writeStartArray();
+                    json.writeString(permission);
+                    json.writeNull();
+                    json.writeEndArray();
+                }
+                json.writeEndArray();
+            }
+            json.writeEndObject();
+        }
+
+        /**
+         * Write a field only if it has a value, like
+         * {@link IndexXmlBuilder#tag(String, String)} does.
+         */
+        private void writeStringField(String name, String value) throws IOException {
+            if (!TextUtils.isEmpty(value)) {
+                json.writeStringField(name, value);
+            }
+        }
+
+        private void writeDateField(String name, Date date) throws IOException {
+            if (date != null) {
+                json.writeNumberField(name, date.getTime());
+            }
+        }
+
+        private void writeStringArrayField(String name, String[] values) throws IOException {
+            if (values == null || values.length == 0) {
+                return;
+            }
+            json.writeArrayFieldStart(name);
+            for (String value : values) {
+                json.writeString(value);
+            }
+            json.writeEndArray();
+        }
+    }
+
+    /**
+     * Write both the legacy {@code index.jar} and {@code index-v1.jar}, each
+     * signed with the local repo key.  The index is built in memory and
+     * signed straight into the jar, there is no unsigned jar to write first.
+     */
     public void writeIndexJar() throws IOException, XmlPullParserException, LocalRepoKeyStore.InitException {
-        BufferedOutputStream bo = new BufferedOutputStream(new FileOutputStream(xmlIndexJarUnsigned));
-        JarOutputStream jo = new JarOutputStream(bo);
-        JarEntry je = new JarEntry(IndexUpdater.DATA_FILE_NAME);
-        jo.putNextEntry(je);
-        new IndexXmlBuilder().build(context, apps, jo);
-        jo.close();
-        bo.close();
+        ZioEntry entry = new ZioEntry(IndexUpdater.DATA_FILE_NAME);
+        OutputStream output = new BufferedOutputStream(entry.getOutputStream());
+        new IndexXmlBuilder().build(context, apps, output);
+        output.close();
+        signIndexJar(entry, xmlIndexJar);
+
+        entry = new ZioEntry(IndexV1Updater.DATA_FILE_NAME);
+        output = new BufferedOutputStream(entry.getOutputStream());
+        new IndexV1Builder().build(context, apps, output);
+        output.close();
+        signIndexJar(entry, indexV1Jar);
+    }
+
+    /**
+     * Write a signed {@code index-v1.jar} of only the apps that are not in
+     * {@code haveList}, for a client that said what it already has.  This is
+     * signed with the same key as the full index, so the client checks it
+     * the same way.  With lots of apps selected, this is much less for the
+     * client to download and parse than the full index.
+     *
+     * @return the signed jar, which the caller has to delete
+     */
+    public File writeFilteredIndexV1Jar(HaveList haveList) throws IOException {
+        Map<String, App> wanted = new HashMap<>();
+        Map<String, App> omitted = new HashMap<>();
+        for (App app : apps.values()) {
+            Apk apk = app.installedApk;
+            if (apk == null || !haveList.mightContain(app.packageName, apk.versionCode, apk.sig)) {
+                wanted.put(app.packageName, app);
+            } else {
+                omitted.put(app.packageName, app);
+            }
+        }
+        Utils.debugLog(TAG, "Filtered index has " + wanted.size() + " of " + apps.size() + " apps");
 
+        ZioEntry entry = new ZioEntry(IndexV1Updater.DATA_FILE_NAME);
+        OutputStream output = new BufferedOutputStream(entry.getOutputStream());
         try {
-            LocalRepoKeyStore.get(context).signZip(xmlIndexJarUnsigned, xmlIndexJar);
+            new IndexV1Builder().build(context, wanted, omitted, output);
         } catch (LocalRepoKeyStore.InitException e) {
-            throw new IOException("Could not sign index - keystore failed to initialize");
+            throw new IOException("Could not build index - keystore failed to initialize");
         } finally {
-            attemptToDelete(xmlIndexJarUnsigned);
+            output.close();
         }
-
+        SanitizedFile signed = SanitizedFile.knownSanitized(
+                File.createTempFile("index-v1-filtered", ".jar", context.getCacheDir()));
+        try {
+            signIndexJar(entry, signed);
+        } catch (IOException e) {
+            attemptToDelete(signed);
+            throw e;
+        }
+        return signed;
     }
 
+    private void signIndexJar(ZioEntry entry, SanitizedFile signed) throws IOException {
+        try {
+            LocalRepoKeyStore.get(context).signZip(Collections.singletonMap(entry.getName(), entry), signed);
+        } catch (LocalRepoKeyStore.InitException e) {
+            throw new IOException("Could not sign index - keystore failed to initialize");
+        }
+    }
 }
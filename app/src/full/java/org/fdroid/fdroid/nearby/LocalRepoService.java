@@ -6,13 +6,17 @@ import android.content.Intent;
 import android.os.Process;
 
 import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.HashCache;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
@@ -98,31 +102,49 @@ public class LocalRepoService extends IntentService {
         }
     }
 
-    public static void runProcess(Context context, String[] selectedApps) {
+    /**
+     * Bring the local repo in line with {@code selectedApps}.  Only the apps
+     * that were added, removed or updated since the last run are processed,
+     * the rest are kept as they are, so toggling a single app only costs that
+     * app plus writing and signing the index again.
+     */
+    public static void runProcess(final Context context, String[] selectedApps) {
         try {
             final LocalRepoManager lrm = LocalRepoManager.get(context);
-            broadcast(context, STATUS_PROGRESS, R.string.deleting_repo);
-            lrm.deleteRepo();
-            for (String app : selectedApps) {
-                broadcast(context, STATUS_PROGRESS, context.getString(R.string.adding_apks_format, app));
-                lrm.addApp(context, app);
-            }
-            String urlString = Utils.getSharingUri(FDroidApp.repo).toString();
-            lrm.writeIndexPage(urlString);
-            broadcast(context, STATUS_PROGRESS, R.string.writing_index_jar);
-            lrm.writeIndexJar();
-            broadcast(context, STATUS_PROGRESS, R.string.linking_apks);
-            lrm.copyApksToRepo();
-            broadcast(context, STATUS_PROGRESS, R.string.copying_icons);
-            // run the icon copy without progress, its not a blocker
-            new Thread() {
-                @Override
-                public void run() {
-                    android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
-                    lrm.copyIconsToRepo();
+            final List<String> changedApps = new ArrayList<>();
+            synchronized (lrm) {
+                if (lrm.deleteRepoIfStale()) {
+                    broadcast(context, STATUS_PROGRESS, R.string.deleting_repo);
                 }
-            }.start();
-
+                Set<String> selected = new HashSet<>(Arrays.asList(selectedApps));
+                for (String packageName : lrm.getPackageNames()) {
+                    if (!selected.contains(packageName)) {
+                        lrm.removeApp(packageName);
+                    }
+                }
+                for (String app : selectedApps) {
+                    if (lrm.isAppCurrent(app)) {
+                        continue;
+                    }
+                    broadcast(context, STATUS_PROGRESS, context.getString(R.string.adding_apks_format, app));
+                    if (lrm.addApp(context, app)) {
+                        changedApps.add(app);
+                    }
+                }
+                HashCache.getInstance(context).flush();
+                String urlString = Utils.getSharingUri(FDroidApp.repo).toString();
+                lrm.writeIndexPage(urlString);
+                broadcast(context, STATUS_PROGRESS, R.string.writing_index_jar);
+                lrm.writeIndexJar();
+                broadcast(context, STATUS_PROGRESS, R.string.linking_apks);
+                lrm.stageApps(changedApps, new LocalRepoManager.StagingListener() {
+                    @Override
+                    public void onAppStaged(String packageName, int staged, int total) {
+                        broadcast(context, STATUS_PROGRESS,
+                                context.getString(R.string.staging_app_format, packageName, staged, total));
+                    }
+                });
+            }
             broadcast(context, STATUS_STARTED, null);
         } catch (IOException | XmlPullParserException | LocalRepoKeyStore.InitException e) {
             broadcast(context, STATUS_ERROR, e.getLocalizedMessage());
@@ -461,6 +461,7 @@ public class SwapService extends Service {
         }
 
         stopPollingConnectedSwapRepo();
+        SwapTransferManager.get(this).clear();
 
         if (timer != null) {
             timer.cancel();
@@ -596,7 +597,9 @@ public class SwapService extends Service {
     }
 
     /**
-     * Reschedule an index update if the last one was successful.
+     * Reschedule an index update if the last one was successful.  That also
+     * means the swap repo can be reached, so carry on with any APK transfers
+     * that the connection dropping had stopped.
      */
     private class PollForUpdatesReceiver extends BroadcastReceiver {
         @Override
@@ -605,6 +608,7 @@ public class SwapService extends Service {
                 case UpdateService.STATUS_COMPLETE_AND_SAME:
                 case UpdateService.STATUS_COMPLETE_WITH_CHANGES:
                     startPollingConnectedSwapRepo();
+                    SwapTransferManager.get(context).resume();
                     break;
             }
         }
@@ -285,6 +285,7 @@ public class SwapSuccessView extends SwapView implements LoaderManager.LoaderCal
                 @Override
                 public void onClick(View v) {
                     if (apk != null) {
+                        SwapTransferManager.get(getContext()).cancel(apk.getCanonicalUrl());
                         InstallManagerService.cancel(getContext(), apk.getCanonicalUrl());
                     }
                 }
@@ -295,7 +296,7 @@ public class SwapSuccessView extends SwapView implements LoaderManager.LoaderCal
                 public void onClick(View v) {
                     if (apk != null && (app.hasUpdates() || app.compatible)) {
                         showProgress();
-                        InstallManagerService.queue(getContext(), app, apk);
+                        SwapTransferManager.get(getContext()).queue(app, apk);
                     }
                 }
             };
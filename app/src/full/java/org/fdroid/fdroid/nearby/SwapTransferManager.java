@@ -0,0 +1,379 @@
+package org.fdroid.fdroid.nearby;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.Hasher;
+import org.fdroid.fdroid.ProgressListener;
+import org.fdroid.fdroid.R;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.installer.ApkCache;
+import org.fdroid.fdroid.installer.ApkCacheIndex;
+import org.fdroid.fdroid.installer.InstallManagerService;
+import org.fdroid.fdroid.net.BluetoothDownloader;
+import org.fdroid.fdroid.net.Downloader;
+import org.fdroid.fdroid.net.DownloaderFactory;
+import org.fdroid.fdroid.net.DownloaderService;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+/**
+ * Downloads the APKs picked from a swap repo as one batch, which survives
+ * the other device going away for a while.  When the hotspot drops or the
+ * users walk apart, the partial files are kept, and once the swap repo can
+ * be reached again, whether by {@link #resume()} after the repo updates or
+ * by the retries with backoff, each one carries on where it stopped using a
+ * {@code Range} request.  That works over WiFi with {@link LocalHTTPD}, and
+ * over Bluetooth with {@link BluetoothServer}.
+ * <p>
+ * A few files are fetched at once over WiFi, since {@link LocalHTTPD} serves
+ * several connections per client.  Bluetooth only has the one slow link, so
+ * those go one at a time.
+ * <p>
+ * Each finished file is checked against the hash in the swap index before it
+ * is handed to {@link InstallManagerService}, which then finds it in the
+ * {@link ApkCache} and goes straight to installing.  A file that does not
+ * match, e.g. from resuming onto a changed file, is deleted and fetched
+ * again from the start, once.
+ * <p>
+ * Progress is sent with the same broadcasts as {@link DownloaderService}, so
+ * the swap UI shows it the same way.  A download that is only waiting for
+ * the connection to come back is not reported as interrupted.
+ */
+public final class SwapTransferManager {
+    private static final String TAG = "SwapTransferManager";
+
+    private static final int MAX_WIFI_TRANSFERS = 3;
+    private static final int MAX_HASH_FAILURES = 1;
+    private static final long[] RETRY_DELAYS_MILLIS = {5000, 10000, 20000, 40000, 60000};
+
+    enum State {
+        QUEUED,
+        RUNNING,
+        /**
+         * Stopped by a connection problem, waiting to be resumed.
+         */
+        INTERRUPTED,
+        COMPLETE,
+        FAILED,
+    }
+
+    /**
+     * One entry in the manifest of the batch.
+     */
+    static final class Transfer {
+        final App app;
+        final Apk apk;
+        final String canonicalUrl;
+        final File file;
+        volatile State state = State.QUEUED;
+        /**
+         * How many bytes of the file are already here.
+         */
+        volatile long offset;
+        int hashFailures;
+        @Nullable
+        Downloader downloader;
+
+        Transfer(App app, Apk apk, File file) {
+            this.app = app;
+            this.apk = apk;
+            this.canonicalUrl = apk.getCanonicalUrl();
+            this.file = file;
+            this.offset = file.length();
+        }
+    }
+
+    @Nullable
+    private static SwapTransferManager swapTransferManager;
+
+    private final Context context;
+    private final LocalBroadcastManager localBroadcastManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor wifiExecutor;
+    private final ThreadPoolExecutor bluetoothExecutor;
+
+    private final Map<String, Transfer> manifest = new LinkedHashMap<>();
+    private int retries;
+
+    private final Runnable resumeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            resume();
+        }
+    };
+
+    @NonNull
+    public static synchronized SwapTransferManager get(Context context) {
+        if (swapTransferManager == null) {
+            swapTransferManager = new SwapTransferManager(context);
+        }
+        return swapTransferManager;
+    }
+
+    @VisibleForTesting
+    SwapTransferManager(Context context) {
+        this.context = context.getApplicationContext();
+        localBroadcastManager = LocalBroadcastManager.getInstance(this.context);
+        wifiExecutor = new ThreadPoolExecutor(MAX_WIFI_TRANSFERS, MAX_WIFI_TRANSFERS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        wifiExecutor.allowCoreThreadTimeOut(true);
+        bluetoothExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        bluetoothExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Add an APK to the batch and start fetching it.
+     */
+    public synchronized void queue(@NonNull App app, @NonNull Apk apk) {
+        String canonicalUrl = apk.getCanonicalUrl();
+        Transfer transfer = manifest.get(canonicalUrl);
+        if (transfer != null && (transfer.state == State.QUEUED || transfer.state == State.RUNNING)) {
+            Utils.debugLog(TAG, canonicalUrl + " is already being transferred");
+            return;
+        }
+        transfer = new Transfer(app, apk, ApkCache.getApkDownloadPath(context, canonicalUrl));
+        manifest.put(canonicalUrl, transfer);
+        // keep the partial file around to resume from
+        ApkCacheIndex.getInstance(context).pin(transfer.file);
+        submit(transfer);
+    }
+
+    /**
+     * Stop fetching an APK and take it out of the batch.  The partial file is
+     * kept, so starting it again later still resumes.
+     */
+    public synchronized void cancel(String canonicalUrl) {
+        Transfer transfer = manifest.remove(canonicalUrl);
+        if (transfer == null) {
+            return;
+        }
+        transfer.state = State.FAILED;
+        ApkCacheIndex.getInstance(context).unpin(transfer.file);
+        if (transfer.downloader != null) {
+            transfer.downloader.cancelDownload();
+        } else {
+            sendBroadcast(transfer, Downloader.ACTION_INTERRUPTED, null);
+        }
+    }
+
+    /**
+     * Carry on with all the downloads that were stopped by the connection
+     * going away, e.g. once the swap repo could be updated again.
+     */
+    public synchronized void resume() {
+        handler.removeCallbacks(resumeRunnable);
+        for (Transfer transfer : manifest.values()) {
+            if (transfer.state == State.INTERRUPTED) {
+                Utils.debugLog(TAG, "Resuming " + transfer.canonicalUrl + " from " + transfer.offset);
+                submit(transfer);
+            }
+        }
+    }
+
+    /**
+     * Forget the whole batch, e.g. when swapping is over.  Running downloads
+     * are stopped, the partial files are left for {@link ApkCacheIndex} to clean.
+     */
+    public synchronized void clear() {
+        handler.removeCallbacks(resumeRunnable);
+        for (String canonicalUrl : new ArrayList<>(manifest.keySet())) {
+            cancel(canonicalUrl);
+        }
+        retries = 0;
+    }
+
+    /**
+     * @return how many bytes of the batch are here, and how many there are in
+     * total, as far as the swap index says
+     */
+    public synchronized long[] getProgress() {
+        long done = 0;
+        long total = 0;
+        for (Transfer transfer : manifest.values()) {
+            done += transfer.state == State.COMPLETE ? transfer.apk.size : transfer.offset;
+            total += transfer.apk.size;
+        }
+        return new long[]{done, total};
+    }
+
+    synchronized List<Transfer> getManifest() {
+        return new ArrayList<>(manifest.values());
+    }
+
+    private void submit(final Transfer transfer) {
+        transfer.state = State.QUEUED;
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                transfer(transfer);
+            }
+        };
+        if (BluetoothDownloader.isBluetoothUri(Uri.parse(transfer.canonicalUrl))) {
+            bluetoothExecutor.execute(task);
+        } else {
+            wifiExecutor.execute(task);
+        }
+    }
+
+    private void transfer(final Transfer transfer) {
+        Downloader downloader;
+        synchronized (this) {
+            if (transfer.state != State.QUEUED) {
+                return; // canceled while waiting
+            }
+            transfer.state = State.RUNNING;
+            try {
+                downloader = DownloaderFactory.create(context, Uri.parse(transfer.canonicalUrl), transfer.file);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not set up download of " + transfer.canonicalUrl, e);
+                fail(transfer, e.getLocalizedMessage());
+                return;
+            }
+            transfer.downloader = downloader;
+        }
+        sendBroadcast(transfer, Downloader.ACTION_STARTED, null);
+        downloader.setTimeout(FDroidApp.getTimeout());
+        downloader.setListener(new ProgressListener() {
+            @Override
+            public void onProgress(long bytesRead, long totalBytes) {
+                transfer.offset = bytesRead;
+                Intent intent = newIntent(transfer, Downloader.ACTION_PROGRESS);
+                intent.putExtra(Downloader.EXTRA_BYTES_READ, bytesRead);
+                intent.putExtra(Downloader.EXTRA_TOTAL_BYTES, totalBytes);
+                localBroadcastManager.sendBroadcast(intent);
+            }
+        });
+
+        try {
+            downloader.download();
+            if (downloader.isNotFound()) {
+                fail(transfer, context.getString(R.string.download_404));
+            } else {
+                verify(transfer);
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                transfer.downloader = null;
+            }
+            sendBroadcast(transfer, Downloader.ACTION_INTERRUPTED, null);
+        } catch (IOException e) {
+            interrupted(transfer, e);
+        }
+    }
+
+    /**
+     * Check a finished file and hand it on to be installed.  The transfer
+     * might have been {@link #cancel(String) canceled} after the download
+     * was already done, then it is left alone.
+     */
+    @VisibleForTesting
+    void verify(Transfer transfer) {
+        boolean matches = Hasher.isFileMatchingHash(transfer.file, transfer.apk.hash, transfer.apk.hashType);
+        synchronized (this) {
+            if (transfer.state == State.FAILED || manifest.get(transfer.canonicalUrl) != transfer) {
+                // cancel() only reports it when there was no download left to stop
+                boolean reported = transfer.downloader == null;
+                transfer.downloader = null;
+                if (!reported) {
+                    sendBroadcast(transfer, Downloader.ACTION_INTERRUPTED, null);
+                }
+                return;
+            }
+            transfer.downloader = null;
+            if (matches) {
+                transfer.state = State.COMPLETE;
+                transfer.offset = transfer.file.length();
+                retries = 0;
+            } else {
+                FileUtils.deleteQuietly(transfer.file);
+                transfer.offset = 0;
+                if (transfer.hashFailures++ < MAX_HASH_FAILURES) {
+                    Log.i(TAG, transfer.canonicalUrl + " did not match its hash, starting over");
+                    submit(transfer);
+                    return;
+                }
+            }
+        }
+        if (!matches) {
+            fail(transfer, context.getString(R.string.swap_transfer_hash_mismatch, transfer.app.name));
+            return;
+        }
+        Utils.debugLog(TAG, "Transferred and verified " + transfer.canonicalUrl);
+        sendBroadcast(transfer, Downloader.ACTION_COMPLETE, null);
+        // the pending install takes over the pin, so it is never unpinned
+        // here, where recordUse() might trim it before it is installed
+        InstallManagerService.queue(context, transfer.app, transfer.apk);
+        ApkCacheIndex.getInstance(context).recordUse(transfer.file);
+    }
+
+    private void fail(Transfer transfer, String errorMessage) {
+        synchronized (this) {
+            transfer.state = State.FAILED;
+            transfer.downloader = null;
+            if (manifest.get(transfer.canonicalUrl) == transfer) {
+                manifest.remove(transfer.canonicalUrl);
+            }
+        }
+        ApkCacheIndex.getInstance(context).unpin(transfer.file);
+        sendBroadcast(transfer, Downloader.ACTION_INTERRUPTED, errorMessage);
+    }
+
+    /**
+     * Keep the partial file and try again later, with a growing delay, in
+     * case nothing else notices that the swap repo is back.
+     */
+    private synchronized void interrupted(Transfer transfer, IOException e) {
+        transfer.downloader = null;
+        if (transfer.state == State.FAILED) {
+            return; // canceled
+        }
+        transfer.state = State.INTERRUPTED;
+        transfer.offset = transfer.file.length();
+        Log.i(TAG, "Transfer of " + transfer.canonicalUrl + " interrupted at " + transfer.offset
+                + ", will resume: " + e.getLocalizedMessage());
+        if (retries < RETRY_DELAYS_MILLIS.length) {
+            handler.removeCallbacks(resumeRunnable);
+            handler.postDelayed(resumeRunnable, RETRY_DELAYS_MILLIS[retries++]);
+        }
+    }
+
+    private Intent newIntent(Transfer transfer, String action) {
+        Intent intent = new Intent(action);
+        intent.setData(Uri.parse(transfer.canonicalUrl));
+        intent.putExtra(Downloader.EXTRA_DOWNLOAD_PATH, transfer.file.getAbsolutePath());
+        intent.putExtra(Downloader.EXTRA_REPO_ID, transfer.apk.repoId);
+        intent.putExtra(Downloader.EXTRA_MIRROR_URL, transfer.canonicalUrl);
+        return intent;
+    }
+
+    private void sendBroadcast(Transfer transfer, String action, @Nullable String errorMessage) {
+        Intent intent = newIntent(transfer, action);
+        if (errorMessage != null) {
+            intent.putExtra(Downloader.EXTRA_ERROR_MESSAGE, errorMessage);
+        }
+        localBroadcastManager.sendBroadcast(intent);
+    }
+}
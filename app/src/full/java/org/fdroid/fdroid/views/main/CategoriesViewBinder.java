@@ -19,11 +19,13 @@ import org.fdroid.fdroid.panic.HidingManager;
 import org.fdroid.fdroid.views.apps.AppListActivity;
 import org.fdroid.fdroid.views.categories.CategoryAdapter;
 import org.fdroid.fdroid.views.categories.CategoryController;
+import org.fdroid.fdroid.views.categories.CategoryPreviewLoader;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
@@ -43,6 +45,7 @@ class CategoriesViewBinder implements LoaderManager.LoaderCallbacks<Cursor> {
     public static final String TAG = "CategoriesViewBinder";
 
     private static final int LOADER_ID = 429820532;
+    private static final int PREVIEW_LOADER_ID = 429820533;
 
     private final CategoryAdapter categoryAdapter;
     private final AppCompatActivity activity;
@@ -54,7 +57,7 @@ class CategoriesViewBinder implements LoaderManager.LoaderCallbacks<Cursor> {
 
         View categoriesView = activity.getLayoutInflater().inflate(R.layout.main_tab_categories, parent, true);
 
-        categoryAdapter = new CategoryAdapter(activity, activity.getSupportLoaderManager());
+        categoryAdapter = new CategoryAdapter(activity);
 
         emptyState = (TextView) categoriesView.findViewById(R.id.empty_state);
 
@@ -94,8 +97,33 @@ class CategoriesViewBinder implements LoaderManager.LoaderCallbacks<Cursor> {
         });
 
         activity.getSupportLoaderManager().restartLoader(LOADER_ID, null, this);
+        activity.getSupportLoaderManager().restartLoader(PREVIEW_LOADER_ID, null, previewCallbacks);
     }
 
+    /**
+     * Loads the apps for all categories at once, instead of each category
+     * starting its own queries as it is scrolled into view.
+     */
+    private final LoaderManager.LoaderCallbacks<Map<String, CategoryPreviewLoader.Preview>> previewCallbacks =
+            new LoaderManager.LoaderCallbacks<Map<String, CategoryPreviewLoader.Preview>>() {
+                @NonNull
+                @Override
+                public Loader<Map<String, CategoryPreviewLoader.Preview>> onCreateLoader(int id, Bundle args) {
+                    return new CategoryPreviewLoader(activity);
+                }
+
+                @Override
+                public void onLoadFinished(@NonNull Loader<Map<String, CategoryPreviewLoader.Preview>> loader,
+                                           Map<String, CategoryPreviewLoader.Preview> previews) {
+                    categoryAdapter.setPreviews(previews);
+                }
+
+                @Override
+                public void onLoaderReset(@NonNull Loader<Map<String, CategoryPreviewLoader.Preview>> loader) {
+                    categoryAdapter.setPreviews(null);
+                }
+            };
+
     @NonNull
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
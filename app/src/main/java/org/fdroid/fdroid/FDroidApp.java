@@ -67,6 +67,7 @@ import org.fdroid.fdroid.net.Downloader;
 import org.fdroid.fdroid.net.HttpDownloader;
 import org.fdroid.fdroid.panic.HidingManager;
 import org.fdroid.fdroid.work.CleanCacheWorker;
+import org.fdroid.fdroid.work.DatabaseMaintenanceWorker;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -414,6 +415,7 @@ public class FDroidApp extends Application implements androidx.work.Configuratio
         });
 
         CleanCacheWorker.schedule(this);
+        DatabaseMaintenanceWorker.schedule(this);
 
         notificationHelper = new NotificationHelper(getApplicationContext());
 
@@ -0,0 +1,278 @@
+package org.fdroid.fdroid;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * A persistent cache of file hashes, so that big files like installed APKs and
+ * OBB files only need to be hashed again when they actually changed on disk.
+ * <p>
+ * Each entry is keyed by the canonical path of the file, and is only valid as
+ * long as the size, modification time and inode of the file still match what
+ * was recorded when it was hashed.  Checking that is a single {@code stat()},
+ * which is far cheaper than reading a multi-hundred MB game.  Any mismatch
+ * means the file is hashed again and the entry is replaced.
+ * <p>
+ * The cache is bounded: it keeps at most {@link #MAX_ENTRIES} entries, evicting
+ * the least recently used ones, and drops entries that have not been used in
+ * {@link #MAX_AGE_MILLIS} when it is loaded.  It is stored in
+ * {@link Context#getNoBackupFilesDir()} so that it is neither backed up nor
+ * removed by {@link org.fdroid.fdroid.work.CleanCacheWorker}.
+ * <p>
+ * This is shared by {@link org.fdroid.fdroid.data.InstalledAppProviderService},
+ * the OBB detection in {@link org.fdroid.fdroid.data.App} and the nearby swap
+ * repo, which all hash the same installed files.
+ */
+public final class HashCache {
+    private static final String TAG = "HashCache";
+
+    private static final String FILE_NAME = "hash-cache";
+    private static final int FILE_VERSION = 1;
+
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 2000;
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(90);
+
+    /**
+     * How many newly hashed files to collect before writing the cache out to
+     * disk, in case nothing calls {@link #flush()}.
+     */
+    private static final int FLUSH_THRESHOLD = 32;
+
+    /**
+     * A cache hit only needs to be written out when the recorded last use
+     * is older than this, which is plenty for {@link #MAX_AGE_MILLIS}.
+     */
+    private static final long LAST_USED_GRANULARITY = TimeUnit.DAYS.toMillis(1);
+
+    private static HashCache instance;
+
+    private final File cacheFile;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private boolean loaded;
+    private int unsavedCount;
+
+    public static synchronized HashCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new HashCache(new File(context.getApplicationContext().getNoBackupFilesDir(), FILE_NAME));
+        }
+        return instance;
+    }
+
+    @VisibleForTesting
+    HashCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Get the hash of {@code file}, only reading the whole file if it changed
+     * since it was last hashed.
+     *
+     * @return the lowercase hex hash, or {@code null} if the file could not be read
+     * @see Utils#getBinaryHash(File, String)
+     */
+    @Nullable
+    public String getHash(File file, String hashType) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            return Utils.getBinaryHash(file, hashType);
+        }
+        Entry current = stat(file);
+        if (current == null) {
+            return Utils.getBinaryHash(file, hashType);
+        }
+
+        synchronized (this) {
+            load();
+            Entry cached = entries.get(path);
+            if (cached != null && cached.matches(current) && TextUtils.equals(hashType, cached.hashType)) {
+                long now = System.currentTimeMillis();
+                if (now - cached.lastUsed > LAST_USED_GRANULARITY) {
+                    // otherwise files still in use would be dropped as too old when loaded
+                    unsavedCount++;
+                    if (unsavedCount >= FLUSH_THRESHOLD) {
+                        save();
+                    }
+                }
+                cached.lastUsed = now;
+                return cached.hash;
+            }
+        }
+
+        String hash = Utils.getBinaryHash(file, hashType);
+        if (hash == null) {
+            return null;
+        }
+        current.hashType = hashType;
+        current.hash = hash;
+        current.lastUsed = System.currentTimeMillis();
+
+        synchronized (this) {
+            entries.put(path, current);
+            unsavedCount++;
+            if (unsavedCount >= FLUSH_THRESHOLD) {
+                save();
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Forget any cached hash for {@code file}, e.g. when it is known to be deleted.
+     */
+    public synchronized void remove(File file) {
+        load();
+        try {
+            if (entries.remove(file.getCanonicalPath()) != null) {
+                unsavedCount++;
+            }
+        } catch (IOException e) {
+            Utils.debugLog(TAG, "Could not remove " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write any newly hashed or used entries to disk.  This should be called at the end
+     * of batch operations that might have hashed a lot of files.
+     */
+    public synchronized void flush() {
+        if (unsavedCount > 0) {
+            save();
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int size() {
+        load();
+        return entries.size();
+    }
+
+    @Nullable
+    private static Entry stat(File file) {
+        try {
+            StructStat stat = Os.stat(file.getAbsolutePath());
+            Entry entry = new Entry();
+            entry.size = stat.st_size;
+            entry.mtime = file.lastModified();
+            entry.inode = stat.st_ino;
+            return entry;
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        long oldest = System.currentTimeMillis() - MAX_AGE_MILLIS;
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (input.readInt() != FILE_VERSION) {
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = input.readUTF();
+                Entry entry = new Entry();
+                entry.size = input.readLong();
+                entry.mtime = input.readLong();
+                entry.inode = input.readLong();
+                entry.hashType = input.readUTF();
+                entry.hash = input.readUTF();
+                entry.lastUsed = input.readLong();
+                if (entry.lastUsed > oldest) {
+                    entries.put(path, entry);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // nothing cached yet
+        } catch (EOFException e) {
+            Log.w(TAG, "Truncated hash cache, starting over");
+            entries.clear();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read hash cache", e);
+            entries.clear();
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Write to a temp file and then rename it into place so that a crash while
+     * saving cannot leave a half-written cache behind.
+     */
+    private void save() {
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            output.writeInt(FILE_VERSION);
+            output.writeInt(entries.size());
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                output.writeUTF(mapEntry.getKey());
+                output.writeLong(entry.size);
+                output.writeLong(entry.mtime);
+                output.writeLong(entry.inode);
+                output.writeUTF(entry.hashType);
+                output.writeUTF(entry.hash);
+                output.writeLong(entry.lastUsed);
+            }
+            output.close();
+            output = null;
+            if (!tmp.renameTo(cacheFile)) {
+                Log.e(TAG, "Could not move " + tmp + " to " + cacheFile);
+                return;
+            }
+            unsavedCount = 0;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write hash cache", e);
+        } finally {
+            Utils.closeQuietly(output);
+        }
+    }
+
+    private static class Entry {
+        long size;
+        long mtime;
+        long inode;
+        String hashType;
+        String hash;
+        long lastUsed;
+
+        boolean matches(Entry other) {
+            return size == other.size && mtime == other.mtime && inode == other.inode;
+        }
+    }
+}
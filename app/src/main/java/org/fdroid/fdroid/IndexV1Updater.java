@@ -25,6 +25,7 @@ package org.fdroid.fdroid;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageInfo;
+import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -45,8 +46,11 @@ import org.fdroid.fdroid.data.RepoPersister;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.RepoPushRequest;
 import org.fdroid.fdroid.data.Schema;
+import org.fdroid.fdroid.nearby.HaveList;
+import org.fdroid.fdroid.net.BluetoothDownloader;
 import org.fdroid.fdroid.net.Downloader;
 import org.fdroid.fdroid.net.DownloaderFactory;
+import org.fdroid.fdroid.net.HttpDownloader;
 
 import java.io.File;
 import java.io.IOException;
@@ -95,9 +99,16 @@ public class IndexV1Updater extends IndexUpdater {
 
     public static final String SIGNED_FILE_NAME = "index-v1.jar";
     public static final String DATA_FILE_NAME = "index-v1.json";
+    public static final String JAR_MIME_TYPE = "application/java-archive";
 
     private static String platformSigCache;
 
+    /**
+     * Whether {@link #processIndexV1(InputStream, JarEntry, String)} is
+     * working on an index that was filtered by a {@link HaveList}.
+     */
+    private boolean processingFilteredIndex;
+
     public IndexV1Updater(@NonNull Context context, @NonNull Repo repo) {
         super(context, repo);
     }
@@ -115,10 +126,13 @@ public class IndexV1Updater extends IndexUpdater {
     @Override
     public boolean update() throws IndexUpdater.UpdateException {
 
-        if (repo.isSwap) {
-            // swap repos do not support index-v1
+        if (repo.isSwap && BluetoothDownloader.isBluetoothUri(Uri.parse(repo.address))) {
+            // the Bluetooth protocol cannot tell us if index-v1 is missing on older swap peers
             return false;
         }
+        if (repo.isSwap && updateFromHaveList()) {
+            return true;
+        }
         Downloader downloader = null;
         try {
             // read file name from file
@@ -139,6 +153,10 @@ public class IndexV1Updater extends IndexUpdater {
         } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
                 | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
                 | ProtocolException | UnknownHostException e) {
+            if (repo.isSwap) {
+                // swap repos have no mirrors, so there is nothing else to try
+                throw new IndexUpdater.UpdateException(repo, "Error getting F-Droid index file", e);
+            }
             // if the above list changes, also change below and in DownloaderService.handleIntent()
             Utils.debugLog(TAG, "Trying to download the index from a mirror: " + e.getMessage());
             // Mirror logic here, so that the default download code is untouched.
@@ -192,6 +210,87 @@ public class IndexV1Updater extends IndexUpdater {
         return true;
     }
 
+    /**
+     * Ask a swap repo for an index of only the apps that are not already
+     * installed here, by posting a {@link HaveList}.  Older swap repos do not
+     * know about that, so anything but a jar coming back means the full index
+     * has to be downloaded as usual.  The same goes for when the filtered
+     * index left out an app that is not actually installed here, see
+     * {@link #checkOmittedApps(Map)}.  The filtered index is made for this
+     * request only, so it has no {@code ETag} to cache.
+     *
+     * @return whether the filtered index was downloaded and processed
+     */
+    private boolean updateFromHaveList() throws IndexUpdater.UpdateException {
+        HttpDownloader downloader = null;
+        try {
+            Downloader created = DownloaderFactory.create(context, indexUrl);
+            if (!(created instanceof HttpDownloader)) {
+                FileUtils.deleteQuietly(created.outputFile);
+                return false;
+            }
+            downloader = (HttpDownloader) created;
+            HaveList haveList = HaveList.fromInstalledPackages(context);
+            byte[] body = (HaveList.PARAM + "=" + haveList.encode()).getBytes("UTF-8");
+            downloader.setListener(downloadListener);
+            String contentType = downloader.post("application/x-www-form-urlencoded", body);
+            if (!JAR_MIME_TYPE.equals(contentType)) {
+                Utils.debugLog(TAG, "Swap repo did not take the have-list (" + contentType + "), "
+                        + "downloading the full index");
+                return false;
+            }
+            Utils.debugLog(TAG, "Got an index of what is new from the swap repo, "
+                    + downloader.outputFile.length() + " bytes for " + haveList.size() + " installed apps");
+            hasChanged = true;
+            processingFilteredIndex = true;
+            processDownloadedIndex(downloader.outputFile, null);
+            return true;
+        } catch (IOException | InterruptedException e) {
+            Utils.debugLog(TAG, "Could not get a filtered index, downloading the full one: " + e.getMessage());
+            return false;
+        } finally {
+            processingFilteredIndex = false;
+            if (downloader != null) {
+                downloader.close();
+                FileUtils.deleteQuietly(downloader.outputFile);
+            }
+        }
+    }
+
+    /**
+     * A filtered index lists the apps it left out because the
+     * {@link HaveList} said they are installed here.  That is a Bloom filter,
+     * so once in a while an app that is not installed, or not in that
+     * version, looks like it is.  Then the full index has to be used instead,
+     * otherwise that app would silently be missing from the swap.
+     *
+     * @throws IOException if any app that was left out is not installed here
+     *                     as listed, or the list is missing
+     */
+    @SuppressWarnings("unchecked")
+    private void checkOmittedApps(Map<String, Object> repoMap) throws IOException {
+        Object value = repoMap.get(HaveList.OMITTED);
+        if (!(value instanceof Map)) {
+            throw new IOException("Filtered index does not list what it left out");
+        }
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+            String packageName = entry.getKey();
+            Object versionCode = null;
+            Object sig = null;
+            if (entry.getValue() instanceof Map) {
+                Map<String, Object> omitted = (Map<String, Object>) entry.getValue();
+                versionCode = omitted.get("versionCode");
+                sig = omitted.get("sig");
+            }
+            PackageInfo packageInfo = Utils.getPackageInfoWithSignatures(context, packageName);
+            if (packageInfo == null || !(versionCode instanceof Integer) || !(sig instanceof String)
+                    || packageInfo.versionCode != (Integer) versionCode
+                    || !((String) sig).equalsIgnoreCase(Utils.getPackageSig(packageInfo))) {
+                throw new IOException("Filtered index left out " + packageName + ", which is not installed");
+            }
+        }
+    }
+
     private void processDownloadedIndex(File outputFile, String cacheTag)
             throws IOException, IndexUpdater.UpdateException {
         JarFile jarFile = new JarFile(outputFile, true);
@@ -274,6 +373,10 @@ public class IndexV1Updater extends IndexUpdater {
             return;
         }
 
+        if (processingFilteredIndex) {
+            checkOmittedApps(repoMap);
+        }
+
         long timestamp = (Long) repoMap.get("timestamp") / 1000;
 
         if (repo.timestamp > timestamp) {
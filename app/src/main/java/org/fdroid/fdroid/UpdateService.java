@@ -58,6 +58,7 @@ import androidx.annotation.NonNull;
 import androidx.core.app.JobIntentService;
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContextCompat;
+import androidx.core.util.Pair;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
 import io.reactivex.rxjava3.core.Completable;
@@ -556,26 +557,26 @@ public class UpdateService extends JobIntentService {
     }
 
     /**
-     * Queues all apps needing update.  If this app itself (e.g. F-Droid) needs
-     * to be updated, it is queued last.
+     * Queues all apps needing update as one batch, so they are downloaded in
+     * parallel and installed in order of priority.  If this app itself (e.g.
+     * F-Droid) needs to be updated, it is installed last.
+     *
+     * @see InstallManagerService#queue(Context, List, List)
      */
     public static void autoDownloadUpdates(Context context) {
         List<App> canUpdate = AppProvider.Helper.findCanUpdate(context, Schema.AppMetadataTable.Cols.ALL);
-        String packageName = context.getPackageName();
-        App updateLastApp = null;
-        Apk updateLastApk = null;
+        List<Pair<App, Apk>> batch = new ArrayList<>(canUpdate.size());
         for (App app : canUpdate) {
-            if (TextUtils.equals(packageName, app.packageName)) {
-                updateLastApp = app;
-                updateLastApk = ApkProvider.Helper.findSuggestedApk(context, app);
-                continue;
-            }
             Apk apk = ApkProvider.Helper.findSuggestedApk(context, app);
-            InstallManagerService.queue(context, app, apk);
+            if (apk != null) {
+                batch.add(new Pair<>(app, apk));
+            }
         }
-        if (updateLastApp != null && updateLastApk != null) {
-            InstallManagerService.queue(context, updateLastApp, updateLastApk);
+        List<String> knownVulns = new ArrayList<>();
+        for (App app : AppProvider.Helper.findInstalledAppsWithKnownVulns(context)) {
+            knownVulns.add(app.packageName);
         }
+        InstallManagerService.queue(context, batch, knownVulns);
     }
 
     private void showAppUpdatesNotification(List<App> canUpdate) {
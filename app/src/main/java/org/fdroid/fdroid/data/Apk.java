@@ -24,10 +24,14 @@ import org.fdroid.fdroid.installer.ApkCache;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.zip.ZipFile;
 
 import androidx.annotation.NonNull;
@@ -119,6 +123,16 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
 
     public String[] antiFeatures;
 
+    /**
+     * The delta files that rebuild this APK from an older version, as
+     * {@code versionCode:fileName}, set from the {@code deltas} map in the
+     * index, null if there are none.
+     *
+     * @see #getDeltaFile(int)
+     */
+    @JsonIgnore
+    public String[] deltas;
+
     /**
      * The numeric primary key of the Metadata table, which is used to join apks.
      */
@@ -254,6 +268,9 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
                 case Cols.AntiFeatures.ANTI_FEATURES:
                     antiFeatures = Utils.parseCommaSeparatedString(cursor.getString(i));
                     break;
+                case Cols.DELTAS:
+                    deltas = Utils.parseCommaSeparatedString(cursor.getString(i));
+                    break;
             }
         }
     }
@@ -323,6 +340,26 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
         return repoAddress + "/" + obbPatchFile;
     }
 
+    /**
+     * Get the name of the delta file that rebuilds this APK from the APK with
+     * {@code fromVersionCode}, which is in the same directory in the repo.
+     *
+     * @return the file name, or null if the repo has no delta from that version
+     */
+    @Nullable
+    public String getDeltaFile(int fromVersionCode) {
+        if (deltas == null) {
+            return null;
+        }
+        String prefix = fromVersionCode + ":";
+        for (String delta : deltas) {
+            if (delta.startsWith(prefix)) {
+                return delta.substring(prefix.length());
+            }
+        }
+        return null;
+    }
+
     /**
      * Get the local {@link File} to the "main" OBB file.
      */
@@ -374,6 +411,7 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
         values.put(Cols.INCOMPATIBLE_REASONS, Utils.serializeCommaSeparatedString(incompatibleReasons));
         values.put(Cols.AntiFeatures.ANTI_FEATURES, Utils.serializeCommaSeparatedString(antiFeatures));
         values.put(Cols.IS_COMPATIBLE, compatible ? 1 : 0);
+        values.put(Cols.DELTAS, Utils.serializeCommaSeparatedString(deltas));
         return values;
     }
 
@@ -421,6 +459,7 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
         dest.writeStringArray(this.incompatibleReasons);
         dest.writeStringArray(this.antiFeatures);
         dest.writeLong(this.appId);
+        dest.writeStringArray(this.deltas);
     }
 
     protected Apk(Parcel in) {
@@ -453,6 +492,7 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
         this.incompatibleReasons = in.createStringArray();
         this.antiFeatures = in.createStringArray();
         this.appId = in.readLong();
+        this.deltas = in.createStringArray();
     }
 
     public static final Parcelable.Creator<Apk> CREATOR = new Parcelable.Creator<Apk>() {
@@ -493,6 +533,25 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
         }
     }
 
+    /**
+     * Set the deltas from the map of {@code versionCode} to file name in the
+     * index, skipping any entry that is not a plain file name.
+     */
+    @JsonProperty("deltas")
+    @SuppressWarnings("unused")
+    private void setDeltas(Map<String, String> deltas) {
+        List<String> list = new ArrayList<>();
+        for (Map.Entry<String, String> entry : deltas.entrySet()) {
+            String fileName = entry.getValue();
+            if (!TextUtils.isDigitsOnly(entry.getKey()) || TextUtils.isEmpty(fileName)
+                    || fileName.contains("/") || fileName.contains(",") || fileName.startsWith(".")) {
+                continue;
+            }
+            list.add(entry.getKey() + ":" + fileName);
+        }
+        this.deltas = list.isEmpty() ? null : list.toArray(new String[0]);
+    }
+
     @JsonProperty("uses-permission")
     @SuppressWarnings("unused")
     private void setUsesPermission(Object[][] permissions) {
@@ -531,6 +590,19 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
                 set.add((String) versions[0]);
             }
         }
+        addImpliedPermissions(set, targetSdkVersion);
+
+        requestedPermissions = set.toArray(new String[set.size()]);
+    }
+
+    /**
+     * Add the permissions that the current Android version grants along with
+     * the ones in {@code set}, like {@link #setRequestedPermissions(Object[][], int)}
+     * does for the index.  This is also used for APK files parsed by
+     * {@link org.fdroid.fdroid.installer.ApkInspector}, so both sides follow
+     * the same rules.
+     */
+    public static void addImpliedPermissions(Set<String> set, int targetSdkVersion) {
         if (Build.VERSION.SDK_INT >= 16 && set.contains(Manifest.permission.WRITE_EXTERNAL_STORAGE)) {
             set.add(Manifest.permission.READ_EXTERNAL_STORAGE);
         }
@@ -568,8 +640,6 @@ public class Apk extends ValueObject implements Comparable<Apk>, Parcelable {
                 }
             }
         }
-
-        requestedPermissions = set.toArray(new String[set.size()]);
     }
 
     /**
@@ -24,35 +24,29 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import org.apache.commons.io.filefilter.RegexFileFilter;
-import org.fdroid.fdroid.FDroidApp;
+import org.fdroid.fdroid.HashCache;
 import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+import org.fdroid.fdroid.installer.ApkInspector;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -242,8 +236,12 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
      */
     private String iconUrl;
 
+    /**
+     * The name of the icon of an installed app in the swap repo, which
+     * {@link org.fdroid.fdroid.nearby.LocalRepoManager} writes as WebP.
+     */
     public static String getIconName(String packageName, int versionCode) {
-        return packageName + "_" + versionCode + ".png";
+        return packageName + "_" + versionCode + ".webp";
     }
 
     @Override
@@ -404,6 +402,7 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
                     installedSig = cursor.getString(i);
                     break;
                 case "_id":
+                case Cols.Category.CATEGORY_NAME:
                     break;
                 default:
                     Log.e(TAG, "Unknown column name " + n);
@@ -431,7 +430,7 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
             app.installedApk.hash = installedApp.getHash();
         } else if (apkFile.canRead()) {
             String hashType = "sha256";
-            String hash = Utils.getBinaryHash(apkFile, hashType);
+            String hash = HashCache.getInstance(context).getHash(apkFile, hashType);
             if (TextUtils.isEmpty(hash)) {
                 return null;
             }
@@ -862,7 +861,7 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
         this.compatible = true;
     }
 
-    public static void initInstalledObbFiles(Apk apk) {
+    public static void initInstalledObbFiles(Context context, Apk apk) {
         File obbdir = getObbDir(apk.packageName);
         FileFilter filter = new RegexFileFilter("(main|patch)\\.[0-9-][0-9]*\\." + apk.packageName + "\\.obb");
         File[] files = obbdir.listFiles(filter);
@@ -876,10 +875,10 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
             if (Integer.parseInt(segments[1]) <= apk.versionCode) {
                 if ("main".equals(segments[0])) {
                     apk.obbMainFile = filename;
-                    apk.obbMainFileSha256 = Utils.getBinaryHash(f, apk.hashType);
+                    apk.obbMainFileSha256 = HashCache.getInstance(context).getHash(f, apk.hashType);
                 } else if ("patch".equals(segments[0])) {
                     apk.obbPatchFile = filename;
-                    apk.obbPatchFileSha256 = Utils.getBinaryHash(f, apk.hashType);
+                    apk.obbPatchFileSha256 = HashCache.getInstance(context).getHash(f, apk.hashType);
                 }
             }
         }
@@ -900,7 +899,7 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
         apk.requestedPermissions = packageInfo.requestedPermissions;
         apk.apkName = apk.packageName + "_" + apk.versionCode + ".apk";
 
-        initInstalledObbFiles(apk);
+        initInstalledObbFiles(context, apk);
 
         final FeatureInfo[] features = packageInfo.reqFeatures;
         if (features != null && features.length > 0) {
@@ -915,56 +914,14 @@ public class App extends ValueObject implements Comparable<App>, Parcelable {
         }
 
         apk.installedFile = apkFile;
-        JarFile apkJar = new JarFile(apkFile);
-        HashSet<String> abis = new HashSet<>(3);
-        Pattern pattern = Pattern.compile("^lib/([a-z0-9-]+)/.*");
-        for (Enumeration<JarEntry> jarEntries = apkJar.entries(); jarEntries.hasMoreElements(); ) {
-            JarEntry jarEntry = jarEntries.nextElement();
-            Matcher matcher = pattern.matcher(jarEntry.getName());
-            if (matcher.matches()) {
-                abis.add(matcher.group(1));
-            }
-        }
-        apk.nativecode = abis.toArray(new String[abis.size()]);
-
-        final JarEntry aSignedEntry = (JarEntry) apkJar.getEntry("AndroidManifest.xml");
-
-        if (aSignedEntry == null) {
-            apkJar.close();
-            throw new CertificateEncodingException("null signed entry!");
+        // Android already verified this APK when installing it, so reading
+        // the certificate without verifying it all again is enough here.
+        ApkInspector inspector = ApkInspector.inspect(apkFile);
+        apk.nativecode = inspector.getNativecode();
+        byte[] rawCertBytes = inspector.getCertificate();
+        if (rawCertBytes == null) {
+            throw new CertificateEncodingException("No Certificates found!");
         }
-
-        byte[] rawCertBytes;
-
-        // Due to a bug in android 5.0 lollipop, the inclusion of BouncyCastle causes
-        // breakage when verifying the signature of most .jars. For more
-        // details, check out https://gitlab.com/fdroid/fdroidclient/issues/111.
-        try {
-            FDroidApp.disableBouncyCastleOnLollipop();
-            final InputStream tmpIn = apkJar.getInputStream(aSignedEntry);
-            byte[] buff = new byte[2048];
-            //noinspection StatementWithEmptyBody
-            while (tmpIn.read(buff, 0, buff.length) != -1) {
-                /*
-                 * NOP - apparently have to READ from the JarEntry before you can
-                 * call getCerficates() and have it return != null. Yay Java.
-                 */
-            }
-            tmpIn.close();
-
-            if (aSignedEntry.getCertificates() == null
-                    || aSignedEntry.getCertificates().length == 0) {
-                apkJar.close();
-                throw new CertificateEncodingException("No Certificates found!");
-            }
-
-            final Certificate signer = aSignedEntry.getCertificates()[0];
-            rawCertBytes = signer.getEncoded();
-        } finally {
-            FDroidApp.enableBouncyCastleOnLollipop();
-        }
-        apkJar.close();
-
         apk.sig = Utils.getsig(rawCertBytes);
     }
 
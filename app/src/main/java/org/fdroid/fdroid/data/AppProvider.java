@@ -261,6 +261,7 @@ public class AppProvider extends FDroidProvider {
         private boolean requiresAntiFeatures;
         private boolean requiresLeftJoinToPrefs;
         private boolean countFieldAppended;
+        private boolean categoryFieldAppended;
 
         @Override
         protected String getRequiredTables() {
@@ -280,8 +281,16 @@ public class AppProvider extends FDroidProvider {
         @Override
         protected String groupBy() {
             // If the count field has been requested, then we want to group all rows together. Otherwise
-            // we will only group all the rows belonging to a single app together.
-            return countFieldAppended ? null : getTableName() + "." + Cols.ROW_ID;
+            // we will only group all the rows belonging to a single app together, or to a single app
+            // in a single category if the category name was requested.
+            if (countFieldAppended) {
+                return null;
+            }
+            String groupBy = getTableName() + "." + Cols.ROW_ID;
+            if (categoryFieldAppended) {
+                groupBy += ", " + CategoryTable.NAME + "." + CategoryTable.Cols.ROW_ID;
+            }
+            return groupBy;
         }
 
         public void addSelection(AppQuerySelection selection) {
@@ -380,6 +389,10 @@ public class AppProvider extends FDroidProvider {
                 case Cols._COUNT:
                     appendCountField();
                     break;
+                case Cols.Category.CATEGORY_NAME:
+                    categoryFieldAppended = true;
+                    appendField(CategoryTable.Cols.NAME, CategoryTable.NAME, Cols.Category.CATEGORY_NAME);
+                    break;
                 default:
                     appendField(field, getTableName());
                     break;
@@ -455,8 +468,12 @@ public class AppProvider extends FDroidProvider {
     private static final String PATH_CALC_PREFERRED_METADATA = "calcPreferredMetadata";
     private static final String PATH_CALC_SUGGESTED_APKS = "calcNonRepoDetailsFromIndex";
     private static final String PATH_TOP_FROM_CATEGORY = "topFromCategory";
+    private static final String PATH_TOP_FROM_ALL_CATEGORIES = "topFromAllCategories";
     private static final String PATH_INSTALLED_WITH_KNOWN_VULNS = "installedWithKnownVulns";
 
+    private static final String QUERY_PAGE_SIZE = "pageSize";
+    private static final String QUERY_PAGE_OFFSET = "pageOffset";
+
     private static final int CAN_UPDATE = CODE_SINGLE + 1;
     private static final int INSTALLED = CAN_UPDATE + 1;
     private static final int SEARCH_TEXT = INSTALLED + 1;
@@ -470,6 +487,7 @@ public class AppProvider extends FDroidProvider {
     private static final int CALC_PREFERRED_METADATA = HIGHEST_PRIORITY + 1;
     private static final int TOP_FROM_CATEGORY = CALC_PREFERRED_METADATA + 1;
     private static final int INSTALLED_WITH_KNOWN_VULNS = TOP_FROM_CATEGORY + 1;
+    private static final int TOP_FROM_ALL_CATEGORIES = INSTALLED_WITH_KNOWN_VULNS + 1;
 
     static {
         MATCHER.addURI(getAuthority(), null, CODE_LIST);
@@ -488,6 +506,7 @@ public class AppProvider extends FDroidProvider {
         MATCHER.addURI(getAuthority(), PATH_CALC_PREFERRED_METADATA, CALC_PREFERRED_METADATA);
         MATCHER.addURI(getAuthority(), PATH_TOP_FROM_CATEGORY + "/#/*", TOP_FROM_CATEGORY);
         MATCHER.addURI(getAuthority(), PATH_INSTALLED_WITH_KNOWN_VULNS, INSTALLED_WITH_KNOWN_VULNS);
+        MATCHER.addURI(getAuthority(), PATH_TOP_FROM_ALL_CATEGORIES, TOP_FROM_ALL_CATEGORIES);
     }
 
     public static Uri getContentUri() {
@@ -529,7 +548,7 @@ public class AppProvider extends FDroidProvider {
      * in the overview screen in {@link org.fdroid.fdroid.views.categories.CategoryController}.
      * The number of entries is defined by {@code limit}.
      *
-     * @see org.fdroid.fdroid.views.categories.CategoryController#onCreateLoader(int, android.os.Bundle)
+     * @see #getTopFromAllCategoriesUri()
      */
     public static Uri getTopFromCategoryUri(String category, int limit) {
         return getContentUri().buildUpon()
@@ -539,6 +558,21 @@ public class AppProvider extends FDroidProvider {
                 .build();
     }
 
+    /**
+     * Get the apps in every category at once, for the overview screen in
+     * {@link org.fdroid.fdroid.views.categories.CategoryController}.  Each app
+     * is returned once for each category it is in, so this should be queried
+     * with {@link Cols.Category#CATEGORY_NAME} in the projection and sorted by
+     * it first.  There is no limit per category, since SQLite on older Android
+     * versions lacks the window functions needed to do that in the query, so
+     * the caller picks the top apps out of each category as it reads them.
+     *
+     * @see org.fdroid.fdroid.views.categories.CategoryPreviewLoader
+     */
+    public static Uri getTopFromAllCategoriesUri() {
+        return Uri.withAppendedPath(getContentUri(), PATH_TOP_FROM_ALL_CATEGORIES);
+    }
+
     public static Uri getInstalledUri() {
         return Uri.withAppendedPath(getContentUri(), PATH_INSTALLED);
     }
@@ -594,6 +628,20 @@ public class AppProvider extends FDroidProvider {
         return builder.build();
     }
 
+    /**
+     * Get a single page of the results of any of the list {@link Uri}s, e.g.
+     * {@link #getSearchUri(String, String)}.  This lets long lists be loaded
+     * bit by bit as the user scrolls, rather than all at once.
+     *
+     * @see org.fdroid.fdroid.views.apps.AppListPager
+     */
+    public static Uri getPageUri(Uri uri, int pageSize, int offset) {
+        return uri.buildUpon()
+                .appendQueryParameter(QUERY_PAGE_SIZE, Integer.toString(pageSize))
+                .appendQueryParameter(QUERY_PAGE_OFFSET, Integer.toString(offset))
+                .build();
+    }
+
     public static Uri getSearchUri(Repo repo, String query) {
         return getContentUri().buildUpon()
                 .appendPath(PATH_SEARCH_REPO)
@@ -753,6 +801,10 @@ public class AppProvider extends FDroidProvider {
         return new AppQuerySelection(selection, args);
     }
 
+    private AppQuerySelection queryInAnyCategory() {
+        return new AppQuerySelection(CategoryTable.NAME + "." + CategoryTable.Cols.ROW_ID + " IS NOT NULL");
+    }
+
     private AppQuerySelection queryInstalledWithKnownVulns() {
         String apk = getApkTableName();
 
@@ -862,6 +914,11 @@ public class AppProvider extends FDroidProvider {
                 includeSwap = false;
                 break;
 
+            case TOP_FROM_ALL_CATEGORIES:
+                selection = selection.add(queryInAnyCategory());
+                includeSwap = false;
+                break;
+
             case LATEST_TAB:
                 // There seems no reason to limit the number of apps on the front page, but it helps
                 // if it loads quickly, as it is the default view shown every time F-Droid is opened.
@@ -886,7 +943,15 @@ public class AppProvider extends FDroidProvider {
             selection = selection.add(queryHighestPriority());
         }
 
-        return runQuery(uri, selection, projection, includeSwap, sortOrder, limit);
+        int offset = 0;
+        String pageSize = uri.getQueryParameter(QUERY_PAGE_SIZE);
+        if (pageSize != null) {
+            limit = Integer.parseInt(pageSize);
+            String pageOffset = uri.getQueryParameter(QUERY_PAGE_OFFSET);
+            offset = pageOffset == null ? 0 : Integer.parseInt(pageOffset);
+        }
+
+        return runQuery(uri, selection, projection, includeSwap, sortOrder, limit, offset);
     }
 
     /**
@@ -900,6 +965,10 @@ public class AppProvider extends FDroidProvider {
      * a {@code sortOrder} is built out into a {@code sortOrder} that includes localized sorting.
      */
     protected Cursor runQuery(Uri uri, AppQuerySelection selection, String[] projection, boolean includeSwap, String sortOrder, int limit) {
+        return runQuery(uri, selection, projection, includeSwap, sortOrder, limit, 0);
+    }
+
+    protected Cursor runQuery(Uri uri, AppQuerySelection selection, String[] projection, boolean includeSwap, String sortOrder, int limit, int offset) {
         if (!includeSwap) {
             selection = selection.add(queryExcludeSwap());
         }
@@ -913,6 +982,7 @@ public class AppProvider extends FDroidProvider {
         query.addFields(projection); // TODO: Make the order of addFields/addSelection not dependent on each other...
         query.addOrderBy(sortOrder);
         query.addLimit(limit);
+        query.addOffset(offset);
 
         Cursor cursor = LoggingQuery.rawQuery(db(), query.toString(), query.getArgs());
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
@@ -126,7 +126,8 @@ public class DBHelper extends SQLiteOpenHelper {
                     + ApkTable.Cols.HASH_TYPE + " string, "
                     + ApkTable.Cols.ADDED_DATE + " string, "
                     + ApkTable.Cols.IS_COMPATIBLE + " int not null, "
-                    + ApkTable.Cols.INCOMPATIBLE_REASONS + " text"
+                    + ApkTable.Cols.INCOMPATIBLE_REASONS + " text, "
+                    + ApkTable.Cols.DELTAS + " string"
                     + ");";
 
     static final String CREATE_TABLE_APP_METADATA = "CREATE TABLE " + AppMetadataTable.NAME
@@ -228,7 +229,7 @@ public class DBHelper extends SQLiteOpenHelper {
             + "primary key(" + ApkAntiFeatureJoinTable.Cols.APK_ID + ", " + ApkAntiFeatureJoinTable.Cols.ANTI_FEATURE_ID + ") "
             + " );";
 
-    protected static final int DB_VERSION = 85;
+    protected static final int DB_VERSION = 86;
 
     private final Context context;
 
@@ -459,6 +460,18 @@ public class DBHelper extends SQLiteOpenHelper {
         switchRepoArchivePriorities(db, oldVersion);
         deleteOldIconUrls(db, oldVersion);
         addOpenCollective(db, oldVersion);
+        addApkDeltas(db, oldVersion);
+    }
+
+    private void addApkDeltas(SQLiteDatabase db, int oldVersion) {
+        if (oldVersion >= 86) {
+            return;
+        }
+
+        if (!columnExists(db, ApkTable.NAME, ApkTable.Cols.DELTAS)) {
+            Utils.debugLog(TAG, "Adding " + ApkTable.Cols.DELTAS + " field to " + ApkTable.NAME + " table in db.");
+            db.execSQL("alter table " + ApkTable.NAME + " add column " + ApkTable.Cols.DELTAS + " string;");
+        }
     }
 
     private void addOpenCollective(SQLiteDatabase db, int oldVersion) {
@@ -0,0 +1,171 @@
+package org.fdroid.fdroid.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.fdroid.fdroid.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Housekeeping for the database, which otherwise only ever grows and whose
+ * query plans drift as the index changes over months of updates.  The work is
+ * split into small steps so that it can be interrupted between them, e.g.
+ * because a repo update started, and carried on again later:
+ * <ul>
+ * <li>{@code ANALYZE} one table at a time, so the query planner knows what
+ * the tables look like after all the index updates</li>
+ * <li>{@code PRAGMA incremental_vacuum} a batch of pages at a time, to hand
+ * the free pages left behind by updates back to the filesystem</li>
+ * <li>{@code PRAGMA optimize}, which is a no-op on SQLite versions that do
+ * not support it</li>
+ * </ul>
+ * Existing databases were created without {@code auto_vacuum}, so they need a
+ * single full {@code VACUUM} to switch to incremental mode.  After that, no
+ * step has to rewrite the whole database.
+ *
+ * @see org.fdroid.fdroid.work.DatabaseMaintenanceWorker
+ */
+public class DatabaseMaintenance {
+    private static final String TAG = "DatabaseMaintenance";
+
+    /**
+     * {@code PRAGMA auto_vacuum} value for {@code INCREMENTAL}.
+     */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * How many free pages to release per step of the incremental vacuum.
+     * With the default page size of 4KB this is 4MB.
+     */
+    private static final int VACUUM_PAGES_PER_STEP = 1024;
+
+    /**
+     * Checked between each step, to stop early when the database is needed
+     * for something more important.
+     */
+    public interface Interruption {
+        boolean shouldStop();
+    }
+
+    private final SQLiteDatabase db;
+
+    public DatabaseMaintenance(Context context) {
+        db = DBHelper.getInstance(context).getWritableDatabase();
+    }
+
+    /**
+     * @return the number of bytes used by the database, including free pages
+     */
+    public long getSize() {
+        return getPragmaLong("page_count") * getPragmaLong("page_size");
+    }
+
+    /**
+     * @return the number of bytes in free pages, which a vacuum would release
+     */
+    public long getFreeSize() {
+        return getPragmaLong("freelist_count") * getPragmaLong("page_size");
+    }
+
+    /**
+     * Gather statistics for the query planner, one table at a time.
+     *
+     * @return {@code false} if this was interrupted before finishing
+     */
+    public boolean analyze(@NonNull Interruption interruption) {
+        for (String table : getTables()) {
+            if (interruption.shouldStop()) {
+                return false;
+            }
+            Utils.debugLog(TAG, "Analyzing " + table);
+            db.execSQL("ANALYZE " + table);
+        }
+        return true;
+    }
+
+    /**
+     * Release the free pages to the filesystem, a batch at a time.  If the
+     * database is not yet in incremental vacuum mode, this switches it over
+     * with a single full {@code VACUUM}.
+     *
+     * @return {@code false} if this was interrupted before finishing
+     */
+    public boolean vacuum(@NonNull Interruption interruption) {
+        if (getPragmaLong("auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            if (interruption.shouldStop()) {
+                return false;
+            }
+            Utils.debugLog(TAG, "Switching to incremental vacuum, this requires one full VACUUM");
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            return true;
+        }
+        long freePages = getPragmaLong("freelist_count");
+        while (freePages > 0) {
+            if (interruption.shouldStop()) {
+                return false;
+            }
+            drain(db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES_PER_STEP + ")", null));
+            long remaining = getPragmaLong("freelist_count");
+            if (remaining >= freePages) {
+                Utils.debugLog(TAG, "Incremental vacuum is not making progress, " + remaining + " pages left");
+                break;
+            }
+            freePages = remaining;
+        }
+        return true;
+    }
+
+    /**
+     * Let SQLite run whatever other optimizations it thinks are worthwhile.
+     */
+    public void optimize() {
+        drain(db.rawQuery("PRAGMA optimize", null));
+    }
+
+    private List<String> getTables() {
+        List<String> tables = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table'"
+                + " AND name NOT LIKE 'sqlite_%' AND name NOT LIKE 'android_%'", null);
+        try {
+            while (cursor.moveToNext()) {
+                tables.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tables;
+    }
+
+    private long getPragmaLong(String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Step a statement through to the end, which is what makes pragmas like
+     * {@code incremental_vacuum} do all of their work.
+     *
+     * @return the number of rows stepped through
+     */
+    private static int drain(Cursor cursor) {
+        int rows = 0;
+        try {
+            while (cursor.moveToNext()) {
+                rows++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+}
@@ -1,9 +1,11 @@
 package org.fdroid.fdroid.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.ServiceConnection;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -16,6 +18,7 @@ import android.util.Log;
 
 import org.acra.ACRA;
 import org.fdroid.fdroid.AppUpdateStatusManager;
+import org.fdroid.fdroid.HashCache;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Schema.InstalledAppTable;
 import org.fdroid.fdroid.installer.PrivilegedInstaller;
@@ -23,10 +26,19 @@ import org.fdroid.fdroid.privileged.IPrivilegedService;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.NonNull;
@@ -62,9 +74,28 @@ public class InstalledAppProviderService extends JobIntentService {
 
     private static final String ACTION_INSERT = "org.fdroid.fdroid.data.action.INSERT";
     private static final String ACTION_DELETE = "org.fdroid.fdroid.data.action.DELETE";
+    private static final String ACTION_SYNC = "org.fdroid.fdroid.data.action.SYNC";
 
     private static final String EXTRA_PACKAGE_INFO = "org.fdroid.fdroid.data.extra.PACKAGE_INFO";
 
+    private static final String HASH_TYPE = "sha256";
+
+    /**
+     * The most threads to use for hashing APKs during a bulk sync.  Hashing is
+     * mostly I/O bound, so more threads than this just fight over the storage.
+     */
+    private static final int MAX_HASH_THREADS = 4;
+
+    /**
+     * Packages found by {@link #compareToPackageManager(Context, List)} that still
+     * need to be written by the next {@link #ACTION_SYNC} run.  The full
+     * {@link PackageInfo} instances are too big to send in a single {@link Intent},
+     * so they are handed over here instead.  Guarded by its own lock, which also
+     * guards {@link #PENDING_DELETES}.
+     */
+    private static final Map<String, PackageInfo> PENDING_INSERTS = new HashMap<>();
+    private static final Set<String> PENDING_DELETES = new HashSet<>();
+
     /**
      * This is for notifying the users of this {@link android.content.ContentProvider}
      * that the contents have changed. Since {@link Intent}s can come in slow
@@ -159,6 +190,16 @@ public class InstalledAppProviderService extends JobIntentService {
         enqueueWork(context, intent);
     }
 
+    /**
+     * Queue up a single bulk sync of all the packages that
+     * {@link #compareToPackageManager(Context, List)} found to be out of date.
+     */
+    private static void sync(Context context) {
+        Intent intent = new Intent(context, InstalledAppProviderService.class);
+        intent.setAction(ACTION_SYNC);
+        enqueueWork(context, intent);
+    }
+
     private static void enqueueWork(Context context, Intent intent) {
         enqueueWork(context, InstalledAppProviderService.class, 0x192834, intent);
     }
@@ -184,6 +225,11 @@ public class InstalledAppProviderService extends JobIntentService {
      * time since we have no way to know whether an APK wasn't changed as part of an
      * OTA update.  An OTA update could change the APK without changing the
      * {@link PackageInfo#versionCode} or {@link PackageInfo#lastUpdateTime}.
+     * <p>
+     * All of the differences found are handled as a single bulk sync: the
+     * changed APKs are hashed in parallel, then all of the rows are written in
+     * one database transaction, followed by one change notification.  This
+     * avoids hundreds of separate jobs on first start or after an OTA update.
      *
      * @see <a href="https://gitlab.com/fdroid/fdroidclient/issues/819>issue #819</a>
      */
@@ -244,21 +290,33 @@ public class InstalledAppProviderService extends JobIntentService {
         Map<String, Long> cachedInfo = InstalledAppProvider.Helper.lastUpdateTimes(context);
         TreeSet<PackageInfo> packageInfoSet = new TreeSet<>(new PackageInfoComparator());
         packageInfoSet.addAll(packageInfoList);
+        Map<String, PackageInfo> toInsert = new HashMap<>();
         for (PackageInfo packageInfo : packageInfoSet) {
             if (cachedInfo.containsKey(packageInfo.packageName)) {
                 if (packageInfo.lastUpdateTime < 1262300400000L // 2010-01-01 00:00
                         || packageInfo.lastUpdateTime > cachedInfo.get(packageInfo.packageName)) {
-                    insert(context, packageInfo);
+                    toInsert.put(packageInfo.packageName, packageInfo);
                 }
                 cachedInfo.remove(packageInfo.packageName);
             } else {
-                insert(context, packageInfo);
+                toInsert.put(packageInfo.packageName, packageInfo);
             }
         }
 
-        for (String packageName : cachedInfo.keySet()) {
-            delete(context, packageName);
+        if (toInsert.isEmpty() && cachedInfo.isEmpty()) {
+            Utils.debugLog(TAG, "Installed app cache is already in sync with package manager.");
+            return;
         }
+
+        synchronized (PENDING_INSERTS) {
+            PENDING_INSERTS.putAll(toInsert);
+            PENDING_DELETES.removeAll(toInsert.keySet());
+            PENDING_DELETES.addAll(cachedInfo.keySet());
+            for (String packageName : cachedInfo.keySet()) {
+                PENDING_INSERTS.remove(packageName);
+            }
+        }
+        sync(context);
     }
 
     @Nullable
@@ -283,9 +341,14 @@ public class InstalledAppProviderService extends JobIntentService {
     protected void onHandleWork(@NonNull Intent intent) {
         Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
 
+        final String action = intent.getAction();
+        if (ACTION_SYNC.equals(action)) {
+            handleSync();
+            return;
+        }
+
         AppUpdateStatusManager ausm = AppUpdateStatusManager.getInstance(this);
         String packageName = intent.getData().getSchemeSpecificPart();
-        final String action = intent.getAction();
         if (ACTION_INSERT.equals(action)) {
             PackageInfo packageInfo = getPackageInfo(intent, packageName);
             if (packageInfo != null) {
@@ -298,9 +361,10 @@ public class InstalledAppProviderService extends JobIntentService {
                 }
                 if (apk.exists() && apk.canRead()) {
                     try {
-                        String hashType = "sha256";
-                        String hash = Utils.getBinaryHash(apk, hashType);
-                        insertAppIntoDb(this, packageInfo, hashType, hash);
+                        HashCache hashCache = HashCache.getInstance(this);
+                        String hash = hashCache.getHash(apk, HASH_TYPE);
+                        hashCache.flush();
+                        insertAppIntoDb(this, packageInfo, HASH_TYPE, hash);
                     } catch (IllegalArgumentException e) {
                         Utils.debugLog(TAG, e.getMessage());
                         ACRA.getErrorReporter().handleException(e, false);
@@ -317,6 +381,113 @@ public class InstalledAppProviderService extends JobIntentService {
         packageChangeNotifier.onNext(packageName);
     }
 
+    /**
+     * Write everything that {@link #compareToPackageManager(Context, List)} queued
+     * up in one go.  The APKs are hashed in parallel, then all inserts and deletes
+     * are applied in a single transaction via
+     * {@link FDroidProvider#applyBatch(ArrayList)}.  Since the whole list of apps
+     * changes at once, this skips the per-package notifications and just sends
+     * one general notification, which also covers the per-app URIs.
+     */
+    private void handleSync() {
+        Map<String, PackageInfo> inserts;
+        Set<String> deletes;
+        synchronized (PENDING_INSERTS) {
+            inserts = new HashMap<>(PENDING_INSERTS);
+            deletes = new HashSet<>(PENDING_DELETES);
+            PENDING_INSERTS.clear();
+            PENDING_DELETES.clear();
+        }
+        if (inserts.isEmpty() && deletes.isEmpty()) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(inserts.size() + deletes.size());
+        List<ContentValues> rows = hashInParallel(inserts.values());
+        HashCache.getInstance(this).flush();
+        for (ContentValues values : rows) {
+            operations.add(ContentProviderOperation.newInsert(InstalledAppProvider.getContentUri())
+                    .withValues(values)
+                    .build());
+        }
+        for (String packageName : deletes) {
+            Log.d(TAG, "deleteAppFromDb " + packageName);
+            operations.add(ContentProviderOperation.newDelete(InstalledAppProvider.getAppUri(packageName))
+                    .build());
+        }
+
+        try {
+            getContentResolver().applyBatch(InstalledAppProvider.getAuthority(), operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Could not sync installed apps with package manager", e);
+            ACRA.getErrorReporter().handleException(e, false);
+            return;
+        }
+
+        AppUpdateStatusManager ausm = AppUpdateStatusManager.getInstance(this);
+        for (String packageName : inserts.keySet()) {
+            for (AppUpdateStatusManager.AppUpdateStatus status : ausm.getByPackageName(packageName)) {
+                ausm.updateApk(status.getCanonicalUrl(), AppUpdateStatusManager.Status.Installed, null);
+            }
+        }
+        for (String packageName : deletes) {
+            for (AppUpdateStatusManager.AppUpdateStatus status : ausm.getByPackageName(packageName)) {
+                ausm.updateApk(status.getCanonicalUrl(), AppUpdateStatusManager.Status.InstallError, null);
+            }
+        }
+
+        Utils.debugLog(TAG, "Synced " + inserts.size() + " installed and " + deletes.size()
+                + " removed apps in " + (System.currentTimeMillis() - startTime) + "ms");
+        getContentResolver().notifyChange(AppProvider.getContentUri(), null);
+        getContentResolver().notifyChange(ApkProvider.getContentUri(), null);
+    }
+
+    /**
+     * Hash the installed APK of each package on a small thread pool, using the
+     * {@link HashCache} to skip APKs that have not changed on disk, returning
+     * the database rows for all packages that could be read.  Packages whose
+     * APK is missing or unreadable are skipped, just like in {@link #onHandleWork(Intent)}.
+     */
+    private List<ContentValues> hashInParallel(Iterable<PackageInfo> packageInfos) {
+        int threads = Math.max(1, Math.min(MAX_HASH_THREADS, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<ContentValues>> futures = new ArrayList<>();
+        for (final PackageInfo packageInfo : packageInfos) {
+            futures.add(executor.submit(new Callable<ContentValues>() {
+                @Override
+                public ContentValues call() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                    File apk = getPathToInstalledApk(packageInfo);
+                    if (apk == null || !apk.exists() || !apk.canRead()) {
+                        return null;
+                    }
+                    String hash = HashCache.getInstance(InstalledAppProviderService.this).getHash(apk, HASH_TYPE);
+                    return getContentValues(InstalledAppProviderService.this, packageInfo, HASH_TYPE, hash);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        List<ContentValues> rows = new ArrayList<>(futures.size());
+        for (Future<ContentValues> future : futures) {
+            try {
+                ContentValues values = future.get();
+                if (values != null) {
+                    rows.add(values);
+                }
+            } catch (ExecutionException e) {
+                Utils.debugLog(TAG, e.getCause().getMessage());
+                ACRA.getErrorReporter().handleException(e.getCause(), false);
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return rows;
+    }
+
     /**
      * This class will either have received an intent from the {@link InstalledAppProviderService}
      * itself, while iterating over installed apps, or from a {@link Intent#ACTION_PACKAGE_ADDED}
@@ -357,6 +528,10 @@ public class InstalledAppProviderService extends JobIntentService {
     static void insertAppIntoDb(Context context, PackageInfo packageInfo, String hashType, String hash) {
         Log.d(TAG, "insertAppIntoDb " + packageInfo.packageName);
         Uri uri = InstalledAppProvider.getContentUri();
+        context.getContentResolver().insert(uri, getContentValues(context, packageInfo, hashType, hash));
+    }
+
+    static ContentValues getContentValues(Context context, PackageInfo packageInfo, String hashType, String hash) {
         ContentValues contentValues = new ContentValues();
         contentValues.put(InstalledAppTable.Cols.Package.NAME, packageInfo.packageName);
         contentValues.put(InstalledAppTable.Cols.VERSION_CODE, packageInfo.versionCode);
@@ -368,8 +543,7 @@ public class InstalledAppProviderService extends JobIntentService {
 
         contentValues.put(InstalledAppTable.Cols.HASH_TYPE, hashType);
         contentValues.put(InstalledAppTable.Cols.HASH, hash);
-
-        context.getContentResolver().insert(uri, contentValues);
+        return contentValues;
     }
 
     static void deleteAppFromDb(Context context, String packageName) {
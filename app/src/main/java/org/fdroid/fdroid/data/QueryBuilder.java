@@ -16,6 +16,7 @@ abstract class QueryBuilder {
     private String[] selectionArgs;
     private final List<OrderClause> orderBys = new ArrayList<>();
     private int limit = 0;
+    private int offset = 0;
 
     protected abstract String getRequiredTables();
 
@@ -90,6 +91,14 @@ abstract class QueryBuilder {
         this.limit = limit;
     }
 
+    /**
+     * Skip the first {@code offset} rows.  This only has an effect if a
+     * {@link #addLimit(int) limit} is also set.
+     */
+    public void addOffset(int offset) {
+        this.offset = offset;
+    }
+
     public String[] getArgs() {
         List<String> args = new ArrayList<>();
 
@@ -159,7 +168,10 @@ abstract class QueryBuilder {
     }
 
     private String limitSql() {
-        return limit > 0 ? " LIMIT " + limit : "";
+        if (limit <= 0) {
+            return "";
+        }
+        return offset > 0 ? " LIMIT " + limit + " OFFSET " + offset : " LIMIT " + limit;
     }
 
     public String toString() {
@@ -232,6 +232,16 @@ public interface Schema {
                 String PACKAGE_NAME = "package_packageName";
             }
 
+            /**
+             * The name of one category that the app is in.  Requesting this gives one
+             * row per app per category, rather than one row per app.
+             *
+             * @see AppProvider#getTopFromAllCategoriesUri()
+             */
+            interface Category {
+                String CATEGORY_NAME = "category_categoryName";
+            }
+
             /**
              * This is to make it explicit that you cannot request the {@link Categories#CATEGORIES}
              * field when selecting app metadata from the database. It is only here for the purpose
@@ -319,6 +329,7 @@ public interface Schema {
             String ADDED_DATE      = "added";
             String IS_COMPATIBLE   = "compatible";
             String INCOMPATIBLE_REASONS = "incompatibleReasons";
+            String DELTAS          = "deltas";
 
             interface Repo {
                 String VERSION = "repoVersion";
@@ -341,7 +352,7 @@ public interface Schema {
                     SIZE, SIGNATURE, SOURCE_NAME, MIN_SDK_VERSION, TARGET_SDK_VERSION, MAX_SDK_VERSION,
                     OBB_MAIN_FILE, OBB_MAIN_FILE_SHA256, OBB_PATCH_FILE, OBB_PATCH_FILE_SHA256,
                     REQUESTED_PERMISSIONS, FEATURES, NATIVE_CODE, HASH_TYPE, ADDED_DATE,
-                    IS_COMPATIBLE, INCOMPATIBLE_REASONS,
+                    IS_COMPATIBLE, INCOMPATIBLE_REASONS, DELTAS,
             };
 
             /**
@@ -353,7 +364,7 @@ public interface Schema {
                     OBB_MAIN_FILE, OBB_MAIN_FILE_SHA256, OBB_PATCH_FILE, OBB_PATCH_FILE_SHA256,
                     REQUESTED_PERMISSIONS, FEATURES, NATIVE_CODE, HASH_TYPE, ADDED_DATE,
                     IS_COMPATIBLE, Repo.VERSION, Repo.ADDRESS, INCOMPATIBLE_REASONS,
-                    AntiFeatures.ANTI_FEATURES,
+                    AntiFeatures.ANTI_FEATURES, DELTAS,
             };
         }
     }
@@ -20,23 +20,49 @@
 package org.fdroid.fdroid.installer;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.net.Uri;
+import android.system.ErrnoException;
+import android.system.Os;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.fdroid.fdroid.Hasher;
+import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
 import org.fdroid.fdroid.data.AppProvider;
 import org.fdroid.fdroid.data.SanitizedFile;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 public class ApkCache {
+    private static final String TAG = "ApkCache";
 
     private static final String CACHE_DIR = "apks";
+    private static final String LEASES = "apk-leases";
+
+    /**
+     * How long a staged APK is kept from the start of the install process.
+     */
+    private static final long LEASE_MILLIS = TimeUnit.MINUTES.toMillis(20);
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
 
     /**
      * Same as {@link #copyApkFromCacheToFiles(Context, File, Apk)}, except it does not need to
@@ -54,8 +80,7 @@ public class ApkCache {
     /**
      * Copy the APK to the safe location inside of the protected area
      * of the app to prevent attacks based on other apps swapping the file
-     * out during the install process. Most likely, apkFile was just downloaded,
-     * so it should still be in the RAM disk cache.
+     * out during the install process.
      */
     public static SanitizedFile copyApkFromCacheToFiles(Context context, File apkFile, Apk expectedApk)
             throws IOException {
@@ -63,14 +88,20 @@ public class ApkCache {
                 expectedApk.packageName);
         String name = app == null ? expectedApk.packageName : app.name;
         String apkFileName = name + "-" + expectedApk.versionName + ".apk";
+        ApkCacheIndex.getInstance(context).recordUse(apkFile);
         return copyApkToFiles(context, apkFile, apkFileName, true, expectedApk.hash, expectedApk.hashType);
     }
 
     /**
-     * Copy an APK from {@param apkFile} to our internal files directory for 20 minutes.
+     * Put an APK from {@param apkFile} in our internal files directory for
+     * {@link #LEASE_MILLIS}.  The download cache is on the same filesystem,
+     * so this is usually a hard link, which writes nothing but a directory
+     * entry, instead of a second copy of the whole APK.  The cached file is
+     * kept as it is.  If the link cannot be made, e.g. for an installed APK
+     * owned by the system, then the APK is copied, and hashed while copying.
      *
      * @param verifyHash If the file was just downloaded, then you should mark this as true and
-     *                   request the file to be verified once it has finished copying. Otherwise,
+     *                   request the file to be verified once it has been staged. Otherwise,
      *                   if the app was installed from part of the system where it can't be tampered
      *                   with (e.g. installed apks on disk) then
      */
@@ -78,38 +109,120 @@ public class ApkCache {
                                                 boolean verifyHash, String hash, String hashType)
             throws IOException {
         SanitizedFile sanitizedApkFile = new SanitizedFile(context.getFilesDir(), destinationName);
+        deleteExpiredLeases(context);
 
-        // Don't think this is necessary, but the docs for FileUtils#copyFile() are not clear
-        // on whether it overwrites destination files (pretty confident it does, as per the docs
-        // in FileUtils#copyFileToDirectory() - which delegates to copyFile()).
-        if (sanitizedApkFile.exists()) {
-            sanitizedApkFile.delete();
+        if (!stageFile(apkFile, sanitizedApkFile, verifyHash ? hash : null, hashType)) {
+            FileUtils.deleteQuietly(apkFile);
+            ApkCacheIndex.getInstance(context).remove(apkFile);
+            throw new IOException(apkFile + " failed to verify!");
         }
+        leaseFile(context, sanitizedApkFile);
+        return sanitizedApkFile;
+    }
 
-        FileUtils.copyFile(apkFile, sanitizedApkFile);
+    /**
+     * Put {@code source} at {@code dest}, using a hard link if possible.
+     *
+     * @param hash the expected hash of {@code source}, or {@code null} to not check it
+     * @return whether {@code dest} matches {@code hash}, if it does not, it is deleted
+     */
+    @VisibleForTesting
+    static boolean stageFile(File source, File dest, @Nullable String hash, String hashType)
+            throws IOException {
+        if (dest.exists() && !dest.delete()) {
+            throw new IOException("Could not delete " + dest);
+        }
 
-        // verify copied file's hash with expected hash from Apk class
-        if (verifyHash && !Hasher.isFileMatchingHash(sanitizedApkFile, hash, hashType)) {
-            FileUtils.deleteQuietly(apkFile);
-            throw new IOException(apkFile + " failed to verify!");
+        boolean matches;
+        try {
+            Os.link(source.getAbsolutePath(), dest.getAbsolutePath());
+            // a link shares the modification time of the cached file, which CleanCacheWorker might find too old
+            dest.setLastModified(System.currentTimeMillis());
+            matches = hash == null || Hasher.isFileMatchingHash(dest, hash, hashType);
+        } catch (ErrnoException e) {
+            Utils.debugLog(TAG, "Could not link " + source + ", copying instead: " + e.getMessage());
+            matches = copyFile(source, dest, hash, hashType);
+        }
+        if (!matches) {
+            FileUtils.deleteQuietly(dest);
+        }
+        return matches;
+    }
+
+    /**
+     * Copy the file, hashing it in the same pass, instead of reading it again
+     * to hash it afterwards.
+     */
+    private static boolean copyFile(File source, File dest, @Nullable String hash, String hashType)
+            throws IOException {
+        MessageDigest digest = null;
+        if (hash != null) {
+            try {
+                digest = MessageDigest.getInstance(hashType);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
         }
+        InputStream input = null;
+        OutputStream output = null;
+        try {
+            input = new FileInputStream(source);
+            if (digest != null) {
+                input = new DigestInputStream(input, digest);
+            }
+            output = new FileOutputStream(dest);
+            IOUtils.copyLarge(input, output, new byte[COPY_BUFFER_SIZE]);
+        } finally {
+            Utils.closeQuietly(output);
+            Utils.closeQuietly(input);
+        }
+        return digest == null || Utils.toHexString(digest.digest()).equalsIgnoreCase(hash);
+    }
+
+    /**
+     * Keep {@code file} for {@link #LEASE_MILLIS}, then delete it.  The lease
+     * is stored, so that it is still deleted if this process dies before then.
+     *
+     * @see #deleteExpiredLeases(Context)
+     */
+    private static void leaseFile(Context context, File file) {
+        getLeases(context).edit()
+                .putLong(file.getAbsolutePath(), System.currentTimeMillis() + LEASE_MILLIS)
+                .apply();
+    }
 
-        // 20 minutes the start of the install process, delete the file
-        final File apkToDelete = sanitizedApkFile;
-        new Thread() {
-            @Override
-            public void run() {
-                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
-                try {
-                    Thread.sleep(1200000);
-                } catch (InterruptedException ignored) {
-                } finally {
-                    FileUtils.deleteQuietly(apkToDelete);
+    /**
+     * @return whether {@code file} is staged for an install that might still be running
+     */
+    public static boolean isLeased(Context context, File file) {
+        return getLeases(context).getLong(file.getAbsolutePath(), 0) > System.currentTimeMillis();
+    }
+
+    /**
+     * Delete all the staged files whose lease has run out.  This runs every
+     * time an APK is staged, and in {@link org.fdroid.fdroid.work.CleanCacheWorker}.
+     */
+    public static void deleteExpiredLeases(Context context) {
+        SharedPreferences leases = getLeases(context);
+        SharedPreferences.Editor editor = null;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ?> entry : leases.getAll().entrySet()) {
+            Object expires = entry.getValue();
+            if (!(expires instanceof Long) || (Long) expires <= now) {
+                FileUtils.deleteQuietly(new File(entry.getKey()));
+                if (editor == null) {
+                    editor = leases.edit();
                 }
+                editor.remove(entry.getKey());
             }
-        }.start();
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
 
-        return sanitizedApkFile;
+    private static SharedPreferences getLeases(Context context) {
+        return context.getSharedPreferences(LEASES, Context.MODE_PRIVATE);
     }
 
     /**
@@ -0,0 +1,453 @@
+package org.fdroid.fdroid.installer;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.fdroid.fdroid.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * An index of the files in the {@link ApkCache#getApkCacheDir(Context) APK cache},
+ * with their size and when they were last used, so the cache can be kept under
+ * a total size by deleting the least recently used files first.  Files can be
+ * pinned, e.g. while they are waiting to be installed or are being swapped,
+ * then they are never deleted.
+ * <p>
+ * Everything that puts files in the cache records them here, so making room
+ * for a new download only needs to look at the entries that are too old or
+ * over the budget, not walk the whole cache directory.  The directory is
+ * walked when there is no index yet, and by {@link #reconcile()} when the
+ * cache is cleaned, to pick up files that were never recorded, like partial
+ * downloads left behind when F-Droid was killed.  That only lists the
+ * directories that changed since the last walk.  Like
+ * {@link org.fdroid.fdroid.HashCache}, it is stored in
+ * {@link Context#getNoBackupFilesDir()}.
+ */
+public final class ApkCacheIndex {
+    private static final String TAG = "ApkCacheIndex";
+
+    private static final String FILE_NAME = "apk-cache-index";
+    private static final int FILE_VERSION = 2;
+
+    /**
+     * Some file systems only store modification times to the second or two.
+     */
+    private static final long MTIME_GRANULARITY = 2000;
+
+    @VisibleForTesting
+    static final long MIN_BUDGET = 100L * 1024 * 1024;
+    @VisibleForTesting
+    static final long MAX_BUDGET = 1024L * 1024 * 1024;
+
+    /**
+     * How much of the free space the cache may use, as a divisor.
+     */
+    private static final int FREE_SPACE_DIVISOR = 10;
+
+    private static ApkCacheIndex instance;
+
+    private final File indexFile;
+    private final File cacheDir;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The modification time of each directory in the cache when it was last
+     * listed, or 0 if it needs to be listed again.
+     */
+    private final TreeMap<String, Long> dirs = new TreeMap<>();
+    private long totalSize;
+    private boolean loaded;
+
+    public static synchronized ApkCacheIndex getInstance(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            instance = new ApkCacheIndex(new File(appContext.getNoBackupFilesDir(), FILE_NAME),
+                    ApkCache.getApkCacheDir(appContext));
+        }
+        return instance;
+    }
+
+    @VisibleForTesting
+    ApkCacheIndex(File indexFile, File cacheDir) {
+        this.indexFile = indexFile;
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Record that {@code file} was just written or read, which makes it the
+     * last one to be deleted, then make room if the cache is over budget.
+     */
+    public synchronized void recordUse(File file) {
+        load();
+        String path = file.getAbsolutePath();
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(path, entry);
+        }
+        long size = file.length();
+        totalSize += size - entry.size;
+        entry.size = size;
+        entry.lastUsed = System.currentTimeMillis();
+        if (totalSize <= getBudget() || trim(Long.MAX_VALUE) == 0) {
+            save();
+        }
+    }
+
+    /**
+     * Forget {@code file}, e.g. when it was deleted for not matching its hash.
+     */
+    public synchronized void remove(File file) {
+        load();
+        Entry entry = entries.remove(file.getAbsolutePath());
+        if (entry != null) {
+            totalSize -= entry.size;
+            save();
+        }
+    }
+
+    /**
+     * Never delete {@code file} until it is {@link #unpin(File) unpinned},
+     * even if it does not exist yet.  Both count as using the file, which
+     * also keeps the entries in order of use.
+     */
+    public synchronized void pin(File file) {
+        load();
+        String path = file.getAbsolutePath();
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(path, entry);
+        }
+        entry.lastUsed = System.currentTimeMillis();
+        entry.pinned = true;
+        save();
+    }
+
+    public synchronized void unpin(File file) {
+        load();
+        Entry entry = entries.get(file.getAbsolutePath());
+        if (entry != null) {
+            entry.lastUsed = System.currentTimeMillis();
+            entry.pinned = false;
+            save();
+        }
+    }
+
+    /**
+     * Delete files, least recently used first, until the cache fits in its
+     * budget and nothing left is older than {@code maxAgeMillis}.  Pinned
+     * files are skipped.  Since the entries are kept in order of use, this
+     * stops at the first file that can stay.
+     *
+     * @return how many files were deleted
+     */
+    public synchronized int trim(long maxAgeMillis) {
+        load();
+        long budget = getBudget();
+        long oldest = maxAgeMillis == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - maxAgeMillis;
+        List<File> deleted = new ArrayList<>();
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> mapEntry = iterator.next();
+            Entry entry = mapEntry.getValue();
+            if (entry.pinned) {
+                continue;
+            }
+            if (totalSize <= budget && entry.lastUsed >= oldest) {
+                break;
+            }
+            File file = new File(mapEntry.getKey());
+            if (file.delete() || !file.exists()) {
+                iterator.remove();
+                totalSize -= entry.size;
+                deleted.add(file);
+            }
+        }
+        if (!deleted.isEmpty()) {
+            for (File file : deleted) {
+                File dir = file.getParentFile();
+                if (!cacheDir.equals(dir)) {
+                    // only succeeds if that was the last file from that repo
+                    dir.delete();
+                }
+            }
+            Utils.debugLog(TAG, "Deleted " + deleted.size() + " cached files, "
+                    + Utils.getFriendlySize(totalSize) + " left");
+            save();
+        }
+        return deleted.size();
+    }
+
+    /**
+     * @return how many bytes the cached files take up
+     */
+    public synchronized long getTotalSize() {
+        load();
+        return totalSize;
+    }
+
+    /**
+     * A tenth of the free space, counting what the cache already uses, so
+     * the cache gives way as the device fills up.
+     */
+    @VisibleForTesting
+    long getBudget() {
+        long budget = (cacheDir.getUsableSpace() + totalSize) / FREE_SPACE_DIVISOR;
+        return Math.max(MIN_BUDGET, Math.min(MAX_BUDGET, budget));
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (input.readInt() != FILE_VERSION) {
+                scan();
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = input.readUTF();
+                Entry entry = new Entry();
+                entry.size = input.readLong();
+                entry.lastUsed = input.readLong();
+                entry.pinned = input.readBoolean();
+                entries.put(path, entry);
+                totalSize += entry.size;
+            }
+            int dirCount = input.readInt();
+            for (int i = 0; i < dirCount; i++) {
+                dirs.put(input.readUTF(), input.readLong());
+            }
+        } catch (FileNotFoundException e) {
+            scan();
+        } catch (EOFException e) {
+            Log.w(TAG, "Truncated APK cache index, starting over");
+            scan();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read APK cache index", e);
+            scan();
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Build the index from what is in the cache directory, using the
+     * modification time as the last use.
+     */
+    private void scan() {
+        entries.clear();
+        dirs.clear();
+        totalSize = 0;
+        walk();
+        Utils.debugLog(TAG, "Indexed " + entries.size() + " cached files, " + Utils.getFriendlySize(totalSize));
+    }
+
+    /**
+     * Add the files in the cache directory that were never recorded, using
+     * their modification time as the last use, and forget the ones that are
+     * gone, unless they are pinned.  This keeps files from outside the index
+     * from piling up in the cache without counting against the budget.  Like
+     * {@link org.fdroid.fdroid.work.CacheJanitor}, only the directories whose
+     * modification time changed since the last time are listed again.
+     */
+    public synchronized void reconcile() {
+        load();
+        int before = entries.size();
+        int listed = walk();
+        Utils.debugLog(TAG, "Reconciled " + before + " indexed files with " + entries.size()
+                + " cached files, listed " + listed + " of " + dirs.size() + " dirs, "
+                + Utils.getFriendlySize(totalSize));
+    }
+
+    /**
+     * Walk the cache directory, only listing the directories that changed.
+     *
+     * @return how many directories were listed
+     */
+    private int walk() {
+        long now = System.currentTimeMillis();
+        // the files directly in each listed directory, or none if it is gone
+        Map<String, Set<String>> listed = new HashMap<>();
+        boolean added = false;
+        ArrayDeque<File> pending = new ArrayDeque<>();
+        pending.add(cacheDir);
+        while (!pending.isEmpty()) {
+            File dir = pending.poll();
+            String path = dir.getAbsolutePath();
+            long modified = dir.lastModified();
+            if (modified == 0) {
+                for (String gone : getSubdirs(path).keySet()) {
+                    listed.put(gone, Collections.<String>emptySet());
+                }
+                getSubdirs(path).clear();
+                dirs.remove(path);
+                listed.put(path, Collections.<String>emptySet());
+                continue;
+            }
+            Long known = dirs.get(path);
+            if (known != null && known == modified) {
+                for (String subdir : getSubdirs(path).keySet()) {
+                    if (isDirectChild(path, subdir)) {
+                        pending.add(new File(subdir));
+                    }
+                }
+                continue;
+            }
+            File[] children = dir.listFiles();
+            if (children == null) {
+                continue;
+            }
+            Set<String> files = new HashSet<>();
+            Set<String> subdirs = new HashSet<>();
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    subdirs.add(child.getAbsolutePath());
+                    pending.add(child);
+                    continue;
+                }
+                String childPath = child.getAbsolutePath();
+                files.add(childPath);
+                Entry entry = entries.get(childPath);
+                if (entry == null) {
+                    entry = new Entry();
+                    entry.lastUsed = child.lastModified();
+                    entries.put(childPath, entry);
+                    added = true;
+                }
+                long size = child.length();
+                totalSize += size - entry.size;
+                entry.size = size;
+            }
+            for (String subdir : getSubdirs(path).keySet()) {
+                if (isDirectChild(path, subdir) && !subdirs.contains(subdir)) {
+                    // gone, so this forgets it and what was in it
+                    pending.add(new File(subdir));
+                }
+            }
+            listed.put(path, files);
+            // a file added in the same tick would not change it, so list it again next time
+            dirs.put(path, modified < now - MTIME_GRANULARITY ? modified : 0);
+        }
+
+        if (!listed.isEmpty()) {
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> mapEntry = iterator.next();
+                Set<String> files = listed.get(new File(mapEntry.getKey()).getParent());
+                if (files == null || files.contains(mapEntry.getKey())) {
+                    continue;
+                }
+                Entry entry = mapEntry.getValue();
+                totalSize -= entry.size;
+                if (entry.pinned) {
+                    entry.size = 0;
+                } else {
+                    iterator.remove();
+                }
+            }
+        }
+        if (added) {
+            sortByLastUse();
+        }
+        save();
+        return listed.size();
+    }
+
+    /**
+     * Files that were never recorded are added with their modification
+     * time, so put them where they belong in the order of use.
+     */
+    private void sortByLastUse() {
+        List<Map.Entry<String, Entry>> sorted = new ArrayList<>(entries.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+                return Long.compare(a.getValue().lastUsed, b.getValue().lastUsed);
+            }
+        });
+        entries.clear();
+        for (Map.Entry<String, Entry> mapEntry : sorted) {
+            entries.put(mapEntry.getKey(), mapEntry.getValue());
+        }
+    }
+
+    private SortedMap<String, Long> getSubdirs(String path) {
+        // '0' is the character after '/', so this is everything under path
+        return dirs.subMap(path + File.separator, path + '0');
+    }
+
+    private static boolean isDirectChild(String parent, String path) {
+        return path.indexOf(File.separatorChar, parent.length() + 1) < 0;
+    }
+
+    /**
+     * Write to a temp file and then rename it into place so that a crash while
+     * saving cannot leave a half-written index behind.
+     */
+    private void save() {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            output.writeInt(FILE_VERSION);
+            output.writeInt(entries.size());
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                output.writeUTF(mapEntry.getKey());
+                output.writeLong(entry.size);
+                output.writeLong(entry.lastUsed);
+                output.writeBoolean(entry.pinned);
+            }
+            output.writeInt(dirs.size());
+            for (Map.Entry<String, Long> dir : dirs.entrySet()) {
+                output.writeUTF(dir.getKey());
+                output.writeLong(dir.getValue());
+            }
+            output.close();
+            output = null;
+            if (!tmp.renameTo(indexFile)) {
+                Log.e(TAG, "Could not move " + tmp + " to " + indexFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write APK cache index", e);
+        } finally {
+            Utils.closeQuietly(output);
+        }
+    }
+
+    private static class Entry {
+        long size;
+        long lastUsed;
+        boolean pinned;
+    }
+}
@@ -0,0 +1,491 @@
+package org.fdroid.fdroid.installer;
+
+import android.os.Build;
+
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.cms.SignedData;
+import org.bouncycastle.asn1.cms.SignerIdentifier;
+import org.bouncycastle.asn1.cms.SignerInfo;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Apk;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * Reads what F-Droid needs to know about an APK file straight from the file,
+ * instead of having {@link android.content.pm.PackageManager#getPackageArchiveInfo(String, int)}
+ * parse all of it, or {@link java.util.jar.JarFile} verify all of it.  The
+ * central directory gives the native code ABIs and where the binary
+ * {@code AndroidManifest.xml} and the v1 signature block are.  Then just
+ * those two are read: the manifest for the package name, versions, SDK
+ * levels, permissions and features, and the signature block for the signing
+ * certificate.
+ * <p>
+ * The certificate is taken from the signature block as is, it is <b>not</b>
+ * verified against the contents of the APK.  That is fine for describing
+ * installed APKs, and for checking a download before it is installed, since
+ * Android verifies the signature when installing it.  It must not be used
+ * to decide whether an APK can be trusted.  APKs that only have v2 or newer
+ * signatures have no signature block, so {@link #getCertificate()} is
+ * {@code null} for them.
+ * <p>
+ * Results are kept for the last {@link #MAX_ENTRIES} files, as long as their
+ * size and modification time stay the same, so the verifier, the installer
+ * and the swap repo can all ask about the same file.
+ */
+public final class ApkInspector {
+    private static final String TAG = "ApkInspector";
+
+    public static final String MANIFEST_NAME = "AndroidManifest.xml";
+
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 64;
+    private static final int MAX_MANIFEST_SIZE = 8 * 1024 * 1024;
+
+    private static final Pattern ABI_PATTERN = Pattern.compile("^lib/([a-z0-9-]+)/.*");
+    private static final Pattern SIGNATURE_BLOCK_PATTERN =
+            Pattern.compile("^META-INF/[^/]+\\.(RSA|DSA|EC)$", Pattern.CASE_INSENSITIVE);
+
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_XML_TYPE = 0x0003;
+    private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    private static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+    private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+    private static final int UTF8_FLAG = 0x100;
+
+    private static final int TYPE_STRING = 0x03;
+    private static final int TYPE_FIRST_INT = 0x10;
+    private static final int TYPE_LAST_INT = 0x1f;
+
+    private static final int ATTR_NAME = 0x01010003;
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+    private static final int ATTR_VERSION_NAME = 0x0101021c;
+    private static final int ATTR_MIN_SDK_VERSION = 0x0101020c;
+    private static final int ATTR_TARGET_SDK_VERSION = 0x01010270;
+    private static final int ATTR_MAX_SDK_VERSION = 0x01010271;
+
+    /**
+     * What Android uses as the SDK level of a preview codename.
+     */
+    private static final int SDK_VERSION_DEVELOPMENT = 10000;
+
+    private static final Map<String, ApkInspector> CACHE = new LinkedHashMap<String, ApkInspector>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ApkInspector> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final long length;
+    private final long lastModified;
+
+    private String packageName;
+    private int versionCode = -1;
+    private String versionName;
+    private int minSdkVersion = 1;
+    private int targetSdkVersion = Apk.SDK_VERSION_MIN_VALUE;
+    private int maxSdkVersion = Apk.SDK_VERSION_MAX_VALUE;
+    private final Set<String> permissions = new HashSet<>();
+    private final List<String> features = new ArrayList<>();
+    private final Set<String> nativecode = new HashSet<>(3);
+    private byte[] certificate;
+
+    private ApkInspector(File apkFile) {
+        length = apkFile.length();
+        lastModified = apkFile.lastModified();
+    }
+
+    /**
+     * @throws IOException if {@code apkFile} cannot be read, or is not an APK
+     *                     that this can make sense of
+     */
+    public static ApkInspector inspect(File apkFile) throws IOException {
+        String key = apkFile.getCanonicalPath();
+        synchronized (CACHE) {
+            ApkInspector cached = CACHE.get(key);
+            if (cached != null && cached.length == apkFile.length()
+                    && cached.lastModified == apkFile.lastModified()) {
+                return cached;
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        ApkInspector inspector = new ApkInspector(apkFile);
+        ZipFile zipFile = new ZipFile(apkFile);
+        try {
+            inspector.read(zipFile);
+        } finally {
+            zipFile.close();
+        }
+        Utils.debugLog(TAG, "Inspected " + apkFile + " in " + (System.currentTimeMillis() - start) + "ms");
+
+        synchronized (CACHE) {
+            CACHE.put(key, inspector);
+        }
+        return inspector;
+    }
+
+    @VisibleForTesting
+    static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    private void read(ZipFile zipFile) throws IOException {
+        ZipEntry manifestEntry = null;
+        ZipEntry signatureBlockEntry = null;
+        for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements(); ) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+            Matcher matcher = ABI_PATTERN.matcher(name);
+            if (matcher.matches()) {
+                nativecode.add(matcher.group(1));
+            } else if (MANIFEST_NAME.equals(name)) {
+                manifestEntry = entry;
+            } else if (signatureBlockEntry == null && SIGNATURE_BLOCK_PATTERN.matcher(name).matches()) {
+                signatureBlockEntry = entry;
+            }
+        }
+
+        if (manifestEntry == null) {
+            throw new IOException("No " + MANIFEST_NAME);
+        }
+        if (manifestEntry.getSize() > MAX_MANIFEST_SIZE) {
+            throw new IOException(MANIFEST_NAME + " is too big: " + manifestEntry.getSize());
+        }
+        InputStream input = zipFile.getInputStream(manifestEntry);
+        try {
+            parseManifest(IOUtils.toByteArray(input));
+        } finally {
+            Utils.closeQuietly(input);
+        }
+
+        if (signatureBlockEntry != null) {
+            input = zipFile.getInputStream(signatureBlockEntry);
+            try {
+                certificate = readCertificate(IOUtils.toByteArray(input));
+            } finally {
+                Utils.closeQuietly(input);
+            }
+        }
+    }
+
+    /**
+     * A PKCS#7 signature block can hold more certificates than the one that
+     * signed it, in any order, so pick the one that matches the issuer and
+     * serial number in the first {@code SignerInfo}, like Android does.
+     *
+     * @return the certificate that signed the signature block
+     */
+    @Nullable
+    private static byte[] readCertificate(byte[] signatureBlock) {
+        try {
+            ContentInfo contentInfo = ContentInfo.getInstance(ASN1Primitive.fromByteArray(signatureBlock));
+            SignedData signedData = SignedData.getInstance(contentInfo.getContent());
+            if (signedData.getSignerInfos().size() == 0) {
+                return null;
+            }
+            SignerIdentifier signerId = SignerInfo.getInstance(signedData.getSignerInfos().getObjectAt(0)).getSID();
+            if (signerId.isTagged()) {
+                // v1 signature blocks always name the signer by issuer and serial number
+                return null;
+            }
+            IssuerAndSerialNumber issuerAndSerial = IssuerAndSerialNumber.getInstance(signerId.getId());
+
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            Collection<? extends Certificate> certificates =
+                    factory.generateCertificates(new ByteArrayInputStream(signatureBlock));
+            for (Certificate certificate : certificates) {
+                X509Certificate x509 = (X509Certificate) certificate;
+                if (x509.getSerialNumber().equals(issuerAndSerial.getSerialNumber().getValue())
+                        && X500Name.getInstance(x509.getIssuerX500Principal().getEncoded())
+                        .equals(issuerAndSerial.getName())) {
+                    return x509.getEncoded();
+                }
+            }
+            Utils.debugLog(TAG, "No certificate in the signature block matches its signer");
+            return null;
+        } catch (CertificateException | IOException | IllegalArgumentException | ClassCastException e) {
+            Utils.debugLog(TAG, "Could not read signature block: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Walk the chunks of the binary XML, only looking at the elements that
+     * are direct children of {@code <manifest>}, like Android does.
+     */
+    private void parseManifest(byte[] manifest) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(manifest).order(ByteOrder.LITTLE_ENDIAN);
+            if ((buffer.getShort(0) & 0xffff) != RES_XML_TYPE) {
+                throw new IOException(MANIFEST_NAME + " is not binary XML");
+            }
+            String[] strings = null;
+            int[] resourceIds = new int[0];
+            int depth = 0;
+            int position = buffer.getShort(2) & 0xffff;
+            while (position + 8 <= manifest.length) {
+                int type = buffer.getShort(position) & 0xffff;
+                int headerSize = buffer.getShort(position + 2) & 0xffff;
+                int size = buffer.getInt(position + 4);
+                if (size < 8 || size > manifest.length - position) {
+                    throw new IOException("Bad chunk size " + size + " at " + position);
+                }
+                switch (type) {
+                    case RES_STRING_POOL_TYPE:
+                        strings = readStringPool(buffer, position, size);
+                        break;
+                    case RES_XML_RESOURCE_MAP_TYPE:
+                        resourceIds = new int[(size - headerSize) / 4];
+                        for (int i = 0; i < resourceIds.length; i++) {
+                            resourceIds[i] = buffer.getInt(position + headerSize + i * 4);
+                        }
+                        break;
+                    case RES_XML_START_ELEMENT_TYPE:
+                        if (strings == null) {
+                            throw new IOException("Element before string pool");
+                        }
+                        depth++;
+                        if (depth <= 2) {
+                            readElement(buffer, position + headerSize, strings, resourceIds, depth);
+                        }
+                        break;
+                    case RES_XML_END_ELEMENT_TYPE:
+                        depth--;
+                        break;
+                    default:
+                        break;
+                }
+                position += size;
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Bad " + MANIFEST_NAME, e);
+        }
+        if (packageName == null) {
+            throw new IOException("No package name in " + MANIFEST_NAME);
+        }
+        if (targetSdkVersion == Apk.SDK_VERSION_MIN_VALUE) {
+            targetSdkVersion = minSdkVersion;
+        }
+    }
+
+    private static String[] readStringPool(ByteBuffer buffer, int position, int size) {
+        int count = buffer.getInt(position + 8);
+        int flags = buffer.getInt(position + 16);
+        int stringsStart = buffer.getInt(position + 20);
+        boolean utf8 = (flags & UTF8_FLAG) != 0;
+        if (count < 0 || count > size / 4) {
+            throw new IndexOutOfBoundsException("Bad string count " + count);
+        }
+        String[] strings = new String[count];
+        int offsets = position + (buffer.getShort(position + 2) & 0xffff);
+        for (int i = 0; i < count; i++) {
+            int offset = position + stringsStart + buffer.getInt(offsets + i * 4);
+            if (utf8) {
+                // the length in UTF-16 code units, then in bytes
+                offset += (buffer.get(offset) & 0x80) != 0 ? 2 : 1;
+                int length = buffer.get(offset) & 0xff;
+                if ((length & 0x80) != 0) {
+                    length = ((length & 0x7f) << 8) | (buffer.get(offset + 1) & 0xff);
+                    offset += 2;
+                } else {
+                    offset += 1;
+                }
+                strings[i] = new String(buffer.array(), offset, checkLength(buffer, offset, length),
+                        StandardCharsets.UTF_8);
+            } else {
+                int length = buffer.getShort(offset) & 0xffff;
+                if ((length & 0x8000) != 0) {
+                    length = ((length & 0x7fff) << 16) | (buffer.getShort(offset + 2) & 0xffff);
+                    offset += 4;
+                } else {
+                    offset += 2;
+                }
+                strings[i] = new String(buffer.array(), offset, checkLength(buffer, offset, length * 2),
+                        StandardCharsets.UTF_16LE);
+            }
+        }
+        return strings;
+    }
+
+    private static int checkLength(ByteBuffer buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+            throw new IndexOutOfBoundsException("String at " + offset + " runs past the end");
+        }
+        return length;
+    }
+
+    private void readElement(ByteBuffer buffer, int position, String[] strings, int[] resourceIds, int depth) {
+        String name = strings[buffer.getInt(position + 4)];
+        int attributeStart = buffer.getShort(position + 8) & 0xffff;
+        int attributeSize = buffer.getShort(position + 10) & 0xffff;
+        int attributeCount = buffer.getShort(position + 12) & 0xffff;
+
+        if (depth == 1) {
+            if (!"manifest".equals(name)) {
+                throw new IndexOutOfBoundsException("Root element is " + name);
+            }
+        } else if (!"uses-sdk".equals(name) && !"uses-feature".equals(name) && !isPermissionElement(name)) {
+            return;
+        }
+
+        String nameValue = null;
+        int maxSdk = Integer.MAX_VALUE;
+        for (int i = 0; i < attributeCount; i++) {
+            int attribute = position + attributeStart + i * attributeSize;
+            int nameIndex = buffer.getInt(attribute + 4);
+            int resourceId = nameIndex < resourceIds.length ? resourceIds[nameIndex] : 0;
+            int rawValue = buffer.getInt(attribute + 8);
+            int dataType = buffer.get(attribute + 15) & 0xff;
+            int data = buffer.getInt(attribute + 16);
+            String value = dataType == TYPE_STRING ? strings[data] : rawValue >= 0 ? strings[rawValue] : null;
+            boolean isInt = dataType >= TYPE_FIRST_INT && dataType <= TYPE_LAST_INT;
+
+            if (depth == 1) {
+                if (resourceId == ATTR_VERSION_CODE) {
+                    versionCode = isInt ? data : parseInt(value, -1);
+                } else if (resourceId == ATTR_VERSION_NAME) {
+                    versionName = value;
+                } else if (resourceId == 0 && "package".equals(strings[nameIndex])) {
+                    packageName = value;
+                }
+            } else if ("uses-sdk".equals(name)) {
+                int sdk = isInt ? data : parseInt(value, SDK_VERSION_DEVELOPMENT);
+                if (resourceId == ATTR_MIN_SDK_VERSION) {
+                    minSdkVersion = sdk;
+                } else if (resourceId == ATTR_TARGET_SDK_VERSION) {
+                    targetSdkVersion = sdk;
+                } else if (resourceId == ATTR_MAX_SDK_VERSION) {
+                    maxSdkVersion = sdk;
+                }
+            } else if (resourceId == ATTR_NAME) {
+                nameValue = value;
+            } else if (resourceId == ATTR_MAX_SDK_VERSION) {
+                maxSdk = isInt ? data : parseInt(value, Integer.MAX_VALUE);
+            }
+        }
+
+        if (nameValue == null) {
+            return;
+        }
+        if ("uses-feature".equals(name)) {
+            features.add(nameValue);
+        } else if (Build.VERSION.SDK_INT <= maxSdk
+                && ("uses-permission".equals(name) || Build.VERSION.SDK_INT >= 23)) {
+            permissions.add(nameValue);
+        }
+    }
+
+    private static boolean isPermissionElement(String name) {
+        return "uses-permission".equals(name)
+                || "uses-permission-sdk-23".equals(name)
+                || "uses-permission-sdk-m".equals(name);
+    }
+
+    private static int parseInt(@Nullable String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public int getVersionCode() {
+        return versionCode;
+    }
+
+    @Nullable
+    public String getVersionName() {
+        return versionName;
+    }
+
+    public int getMinSdkVersion() {
+        return minSdkVersion;
+    }
+
+    /**
+     * @return the {@code targetSdkVersion}, which like on Android defaults to
+     * the {@code minSdkVersion}
+     */
+    public int getTargetSdkVersion() {
+        return targetSdkVersion;
+    }
+
+    public int getMaxSdkVersion() {
+        return maxSdkVersion;
+    }
+
+    /**
+     * @return the permissions this APK gets on this device, with the implied
+     * ones added the same way as for the index
+     * @see Apk#addImpliedPermissions(Set, int)
+     */
+    public String[] getRequestedPermissions() {
+        Set<String> set = new HashSet<>(permissions);
+        Apk.addImpliedPermissions(set, targetSdkVersion);
+        return set.toArray(new String[0]);
+    }
+
+    public String[] getFeatures() {
+        return features.toArray(new String[0]);
+    }
+
+    public String[] getNativecode() {
+        return nativecode.toArray(new String[0]);
+    }
+
+    /**
+     * @return the encoded signing certificate from the v1 signature block,
+     * which is <b>not</b> verified, or {@code null} if there is none
+     */
+    @Nullable
+    public byte[] getCertificate() {
+        return certificate == null ? null : certificate.clone();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "%s %d (%s) sdk %d/%d/%d", packageName, versionCode, versionName,
+                minSdkVersion, targetSdkVersion, maxSdkVersion);
+    }
+}
@@ -23,14 +23,18 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
+import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
 
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.data.Apk;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Locale;
 
 import androidx.annotation.Nullable;
 
@@ -60,33 +64,53 @@ class ApkVerifier {
     public void verifyApk() throws ApkVerificationException, ApkPermissionUnequalException {
         Utils.debugLog(TAG, "localApkUri.getPath: " + localApkUri.getPath());
 
-        // parse downloaded apk file locally
-        PackageInfo localApkInfo = pm.getPackageArchiveInfo(
-                localApkUri.getPath(), PackageManager.GET_PERMISSIONS);
-        if (localApkInfo == null) {
-            // Unfortunately, more specific errors are not forwarded to us
-            // but the internal PackageParser sometimes shows warnings in logcat such as
-            // "Requires newer sdk version #14 (current version is #11)"
-            throw new ApkVerificationException("Parsing apk file failed!" +
-                    "Maybe minSdk of apk is lower than current Sdk?" +
-                    "Look into logcat for more specific warnings of Android's PackageParser");
+        String packageName;
+        int versionCode;
+        int localTargetSdkVersion;
+        String[] requestedPermissions;
+        boolean fromPackageManager = false;
+        try {
+            // parse downloaded apk file locally, without the overhead of PackageManager
+            ApkInspector inspector = ApkInspector.inspect(new File(localApkUri.getPath()));
+            if (inspector.getMinSdkVersion() > Build.VERSION.SDK_INT) {
+                // PackageManager refuses to parse these, so fail the same way it would
+                throw new ApkVerificationException(String.format(Locale.ENGLISH,
+                        "Apk file needs SDK %d, but this device runs SDK %d!",
+                        inspector.getMinSdkVersion(), Build.VERSION.SDK_INT));
+            }
+            packageName = inspector.getPackageName();
+            versionCode = inspector.getVersionCode();
+            localTargetSdkVersion = inspector.getTargetSdkVersion();
+            requestedPermissions = inspector.getRequestedPermissions();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not inspect APK, asking PackageManager instead: " + e.getMessage());
+            PackageInfo localApkInfo = getPackageArchiveInfo();
+            packageName = localApkInfo.packageName;
+            versionCode = localApkInfo.versionCode;
+            localTargetSdkVersion = localApkInfo.applicationInfo.targetSdkVersion;
+            requestedPermissions = localApkInfo.requestedPermissions;
+            fromPackageManager = true;
         }
 
         // check if the apk has the expected packageName
-        if (!TextUtils.equals(localApkInfo.packageName, expectedApk.packageName)) {
+        if (!TextUtils.equals(packageName, expectedApk.packageName)) {
             throw new ApkVerificationException("Apk file has unexpected packageName!");
         }
 
-        if (localApkInfo.versionCode < 0) {
+        if (versionCode < 0) {
             throw new ApkVerificationException("Apk file has no valid versionCode!");
         }
 
         // verify permissions, important for unattended installer
-        if (!requestedPermissionsEqual(expectedApk.requestedPermissions, localApkInfo.requestedPermissions)) {
-            throw new ApkPermissionUnequalException("Permissions in APK and index.xml do not match!");
+        if (!requestedPermissionsEqual(expectedApk.requestedPermissions, requestedPermissions)) {
+            // Android adds a few more implied permissions than the index does,
+            // so only trust a mismatch once PackageManager agrees
+            if (fromPackageManager || !requestedPermissionsEqual(expectedApk.requestedPermissions,
+                    getPackageArchiveInfo().requestedPermissions)) {
+                throw new ApkPermissionUnequalException("Permissions in APK and index.xml do not match!");
+            }
         }
 
-        int localTargetSdkVersion = localApkInfo.applicationInfo.targetSdkVersion;
         int expectedTargetSdkVersion = expectedApk.targetSdkVersion;
         Utils.debugLog(TAG, "localTargetSdkVersion: " + localTargetSdkVersion);
         Utils.debugLog(TAG, "expectedTargetSdkVersion: " + expectedTargetSdkVersion);
@@ -100,6 +124,20 @@ class ApkVerifier {
         }
     }
 
+    private PackageInfo getPackageArchiveInfo() throws ApkVerificationException {
+        PackageInfo localApkInfo = pm.getPackageArchiveInfo(
+                localApkUri.getPath(), PackageManager.GET_PERMISSIONS);
+        if (localApkInfo == null) {
+            // Unfortunately, more specific errors are not forwarded to us
+            // but the internal PackageParser sometimes shows warnings in logcat such as
+            // "Requires newer sdk version #14 (current version is #11)"
+            throw new ApkVerificationException("Parsing apk file failed!" +
+                    "Maybe minSdk of apk is lower than current Sdk?" +
+                    "Look into logcat for more specific warnings of Android's PackageParser");
+        }
+        return localApkInfo;
+    }
+
     /**
      * Compares to sets of APK permissions to see if they are an exact match.  The
      * data format is {@link String} arrays but they are in effect sets. This is the
@@ -0,0 +1,124 @@
+package org.fdroid.fdroid.installer;
+
+import org.fdroid.fdroid.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Rebuilds a new APK from the installed one and a delta file from the repo,
+ * so updates only need to download what changed.  The algorithm is the one
+ * from {@code bspatch}, but since there is no bzip2 on Android, the delta is
+ * one zlib stream, like the {@code BSDIFF43} variant of the format:
+ * <pre>
+ * 8 bytes    "FDDELTA1"
+ * 8 bytes    size of the new file
+ * zlib stream of blocks until the new file is complete:
+ *     8 bytes    length of the diff data
+ *     8 bytes    length of the extra data
+ *     8 bytes    how far to move in the old file after this block
+ *     diff data  added byte by byte to the old file at the current position
+ *     extra data copied as is
+ * </pre>
+ * All numbers are signed big endian, as written by {@link java.io.DataOutputStream}.
+ * The result must be checked against the hash from the index before it is
+ * used, this only makes sure a broken delta cannot write more than allowed.
+ */
+public final class DeltaPatcher {
+
+    static final byte[] MAGIC = "FDDELTA1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private DeltaPatcher() {
+    }
+
+    /**
+     * Apply {@code delta} to {@code base}, writing the new file to {@code output}.
+     *
+     * @param maxSize the most the new file may be, e.g. the APK size from the index
+     * @throws IOException if either file could not be read, or the delta is broken
+     */
+    public static void apply(File base, File delta, OutputStream output, long maxSize) throws IOException {
+        Inflater inflater = new Inflater();
+        DataInputStream input = null;
+        RandomAccessFile old = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(delta)));
+            byte[] magic = new byte[MAGIC.length];
+            input.readFully(magic);
+            if (!Arrays.equals(MAGIC, magic)) {
+                throw new IOException(delta + " is not a delta file");
+            }
+            long newSize = input.readLong();
+            if (newSize < 0 || newSize > maxSize) {
+                throw new IOException("Delta would make a file of " + newSize + " bytes, only "
+                        + maxSize + " are allowed");
+            }
+            input = new DataInputStream(new InflaterInputStream(input, inflater, BUFFER_SIZE));
+            old = new RandomAccessFile(base, "r");
+            long oldSize = old.length();
+            long oldPos = 0;
+            long newPos = 0;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] oldBuffer = new byte[BUFFER_SIZE];
+            while (newPos < newSize) {
+                long diffLength = input.readLong();
+                long extraLength = input.readLong();
+                long seek = input.readLong();
+                if (diffLength < 0 || extraLength < 0 || diffLength + extraLength > newSize - newPos) {
+                    throw new IOException("Broken delta block at " + newPos);
+                }
+                long left = diffLength;
+                while (left > 0) {
+                    int length = (int) Math.min(left, BUFFER_SIZE);
+                    input.readFully(buffer, 0, length);
+                    readOld(old, oldSize, oldPos, oldBuffer, length);
+                    for (int i = 0; i < length; i++) {
+                        buffer[i] += oldBuffer[i];
+                    }
+                    output.write(buffer, 0, length);
+                    oldPos += length;
+                    left -= length;
+                }
+                left = extraLength;
+                while (left > 0) {
+                    int length = (int) Math.min(left, BUFFER_SIZE);
+                    input.readFully(buffer, 0, length);
+                    output.write(buffer, 0, length);
+                    left -= length;
+                }
+                oldPos += seek;
+                newPos += diffLength + extraLength;
+            }
+        } finally {
+            Utils.closeQuietly(input);
+            Utils.closeQuietly(old);
+            inflater.end();
+        }
+    }
+
+    /**
+     * Read {@code length} bytes of the old file from {@code position}, where
+     * anything outside of the old file counts as zeros, like in {@code bspatch}.
+     */
+    private static void readOld(RandomAccessFile old, long oldSize, long position, byte[] buffer, int length)
+            throws IOException {
+        Arrays.fill(buffer, 0, length, (byte) 0);
+        long start = Math.max(position, 0);
+        long end = Math.min(position + length, oldSize);
+        if (start < end) {
+            old.seek(start);
+            old.readFully(buffer, (int) (start - position), (int) (end - start));
+        }
+    }
+}
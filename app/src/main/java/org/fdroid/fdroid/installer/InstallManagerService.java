@@ -9,7 +9,9 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.net.Uri;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -18,10 +20,14 @@ import org.apache.commons.io.filefilter.WildcardFileFilter;
 import org.fdroid.fdroid.AppUpdateStatusManager;
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.Hasher;
+import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.compat.PackageManagerCompat;
 import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.InstalledApp;
+import org.fdroid.fdroid.data.InstalledAppProvider;
+import org.fdroid.fdroid.data.InstalledAppProviderService;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.net.Downloader;
 import org.fdroid.fdroid.net.DownloaderService;
@@ -29,8 +35,15 @@ import org.fdroid.fdroid.net.DownloaderService;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import androidx.annotation.NonNull;
+import androidx.core.util.Pair;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 /**
@@ -80,6 +93,13 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
  * assigned to it.  OBB files are queued up for download before the APK so that they
  * are hopefully in place before the APK starts.  That is not guaranteed though.
  * <p>
+ * Downloads run in parallel in {@link DownloaderService}.  Each finished
+ * download is checked against its hash and parsed on a pool of worker threads,
+ * then {@link InstallPipeline} decides when it goes to {@link InstallerService}.
+ * For a batch of installs queued with {@link #queue(Context, List, List)}, that is in
+ * order of their rank, as soon as the installer is free, so the first installs
+ * do not need to wait for the whole batch to download.
+ * <p>
  * There may be multiple, available APK files with the same hash. Although it
  * is not a security issue to install one or the other, they may have different
  * metadata to display in the client.  Thus, it may result in weirdness if one
@@ -96,12 +116,16 @@ public class InstallManagerService extends Service {
 
     private static final String EXTRA_APP = "org.fdroid.fdroid.installer.extra.APP";
     private static final String EXTRA_APK = "org.fdroid.fdroid.installer.extra.APK";
+    private static final String EXTRA_RANK = "org.fdroid.fdroid.installer.extra.RANK";
 
     private static SharedPreferences pendingInstalls;
 
     private LocalBroadcastManager localBroadcastManager;
     private AppUpdateStatusManager appUpdateStatusManager;
     private boolean running = false;
+    private final InstallPipeline pipeline = new InstallPipeline();
+    private ExecutorService verifyExecutor;
+    private Handler handler;
 
     /**
      * This service does not use binding, so no need to implement this method
@@ -118,6 +142,8 @@ public class InstallManagerService extends Service {
         appUpdateStatusManager = AppUpdateStatusManager.getInstance(this);
         running = true;
         pendingInstalls = getPendingInstalls(this);
+        verifyExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        handler = new Handler(Looper.getMainLooper());
     }
 
     /**
@@ -130,6 +156,7 @@ public class InstallManagerService extends Service {
     @Override
     public void onDestroy() {
         running = false;
+        verifyExecutor.shutdownNow();
         super.onDestroy();
     }
 
@@ -160,6 +187,7 @@ public class InstallManagerService extends Service {
 
         if (ACTION_CANCEL.equals(action)) {
             DownloaderService.cancel(this, canonicalUrl);
+            removeFromPipeline(canonicalUrl);
             Apk apk = appUpdateStatusManager.getApk(canonicalUrl);
             if (apk != null) {
                 Utils.debugLog(TAG, "also canceling OBB downloads");
@@ -208,6 +236,8 @@ public class InstallManagerService extends Service {
         DownloaderService.setTimeout(FDroidApp.getTimeout());
 
         appUpdateStatusManager.addApk(apk, AppUpdateStatusManager.Status.Downloading, null);
+        pipeline.add(canonicalUrl, intent.getIntExtra(EXTRA_RANK, InstallPipeline.NO_RANK),
+                TextUtils.equals(apk.packageName, getPackageName()));
 
         registerPackageDownloaderReceivers(canonicalUrl);
         getMainObb(canonicalUrl, apk);
@@ -217,20 +247,38 @@ public class InstallManagerService extends Service {
         long apkFileSize = apkFilePath.length();
         if (!apkFilePath.exists() || apkFileSize < apk.size) {
             Utils.debugLog(TAG, "download " + canonicalUrl + " " + apkFilePath);
-            DownloaderService.queueUsingRandomMirror(this, apk.repoId, canonicalUrl);
+            queueDownload(apk, canonicalUrl, packageInfo);
         } else if (ApkCache.apkIsCached(apkFilePath, apk)) {
             Utils.debugLog(TAG, "skip download, we have it, straight to install " + canonicalUrl + " " + apkFilePath);
+            ApkCacheIndex.getInstance(this).recordUse(apkFilePath);
             sendBroadcast(intent.getData(), Downloader.ACTION_STARTED, apkFilePath);
             sendBroadcast(intent.getData(), Downloader.ACTION_COMPLETE, apkFilePath);
         } else {
             Utils.debugLog(TAG, "delete and download again " + canonicalUrl + " " + apkFilePath);
             apkFilePath.delete();
-            DownloaderService.queueUsingRandomMirror(this, apk.repoId, canonicalUrl);
+            queueDownload(apk, canonicalUrl, packageInfo);
         }
 
         return START_REDELIVER_INTENT; // if killed before completion, retry Intent
     }
 
+    /**
+     * Download {@code apk}, or only a delta from the installed version, if the
+     * repo has one for the version that {@link InstalledAppProvider} knows of.
+     */
+    private void queueDownload(Apk apk, String canonicalUrl, PackageInfo packageInfo) {
+        InstalledApp installedApp = InstalledAppProvider.Helper.findByPackageName(this, apk.packageName);
+        if (installedApp != null && packageInfo != null && packageInfo.versionCode == installedApp.getVersionCode()) {
+            String deltaFile = apk.getDeltaFile(installedApp.getVersionCode());
+            File base = InstalledAppProviderService.getPathToInstalledApk(packageInfo);
+            if (deltaFile != null && base != null) {
+                DownloaderService.queueDelta(this, apk, deltaFile, base);
+                return;
+            }
+        }
+        DownloaderService.queueUsingRandomMirror(this, apk.repoId, canonicalUrl);
+    }
+
     private void sendBroadcast(Uri uri, String action, File file) {
         Intent intent = new Intent(action);
         intent.setData(uri);
@@ -258,11 +306,15 @@ public class InstallManagerService extends Service {
         if (obbDestFile == null || obbDestFile.exists() || TextUtils.isEmpty(obbUrlString)) {
             return;
         }
+        // keep the download until it is copied into place
+        final File obbDownload = ApkCache.getApkDownloadPath(this, obbUrlString);
+        ApkCacheIndex.getInstance(this).pin(obbDownload);
         final BroadcastReceiver downloadReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
                 if (!running) {
                     localBroadcastManager.unregisterReceiver(this);
+                    ApkCacheIndex.getInstance(context).unpin(obbDownload);
                     return;
                 }
                 String action = intent.getAction();
@@ -300,9 +352,11 @@ public class InstallManagerService extends Service {
                         e.printStackTrace();
                     } finally {
                         FileUtils.deleteQuietly(localFile);
+                        ApkCacheIndex.getInstance(context).remove(localFile);
                     }
                 } else if (Downloader.ACTION_INTERRUPTED.equals(action)) {
                     localBroadcastManager.unregisterReceiver(this);
+                    ApkCacheIndex.getInstance(context).unpin(obbDownload);
                 } else if (Downloader.ACTION_CONNECTION_FAILED.equals(action)) {
                     DownloaderService.queueUsingDifferentMirror(context, repoId, canonicalUrl);
                 } else {
@@ -357,17 +411,13 @@ public class InstallManagerService extends Service {
                                 AppUpdateStatusManager.Status.ReadyToInstall, null);
 
                         localBroadcastManager.unregisterReceiver(this);
-                        registerInstallReceiver(canonicalUrl);
-
-                        Apk apk = appUpdateStatusManager.getApk(canonicalUrl);
-                        if (apk != null) {
-                            InstallerService.install(context, localApkUri, canonicalUri, apk);
-                        }
+                        verifyDownload(canonicalUrl, localFile);
                         break;
                     case Downloader.ACTION_INTERRUPTED:
                         appUpdateStatusManager.setDownloadError(canonicalUrl,
                                 intent.getStringExtra(Downloader.EXTRA_ERROR_MESSAGE));
                         localBroadcastManager.unregisterReceiver(this);
+                        removeFromPipeline(canonicalUrl);
                         break;
                     case Downloader.ACTION_CONNECTION_FAILED:
                         // TODO move this logic into DownloaderService to hide the mirror URL stuff from this class
@@ -381,6 +431,7 @@ public class InstallManagerService extends Service {
                             appUpdateStatusManager.setDownloadError(canonicalUrl,
                                     intent.getStringExtra(Downloader.EXTRA_ERROR_MESSAGE));
                             localBroadcastManager.unregisterReceiver(this);
+                            removeFromPipeline(canonicalUrl);
                         }
                         break;
                     default:
@@ -393,6 +444,72 @@ public class InstallManagerService extends Service {
                 DownloaderService.getIntentFilter(canonicalUrl));
     }
 
+    /**
+     * Check the hash of a finished download, and parse it so that
+     * {@link ApkVerifier} finds it already parsed, on one of the
+     * {@link #verifyExecutor} threads.  Then put it in line to be installed.
+     */
+    private void verifyDownload(final String canonicalUrl, final File localFile) {
+        final Apk apk = appUpdateStatusManager.getApk(canonicalUrl);
+        if (apk == null) {
+            removeFromPipeline(canonicalUrl);
+            return;
+        }
+        verifyExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean verified = ApkCache.apkIsCached(localFile, apk);
+                if (verified && apk.isApk()) {
+                    try {
+                        ApkInspector.inspect(localFile);
+                    } catch (IOException e) {
+                        // ApkVerifier falls back to PackageManager, which will have the final say
+                        Utils.debugLog(TAG, "Could not inspect " + localFile + ": " + e.getMessage());
+                    }
+                }
+                final boolean matchesHash = verified;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!running) {
+                            return;
+                        }
+                        if (!matchesHash) {
+                            Utils.debugLog(TAG, localFile + " deleted, did not match hash: " + apk.hash);
+                            FileUtils.deleteQuietly(localFile);
+                            ApkCacheIndex.getInstance(InstallManagerService.this).remove(localFile);
+                            appUpdateStatusManager.setDownloadError(canonicalUrl,
+                                    getString(R.string.download_hash_mismatch));
+                            removeFromPipeline(canonicalUrl);
+                        } else if (isPendingInstall(canonicalUrl)) {
+                            pipeline.setReady(canonicalUrl, Uri.fromFile(localFile), apk);
+                            releaseInstalls();
+                        } else {
+                            removeFromPipeline(canonicalUrl);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void removeFromPipeline(String canonicalUrl) {
+        pipeline.remove(canonicalUrl);
+        releaseInstalls();
+    }
+
+    /**
+     * Hand everything that {@link InstallPipeline} says can go now to
+     * {@link InstallerService}.
+     */
+    private void releaseInstalls() {
+        for (InstallPipeline.Entry entry : pipeline.next()) {
+            Utils.debugLog(TAG, "install " + entry.canonicalUrl + " with rank " + entry.rank);
+            registerInstallReceiver(entry.canonicalUrl);
+            InstallerService.install(this, entry.localApkUri, Uri.parse(entry.canonicalUrl), entry.apk);
+        }
+    }
+
     /**
      * Register a {@link BroadcastReceiver} for tracking install progress for a
      * give {@link Uri}.  There can be multiple of these registered at a time.
@@ -426,6 +543,7 @@ public class InstallManagerService extends Service {
                             }
                         }
                         localBroadcastManager.unregisterReceiver(this);
+                        removeFromPipeline(canonicalUrl);
                         break;
                     case Installer.ACTION_INSTALL_INTERRUPTED:
                         apk = intent.getParcelableExtra(Installer.EXTRA_APK);
@@ -437,11 +555,14 @@ public class InstallManagerService extends Service {
                             appUpdateStatusManager.removeApk(canonicalUrl);
                         }
                         localBroadcastManager.unregisterReceiver(this);
+                        removeFromPipeline(canonicalUrl);
                         break;
                     case Installer.ACTION_INSTALL_USER_INTERACTION:
                         apk = intent.getParcelableExtra(Installer.EXTRA_APK);
                         PendingIntent installPendingIntent = intent.getParcelableExtra(Installer.EXTRA_USER_INTERACTION_PI);
                         appUpdateStatusManager.addApk(apk, AppUpdateStatusManager.Status.ReadyToInstall, installPendingIntent);
+                        // the installer is free while this waits on the user
+                        removeFromPipeline(canonicalUrl);
                         break;
                     default:
                         throw new RuntimeException("intent action not handled!");
@@ -466,6 +587,52 @@ public class InstallManagerService extends Service {
      * @param context this app's {@link Context}
      */
     public static void queue(Context context, App app, @NonNull Apk apk) {
+        queue(context, app, apk, InstallPipeline.NO_RANK);
+    }
+
+    /**
+     * Install a batch of APKs, like {@link #queue(Context, App, Apk)} does
+     * for each one.  The downloads are queued in order of priority, and the
+     * installs happen in that order, as the downloads finish, see
+     * {@link InstallPipeline}.  APKs of apps that have known vulnerabilities
+     * come first, then the smallest ones, so that the most installs happen
+     * the soonest.  If this app itself is in the batch, it is always last.
+     *
+     * @param knownVulns the package names of the installed apps with known
+     *                   vulnerabilities
+     */
+    public static void queue(Context context, List<Pair<App, Apk>> batch, final List<String> knownVulns) {
+        final String packageName = context.getPackageName();
+        List<Pair<App, Apk>> sorted = new ArrayList<>(batch);
+        Collections.sort(sorted, new Comparator<Pair<App, Apk>>() {
+            @Override
+            public int compare(Pair<App, Apk> a, Pair<App, Apk> b) {
+                boolean aSelf = TextUtils.equals(packageName, a.second.packageName);
+                boolean bSelf = TextUtils.equals(packageName, b.second.packageName);
+                if (aSelf != bSelf) {
+                    return aSelf ? 1 : -1;
+                }
+                boolean aVuln = knownVulns.contains(a.second.packageName);
+                boolean bVuln = knownVulns.contains(b.second.packageName);
+                if (aVuln != bVuln) {
+                    return aVuln ? -1 : 1;
+                }
+                return Long.compare(getSortSize(a.second), getSortSize(b.second));
+            }
+        });
+        for (int i = 0; i < sorted.size(); i++) {
+            queue(context, sorted.get(i).first, sorted.get(i).second, i);
+        }
+    }
+
+    /**
+     * @return the size of the APK, or after all the others if it is not known
+     */
+    private static long getSortSize(Apk apk) {
+        return apk.size > 0 ? apk.size : Long.MAX_VALUE;
+    }
+
+    private static void queue(Context context, App app, @NonNull Apk apk, int rank) {
         String canonicalUrl = apk.getCanonicalUrl();
         AppUpdateStatusManager.getInstance(context).addApk(apk, AppUpdateStatusManager.Status.PendingInstall, null);
         putPendingInstall(context, canonicalUrl, apk.packageName);
@@ -475,6 +642,7 @@ public class InstallManagerService extends Service {
         intent.setData(Uri.parse(canonicalUrl));
         intent.putExtra(EXTRA_APP, app);
         intent.putExtra(EXTRA_APK, apk);
+        intent.putExtra(EXTRA_RANK, rank);
         context.startService(intent);
     }
 
@@ -509,6 +677,7 @@ public class InstallManagerService extends Service {
             pendingInstalls = getPendingInstalls(context);
         }
         pendingInstalls.edit().putString(canonicalUrl, packageName).apply();
+        ApkCacheIndex.getInstance(context).pin(ApkCache.getApkDownloadPath(context, canonicalUrl));
     }
 
     public static void removePendingInstall(Context context, String canonicalUrl) {
@@ -516,6 +685,7 @@ public class InstallManagerService extends Service {
             pendingInstalls = getPendingInstalls(context);
         }
         pendingInstalls.edit().remove(canonicalUrl).apply();
+        ApkCacheIndex.getInstance(context).unpin(ApkCache.getApkDownloadPath(context, canonicalUrl));
     }
 
     private static SharedPreferences getPendingInstalls(Context context) {
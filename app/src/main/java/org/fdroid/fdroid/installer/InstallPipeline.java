@@ -0,0 +1,144 @@
+package org.fdroid.fdroid.installer;
+
+import android.net.Uri;
+
+import org.fdroid.fdroid.data.Apk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides when the APKs that {@link InstallManagerService} has downloaded and
+ * verified are handed to {@link InstallerService}, which installs them one at
+ * a time in the order it gets them.  Single installs go straight through.
+ * The installs in a batch, e.g. "Update all", have a rank, and are held back
+ * until the installer is free, then the best ranked one that is ready goes
+ * next.  So small and critical updates get installed while big ones are
+ * still downloading, instead of in whatever order the downloads finish.
+ * <p>
+ * An install marked as {@code last}, i.e. F-Droid updating itself, waits
+ * until nothing else is left, since installing it kills this process.
+ * <p>
+ * This is not thread-safe, it is only used from the main thread.
+ */
+final class InstallPipeline {
+
+    /**
+     * The rank of installs that are not part of a batch.
+     */
+    static final int NO_RANK = -1;
+
+    /**
+     * How many ranked installs can be waiting on {@link InstallerService} at
+     * once.  More than one would let it decide the order again.
+     */
+    static final int MAX_INSTALLS_IN_FLIGHT = 1;
+
+    private enum State {
+        PENDING,
+        READY,
+        INSTALLING,
+    }
+
+    static final class Entry {
+        final String canonicalUrl;
+        final int rank;
+        final boolean last;
+        private State state = State.PENDING;
+        Uri localApkUri;
+        Apk apk;
+
+        private Entry(String canonicalUrl, int rank, boolean last) {
+            this.canonicalUrl = canonicalUrl;
+            this.rank = rank;
+            this.last = last;
+        }
+    }
+
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.last != b.last) {
+                return a.last ? 1 : -1;
+            }
+            return Integer.compare(a.rank, b.rank);
+        }
+    };
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Track a new install, as soon as it is queued, so that installs ranked
+     * after it, and {@code last} ones, know to wait for it.
+     */
+    void add(String canonicalUrl, int rank, boolean last) {
+        Entry entry = entries.get(canonicalUrl);
+        if (entry == null || entry.rank != rank || entry.last != last) {
+            entries.put(canonicalUrl, new Entry(canonicalUrl, rank, last));
+        }
+    }
+
+    /**
+     * The APK is downloaded and verified, so it can be installed.
+     */
+    void setReady(String canonicalUrl, Uri localApkUri, Apk apk) {
+        Entry entry = entries.get(canonicalUrl);
+        if (entry == null) {
+            entry = new Entry(canonicalUrl, NO_RANK, false);
+            entries.put(canonicalUrl, entry);
+        }
+        entry.localApkUri = localApkUri;
+        entry.apk = apk;
+        entry.state = State.READY;
+    }
+
+    /**
+     * The install is over, or will never happen, e.g. because the download
+     * failed or was canceled.
+     */
+    void remove(String canonicalUrl) {
+        entries.remove(canonicalUrl);
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * @return the installs to hand to {@link InstallerService} now, in order,
+     * which are then counted as in flight until they are {@link #remove(String) removed}
+     */
+    List<Entry> next() {
+        List<Entry> ready = new ArrayList<>();
+        int inFlight = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.state == State.READY) {
+                ready.add(entry);
+            } else if (entry.state == State.INSTALLING && entry.rank != NO_RANK) {
+                inFlight++;
+            }
+        }
+        Collections.sort(ready, ORDER);
+
+        List<Entry> next = new ArrayList<>();
+        for (Entry entry : ready) {
+            if (entry.last) {
+                if (entries.size() > 1) {
+                    break;
+                }
+            } else if (entry.rank != NO_RANK) {
+                if (inFlight >= MAX_INSTALLS_IN_FLIGHT) {
+                    continue;
+                }
+                inFlight++;
+            }
+            entry.state = State.INSTALLING;
+            next.add(entry);
+        }
+        return next;
+    }
+}
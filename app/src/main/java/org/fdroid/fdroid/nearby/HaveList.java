@@ -0,0 +1,178 @@
+package org.fdroid.fdroid.nearby;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.Base64;
+
+import org.fdroid.fdroid.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A compact set of the apps a swap client already has, as package name,
+ * {@code versionCode} and signing key fingerprint, so the swap server can
+ * leave those out of the index it sends back.  This is a Bloom filter, so it
+ * stays a few bytes per app however long the package names are.  The price
+ * is that about {@link #FALSE_POSITIVE_RATE} of the apps the client does not
+ * have look like it does.  So the filtered index lists what it left out
+ * under {@link #OMITTED}, and the client uses the full index instead if any
+ * of those are not really installed.
+ * <p>
+ * It is sent as the {@link #PARAM} form parameter of a {@code POST} to the
+ * swap repo's {@code index-v1.jar}, encoded with {@link #encode()}.  Older
+ * swap servers do not know that, and just answer with an empty page.
+ *
+ * @see org.fdroid.fdroid.data.Apk#sig
+ */
+public final class HaveList {
+    private static final String TAG = "HaveList";
+
+    public static final String PARAM = "have";
+
+    /**
+     * The field in the {@code repo} block of a filtered index that maps the
+     * package name of each app left out to its {@code versionCode} and
+     * {@code sig}.
+     */
+    public static final String OMITTED = "omitted";
+
+    static final double FALSE_POSITIVE_RATE = 0.0001;
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int MIN_BITS = 64;
+    private static final int MAX_HASHES = 16;
+
+    /**
+     * Bigger than any real device needs, but small enough that decoding what
+     * some other device sent cannot take much memory.
+     */
+    private static final int MAX_BYTES = 64 * 1024;
+
+    private final byte[] bits;
+    private final int hashCount;
+    private int size;
+
+    private HaveList(byte[] bits, int hashCount) {
+        this.bits = bits;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * @param expectedEntries how many apps will be added, which sets the size
+     */
+    public static HaveList create(int expectedEntries) {
+        int entries = Math.max(1, expectedEntries);
+        double bitCount = -entries * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2));
+        int byteCount = Math.min(MAX_BYTES, (Math.max(MIN_BITS, (int) Math.ceil(bitCount)) + 7) / 8);
+        int hashCount = (int) Math.round((byteCount * 8.0 / entries) * Math.log(2));
+        return new HaveList(new byte[byteCount], Math.max(1, Math.min(MAX_HASHES, hashCount)));
+    }
+
+    /**
+     * @return all the apps installed on this device
+     */
+    public static HaveList fromInstalledPackages(Context context) {
+        List<PackageInfo> packages = context.getPackageManager().getInstalledPackages(PackageManager.GET_SIGNATURES);
+        HaveList haveList = create(packages.size());
+        for (PackageInfo packageInfo : packages) {
+            haveList.add(packageInfo.packageName, packageInfo.versionCode, Utils.getPackageSig(packageInfo));
+        }
+        return haveList;
+    }
+
+    public void add(String packageName, int versionCode, String sig) {
+        long[] hashes = hash(packageName, versionCode, sig);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = getBit(hashes, i);
+            bits[bit / 8] |= 1 << (bit % 8);
+        }
+        size++;
+    }
+
+    /**
+     * @return {@code false} if this app is definitely not in the set, {@code true}
+     * if it is, or in rare cases, looks like it is
+     */
+    public boolean mightContain(String packageName, int versionCode, String sig) {
+        long[] hashes = hash(packageName, versionCode, sig);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = getBit(hashes, i);
+            if ((bits[bit / 8] & (1 << (bit % 8))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return how many apps were added, which is not known after {@link #decode(String)}
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the format version, the number of hashes, then the bits, as
+     * URL-safe Base64 so it can go in a form parameter as is
+     */
+    public String encode() {
+        byte[] encoded = new byte[bits.length + 2];
+        encoded[0] = FORMAT_VERSION;
+        encoded[1] = (byte) hashCount;
+        System.arraycopy(bits, 0, encoded, 2, bits.length);
+        return Base64.encodeToString(encoded, Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING);
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code encoded} is not a have-list
+     *                                  this version understands
+     */
+    public static HaveList decode(String encoded) {
+        if (encoded == null || encoded.length() > (MAX_BYTES + 2) * 4 / 3 + 4) {
+            throw new IllegalArgumentException("Missing or too big");
+        }
+        byte[] decoded = Base64.decode(encoded, Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING);
+        if (decoded.length < 3 || decoded[0] != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unknown format");
+        }
+        int hashCount = decoded[1];
+        if (hashCount < 1 || hashCount > MAX_HASHES) {
+            throw new IllegalArgumentException("Bad number of hashes: " + hashCount);
+        }
+        byte[] bits = new byte[decoded.length - 2];
+        System.arraycopy(decoded, 2, bits, 0, bits.length);
+        return new HaveList(bits, hashCount);
+    }
+
+    /**
+     * The bits to set are derived from two halves of one SHA-256, which is as
+     * good as separate hash functions for a Bloom filter.
+     */
+    private static long[] hash(String packageName, int versionCode, String sig) {
+        String key = packageName + ':' + versionCode + ':' + (sig == null ? "" : sig.toLowerCase(Locale.ENGLISH));
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(TAG + " needs SHA-256", e);
+        }
+        long first = 0;
+        long second = 0;
+        for (int i = 0; i < 8; i++) {
+            first = (first << 8) | (digest[i] & 0xff);
+            second = (second << 8) | (digest[i + 8] & 0xff);
+        }
+        return new long[]{first, second | 1};
+    }
+
+    private int getBit(long[] hashes, int i) {
+        long bitCount = bits.length * 8L;
+        long bit = (hashes[0] + i * hashes[1]) % bitCount;
+        return (int) (bit < 0 ? bit + bitCount : bit);
+    }
+}
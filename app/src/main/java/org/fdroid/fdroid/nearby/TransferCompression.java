@@ -0,0 +1,268 @@
+package org.fdroid.fdroid.nearby;
+
+import org.apache.commons.io.IOUtils;
+import org.fdroid.fdroid.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Decides which swap responses are worth compressing on the wire, and does
+ * it with {@code gzip}, which every peer already has in {@link java.util.zip}.
+ * Only types that are known to be text are always compressed.  Types that are
+ * known to be compressed already, like APKs and images, never are.  Anything
+ * else is compressed only if a sample of the start of it shrinks well enough.
+ * <p>
+ * Compressed bodies are built in memory, so their length can be sent up
+ * front, which both the HTTP-ish framing and resuming downloads need.  This
+ * is also why only full responses of at most {@link #MAX_SIZE} are ever
+ * compressed, never {@code Range} requests.
+ * <p>
+ * How many bytes went in and out, and how long that took, is counted across
+ * all servers, see {@link #getBytesSaved()} and {@link #getCompressionMillis()}.
+ */
+public final class TransferCompression {
+    private static final String TAG = "TransferCompression";
+
+    public static final String GZIP = "gzip";
+
+    /**
+     * Smaller than this, the {@code gzip} header and the extra response
+     * header would eat up most of the savings.
+     */
+    static final int MIN_SIZE = 512;
+    static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * How much of a file of unknown type is test compressed before deciding.
+     */
+    static final int SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * Compressed output has to be smaller than this fraction of the input,
+     * otherwise the CPU time on both ends is not worth it.
+     */
+    static final float MAX_RATIO = 0.9f;
+
+    private static final AtomicLong BYTES_IN = new AtomicLong();
+    private static final AtomicLong BYTES_OUT = new AtomicLong();
+    private static final AtomicLong NANOS = new AtomicLong();
+    private static final AtomicLong COMPRESSED_COUNT = new AtomicLong();
+    private static final AtomicLong SKIPPED_COUNT = new AtomicLong();
+
+    private TransferCompression() {
+    }
+
+    /**
+     * @param acceptEncoding the value of the {@code Accept-Encoding} request header
+     */
+    public static boolean isAccepted(@Nullable String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (GZIP.equalsIgnoreCase(parts[0].trim())) {
+                return parts.length < 2 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether {@code mimeType} is text, which always compresses well
+     */
+    public static boolean isTextType(@Nullable String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        String type = mimeType.toLowerCase(Locale.ENGLISH);
+        return type.startsWith("text/")
+                || type.startsWith("application/json")
+                || type.startsWith("application/xml")
+                || type.startsWith("application/javascript")
+                || type.startsWith("image/svg+xml");
+    }
+
+    /**
+     * @return whether {@code mimeType} is a format that is already compressed,
+     * so trying again would only waste time
+     */
+    public static boolean isPackedType(@Nullable String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        String type = mimeType.toLowerCase(Locale.ENGLISH);
+        if (type.startsWith("image/")) {
+            return !type.startsWith("image/svg+xml") && !type.startsWith("image/bmp");
+        }
+        return type.startsWith("audio/")
+                || type.startsWith("video/")
+                || type.startsWith("application/vnd.android.package-archive")
+                || type.startsWith("application/java-archive")
+                || type.startsWith("application/zip")
+                || type.startsWith("application/gzip")
+                || type.startsWith("application/x-gzip");
+    }
+
+    /**
+     * Whether to send {@code file} compressed, to a client that sent
+     * {@code acceptEncoding}.
+     */
+    public static boolean shouldCompress(@Nullable String acceptEncoding, @Nullable String mimeType, File file) {
+        long length = file.length();
+        if (!isAccepted(acceptEncoding) || length < MIN_SIZE || length > MAX_SIZE || isPackedType(mimeType)) {
+            return false;
+        }
+        if (isTextType(mimeType)) {
+            return true;
+        }
+        boolean compressible = isSampleCompressible(file);
+        if (!compressible) {
+            SKIPPED_COUNT.incrementAndGet();
+        }
+        return compressible;
+    }
+
+    /**
+     * Test compress the start of {@code file} as fast as possible, which is
+     * a good enough guess of how the whole file will do.
+     */
+    static boolean isSampleCompressible(File file) {
+        byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, file.length())];
+        int length = 0;
+        InputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            length = IOUtils.read(input, sample);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            Utils.closeQuietly(input);
+        }
+        if (length < MIN_SIZE) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflater.setInput(sample, 0, length);
+        deflater.finish();
+        byte[] buffer = new byte[8192];
+        long compressedLength = 0;
+        while (!deflater.finished()) {
+            compressedLength += deflater.deflate(buffer);
+        }
+        deflater.end();
+        NANOS.addAndGet(System.nanoTime() - start);
+        return compressedLength < length * MAX_RATIO;
+    }
+
+    /**
+     * @return {@code file} compressed with {@code gzip}, or {@code null} if
+     * it did not get small enough to be worth sending that way
+     */
+    @Nullable
+    public static byte[] gzip(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            return gzip(input, (int) file.length());
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * @return {@code content} compressed with {@code gzip}, or {@code null}
+     * if it did not get small enough to be worth sending that way
+     */
+    @Nullable
+    public static byte[] gzip(byte[] content) {
+        try {
+            return gzip(new ByteArrayInputStream(content), content.length);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Nullable
+    private static byte[] gzip(InputStream input, int length) throws IOException {
+        long start = System.nanoTime();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(32, length / 4));
+        GZIPOutputStream output = new GZIPOutputStream(compressed, 8192);
+        long read = IOUtils.copyLarge(input, output);
+        output.finish();
+        long nanos = System.nanoTime() - start;
+
+        NANOS.addAndGet(nanos);
+        if (compressed.size() >= read * MAX_RATIO) {
+            SKIPPED_COUNT.incrementAndGet();
+            Utils.debugLog(TAG, "Not compressing, " + read + " bytes only went down to " + compressed.size());
+            return null;
+        }
+        BYTES_IN.addAndGet(read);
+        BYTES_OUT.addAndGet(compressed.size());
+        COMPRESSED_COUNT.incrementAndGet();
+        Utils.debugLog(TAG, "Compressed " + read + " bytes to " + compressed.size() + " in "
+                + nanos / 1000000 + "ms");
+        return compressed.toByteArray();
+    }
+
+    /**
+     * @return how many bytes were not sent thanks to compression
+     */
+    public static long getBytesSaved() {
+        return BYTES_IN.get() - BYTES_OUT.get();
+    }
+
+    /**
+     * @return the uncompressed size of everything that was sent compressed
+     */
+    public static long getBytesCompressed() {
+        return BYTES_IN.get();
+    }
+
+    /**
+     * @return the time spent compressing, including the tries that were not
+     * worth it and the samples of files of unknown types
+     */
+    public static long getCompressionMillis() {
+        return NANOS.get() / 1000000;
+    }
+
+    public static long getCompressedCount() {
+        return COMPRESSED_COUNT.get();
+    }
+
+    /**
+     * @return how many responses were looked at but sent uncompressed
+     * because they did not shrink enough
+     */
+    public static long getSkippedCount() {
+        return SKIPPED_COUNT.get();
+    }
+
+    public static String getStats() {
+        return "compressed " + getCompressedCount() + " responses (" + getBytesCompressed() + " bytes), saving "
+                + getBytesSaved() + " bytes for " + getCompressionMillis() + "ms of CPU, skipped "
+                + getSkippedCount();
+    }
+
+    static void resetStats() {
+        BYTES_IN.set(0);
+        BYTES_OUT.set(0);
+        NANOS.set(0);
+        COMPRESSED_COUNT.set(0);
+        SKIPPED_COUNT.set(0);
+    }
+}
@@ -2,20 +2,50 @@ package org.fdroid.fdroid.nearby.httpish;
 
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.nearby.BluetoothConnection;
+import org.fdroid.fdroid.nearby.TransferCompression;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.net.ProtocolException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 
+/**
+ * A request in the "HTTP-ish" protocol used to swap over Bluetooth.  This
+ * looks like a stripped down HTTP/1.1: a request line, headers, then a blank
+ * line.  Responses always say how long their body is, so several requests can
+ * be sent over a single connection, and even sent all at once before reading
+ * any of the responses, e.g. with {@link #write()} then {@link #readResponse()}.
+ * <p>
+ * Everything is read with plain blocking reads from the buffered stream of the
+ * {@link BluetoothConnection}, so each request only takes as long as the
+ * bytes take to arrive, instead of polling {@link InputStream#available()}.
+ * Older peers do not send a version or {@code Connection: keep-alive}, they
+ * are still understood, but only get one request per connection.
+ * <p>
+ * Requests also say they take {@code gzip}, so newer servers can send
+ * compressible files smaller, marked with {@code Content-Encoding: gzip}.
+ * Older servers ignore that and send everything as is.
+ *
+ * @see TransferCompression
+ */
 public final class Request {
 
     private static final String TAG = "bluetooth.Request";
 
+    /**
+     * Sent at the end of the request line and at the start of the status line.
+     */
+    public static final String VERSION = "HTTPish/1.1";
+
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_HEADERS = 64;
+
     public interface Methods {
         String HEAD = "HEAD";
         String GET = "GET";
@@ -25,61 +55,84 @@ public final class Request {
     private String path;
     private Map<String, String> headers;
 
-    private final BluetoothConnection connection;
-    private final Writer output;
+    private final OutputStream output;
     private final InputStream input;
 
-    private Request(String method, String path, BluetoothConnection connection) {
+    private Request(String method, String path, InputStream input, OutputStream output) {
         this.method = method;
         this.path = path;
-        this.connection = connection;
-
-        output = new OutputStreamWriter(connection.getOutputStream());
-        input = connection.getInputStream();
+        this.input = input;
+        this.output = output;
+        this.headers = new LinkedHashMap<>();
     }
 
     public static Request createHEAD(String path, BluetoothConnection connection) {
-        return new Request(Methods.HEAD, path, connection);
+        return new Request(Methods.HEAD, path, connection.getInputStream(), connection.getOutputStream());
     }
 
     public static Request createGET(String path, BluetoothConnection connection) {
-        return new Request(Methods.GET, path, connection);
+        return new Request(Methods.GET, path, connection.getInputStream(), connection.getOutputStream());
+    }
+
+    static Request create(String method, String path, InputStream input, OutputStream output) {
+        return new Request(method, path, input, output);
+    }
+
+    /**
+     * Add a header to send with this request, e.g. {@code Range} to resume
+     * a download.  Older servers ignore headers they do not know.
+     */
+    public Request addHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
     }
 
     public String getHeaderValue(String header) {
         return headers.containsKey(header) ? headers.get(header) : null;
     }
 
+    /**
+     * Send this request and wait for the response.  For a {@code GET}, the
+     * whole body has to be read from {@link Response#toContentStream()}
+     * before the connection can be used for anything else.
+     */
     public Response send() throws IOException {
+        write();
+        return readResponse();
+    }
 
+    /**
+     * Send this request without waiting for the response, so that more
+     * requests can be sent right after it.  The responses then need to be
+     * read in the same order with {@link #readResponse()}.
+     */
+    public void write() throws IOException {
         Utils.debugLog(TAG, "Sending request to server (" + path + ")");
-
-        output.write(method);
-        output.write(' ');
-        output.write(path);
-
-        output.write("\n\n");
-
+        StringBuilder head = new StringBuilder(128);
+        head.append(method).append(' ').append(path).append(' ').append(VERSION).append('\n')
+                .append("Connection: keep-alive\n")
+                .append("Accept-Encoding: ").append(TransferCompression.GZIP).append('\n');
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            head.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        head.append('\n');
+        output.write(head.toString().getBytes("UTF-8"));
         output.flush();
+    }
 
-        Utils.debugLog(TAG, "Finished sending request, now attempting to read response status code...");
-
+    /**
+     * Read the response to this request, which must have already been sent
+     * with {@link #write()}.
+     */
+    public Response readResponse() throws IOException {
         int responseCode = readResponseCode();
-
-        Utils.debugLog(TAG, "Read response code " + responseCode + " from server, now reading headers...");
-
         Map<String, String> headers = readHeaders();
-
-        Utils.debugLog(TAG, "Read " + headers.size() + " headers");
+        Utils.debugLog(TAG, "Read response code " + responseCode + " and " + headers.size() + " headers");
 
         if (method.equals(Methods.HEAD)) {
-            Utils.debugLog(TAG, "Request was a " + Methods.HEAD
-                    + " request, not including anything other than headers and status...");
             return new Response(responseCode, headers);
         }
-        Utils.debugLog(TAG, "Request was a " + Methods.GET
-                + " request, so including content stream in response...");
-        return new Response(responseCode, headers, connection.getInputStream());
+        return new Response(responseCode, headers, input);
     }
 
     /**
@@ -91,13 +144,13 @@ public final class Request {
      */
     private boolean listen() throws IOException {
 
-        String requestLine = readLine();
+        String requestLine = readLine(input);
 
         if (requestLine == null || requestLine.trim().length() == 0) {
             return false;
         }
 
-        String[] parts = requestLine.split("\\s+");
+        String[] parts = requestLine.trim().split("\\s+");
 
         // First part is the method (GET/HEAD), second is the path (/fdroid/repo/index.jar)
         if (parts.length < 2) {
@@ -112,9 +165,15 @@ public final class Request {
 
     /**
      * This is a blocking method, which will wait until a full Request is received.
+     *
+     * @return the request, or {@code null} if the connection was closed
      */
     public static Request listenForRequest(BluetoothConnection connection) throws IOException {
-        Request request = new Request("", "", connection);
+        return listenForRequest(connection.getInputStream(), connection.getOutputStream());
+    }
+
+    static Request listenForRequest(InputStream input, OutputStream output) throws IOException {
+        Request request = new Request("", "", input, output);
         return request.listen() ? request : null;
     }
 
@@ -125,72 +184,66 @@ public final class Request {
      * a space, and then the status label (which may contain spaces).
      */
     private int readResponseCode() throws IOException {
-
-        String line = readLine();
-
-        // TODO: Error handling
-        int firstSpace = line.indexOf(' ');
-        int secondSpace = line.indexOf(' ', firstSpace + 1);
-
-        String status = line.substring(firstSpace + 1, secondSpace);
-        return Integer.parseInt(status);
+        String line = readLine(input);
+        if (line == null) {
+            throw new EOFException("Connection closed before the response arrived");
+        }
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length < 2) {
+            throw new ProtocolException("Invalid status line: " + line);
+        }
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid status line: " + line);
+        }
     }
 
-    private String readLine() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        String line = null;
-
-        while (line == null) {
-
-            while (input.available() > 0) {
-
-                int b = input.read();
-
-                if (((char) b) == '\n') {
-                    if (baos.size() > 0) {
-                        line = new String(baos.toByteArray());
-                    }
-
-                    return line;
+    /**
+     * Read a line ending with {@code \n}, without the line ending.  This
+     * blocks until the whole line is there.
+     *
+     * @return the line, or {@code null} if the stream ended before anything was read
+     */
+    static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+        while (true) {
+            int b = input.read();
+            if (b == -1) {
+                if (line.size() == 0) {
+                    return null;
                 }
-
-                baos.write(b);
+                break;
             }
-
-            try {
-                Thread.sleep(100);
-            } catch (Exception e) {
-                // ignore
+            if (b == '\n') {
+                break;
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("Line longer than " + MAX_LINE_LENGTH + " bytes");
             }
+            line.write(b);
         }
-
-        return line;
+        String string = line.toString("UTF-8");
+        return string.endsWith("\r") ? string.substring(0, string.length() - 1) : string;
     }
 
     /**
-     * Subsequent lines (after the status line) represent the headers, which are case
-     * insensitive and may be multi-line. We don't deal with multi-line headers in
-     * our HTTP-ish implementation.
+     * Subsequent lines (after the status line) represent the headers, up to
+     * the first blank line.  Header names are case insensitive, and we don't
+     * deal with multi-line headers in our HTTP-ish implementation.
      */
     private Map<String, String> readHeaders() throws IOException {
         Map<String, String> headers = new HashMap<>();
-        String responseLine = readLine();
-        while (responseLine != null) {
-
-            // TODO: Error handling
-            String[] parts = responseLine.split(":");
-            if (parts.length > 1) {
-                String header = parts[0].trim();
-                String value = parts[1].trim();
-                headers.put(header, value);
+        String line = readLine(input);
+        while (line != null && line.length() > 0) {
+            if (headers.size() >= MAX_HEADERS) {
+                throw new ProtocolException("More than " + MAX_HEADERS + " headers");
             }
-
-            if (input.available() > 0) {
-                responseLine = readLine();
-            } else {
-                break;
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
             }
-
+            line = readLine(input);
         }
         return headers;
     }
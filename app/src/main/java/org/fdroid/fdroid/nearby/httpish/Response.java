@@ -4,13 +4,13 @@ import android.util.Log;
 
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.nearby.BluetoothConnection;
+import org.fdroid.fdroid.nearby.TransferCompression;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.util.HashMap;
 import java.util.Locale;
@@ -45,7 +45,9 @@ public class Response {
         this.headers = new HashMap<>();
         this.headers.put("Content-Type", mimeType);
         try {
-            this.contentStream = new ByteArrayInputStream(content.getBytes("UTF-8"));
+            byte[] bytes = content.getBytes("UTF-8");
+            this.headers.put("Content-Length", Integer.toString(bytes.length));
+            this.contentStream = new ByteArrayInputStream(bytes);
         } catch (UnsupportedEncodingException e) {
             // Not quite sure what to do in the case of a phone not supporting UTF-8, so lets
             // throw a runtime exception and hope that we get good bug reports if this ever happens.
@@ -70,18 +72,50 @@ public class Response {
     }
 
     public int getFileSize() {
+        String value = getHeader("content-length");
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return whether the other side will keep the connection open for more
+     * requests after this one, which older peers do not
+     */
+    public boolean isKeepAlive() {
+        return "keep-alive".equalsIgnoreCase(getHeader("connection"));
+    }
+
+    /**
+     * @return whether the content is compressed with {@code gzip}, which
+     * only happens if the request said it takes that
+     */
+    public boolean isGzipped() {
+        return TransferCompression.GZIP.equalsIgnoreCase(getHeader("content-encoding"));
+    }
+
+    /**
+     * @return whether the server can send part of a file, so an interrupted
+     * download can be resumed with a {@code Range} request
+     */
+    public boolean acceptsRanges() {
+        return "bytes".equalsIgnoreCase(getHeader("accept-ranges"));
+    }
+
+    private String getHeader(String lowerCaseName) {
         if (headers != null) {
             for (Map.Entry<String, String> entry : headers.entrySet()) {
-                if ("content-length".equals(entry.getKey().toLowerCase(Locale.ENGLISH))) {
-                    try {
-                        return Integer.parseInt(entry.getValue());
-                    } catch (NumberFormatException e) {
-                        return -1;
-                    }
+                if (lowerCaseName.equals(entry.getKey().toLowerCase(Locale.ENGLISH))) {
+                    return entry.getValue();
                 }
             }
         }
-        return -1;
+        return null;
     }
 
     /**
@@ -105,36 +139,69 @@ public class Response {
     }
 
     public void send(BluetoothConnection connection) throws IOException {
+        send(connection.getOutputStream());
+    }
 
-        Utils.debugLog(TAG, "Sending Bluetooth HTTP-ish response...");
+    /**
+     * Write the status line, the headers and then the content, if there is
+     * any.  The content must be exactly as long as the {@code Content-Length}
+     * header says, otherwise the client cannot tell where the next response
+     * starts.  The content stream is closed afterwards.
+     */
+    void send(OutputStream output) throws IOException {
 
-        Writer output = new OutputStreamWriter(connection.getOutputStream());
-        output.write("HTTP(ish)/0.1 200 OK\n");
+        Utils.debugLog(TAG, "Sending Bluetooth HTTP-ish response...");
 
+        StringBuilder head = new StringBuilder(128);
+        head.append(Request.VERSION).append(' ').append(statusCode).append(' ')
+                .append(getReasonPhrase(statusCode)).append('\n');
         for (Map.Entry<String, String> entry : headers.entrySet()) {
-            output.write(entry.getKey());
-            output.write(": ");
-            output.write(entry.getValue());
-            output.write("\n");
+            head.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
         }
-
-        output.write("\n");
-        output.flush();
+        head.append('\n');
+        output.write(head.toString().getBytes("UTF-8"));
 
         if (contentStream != null) {
-            Utils.copy(contentStream, connection.getOutputStream());
+            try {
+                Utils.copy(contentStream, output);
+            } finally {
+                Utils.closeQuietly(contentStream);
+            }
         }
 
+        // headers and small bodies go out together in one write
         output.flush();
 
     }
 
+    private static String getReasonPhrase(int statusCode) {
+        switch (statusCode) {
+            case HttpURLConnection.HTTP_OK:
+                return "OK";
+            case HttpURLConnection.HTTP_PARTIAL:
+                return "Partial Content";
+            case HttpURLConnection.HTTP_MOVED_PERM:
+                return "Moved Permanently";
+            case HttpURLConnection.HTTP_NOT_MODIFIED:
+                return "Not Modified";
+            case HttpURLConnection.HTTP_FORBIDDEN:
+                return "Forbidden";
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                return "Not Found";
+            case 416:
+                return "Range Not Satisfiable";
+            default:
+                return statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR ? "Error" : "Unknown";
+        }
+    }
+
     public static class Builder {
 
         private InputStream contentStream;
         private int statusCode = HttpURLConnection.HTTP_OK;
         private int fileSize = -1;
         private String etag;
+        private String contentEncoding;
 
         public Builder() {
         }
@@ -158,11 +225,17 @@ public class Response {
             return this;
         }
 
+        public Builder setContentEncoding(String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+            return this;
+        }
+
         public Response build() {
 
-            Map<String, String> headers = new HashMap<>(3);
+            Map<String, String> headers = new HashMap<>(4);
 
-            if (fileSize > 0) {
+            // the length is always sent, even if it is 0, so the connection can be reused
+            if (fileSize >= 0) {
                 headers.put("Content-Length", Integer.toString(fileSize));
             }
 
@@ -170,6 +243,13 @@ public class Response {
                 headers.put("ETag", etag);
             }
 
+            if (contentEncoding != null) {
+                headers.put("Content-Encoding", contentEncoding);
+            }
+
+            headers.put("Connection", "keep-alive");
+            headers.put("Accept-Ranges", "bytes");
+
             return new Response(statusCode, headers, contentStream);
         }
 
@@ -3,7 +3,9 @@ package org.fdroid.fdroid.net;
 import android.net.Uri;
 import android.util.Log;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.nearby.BluetoothClient;
 import org.fdroid.fdroid.nearby.BluetoothConnection;
@@ -14,7 +16,10 @@ import org.fdroid.fdroid.nearby.httpish.Response;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 import androidx.annotation.Nullable;
 
@@ -28,10 +33,28 @@ public class BluetoothDownloader extends Downloader {
 
     public static final String SCHEME = "bluetooth";
 
-    private final BluetoothConnection connection;
+    private final BluetoothClient client;
+    private BluetoothConnection connection;
+    private boolean connectionReused;
     private FileDetails fileDetails;
     private final String sourcePath;
 
+    private boolean keepAlive;
+    private CountingInputStream body;
+
+    /**
+     * Where the download picks up from, when a partial file from an
+     * interrupted download is being resumed.
+     */
+    private long resumeFrom;
+    private boolean acceptsRanges;
+
+    /**
+     * Whether the file was new on the server when it was fetched, which has
+     * to be remembered since the cache tag is replaced by the new one then.
+     */
+    private Boolean newOnServer;
+
     public static boolean isBluetoothUri(Uri uri) {
         return SCHEME.equals(uri.getScheme())
                 && Pattern.matches("([0-9A-F]{2}-)+[0-9A-F]{2}", uri.getHost());
@@ -40,15 +63,32 @@ public class BluetoothDownloader extends Downloader {
     public BluetoothDownloader(Uri uri, File destFile) throws IOException {
         super(uri, destFile);
         String macAddress = uri.getHost().replace("-", ":");
-        this.connection = new BluetoothClient(macAddress).openConnection();
+        this.client = new BluetoothClient(macAddress);
+        this.connection = client.takeIdleConnection();
+        if (connection == null) {
+            connection = client.openConnection();
+        } else {
+            connectionReused = true;
+        }
         this.sourcePath = uri.getPath();
     }
 
     @Override
     protected InputStream getDownloadersInputStream() throws IOException {
-        Request request = Request.createGET(sourcePath, connection);
-        Response response = request.send();
+        Response response = send(Request.Methods.GET);
+        if (resumeFrom > 0 && response.getStatusCode() != HttpURLConnection.HTTP_PARTIAL) {
+            keepAlive = false;
+            throw new ProtocolException("Could not resume " + sourcePath + ": " + response.getStatusCode());
+        }
         fileDetails = response.toFileDetails();
+        keepAlive = response.isKeepAlive();
+        newOnServer = isNewOnServer(fileDetails);
+        if (fileDetails.getCacheTag() != null) {
+            setCacheTag(fileDetails.getCacheTag());
+        }
+        if (response.getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+            notFound = true;
+        }
 
         // TODO: Manage the dependency which includes this class better?
         // Right now, I only needed the one class from apache commons.
@@ -60,8 +100,44 @@ public class BluetoothDownloader extends Downloader {
         // to us).
         BoundedInputStream stream = new BoundedInputStream(response.toContentStream(), fileDetails.getFileSize());
         stream.setPropagateClose(false);
+        body = new CountingInputStream(stream);
+        if (response.isGzipped()) {
+            // the file size is the compressed one, so progress is counted on body
+            return new GZIPInputStream(body);
+        }
+        return body;
+    }
 
-        return stream;
+    /**
+     * Send a request, and if the connection was one left open by an earlier
+     * download, which the other side can close at any time, try once more
+     * on a new connection.
+     */
+    private Response send(String method) throws IOException {
+        keepAlive = false; // until a whole response has arrived
+        try {
+            return createRequest(method).send();
+        } catch (IOException e) {
+            if (!connectionReused) {
+                throw e;
+            }
+            Utils.debugLog(TAG, "Reused connection failed, opening a new one: " + e.getMessage());
+            connection.closeQuietly();
+            connection = client.openConnection();
+            connectionReused = false;
+            return createRequest(method).send();
+        }
+    }
+
+    private Request createRequest(String method) {
+        if (Request.Methods.HEAD.equals(method)) {
+            return Request.createHEAD(sourcePath, connection);
+        }
+        Request request = Request.createGET(sourcePath, connection);
+        if (resumeFrom > 0) {
+            request.addHeader("Range", "bytes=" + resumeFrom + "-");
+        }
+        return request;
     }
 
     /**
@@ -72,7 +148,10 @@ public class BluetoothDownloader extends Downloader {
         if (fileDetails == null) {
             Utils.debugLog(TAG, "Going to Bluetooth \"server\" to get file details.");
             try {
-                fileDetails = Request.createHEAD(sourcePath, connection).send().toFileDetails();
+                Response response = send(Request.Methods.HEAD);
+                fileDetails = response.toFileDetails();
+                keepAlive = response.isKeepAlive();
+                acceptsRanges = response.acceptsRanges();
             } catch (IOException e) {
                 Log.e(TAG, "Error getting file details from Bluetooth \"server\"", e);
             }
@@ -80,29 +159,93 @@ public class BluetoothDownloader extends Downloader {
         return fileDetails;
     }
 
+    /**
+     * This uses the {@code ETag} from a {@code HEAD} request if nothing was
+     * fetched yet, so checking does not transfer the whole file.
+     */
     @Override
     public boolean hasChanged() {
-        FileDetails details = getFileDetails();
-        return details == null || details.getCacheTag() == null || details.getCacheTag().equals(getCacheTag());
+        if (newOnServer != null) {
+            return newOnServer;
+        }
+        return isNewOnServer(getFileDetails());
+    }
+
+    private boolean isNewOnServer(@Nullable FileDetails details) {
+        return details == null || details.getCacheTag() == null || !details.getCacheTag().equals(getCacheTag());
     }
 
+    /**
+     * When resuming, the response only has the rest of the file, so the part
+     * that is already there is added to match the progress.
+     */
     @Override
     public long totalDownloadSize() {
         FileDetails details = getFileDetails();
-        return details != null ? details.getFileSize() : -1;
+        return details != null ? resumeFrom + details.getFileSize() : -1;
     }
 
+    /**
+     * Count what came over the connection, since a gzipped response is
+     * bigger once it is written to the file, and its size is the compressed
+     * one.  Without compression, this is the same as what was written.
+     */
+    @Override
+    protected long getBytesTransferred(long bytesWritten) {
+        return body == null ? bytesWritten : resumeFrom + body.getByteCount();
+    }
+
+    /**
+     * A partial file left by an interrupted download is resumed with a
+     * {@code Range} request, if the server said in its {@code HEAD} that it
+     * supports that.  Older servers do not, so those start over.
+     */
     @Override
     public void download() throws IOException, InterruptedException {
-        downloadFromStream(false);
-        connection.closeQuietly();
+        try {
+            if (getCacheTag() != null && !hasChanged()) {
+                Utils.debugLog(TAG, sourcePath + " has not changed, not downloading");
+                newOnServer = false;
+                return;
+            }
+            long fileLength = outputFile.isFile() ? outputFile.length() : 0;
+            if (fileLength > 0) {
+                FileDetails details = getFileDetails();
+                if (details != null && acceptsRanges && fileLength == details.getFileSize()) {
+                    Utils.debugLog(TAG, sourcePath + " is already complete, not downloading");
+                    return;
+                } else if (details != null && acceptsRanges && fileLength < details.getFileSize()) {
+                    resumeFrom = fileLength;
+                    fileDetails = null; // replaced by the details of the partial response
+                }
+            }
+            Utils.debugLog(TAG, "downloading " + sourcePath + " (resuming from: " + resumeFrom + ")");
+            downloadFromStream(resumeFrom > 0);
+        } catch (ProtocolException e) {
+            if (resumeFrom > 0) {
+                FileUtils.deleteQuietly(outputFile); // so the next try starts over
+            }
+            throw e;
+        } finally {
+            close();
+        }
     }
 
+    /**
+     * Keep the connection for the next download if the other side supports
+     * that and the whole response was read, otherwise close it.
+     */
     @Override
     protected void close() {
-        if (connection != null) {
+        if (connection == null) {
+            return;
+        }
+        if (keepAlive && (body == null || body.getByteCount() == fileDetails.getFileSize())) {
+            client.keepIdle(connection);
+        } else {
             connection.closeQuietly();
         }
+        connection = null;
     }
 
 }
@@ -111,6 +111,19 @@ public abstract class Downloader {
 
     protected abstract long totalDownloadSize();
 
+    /**
+     * How much of the download has arrived, in the same units as
+     * {@link #totalDownloadSize()}.  That is usually what was written to the
+     * file, but a downloader that decompresses the response has to count
+     * what came over the connection instead.
+     *
+     * @param bytesWritten how big the file is now, including what was there
+     *                     before when resuming
+     */
+    protected long getBytesTransferred(long bytesWritten) {
+        return bytesWritten;
+    }
+
     public abstract void download() throws ConnectException, IOException, InterruptedException;
 
     /**
@@ -173,7 +186,8 @@ public abstract class Downloader {
             throws IOException, InterruptedException {
         Timer timer = new Timer();
         try {
-            bytesRead = outputFile.length();
+            long bytesWritten = outputFile.length();
+            bytesRead = getBytesTransferred(bytesWritten);
             totalBytes = totalDownloadSize();
             byte[] buffer = new byte[bufferSize];
 
@@ -199,9 +213,13 @@ public abstract class Downloader {
                     Utils.debugLog(TAG, "Finished downloading from stream");
                     break;
                 }
-                bytesRead += count;
+                bytesWritten += count;
+                bytesRead = getBytesTransferred(bytesWritten);
                 output.write(buffer, 0, count);
             }
+            // the timer might not have run since the last bytes came in
+            timer.cancel();
+            progressTask.run();
         } finally {
             downloaderProgressListener = null;
             timer.cancel();
@@ -23,33 +23,46 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.Message;
 import android.os.PatternMatcher;
 import android.os.Process;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.LogPrinter;
 
-import org.fdroid.fdroid.BuildConfig;
+import org.apache.commons.io.FileUtils;
 import org.fdroid.fdroid.FDroidApp;
 import org.fdroid.fdroid.ProgressListener;
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Apk;
 import org.fdroid.fdroid.data.RepoProvider;
 import org.fdroid.fdroid.data.SanitizedFile;
 import org.fdroid.fdroid.installer.ApkCache;
+import org.fdroid.fdroid.installer.ApkCacheIndex;
+import org.fdroid.fdroid.installer.DeltaPatcher;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.HttpRetryException;
 import java.net.NoRouteToHostException;
 import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLKeyException;
@@ -76,9 +89,10 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
  * will receive the Intents, launch a worker thread, and stop the service as
  * appropriate.
  * <p>
- * All requests are handled on a single worker thread -- they may take as
- * long as necessary (and will not block the application's main loop), but
- * only one request will be processed at a time.
+ * Requests are handled by a small pool of worker threads -- they may take as
+ * long as necessary (and will not block the application's main loop), and
+ * a few are processed at a time, in the order they were queued.  Bluetooth
+ * downloads all share one connection, so those are processed one at a time.
  * <p>
  * The Canonical URL for the file to download is also used as the unique ID to
  * represent the download itself throughout F-Droid.  This follows the model
@@ -99,25 +113,66 @@ public class DownloaderService extends Service {
     private static final String ACTION_QUEUE = "org.fdroid.fdroid.net.DownloaderService.action.QUEUE";
     private static final String ACTION_CANCEL = "org.fdroid.fdroid.net.DownloaderService.action.CANCEL";
 
-    private volatile Looper serviceLooper;
-    private static volatile ServiceHandler serviceHandler;
-    private static volatile Downloader downloader;
-    private static volatile String activeCanonicalUrl;
+    private static final String EXTRA_DELTA_FILE = "org.fdroid.fdroid.net.DownloaderService.extra.DELTA_FILE";
+    private static final String EXTRA_DELTA_BASE = "org.fdroid.fdroid.net.DownloaderService.extra.DELTA_BASE";
+    private static final String EXTRA_HASH = "org.fdroid.fdroid.net.DownloaderService.extra.HASH";
+    private static final String EXTRA_HASH_TYPE = "org.fdroid.fdroid.net.DownloaderService.extra.HASH_TYPE";
+    private static final String EXTRA_SIZE = "org.fdroid.fdroid.net.DownloaderService.extra.SIZE";
+
+    /**
+     * How many downloads run at the same time.  A few keep the connection busy
+     * while each one is waiting on round trips, without splitting the
+     * bandwidth so much that every download in a batch finishes late.
+     */
+    private static final int MAX_PARALLEL_DOWNLOADS = 3;
+
+    /**
+     * All the downloads that are queued or running, by canonical URL.
+     */
+    private static final Map<String, DownloadTask> TASKS = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor executor;
+    private ThreadPoolExecutor bluetoothExecutor;
     private LocalBroadcastManager localBroadcastManager;
+    private Handler handler;
     private static volatile int timeout;
+    private int lastStartId;
 
-    private final class ServiceHandler extends Handler {
-        static final String TAG = "ServiceHandler";
+    private final Runnable stopSelfIfIdle = new Runnable() {
+        @Override
+        public void run() {
+            stopSelfIfIdle();
+        }
+    };
 
-        ServiceHandler(Looper looper) {
-            super(looper);
+    /**
+     * One download, from the time it is queued until it ends.
+     */
+    private final class DownloadTask implements Runnable {
+        final Intent intent;
+        final String canonicalUrl;
+        volatile Downloader downloader;
+        volatile boolean cancelled;
+
+        DownloadTask(Intent intent, String canonicalUrl) {
+            this.intent = intent;
+            this.canonicalUrl = canonicalUrl;
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            Utils.debugLog(TAG, "Handling download message with ID of " + msg.what);
-            handleIntent((Intent) msg.obj);
-            stopSelf(msg.arg1);
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            Utils.debugLog(TAG, "Handling download with ID of " + canonicalUrl.hashCode());
+            handleIntent(this);
+            handler.post(stopSelfIfIdle);
+        }
+
+        void cancel() {
+            cancelled = true;
+            Downloader downloader = this.downloader;
+            if (downloader != null) {
+                downloader.cancelDownload();
+            }
         }
     }
 
@@ -125,21 +180,24 @@ public class DownloaderService extends Service {
     public void onCreate() {
         super.onCreate();
         Utils.debugLog(TAG, "Creating downloader service.");
-
-        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-
-        serviceLooper = thread.getLooper();
-        if (BuildConfig.DEBUG) {
-            serviceLooper.setMessageLogging(new LogPrinter(Log.DEBUG, ServiceHandler.TAG));
-        }
-        serviceHandler = new ServiceHandler(serviceLooper);
+        executor = createExecutor(MAX_PARALLEL_DOWNLOADS);
+        // there is only one Bluetooth connection, so those downloads have to take turns
+        bluetoothExecutor = createExecutor(1);
         localBroadcastManager = LocalBroadcastManager.getInstance(this);
+        handler = new Handler(Looper.getMainLooper());
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Utils.debugLog(TAG, "Received Intent for downloading: " + intent + " (with a startId of " + startId + ")");
+        lastStartId = startId;
 
         if (intent == null) {
             return START_NOT_STICKY;
@@ -159,26 +217,30 @@ public class DownloaderService extends Service {
         if (ACTION_CANCEL.equals(intent.getAction())) {
             Utils.debugLog(TAG, "Cancelling download of " + canonicalUrl.hashCode() + "/" + canonicalUrl
                     + " downloading from " + downloadUrl);
-            Integer whatToRemove = canonicalUrl.hashCode();
-            if (serviceHandler.hasMessages(whatToRemove)) {
-                Utils.debugLog(TAG, "Removing download with ID of " + whatToRemove
-                        + " from service handler, then sending interrupted event.");
-                serviceHandler.removeMessages(whatToRemove);
+            DownloadTask task = TASKS.get(canonicalUrl);
+            if (task == null) {
+                Utils.debugLog(TAG, "ACTION_CANCEL called on something not queued or running"
+                        + " (expected to find download with ID of " + canonicalUrl.hashCode() + ").");
+            } else if (getExecutor(task.intent).remove(task)) {
+                Utils.debugLog(TAG, "Removing download with ID of " + canonicalUrl.hashCode()
+                        + " from the queue, then sending interrupted event.");
+                TASKS.remove(canonicalUrl, task);
                 sendCancelledBroadcast(intent.getData(), canonicalUrl);
-            } else if (isActive(canonicalUrl)) {
-                downloader.cancelDownload();
             } else {
-                Utils.debugLog(TAG, "ACTION_CANCEL called on something not queued or running"
-                        + " (expected to find message with ID of " + whatToRemove + " in queue).");
+                task.cancel();
             }
+            stopSelfIfIdle();
         } else if (ACTION_QUEUE.equals(intent.getAction())) {
-            Message msg = serviceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = intent;
-            msg.what = canonicalUrl.hashCode();
-            serviceHandler.sendMessage(msg);
-            Utils.debugLog(TAG, "Queued download of " + canonicalUrl.hashCode() + "/" + canonicalUrl
-                    + " using " + downloadUrl);
+            DownloadTask task = new DownloadTask(intent, canonicalUrl);
+            DownloadTask existing = TASKS.putIfAbsent(canonicalUrl, task);
+            if (existing != null) {
+                Utils.debugLog(TAG, "Already downloading " + canonicalUrl.hashCode() + "/" + canonicalUrl
+                        + ", ignoring " + downloadUrl);
+            } else {
+                getExecutor(intent).execute(task);
+                Utils.debugLog(TAG, "Queued download of " + canonicalUrl.hashCode() + "/" + canonicalUrl
+                        + " using " + downloadUrl);
+            }
         } else {
             Utils.debugLog(TAG, "Received Intent with unknown action: " + intent);
         }
@@ -186,10 +248,40 @@ public class DownloaderService extends Service {
         return START_REDELIVER_INTENT; // if killed before completion, retry Intent
     }
 
+    private ThreadPoolExecutor getExecutor(Intent intent) {
+        return BluetoothDownloader.SCHEME.equals(intent.getScheme()) ? bluetoothExecutor : executor;
+    }
+
+    /**
+     * This only runs on the main thread, like {@link #onStartCommand(Intent, int, int)},
+     * so a request is always in {@link #TASKS} by the time this sees its
+     * {@code startId}.  Workers post this to the main thread when they finish.
+     */
+    private void stopSelfIfIdle() {
+        if (TASKS.isEmpty()) {
+            stopSelf(lastStartId);
+        }
+    }
+
+    /**
+     * Running downloads are canceled, and send {@link Downloader#ACTION_INTERRUPTED}
+     * themselves when they stop.  The ones still waiting in the queue never
+     * run, so this sends it for them.
+     */
     @Override
     public void onDestroy() {
-        Utils.debugLog(TAG, "Destroying downloader service. Will move to background and stop our Looper.");
-        serviceLooper.quit(); //NOPMD - this is copied from IntentService, no super call needed
+        Utils.debugLog(TAG, "Destroying downloader service. Will move to background and stop our workers.");
+        handler.removeCallbacks(stopSelfIfIdle);
+        for (DownloadTask task : TASKS.values()) {
+            task.cancel();
+        }
+        List<Runnable> dropped = new ArrayList<>(executor.shutdownNow());
+        dropped.addAll(bluetoothExecutor.shutdownNow());
+        TASKS.clear();
+        for (Runnable runnable : dropped) {
+            DownloadTask task = (DownloadTask) runnable;
+            sendCancelledBroadcast(task.intent.getData(), task.canonicalUrl);
+        }
     }
 
     /**
@@ -201,69 +293,170 @@ public class DownloaderService extends Service {
     }
 
     /**
-     * This method is invoked on the worker thread with a request to process.
-     * Only one Intent is processed at a time, but the processing happens on a
-     * worker thread that runs independently from other application logic.
-     * So, if this code takes a long time, it will hold up other requests to
-     * the same DownloaderService, but it will not hold up anything else.
-     * When all requests have been handled, the DownloaderService stops itself,
-     * so you should not ever call {@link #stopSelf}.
+     * This method is invoked on a worker thread with a request to process.
+     * Up to {@link #MAX_PARALLEL_DOWNLOADS} are processed at a time, so if
+     * this code takes a long time, it will hold up other requests to the
+     * same DownloaderService once all workers are busy, but it will not hold
+     * up anything else.  When all requests have been handled, the
+     * DownloaderService stops itself, so you should not ever call
+     * {@link #stopSelf}.
+     * <p/>
+     * The final broadcast is only sent once the download is no longer in
+     * {@link #TASKS}, so that receivers can queue the same URL again, e.g.
+     * to retry using a different mirror.
      * <p/>
      * Downloads are put into subdirectories based on hostname/port of each repo
      * to prevent files with the same names from conflicting.  Each repo enforces
      * unique APK file names on the server side.
      *
-     * @param intent The {@link Intent} passed via {@link
-     *               android.content.Context#startService(Intent)}.
      * @see org.fdroid.fdroid.IndexV1Updater#update()
      */
-    private void handleIntent(Intent intent) {
+    private void handleIntent(DownloadTask task) {
+        final Intent intent = task.intent;
         final Uri uri = intent.getData();
         final long repoId = intent.getLongExtra(Downloader.EXTRA_REPO_ID, 0);
-        final Uri canonicalUrl = Uri.parse(intent.getStringExtra(Downloader.EXTRA_CANONICAL_URL));
+        final Uri canonicalUrl = Uri.parse(task.canonicalUrl);
         final SanitizedFile localFile = ApkCache.getApkDownloadPath(this, canonicalUrl);
         sendBroadcast(uri, Downloader.ACTION_STARTED, localFile, repoId, canonicalUrl);
 
+        String action;
+        String errorMessage = null;
+        Downloader downloader = null;
         try {
-            activeCanonicalUrl = canonicalUrl.toString();
-            downloader = DownloaderFactory.create(this, uri, localFile);
-            downloader.setListener(new ProgressListener() {
-                @Override
-                public void onProgress(long bytesRead, long totalBytes) {
-                    Intent intent = new Intent(Downloader.ACTION_PROGRESS);
-                    intent.setData(canonicalUrl);
-                    intent.putExtra(Downloader.EXTRA_BYTES_READ, bytesRead);
-                    intent.putExtra(Downloader.EXTRA_TOTAL_BYTES, totalBytes);
-                    localBroadcastManager.sendBroadcast(intent);
-                }
-            });
-            downloader.setTimeout(timeout);
-            downloader.download();
-            if (downloader.isNotFound()) {
-                sendBroadcast(uri, Downloader.ACTION_INTERRUPTED, localFile, getString(R.string.download_404),
-                        repoId, canonicalUrl);
+            if (intent.hasExtra(EXTRA_DELTA_FILE) && downloadDelta(task, uri, localFile, canonicalUrl)) {
+                action = Downloader.ACTION_COMPLETE;
             } else {
-                sendBroadcast(uri, Downloader.ACTION_COMPLETE, localFile, repoId, canonicalUrl);
+                downloader = DownloaderFactory.create(this, uri, localFile);
+                task.downloader = downloader;
+                if (task.cancelled) {
+                    throw new InterruptedException();
+                }
+                downloader.setListener(createProgressListener(canonicalUrl));
+                downloader.setTimeout(timeout);
+                downloader.download();
+                if (downloader.isNotFound()) {
+                    action = Downloader.ACTION_INTERRUPTED;
+                    errorMessage = getString(R.string.download_404);
+                } else {
+                    action = Downloader.ACTION_COMPLETE;
+                }
             }
         } catch (InterruptedException e) {
-            sendBroadcast(uri, Downloader.ACTION_INTERRUPTED, localFile, repoId, canonicalUrl);
+            action = Downloader.ACTION_INTERRUPTED;
         } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
                 | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
                 | ProtocolException | UnknownHostException e) {
             // if the above list of exceptions changes, also change it in IndexV1Updater.update()
+            // and in downloadDelta()
             Log.e(TAG, "CONNECTION_FAILED: " + e.getLocalizedMessage());
-            sendBroadcast(uri, Downloader.ACTION_CONNECTION_FAILED, localFile, repoId, canonicalUrl);
+            action = Downloader.ACTION_CONNECTION_FAILED;
         } catch (IOException e) {
             e.printStackTrace();
-            sendBroadcast(uri, Downloader.ACTION_INTERRUPTED, localFile,
-                    e.getLocalizedMessage(), repoId, canonicalUrl);
+            action = Downloader.ACTION_INTERRUPTED;
+            errorMessage = e.getLocalizedMessage();
         } finally {
             if (downloader != null) {
                 downloader.close();
             }
+            TASKS.remove(task.canonicalUrl, task);
+        }
+        if (localFile.exists()) {
+            ApkCacheIndex.getInstance(this).recordUse(localFile);
         }
-        downloader = null;
-        activeCanonicalUrl = null;
+        sendBroadcast(uri, action, localFile, errorMessage, repoId, canonicalUrl);
+    }
+
+    /**
+     * Download the delta from the installed version, from the same place as
+     * the APK, and rebuild the APK from it.  If anything but the connection
+     * goes wrong here, the whole APK gets downloaded instead.  Connection
+     * errors are thrown, so that the download is tried again from another
+     * mirror, like when downloading the whole APK.
+     *
+     * @return whether {@code localFile} is now the APK, matching its hash
+     * @see DeltaPatcher
+     */
+    private boolean downloadDelta(DownloadTask task, Uri uri, File localFile, Uri canonicalUrl)
+            throws InterruptedException, IOException {
+        Intent intent = task.intent;
+        String deltaFile = intent.getStringExtra(EXTRA_DELTA_FILE);
+        File base = new File(intent.getStringExtra(EXTRA_DELTA_BASE));
+        String hash = intent.getStringExtra(EXTRA_HASH);
+        String hashType = intent.getStringExtra(EXTRA_HASH_TYPE);
+        long maxSize = intent.getLongExtra(EXTRA_SIZE, 0);
+        String path = uri.getPath();
+        if (path == null || hash == null || hashType == null || !base.canRead()) {
+            return false;
+        }
+        Uri deltaUri = uri.buildUpon().path(path.substring(0, path.lastIndexOf('/') + 1) + deltaFile).build();
+
+        File delta = null;
+        File tmp = new File(localFile.getPath() + ".tmp");
+        Downloader downloader = null;
+        try {
+            // "dl-" files are cleaned up by CleanCacheWorker if this gets killed
+            delta = File.createTempFile("dl-", ".delta", getCacheDir());
+            downloader = DownloaderFactory.create(this, deltaUri, delta);
+            task.downloader = downloader;
+            if (task.cancelled) {
+                throw new InterruptedException();
+            }
+            downloader.setListener(createProgressListener(canonicalUrl));
+            downloader.setTimeout(timeout);
+            downloader.download();
+            if (downloader.isNotFound()) {
+                Utils.debugLog(TAG, deltaUri + " not found, downloading " + uri);
+                return false;
+            }
+
+            MessageDigest digest = MessageDigest.getInstance(hashType);
+            OutputStream output = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), digest);
+            try {
+                DeltaPatcher.apply(base, delta, output, maxSize > 0 ? maxSize : Integer.MAX_VALUE);
+            } finally {
+                output.close();
+            }
+            if (!hash.equalsIgnoreCase(Utils.toHexString(digest.digest()))) {
+                Log.w(TAG, "APK rebuilt from " + deltaUri + " does not match its hash, downloading " + uri);
+                return false;
+            }
+            if (task.cancelled) {
+                throw new InterruptedException();
+            }
+            if (!tmp.renameTo(localFile)) {
+                return false;
+            }
+            Utils.debugLog(TAG, "Rebuilt " + localFile + " from a " + Utils.getFriendlySize(delta.length())
+                    + " delta instead of downloading " + Utils.getFriendlySize(localFile.length()));
+            return true;
+        } catch (ConnectException | HttpRetryException | NoRouteToHostException | SocketTimeoutException
+                | SSLHandshakeException | SSLKeyException | SSLPeerUnverifiedException | SSLProtocolException
+                | ProtocolException | UnknownHostException e) {
+            // the same list as in handleIntent(), which reports these as ACTION_CONNECTION_FAILED
+            throw e;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.w(TAG, "Could not use " + deltaUri + ", downloading " + uri + ": " + e.getLocalizedMessage());
+            return false;
+        } finally {
+            if (downloader != null) {
+                downloader.close();
+            }
+            FileUtils.deleteQuietly(delta);
+            FileUtils.deleteQuietly(tmp);
+        }
+    }
+
+    private ProgressListener createProgressListener(final Uri canonicalUrl) {
+        return new ProgressListener() {
+            @Override
+            public void onProgress(long bytesRead, long totalBytes) {
+                Intent intent = new Intent(Downloader.ACTION_PROGRESS);
+                intent.setData(canonicalUrl);
+                intent.putExtra(Downloader.EXTRA_BYTES_READ, bytesRead);
+                intent.putExtra(Downloader.EXTRA_TOTAL_BYTES, totalBytes);
+                localBroadcastManager.sendBroadcast(intent);
+            }
+        };
     }
 
     private void sendCancelledBroadcast(Uri uri, String canonicalUrl) {
@@ -308,12 +501,43 @@ public class DownloaderService extends Service {
         }
         Utils.debugLog(TAG, "Queue download " + canonicalUrl.hashCode() + "/" + canonicalUrl
                 + " using " + mirrorUrl);
+        context.startService(createQueueIntent(context, mirrorUrl, repoId, canonicalUrl));
+    }
+
+    /**
+     * Like {@link #queueUsingRandomMirror(Context, long, String)}, but first try
+     * to rebuild the APK from {@code deltaFile}, which is next to the APK in
+     * the repo, and the installed APK it was made from.  If that does not
+     * give an APK that matches {@code apk}'s hash, the APK is downloaded as usual.
+     *
+     * @param deltaFile the file name from {@link Apk#getDeltaFile(int)}
+     * @param base      the installed APK that {@code deltaFile} applies to
+     */
+    public static void queueDelta(Context context, Apk apk, String deltaFile, File base) {
+        String canonicalUrl = apk.getCanonicalUrl();
+        String mirrorUrl = FDroidApp.switchUrlToNewMirror(canonicalUrl,
+                RepoProvider.Helper.findById(context, apk.repoId));
+        if (TextUtils.isEmpty(mirrorUrl)) {
+            return;
+        }
+        Utils.debugLog(TAG, "Queue download " + canonicalUrl.hashCode() + "/" + canonicalUrl
+                + " using " + deltaFile + " from " + mirrorUrl);
+        Intent intent = createQueueIntent(context, mirrorUrl, apk.repoId, canonicalUrl);
+        intent.putExtra(EXTRA_DELTA_FILE, deltaFile);
+        intent.putExtra(EXTRA_DELTA_BASE, base.getAbsolutePath());
+        intent.putExtra(EXTRA_HASH, apk.hash);
+        intent.putExtra(EXTRA_HASH_TYPE, apk.hashType);
+        intent.putExtra(EXTRA_SIZE, (long) apk.size);
+        context.startService(intent);
+    }
+
+    private static Intent createQueueIntent(Context context, String mirrorUrl, long repoId, String canonicalUrl) {
         Intent intent = new Intent(context, DownloaderService.class);
         intent.setAction(ACTION_QUEUE);
         intent.setData(Uri.parse(mirrorUrl));
         intent.putExtra(Downloader.EXTRA_REPO_ID, repoId);
         intent.putExtra(Downloader.EXTRA_CANONICAL_URL, canonicalUrl);
-        context.startService(intent);
+        return intent;
     }
 
     /**
@@ -375,17 +599,7 @@ public class DownloaderService extends Service {
         if (TextUtils.isEmpty(canonicalUrl)) { //NOPMD - suggests unreadable format
             return false;
         }
-        if (serviceHandler == null) {
-            return false; // this service is not even running
-        }
-        return serviceHandler.hasMessages(canonicalUrl.hashCode()) || isActive(canonicalUrl);
-    }
-
-    /**
-     * Check if a URL is actively being downloaded.
-     */
-    private static boolean isActive(String downloadUrl) {
-        return downloader != null && TextUtils.equals(downloadUrl, activeCanonicalUrl);
+        return TASKS.containsKey(canonicalUrl);
     }
 
     public static void setTimeout(int ms) {
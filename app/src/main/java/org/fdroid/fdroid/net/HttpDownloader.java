@@ -36,11 +36,13 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 
+import androidx.annotation.Nullable;
 import info.guardianproject.netcipher.NetCipher;
 
 /**
@@ -182,6 +184,41 @@ public class HttpDownloader extends Downloader {
         cacheTag = connection.getHeaderField(HEADER_FIELD_ETAG);
     }
 
+    /**
+     * Send {@code body} in a {@code POST}, and download the response if it is
+     * a {@code 200}.  There is no {@code HEAD} check and no resuming, since
+     * the response is made for this one request.  This goes through
+     * {@link #getConnection()}, so it uses the same proxy and headers as
+     * {@link #download()}.
+     *
+     * @return the {@code Content-Type} of the response, or {@code null} if
+     * it was not a {@code 200} and nothing was downloaded
+     */
+    @Nullable
+    public String post(String contentType, byte[] body) throws IOException, InterruptedException {
+        connection = getConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", contentType);
+        OutputStream outputStream = connection.getOutputStream();
+        try {
+            outputStream.write(body);
+        } finally {
+            outputStream.close();
+        }
+        int statusCode = connection.getResponseCode();
+        if (statusCode != HttpURLConnection.HTTP_OK) {
+            Utils.debugLog(TAG, "POST to " + urlString + " returned " + statusCode + ": "
+                    + connection.getResponseMessage());
+            return null;
+        }
+        fileFullSize = connection.getContentLength();
+        newFileAvailableOnServer = true;
+        downloadFromStream(false);
+        return connection.getContentType();
+    }
+
     public static boolean isSwapUrl(Uri uri) {
         return isSwapUrl(uri.getHost(), uri.getPort());
     }
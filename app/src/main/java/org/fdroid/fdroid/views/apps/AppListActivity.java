@@ -23,7 +23,6 @@ package org.fdroid.fdroid.views.apps;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
@@ -53,16 +52,13 @@ import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
 import androidx.core.graphics.drawable.DrawableCompat;
-import androidx.loader.app.LoaderManager;
-import androidx.loader.content.CursorLoader;
-import androidx.loader.content.Loader;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 /**
  * Provides scrollable listing of apps for search and category views.
  */
-public class AppListActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor>,
+public class AppListActivity extends AppCompatActivity implements AppListPager.Listener,
         CategoryTextWatcher.SearchTermsChangedListener {
 
     public static final String TAG = "AppListActivity";
@@ -149,7 +145,7 @@ public class AppListActivity extends AppCompatActivity implements LoaderManager.
                         break;
                 }
                 putSavedSearchSettings(getApplicationContext(), SORT_CLAUSE_KEY, sortClauseSelected);
-                getSupportLoaderManager().restartLoader(0, null, AppListActivity.this);
+                loadApps();
                 appView.scrollToPosition(0);
             }
         });
@@ -206,6 +202,12 @@ public class AppListActivity extends AppCompatActivity implements LoaderManager.
                 .onlyRetrieveFromCache(!Preferences.get().isBackgroundDownloadAllowed()));
     }
 
+    @Override
+    protected void onDestroy() {
+        appAdapter.setPager(null);
+        super.onDestroy();
+    }
+
     private void parseIntentForSearchQuery() {
         Intent intent = getIntent();
         category = intent.hasExtra(EXTRA_CATEGORY) ? intent.getStringExtra(EXTRA_CATEGORY) : null;
@@ -220,7 +222,7 @@ public class AppListActivity extends AppCompatActivity implements LoaderManager.
             appView.requestFocus();
         }
 
-        getSupportLoaderManager().initLoader(0, null, this);
+        loadApps();
     }
 
     private CharSequence getSearchText(@Nullable String category, @Nullable String searchTerms) {
@@ -240,25 +242,29 @@ public class AppListActivity extends AppCompatActivity implements LoaderManager.
         hiddenAppNotice.setVisibility(show ? View.VISIBLE : View.GONE);
     }
 
-    @NonNull
-    @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        return new CursorLoader(
+    /**
+     * Start paging in the apps for the current search, replacing whatever was
+     * shown before.  The list only gets shown once the total count is known.
+     *
+     * @see AppListPager
+     */
+    private void loadApps() {
+        setShowHiddenAppsNotice(false);
+        appAdapter.setHasHiddenAppsCallback(() -> setShowHiddenAppsNotice(true));
+        appAdapter.setPager(new AppListPager(
                 this,
                 AppProvider.getSearchUri(searchTerms, category),
                 AppMetadataTable.Cols.ALL,
                 null,
-                null,
-                getSortOrder()
-        );
+                getSortOrder(),
+                this
+        ));
     }
 
     @Override
-    public void onLoadFinished(@NonNull Loader<Cursor> loader, Cursor cursor) {
-        setShowHiddenAppsNotice(false);
-        appAdapter.setHasHiddenAppsCallback(() -> setShowHiddenAppsNotice(true));
-        appAdapter.setAppCursor(cursor);
-        if (cursor.getCount() > 0) {
+    public void onCountChanged(int count) {
+        appAdapter.notifyDataSetChanged();
+        if (count > 0) {
             emptyState.setVisibility(View.GONE);
             appView.setVisibility(View.VISIBLE);
         } else {
@@ -268,8 +274,8 @@ public class AppListActivity extends AppCompatActivity implements LoaderManager.
     }
 
     @Override
-    public void onLoaderReset(@NonNull Loader<Cursor> loader) {
-        appAdapter.setAppCursor(null);
+    public void onPageLoaded(int positionStart, int itemCount) {
+        appAdapter.notifyItemRangeChanged(positionStart, itemCount);
     }
 
     @Override
@@ -277,7 +283,7 @@ public class AppListActivity extends AppCompatActivity implements LoaderManager.
         this.category = category;
         this.searchTerms = searchTerms;
         appView.scrollToPosition(0);
-        getSupportLoaderManager().restartLoader(0, null, this);
+        loadApps();
         if (TextUtils.isEmpty(searchTerms)) {
             removeSavedSearchSettings(this, SEARCH_TERMS_KEY);
         } else {
@@ -1,30 +1,37 @@
 package org.fdroid.fdroid.views.apps;
 
-import android.database.Cursor;
 import android.view.View;
 import android.view.ViewGroup;
 
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.data.App;
-import org.fdroid.fdroid.data.Schema;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.RecyclerView;
 
+/**
+ * Shows the apps provided by an {@link AppListPager}, with placeholder rows
+ * for apps whose page has not been loaded yet.  Since placeholders have no
+ * row ID, this does not use stable IDs, instead the pager reports exactly
+ * which rows changed as pages come in.
+ */
 class AppListAdapter extends RecyclerView.Adapter<StandardAppListItemController> {
 
-    private Cursor cursor;
+    private AppListPager pager;
     private Runnable hasHiddenAppsCallback;
     private final AppCompatActivity activity;
 
     AppListAdapter(AppCompatActivity activity) {
         this.activity = activity;
-        setHasStableIds(true);
     }
 
-    public void setAppCursor(Cursor cursor) {
-        this.cursor = cursor;
+    public void setPager(@Nullable AppListPager pager) {
+        if (this.pager != null) {
+            this.pager.close();
+        }
+        this.pager = pager;
         notifyDataSetChanged();
     }
 
@@ -41,8 +48,18 @@ class AppListAdapter extends RecyclerView.Adapter<StandardAppListItemController>
 
     @Override
     public void onBindViewHolder(@NonNull StandardAppListItemController holder, int position) {
-        cursor.moveToPosition(position);
-        final App app = new App(cursor);
+        final App app = pager.getApp(position);
+        if (app == null) {
+            holder.bindPlaceholder();
+            holder.itemView.setVisibility(View.VISIBLE);
+            holder.itemView.setLayoutParams(
+                    new RecyclerView.LayoutParams(
+                            ViewGroup.LayoutParams.MATCH_PARENT,
+                            ViewGroup.LayoutParams.WRAP_CONTENT
+                    )
+            );
+            return;
+        }
         holder.bindModel(app);
 
         if (app.isDisabledByAntiFeatures(activity)) {
@@ -68,14 +85,8 @@ class AppListAdapter extends RecyclerView.Adapter<StandardAppListItemController>
         }
     }
 
-    @Override
-    public long getItemId(int position) {
-        cursor.moveToPosition(position);
-        return cursor.getLong(cursor.getColumnIndex(Schema.AppMetadataTable.Cols.ROW_ID));
-    }
-
     @Override
     public int getItemCount() {
-        return cursor == null ? 0 : cursor.getCount();
+        return pager == null ? 0 : Math.max(0, pager.getCount());
     }
 }
@@ -20,6 +20,8 @@ import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import com.bumptech.glide.Glide;
+
 import org.fdroid.fdroid.AppUpdateStatusManager;
 import org.fdroid.fdroid.AppUpdateStatusManager.AppUpdateStatus;
 import org.fdroid.fdroid.Preferences;
@@ -213,6 +215,23 @@ public abstract class AppListItemController extends RecyclerView.ViewHolder {
         broadcastManager.registerReceiver(onStatusChanged, intentFilter);
     }
 
+    /**
+     * Show an empty row while the {@link App} for this position is still being
+     * loaded, e.g. by {@link AppListPager}.
+     */
+    public void bindPlaceholder() {
+        currentApp = null;
+        currentStatus = null;
+        name.setText(null);
+        Glide.with(activity).clear(icon);
+        for (View view : new View[]{installButton, status, secondaryStatus, progressBar,
+                cancelButton, actionButton, secondaryButton, checkBox}) {
+            if (view != null) {
+                view.setVisibility(View.GONE);
+            }
+        }
+    }
+
     /**
      * To be overridden if required
      */
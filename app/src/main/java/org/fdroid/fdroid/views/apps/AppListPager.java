@@ -0,0 +1,330 @@
+package org.fdroid.fdroid.views.apps;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.disposables.CompositeDisposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+/**
+ * Loads a list of apps from {@link AppProvider} one page at a time, so that
+ * huge result sets, e.g. a broad search across several big repos, do not need
+ * to be read in full before anything is shown.
+ * <p>
+ * The total count is fetched first with a cheap {@code COUNT} query, so the
+ * list can be sized right away and show placeholders for rows that are not
+ * loaded yet.  Pages of {@link #PAGE_SIZE} rows are then loaded on demand as
+ * they are scrolled to, along with the next page once the user gets within
+ * {@link #PREFETCH_DISTANCE} rows of it.  Only {@link #MAX_CACHED_PAGES} pages
+ * are kept in memory at once, so memory use stays flat however long the list.
+ * <p>
+ * When the data changes, only the count and the pages that are currently
+ * cached get reloaded, rather than the whole query.  They are all reloaded
+ * together in the background, and the old pages keep being shown until the
+ * new ones are swapped in, so the visible rows never flash to placeholders.
+ * <p>
+ * The search ranking used in {@link AppListActivity} is built from
+ * {@code CASE} expressions over several columns, which rules out keyset
+ * pagination, so pages are fetched by {@code LIMIT}/{@code OFFSET}.
+ */
+public class AppListPager {
+    private static final String TAG = "AppListPager";
+
+    private static final int PAGE_SIZE = 50;
+    private static final int PREFETCH_DISTANCE = 20;
+    private static final int MAX_CACHED_PAGES = 6;
+
+    /**
+     * Changes often come in bursts, e.g. while installed apps are being synced,
+     * so wait for things to settle before reloading.
+     */
+    private static final long RELOAD_DELAY_MILLIS = 500;
+
+    public interface Listener {
+        /**
+         * The total number of apps is known, or has changed.
+         */
+        void onCountChanged(int count);
+
+        /**
+         * The apps from {@code positionStart} are now available.
+         */
+        void onPageLoaded(int positionStart, int itemCount);
+    }
+
+    private final Context context;
+    private final Uri uri;
+    private final String[] projection;
+    private final String selection;
+    private final String sortOrder;
+    private final Listener listener;
+
+    private final CompositeDisposable disposables = new CompositeDisposable();
+    private final Set<Integer> loadingPages = new HashSet<>();
+    private final LruCache<Integer, Cursor> pages = new LruCache<Integer, Cursor>(MAX_CACHED_PAGES) {
+        @Override
+        protected void entryRemoved(boolean evicted, Integer page, Cursor oldValue, Cursor newValue) {
+            oldValue.close();
+        }
+    };
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable reloadRunnable = this::reload;
+    private final ContentObserver contentObserver = new ContentObserver(handler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            handler.removeCallbacks(reloadRunnable);
+            handler.postDelayed(reloadRunnable, RELOAD_DELAY_MILLIS);
+        }
+    };
+
+    private int count = -1;
+    private int generation;
+    private boolean closed;
+
+    public AppListPager(Context context, Uri uri, String[] projection, @Nullable String selection,
+                        String sortOrder, @NonNull Listener listener) {
+        this.context = context.getApplicationContext();
+        this.uri = uri;
+        this.projection = projection;
+        this.selection = selection;
+        this.sortOrder = sortOrder;
+        this.listener = listener;
+        this.context.getContentResolver().registerContentObserver(uri, true, contentObserver);
+        loadCount();
+    }
+
+    /**
+     * @return the total number of apps, or {@code -1} if that is not known yet
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the app at {@code position}, triggering a load of its page if needed.
+     *
+     * @return the {@link App}, or {@code null} if its page is still loading,
+     * in which case a placeholder should be shown.
+     */
+    @Nullable
+    public App getApp(int position) {
+        int page = position / PAGE_SIZE;
+        int nextPage = (position + PREFETCH_DISTANCE) / PAGE_SIZE;
+        if (nextPage != page) {
+            ensurePageLoaded(nextPage);
+        }
+        Cursor cursor = pages.get(page);
+        if (cursor == null || !cursor.moveToPosition(position % PAGE_SIZE)) {
+            ensurePageLoaded(page);
+            return null;
+        }
+        return new App(cursor);
+    }
+
+    /**
+     * Stop loading, stop listening for changes and release all cached pages.
+     */
+    public void close() {
+        closed = true;
+        handler.removeCallbacks(reloadRunnable);
+        context.getContentResolver().unregisterContentObserver(contentObserver);
+        disposables.clear();
+        loadingPages.clear();
+        pages.evictAll();
+    }
+
+    private void reload() {
+        if (closed) {
+            return;
+        }
+        generation++;
+        disposables.clear();
+        loadingPages.clear();
+        final int currentGeneration = generation;
+        final Set<Integer> cachedPages = new HashSet<>(pages.snapshot().keySet());
+        final Loaded<Reload> loaded = new Loaded<>();
+        disposables.add(Single.fromCallable(() -> loaded.set(queryReload(cachedPages)))
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .doOnDispose(loaded::dispose)
+                .subscribe(result -> {
+                    loaded.take();
+                    if (closed || currentGeneration != generation) {
+                        result.close();
+                        return;
+                    }
+                    for (int page : cachedPages) {
+                        if (!result.pages.containsKey(page)) {
+                            pages.remove(page);
+                        }
+                    }
+                    for (Map.Entry<Integer, Cursor> entry : result.pages.entrySet()) {
+                        pages.put(entry.getKey(), entry.getValue());
+                    }
+                    if (result.count != count) {
+                        count = result.count;
+                        listener.onCountChanged(count);
+                    } else {
+                        for (Map.Entry<Integer, Cursor> entry : result.pages.entrySet()) {
+                            listener.onPageLoaded(entry.getKey() * PAGE_SIZE, entry.getValue().getCount());
+                        }
+                    }
+                }, throwable -> Utils.debugLog(TAG, "Could not reload apps", throwable)));
+    }
+
+    private void loadCount() {
+        final int currentGeneration = generation;
+        disposables.add(Single.fromCallable(this::queryCount)
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(result -> {
+                    if (currentGeneration == generation) {
+                        count = result;
+                        listener.onCountChanged(result);
+                    }
+                }, throwable -> Utils.debugLog(TAG, "Could not count apps", throwable)));
+    }
+
+    private void ensurePageLoaded(final int page) {
+        if (closed || page < 0 || (count >= 0 && page * PAGE_SIZE >= count)
+                || pages.get(page) != null || loadingPages.contains(page)) {
+            return;
+        }
+        loadingPages.add(page);
+        final int currentGeneration = generation;
+        final Loaded<Cursor> loaded = new Loaded<>();
+        disposables.add(Single.fromCallable(() -> loaded.set(queryPage(page)))
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .doOnDispose(loaded::dispose)
+                .subscribe(cursor -> {
+                    loaded.take();
+                    if (closed || currentGeneration != generation) {
+                        cursor.close();
+                        return;
+                    }
+                    loadingPages.remove(page);
+                    pages.put(page, cursor);
+                    listener.onPageLoaded(page * PAGE_SIZE, cursor.getCount());
+                }, throwable -> {
+                    loadingPages.remove(page);
+                    Utils.debugLog(TAG, "Could not load page " + page, throwable);
+                }));
+    }
+
+    private int queryCount() {
+        Cursor cursor = context.getContentResolver().query(uri,
+                new String[]{AppMetadataTable.Cols._COUNT}, selection, null, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Query the count and all of {@code cachedPages} in one go, so they can
+     * replace the stale ones all at once.
+     */
+    private Reload queryReload(Set<Integer> cachedPages) {
+        Reload result = new Reload();
+        result.count = queryCount();
+        try {
+            for (int page : cachedPages) {
+                if (page * PAGE_SIZE < result.count) {
+                    result.pages.put(page, queryPage(page));
+                }
+            }
+        } catch (RuntimeException e) {
+            result.close();
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Runs the page query and fills its window here in the background, so
+     * that binding rows on the UI thread never has to hit the database.
+     */
+    private Cursor queryPage(int page) {
+        Uri pageUri = AppProvider.getPageUri(uri, PAGE_SIZE, page * PAGE_SIZE);
+        Cursor cursor = context.getContentResolver().query(pageUri, projection, selection, null, sortOrder);
+        if (cursor == null) {
+            throw new IllegalStateException("Query for " + pageUri + " returned null");
+        }
+        cursor.getCount();
+        return cursor;
+    }
+
+    private static class Reload implements Closeable {
+        int count;
+        final Map<Integer, Cursor> pages = new HashMap<>();
+
+        @Override
+        public void close() {
+            for (Cursor cursor : pages.values()) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Holds what a load queried until the main thread takes it, so that it
+     * still gets closed if the load is disposed before then, e.g. by
+     * {@link #reload()}, whether the query is still running or the result
+     * is waiting to be delivered.
+     */
+    private static final class Loaded<T extends Closeable> {
+        private T value;
+        private boolean disposed;
+
+        /**
+         * Called in the background with the result of the query.
+         */
+        synchronized T set(T value) {
+            if (disposed) {
+                Utils.closeQuietly(value);
+            } else {
+                this.value = value;
+            }
+            return value;
+        }
+
+        /**
+         * Called on the main thread once the result is delivered, which then owns it.
+         */
+        synchronized void take() {
+            value = null;
+        }
+
+        synchronized void dispose() {
+            disposed = true;
+            Utils.closeQuietly(value);
+            value = null;
+        }
+    }
+}
@@ -1,18 +1,19 @@
 package org.fdroid.fdroid.views.categories;
 
-import android.database.Cursor;
 import android.view.ViewGroup;
 
 import org.fdroid.fdroid.R;
 import org.fdroid.fdroid.data.App;
 
+import java.util.List;
+
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.RecyclerView;
 
 class AppPreviewAdapter extends RecyclerView.Adapter<AppCardController> {
 
-    private Cursor cursor;
+    private List<App> apps;
     private final AppCompatActivity activity;
 
     AppPreviewAdapter(AppCompatActivity activity) {
@@ -28,21 +29,20 @@ class AppPreviewAdapter extends RecyclerView.Adapter<AppCardController> {
 
     @Override
     public void onBindViewHolder(@NonNull AppCardController holder, int position) {
-        cursor.moveToPosition(position);
-        holder.bindApp(new App(cursor));
+        holder.bindApp(apps.get(position));
     }
 
     @Override
     public int getItemCount() {
-        return cursor == null ? 0 : cursor.getCount();
+        return apps == null ? 0 : apps.size();
     }
 
-    public void setAppCursor(Cursor cursor) {
-        if (this.cursor == cursor) {
-            //don't notify when the cursor did not change
+    public void setApps(List<App> apps) {
+        if (this.apps == apps) {
+            //don't notify when the apps did not change
             return;
         }
-        this.cursor = cursor;
+        this.apps = apps;
         notifyDataSetChanged();
     }
 }
@@ -3,21 +3,24 @@ package org.fdroid.fdroid.views.categories;
 import android.view.ViewGroup;
 
 import org.fdroid.fdroid.R;
+import org.fdroid.fdroid.data.App;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.loader.app.LoaderManager;
 import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.ListAdapter;
 
 public class CategoryAdapter extends ListAdapter<String, CategoryController> {
 
     private final AppCompatActivity activity;
-    private final LoaderManager loaderManager;
+    private Map<String, CategoryPreviewLoader.Preview> previews;
 
-    public CategoryAdapter(AppCompatActivity activity, LoaderManager loaderManager) {
+    public CategoryAdapter(AppCompatActivity activity) {
         super(new DiffUtil.ItemCallback<String>() {
             @Override
             public boolean areItemsTheSame(String oldItem, String newItem) {
@@ -31,23 +34,40 @@ public class CategoryAdapter extends ListAdapter<String, CategoryController> {
         });
 
         this.activity = activity;
-        this.loaderManager = loaderManager;
     }
 
     @NonNull
     @Override
     public CategoryController onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
-        return new CategoryController(activity, loaderManager, activity.getLayoutInflater()
+        return new CategoryController(activity, activity.getLayoutInflater()
                 .inflate(R.layout.category_item, parent, false));
     }
 
     @Override
     public void onBindViewHolder(@NonNull CategoryController holder, int position) {
-        holder.bindModel(getItem(position));
+        String categoryName = getItem(position);
+        CategoryPreviewLoader.Preview preview = null;
+        if (previews != null) {
+            preview = previews.get(categoryName);
+            if (preview == null) {
+                // none of the apps in this category are shown, e.g. due to anti-features
+                preview = new CategoryPreviewLoader.Preview(Collections.<App>emptyList(), 0);
+            }
+        }
+        holder.bindModel(categoryName, preview);
     }
 
     public void setCategories(@NonNull List<String> unlocalizedCategoryNames) {
         submitList(unlocalizedCategoryNames);
     }
 
+    /**
+     * @param previews the apps to show for each category, or {@code null} while they are loading
+     * @see CategoryPreviewLoader
+     */
+    public void setPreviews(@Nullable Map<String, CategoryPreviewLoader.Preview> previews) {
+        this.previews = previews;
+        notifyItemRangeChanged(0, getItemCount());
+    }
+
 }
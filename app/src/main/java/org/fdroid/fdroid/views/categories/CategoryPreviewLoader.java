@@ -0,0 +1,173 @@
+package org.fdroid.fdroid.views.categories;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.AppProvider;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable.Cols;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.loader.content.AsyncTaskLoader;
+
+/**
+ * Loads the apps to show for every category on the categories overview screen
+ * with a single query, rather than two queries per category as each one is
+ * scrolled into view.  The query returns each app once per category it is in,
+ * sorted by category and then by how suitable the app is to be shown off.
+ * This reads through that once, keeping the first
+ * {@link CategoryController#NUM_OF_APPS_PER_CATEGORY_ON_OVERVIEW} apps and
+ * counting the rest, so the whole tab costs one query.
+ *
+ * @see AppProvider#getTopFromAllCategoriesUri()
+ */
+public class CategoryPreviewLoader extends AsyncTaskLoader<Map<String, CategoryPreviewLoader.Preview>> {
+
+    /**
+     * The apps to show for a single category, along with the total number of
+     * apps in that category.
+     */
+    public static final class Preview {
+        public final List<App> topApps;
+        public final int appCount;
+
+        Preview(List<App> topApps, int appCount) {
+            this.topApps = topApps;
+            this.appCount = appCount;
+        }
+    }
+
+    private final ForceLoadContentObserver observer = new ForceLoadContentObserver();
+    private Map<String, Preview> previews;
+
+    public CategoryPreviewLoader(@NonNull Context context) {
+        super(context);
+        context.getContentResolver().registerContentObserver(AppProvider.getContentUri(), true, observer);
+    }
+
+    /**
+     * This uses a sort similar to the one in
+     * {@link org.fdroid.fdroid.views.main.LatestViewBinder#onCreateLoader(int, android.os.Bundle)}.
+     * The difference is that this does not treat "new" app any differently.
+     */
+    @Nullable
+    @Override
+    public Map<String, Preview> loadInBackground() {
+        final String table = AppMetadataTable.NAME;
+        Cursor cursor = getContext().getContentResolver().query(
+                AppProvider.getTopFromAllCategoriesUri(),
+                new String[]{
+                        Cols.Category.CATEGORY_NAME,
+                        Cols.NAME,
+                        Cols.Package.PACKAGE_NAME,
+                        Cols.SUMMARY,
+                        Cols.ICON_URL,
+                        Cols.ICON,
+                        Cols.REPO_ID,
+                },
+                Utils.getAntifeatureSQLFilter(getContext()),
+                null,
+                Cols.Category.CATEGORY_NAME
+                        + ", " + table + "." + Cols.IS_LOCALIZED + " DESC"
+                        + ", " + table + "." + Cols.NAME + " IS NULL ASC"
+                        + ", CASE WHEN " + table + "." + Cols.ICON + " IS NULL"
+                        + "        AND " + table + "." + Cols.ICON_URL + " IS NULL"
+                        + "        THEN 1 ELSE 0 END"
+                        + ", " + table + "." + Cols.SUMMARY + " IS NULL ASC"
+                        + ", " + table + "." + Cols.DESCRIPTION + " IS NULL ASC"
+                        + ", CASE WHEN " + table + "." + Cols.PHONE_SCREENSHOTS + " IS NULL"
+                        + "        AND " + table + "." + Cols.SEVEN_INCH_SCREENSHOTS + " IS NULL"
+                        + "        AND " + table + "." + Cols.TEN_INCH_SCREENSHOTS + " IS NULL"
+                        + "        AND " + table + "." + Cols.TV_SCREENSHOTS + " IS NULL"
+                        + "        AND " + table + "." + Cols.WEAR_SCREENSHOTS + " IS NULL"
+                        + "        AND " + table + "." + Cols.FEATURE_GRAPHIC + " IS NULL"
+                        + "        AND " + table + "." + Cols.PROMO_GRAPHIC + " IS NULL"
+                        + "        AND " + table + "." + Cols.TV_BANNER + " IS NULL"
+                        + "        THEN 1 ELSE 0 END"
+                        + ", " + table + "." + Cols.LAST_UPDATED + " DESC"
+                        + ", " + table + "." + Cols.ADDED + " ASC"
+        );
+        if (cursor == null) {
+            return Collections.emptyMap();
+        }
+        try {
+            return readPreviews(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Map<String, Preview> readPreviews(Cursor cursor) {
+        Map<String, Preview> result = new HashMap<>();
+        int categoryIndex = cursor.getColumnIndexOrThrow(Cols.Category.CATEGORY_NAME);
+        String category = null;
+        List<App> topApps = new ArrayList<>(CategoryController.NUM_OF_APPS_PER_CATEGORY_ON_OVERVIEW);
+        int appCount = 0;
+        while (cursor.moveToNext()) {
+            if (isLoadInBackgroundCanceled()) {
+                return result;
+            }
+            String rowCategory = cursor.getString(categoryIndex);
+            if (!TextUtils.equals(category, rowCategory)) {
+                if (category != null) {
+                    result.put(category, new Preview(topApps, appCount));
+                }
+                category = rowCategory;
+                topApps = new ArrayList<>(CategoryController.NUM_OF_APPS_PER_CATEGORY_ON_OVERVIEW);
+                appCount = 0;
+            }
+            if (topApps.size() < CategoryController.NUM_OF_APPS_PER_CATEGORY_ON_OVERVIEW) {
+                topApps.add(new App(cursor));
+            }
+            appCount++;
+        }
+        if (category != null) {
+            result.put(category, new Preview(topApps, appCount));
+        }
+        return result;
+    }
+
+    @Override
+    public void deliverResult(@Nullable Map<String, Preview> data) {
+        if (isReset()) {
+            return;
+        }
+        previews = data;
+        if (isStarted()) {
+            super.deliverResult(data);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (previews != null) {
+            deliverResult(previews);
+        }
+        if (takeContentChanged() || previews == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        getContext().getContentResolver().unregisterContentObserver(observer);
+        previews = null;
+    }
+}
@@ -0,0 +1,467 @@
+package org.fdroid.fdroid.work;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
+
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.installer.ApkCache;
+import org.fdroid.fdroid.nearby.LocalRepoManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * Deletes old files from the directories that {@link CleanCacheWorker} looks
+ * after, a little at a time.  It keeps an index of the files it has seen,
+ * with their size and last access, so a directory only needs to be listed
+ * again when its modification time changed, and only files that the index
+ * says are too old get checked again before they are deleted.
+ * <p>
+ * The work is done in slices, each of which stops after a number of file
+ * system operations or a short time, whichever comes first, so the caller
+ * can pause in between and leave the disk to the UI.  The walk and the index
+ * are saved with {@link #save()}, so the next run picks up where the last
+ * one stopped.  The APK cache is not handled here since it has its own
+ * index, {@link org.fdroid.fdroid.installer.ApkCacheIndex}.
+ * <p>
+ * This is not thread-safe, each run of {@link CleanCacheWorker} makes its own.
+ */
+final class CacheJanitor {
+    private static final String TAG = "CacheJanitor";
+
+    private static final String FILE_NAME = "cache-janitor";
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * How many file system operations, e.g. listing a directory or
+     * deleting a file, one slice can do.
+     */
+    @VisibleForTesting
+    static final int SLICE_OPS = 200;
+
+    /**
+     * How long one slice can take, in milliseconds.
+     */
+    private static final long SLICE_MILLIS = 100;
+
+    /**
+     * Some file systems only store modification times to the second or two.
+     */
+    private static final long MTIME_GRANULARITY = 2000;
+
+    enum Category {
+        APKS,
+        INDEX_FILES,
+        INSTALLER_FILES,
+        ICONS,
+    }
+
+    /**
+     * A directory to clean, and how long the files in it are kept after
+     * their last access.  Only the files and directories directly in it
+     * that are {@link #accept(String) accepted} are looked at.
+     */
+    static class Root {
+        final Category category;
+        final File dir;
+        final long maxAgeMillis;
+        final boolean filesOnly;
+
+        Root(Category category, File dir, long maxAgeMillis, boolean filesOnly) {
+            this.category = category;
+            this.dir = dir;
+            this.maxAgeMillis = maxAgeMillis;
+            this.filesOnly = filesOnly;
+        }
+
+        boolean accept(String name) {
+            return true;
+        }
+    }
+
+    private static class Entry {
+        final Category category;
+        final boolean directory;
+        long size;
+        /**
+         * The last access for files, the modification time when it was last
+         * listed for directories.
+         */
+        long time;
+
+        Entry(Category category, boolean directory) {
+            this.category = category;
+            this.directory = directory;
+        }
+    }
+
+    private final Context context;
+    private final File stateFile;
+    private final Map<String, Root> roots = new TreeMap<>();
+    private final EnumMap<Category, Long> maxAges = new EnumMap<>(Category.class);
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private final EnumMap<Category, Long> reclaimed = new EnumMap<>(Category.class);
+    private boolean expiring;
+    private boolean loaded;
+
+    private int ops;
+    private long sliceStart;
+
+    /**
+     * The stray index files and downloader temp files in the cache, the files
+     * that {@link org.fdroid.fdroid.installer.Installer}s stage for installs,
+     * except the nearby swap web root, and the old icon cache.
+     */
+    static CacheJanitor create(final Context context) {
+        final long hour = TimeUnit.HOURS.toMillis(1);
+        final List<String> webRootAssetFiles = Arrays.asList(LocalRepoManager.WEB_ROOT_ASSET_FILES);
+        return new CacheJanitor(context, new File(context.getNoBackupFilesDir(), FILE_NAME),
+                new Root(Category.INDEX_FILES, context.getCacheDir(), hour, false) {
+                    @Override
+                    boolean accept(String name) {
+                        return name.startsWith("index-") || name.startsWith("dl-");
+                    }
+                },
+                new Root(Category.INSTALLER_FILES, context.getFilesDir(), hour, true) {
+                    @Override
+                    boolean accept(String name) {
+                        return !name.endsWith(".html") && !webRootAssetFiles.contains(name);
+                    }
+                },
+                new Root(Category.ICONS, Utils.getImageCacheDir(context), TimeUnit.DAYS.toMillis(365), false));
+    }
+
+    @VisibleForTesting
+    CacheJanitor(Context context, File stateFile, Root... roots) {
+        this.context = context;
+        this.stateFile = stateFile;
+        for (Root root : roots) {
+            if (root.dir != null) {
+                this.roots.put(root.dir.getAbsolutePath(), root);
+                maxAges.put(root.category, root.maxAgeMillis);
+            }
+        }
+    }
+
+    /**
+     * Do the next slice of work: first walk the directories for files that
+     * changed, then delete the files that are too old.
+     *
+     * @return whether a whole pass over all directories is done, the next
+     * call then starts a new one
+     */
+    boolean runSlice() {
+        load();
+        ops = 0;
+        sliceStart = SystemClock.elapsedRealtime();
+        if (pending.isEmpty() && !expiring) {
+            for (Map.Entry<String, Root> root : roots.entrySet()) {
+                if (!entries.containsKey(root.getKey())) {
+                    entries.put(root.getKey(), new Entry(root.getValue().category, true));
+                }
+                pending.add(root.getKey());
+            }
+        }
+        while (!pending.isEmpty()) {
+            if (isSliceOver()) {
+                return false;
+            }
+            scanDir(pending.poll());
+        }
+        expiring = true;
+        if (!expire()) {
+            return false;
+        }
+        expiring = false;
+        return true;
+    }
+
+    /**
+     * @return the bytes deleted from each category since this was created
+     */
+    Map<Category, Long> getReclaimed() {
+        return reclaimed;
+    }
+
+    private boolean isSliceOver() {
+        return ops >= SLICE_OPS || SystemClock.elapsedRealtime() - sliceStart >= SLICE_MILLIS;
+    }
+
+    private void scanDir(String path) {
+        Entry dirEntry = entries.get(path);
+        if (dirEntry == null) {
+            return;
+        }
+        File dir = new File(path);
+        ops++;
+        long modified = dir.lastModified();
+        if (modified == 0) {
+            removeTree(path);
+            return;
+        }
+        if (modified == dirEntry.time) {
+            for (Map.Entry<String, Entry> child : getChildren(path).entrySet()) {
+                if (child.getValue().directory && isDirectChild(path, child.getKey())
+                        && !roots.containsKey(child.getKey())) {
+                    pending.add(child.getKey());
+                }
+            }
+            return;
+        }
+
+        Root root = roots.get(path);
+        ops++;
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        Set<String> seen = new HashSet<>();
+        List<String> subdirs = new ArrayList<>();
+        for (String name : names) {
+            if (root != null && !root.accept(name)) {
+                continue;
+            }
+            String childPath = new File(dir, name).getAbsolutePath();
+            Entry entry = entries.get(childPath);
+            if (entry == null) {
+                if (isSliceOver()) {
+                    // list it again next time, the children seen so far are in the index now
+                    pending.addFirst(path);
+                    return;
+                }
+                ops++;
+                StructStat stat = lstat(childPath);
+                if (stat == null) {
+                    continue;
+                }
+                boolean directory = new File(childPath).isDirectory();
+                if (directory && root != null && root.filesOnly) {
+                    continue;
+                }
+                entry = new Entry(dirEntry.category, directory);
+                entry.size = stat.st_size;
+                entry.time = stat.st_atime * 1000L;
+                entries.put(childPath, entry);
+            }
+            seen.add(childPath);
+            if (entry.directory) {
+                subdirs.add(childPath);
+            }
+        }
+        pending.addAll(subdirs);
+        List<String> gone = new ArrayList<>();
+        for (String childPath : getChildren(path).keySet()) {
+            if (isDirectChild(path, childPath) && !seen.contains(childPath) && !roots.containsKey(childPath)) {
+                gone.add(childPath);
+            }
+        }
+        for (String childPath : gone) {
+            removeTree(childPath);
+        }
+        if (modified < System.currentTimeMillis() - MTIME_GRANULARITY) {
+            // otherwise a file added in the same tick would not change it
+            dirEntry.time = modified;
+        }
+    }
+
+    /**
+     * Delete the files whose last access in the index is too long ago, after
+     * checking that they were not used since.
+     *
+     * @return whether all of them were done
+     */
+    private boolean expire() {
+        long now = System.currentTimeMillis();
+        Set<File> emptied = new HashSet<>();
+        boolean done = true;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> mapEntry = iterator.next();
+            Entry entry = mapEntry.getValue();
+            if (entry.directory) {
+                continue;
+            }
+            Long maxAge = maxAges.get(entry.category);
+            if (maxAge == null) {
+                continue;
+            }
+            long olderThan = now - maxAge;
+            if (entry.time >= olderThan) {
+                continue;
+            }
+            if (isSliceOver()) {
+                done = false;
+                break;
+            }
+            ops++;
+            StructStat stat = lstat(mapEntry.getKey());
+            if (stat != null) {
+                entry.size = stat.st_size;
+                entry.time = stat.st_atime * 1000L;
+                if (entry.time >= olderThan) {
+                    continue;
+                }
+            }
+            File file = new File(mapEntry.getKey());
+            if (entry.category == Category.INSTALLER_FILES && ApkCache.isLeased(context, file)) {
+                continue;
+            }
+            ops++;
+            boolean deleted = file.delete();
+            if (deleted || !file.exists()) {
+                iterator.remove();
+                emptied.add(file.getParentFile());
+            }
+            if (deleted) {
+                addReclaimed(entry.category, entry.size);
+                Utils.debugLog(TAG, "Deleted file: " + file);
+            }
+        }
+        for (File dir : emptied) {
+            // only succeeds if the dir is now empty, the roots are always kept
+            if (!roots.containsKey(dir.getAbsolutePath()) && dir.delete()) {
+                ops++;
+                entries.remove(dir.getAbsolutePath());
+            }
+        }
+        return done;
+    }
+
+    private void addReclaimed(Category category, long bytes) {
+        Long total = reclaimed.get(category);
+        reclaimed.put(category, total == null ? bytes : total + bytes);
+    }
+
+    private SortedMap<String, Entry> getChildren(String path) {
+        // '0' is the character after '/', so this is everything under path
+        return entries.subMap(path + File.separator, path + '0');
+    }
+
+    private static boolean isDirectChild(String parent, String path) {
+        return path.indexOf(File.separatorChar, parent.length() + 1) < 0;
+    }
+
+    private void removeTree(String path) {
+        entries.remove(path);
+        getChildren(path).clear();
+    }
+
+    private static StructStat lstat(String path) {
+        try {
+            return Os.lstat(path);
+        } catch (ErrnoException e) {
+            Utils.debugLog(TAG, "Could not stat " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            if (input.readInt() != FILE_VERSION) {
+                return;
+            }
+            expiring = input.readBoolean();
+            int pendingCount = input.readInt();
+            for (int i = 0; i < pendingCount; i++) {
+                pending.add(input.readUTF());
+            }
+            int count = input.readInt();
+            Category[] categories = Category.values();
+            for (int i = 0; i < count; i++) {
+                String path = input.readUTF();
+                Entry entry = new Entry(categories[input.readByte()], input.readBoolean());
+                entry.size = input.readLong();
+                entry.time = input.readLong();
+                entries.put(path, entry);
+            }
+        } catch (FileNotFoundException e) {
+            // first run, start with an empty index
+        } catch (EOFException | ArrayIndexOutOfBoundsException e) {
+            Log.w(TAG, "Broken cache janitor index, starting over");
+            reset();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read cache janitor index", e);
+            reset();
+        } finally {
+            Utils.closeQuietly(input);
+        }
+    }
+
+    private void reset() {
+        expiring = false;
+        pending.clear();
+        entries.clear();
+    }
+
+    /**
+     * Write to a temp file and then rename it into place so that a crash while
+     * saving cannot leave a half-written index behind.
+     */
+    void save() {
+        if (!loaded) {
+            return;
+        }
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            output.writeInt(FILE_VERSION);
+            output.writeBoolean(expiring);
+            output.writeInt(pending.size());
+            for (String path : pending) {
+                output.writeUTF(path);
+            }
+            output.writeInt(entries.size());
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                output.writeUTF(mapEntry.getKey());
+                output.writeByte(entry.category.ordinal());
+                output.writeBoolean(entry.directory);
+                output.writeLong(entry.size);
+                output.writeLong(entry.time);
+            }
+            output.close();
+            output = null;
+            if (!tmp.renameTo(stateFile)) {
+                Log.e(TAG, "Could not move " + tmp + " to " + stateFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write cache janitor index", e);
+        } finally {
+            Utils.closeQuietly(output);
+        }
+    }
+}
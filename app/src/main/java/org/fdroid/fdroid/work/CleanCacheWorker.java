@@ -3,24 +3,20 @@ package org.fdroid.fdroid.work;
 import android.content.Context;
 import android.os.Build;
 import android.os.Process;
-import android.system.ErrnoException;
-import android.system.Os;
-import android.system.StructStat;
+import android.os.SystemClock;
 
-import org.apache.commons.io.FileUtils;
 import org.fdroid.fdroid.Preferences;
 import org.fdroid.fdroid.Utils;
 import org.fdroid.fdroid.installer.ApkCache;
-import org.fdroid.fdroid.nearby.LocalRepoManager;
+import org.fdroid.fdroid.installer.ApkCacheIndex;
 
 import java.io.File;
-import java.util.Arrays;
-import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.RequiresApi;
 import androidx.work.Constraints;
+import androidx.work.Data;
 import androidx.work.ExistingPeriodicWorkPolicy;
 import androidx.work.ExistingWorkPolicy;
 import androidx.work.OneTimeWorkRequest;
@@ -44,6 +40,18 @@ import androidx.work.WorkerParameters;
 public class CleanCacheWorker extends Worker {
     public static final String TAG = "CleanCacheWorker";
 
+    public static final String KEY_RECLAIMED_PREFIX = "reclaimed_";
+
+    /**
+     * How long one run can spend on {@link CacheJanitor} slices.
+     */
+    private static final long RUN_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * How long to leave the disk to others between slices.
+     */
+    private static final long PAUSE_MILLIS = 250;
+
     public CleanCacheWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
         super(context, workerParams);
     }
@@ -76,9 +84,9 @@ public class CleanCacheWorker extends Worker {
     }
 
     /**
-     * Force a cache cleanup.  Since {@link #deleteOldInstallerFiles(Context)}
-     * only deletes files older than an hour, any ongoing APK install processes
-     * should not have their APKs are deleted out from under them.
+     * Force a cache cleanup.  Since {@link CacheJanitor} only deletes the
+     * installer files that are older than an hour and not leased, any ongoing
+     * APK install processes should not have their APKs deleted out from under them.
      */
     public static void force(@NonNull final Context context) {
         OneTimeWorkRequest cleanCache = new OneTimeWorkRequest.Builder(CleanCacheWorker.class).build();
@@ -87,165 +95,65 @@ public class CleanCacheWorker extends Worker {
         Utils.debugLog(TAG, "Enqueued forced run for cleaning the cache.");
     }
 
+    /**
+     * Runs {@link CacheJanitor} slices until it is done, or this has used up
+     * its time, then the next run continues where this one stopped.  The
+     * bytes reclaimed from each {@link CacheJanitor.Category} are logged and
+     * returned in the output data, e.g. as {@code reclaimed_ICONS}.
+     */
     @NonNull
     @Override
     public Result doWork() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        CacheJanitor janitor = null;
         try {
             final Context context = getApplicationContext();
-            deleteExpiredApksFromCache(context);
-            deleteStrayIndexFiles(context);
-            deleteOldInstallerFiles(context);
-            deleteOldIcons(context);
-            return Result.success();
-        } catch (Exception e) {
-            return Result.failure();
-        }
-    }
-
-    /**
-     * All downloaded APKs will be cached for a certain amount of time, which is
-     * specified by the user in the "Keep Cache Time" preference.  This removes
-     * any APK in the cache that is older than that preference specifies.
-     */
-    static void deleteExpiredApksFromCache(@NonNull Context context) {
-        File cacheDir = ApkCache.getApkCacheDir(context);
-        clearOldFiles(cacheDir, Preferences.get().getKeepCacheTime());
-    }
-
-    /**
-     * {@link org.fdroid.fdroid.installer.Installer} instances copy the APK into
-     * a safe place before installing.  This only deletes files older than an
-     * hour to avoid deleting APKs while they are still being installed.  This
-     * also avoids deleting the nearby swap repo files since that might be
-     * actively in use.
-     */
-    static void deleteOldInstallerFiles(@NonNull Context context) {
-        File filesDir = context.getFilesDir();
-        if (filesDir == null) {
-            Utils.debugLog(TAG, "The files directory doesn't exist.");
-            return;
-        }
-
-        final File[] files = filesDir.listFiles();
-        if (files == null) {
-            Utils.debugLog(TAG, "The files directory doesn't have any files.");
-            return;
-        }
-
-        final List<String> webRootAssetFiles = Arrays.asList(LocalRepoManager.WEB_ROOT_ASSET_FILES);
-        for (File f : files) {
-            if (f.isFile() && !f.getName().endsWith(".html") && !webRootAssetFiles.contains(f.getName())) {
-                clearOldFiles(f, TimeUnit.HOURS.toMillis(1));
+            ApkCache.deleteExpiredLeases(context);
+            long apkBytes = deleteExpiredApksFromCache(context);
+
+            janitor = CacheJanitor.create(context);
+            long deadline = SystemClock.elapsedRealtime() + RUN_MILLIS;
+            while (!janitor.runSlice()) {
+                if (isStopped() || SystemClock.elapsedRealtime() > deadline) {
+                    Utils.debugLog(TAG, "Out of time, continuing on the next run.");
+                    break;
+                }
+                Thread.sleep(PAUSE_MILLIS);
             }
-        }
-    }
-
-    /**
-     * Delete index files which were downloaded, but not removed (e.g. due to F-Droid being
-     * force closed during processing of the file, before getting a chance to delete). This
-     * may include both "index-*-downloaded" and "index-*-extracted.xml" files.
-     * <p>
-     * Note that if the SD card is not ready, then the cache directory will probably not be
-     * available. In this situation no files will be deleted (and thus they may still exist
-     * after the SD card becomes available).
-     * <p>
-     * This also deletes temp files that are created by
-     * {@link org.fdroid.fdroid.net.DownloaderFactory#create(Context, String)}, e.g. "dl-*"
-     */
-    static void deleteStrayIndexFiles(@NonNull Context context) {
-        File cacheDir = context.getCacheDir();
-        if (cacheDir == null) {
-            Utils.debugLog(TAG, "The cache directory doesn't exist.");
-            return;
-        }
-
-        final File[] files = cacheDir.listFiles();
-        if (files == null) {
-            Utils.debugLog(TAG, "The cache directory doesn't have files.");
-            return;
-        }
 
-        for (File f : files) {
-            if (f.getName().startsWith("index-")) {
-                clearOldFiles(f, TimeUnit.HOURS.toMillis(1));
+            Map<CacheJanitor.Category, Long> reclaimed = janitor.getReclaimed();
+            reclaimed.put(CacheJanitor.Category.APKS, apkBytes);
+            Data.Builder output = new Data.Builder();
+            for (Map.Entry<CacheJanitor.Category, Long> entry : reclaimed.entrySet()) {
+                output.putLong(KEY_RECLAIMED_PREFIX + entry.getKey().name(), entry.getValue());
+                Utils.debugLog(TAG, "Reclaimed " + Utils.getFriendlySize(entry.getValue())
+                        + " from " + entry.getKey());
             }
-            if (f.getName().startsWith("dl-")) {
-                clearOldFiles(f, TimeUnit.HOURS.toMillis(1));
+            return Result.success(output.build());
+        } catch (Exception e) {
+            return Result.failure();
+        } finally {
+            if (janitor != null) {
+                janitor.save();
             }
         }
     }
 
     /**
-     * Delete cached icons that have not been accessed in over a year.
-     */
-    static void deleteOldIcons(@NonNull Context context) {
-        clearOldFiles(Utils.getImageCacheDir(context), TimeUnit.DAYS.toMillis(365));
-    }
-
-    /**
-     * Recursively delete files in {@code f} that were last used
-     * {@code millisAgo} milliseconds ago.  On {@code android-21} and newer, this
-     * is based on the last access of the file, on older Android versions, it is
-     * based on the last time the file was modified, e.g. downloaded.
+     * All downloaded APKs will be cached for a certain amount of time, which is
+     * specified by the user in the "Keep Cache Time" preference.  This removes
+     * any APK in the cache that was last used longer ago than that preference
+     * specifies, or that does not fit in the cache's size budget, except those
+     * that are {@link ApkCacheIndex#pin(File) pinned}.  Files that were put
+     * there without being recorded in the index are added to it first.
      *
-     * @param f         The file or directory to clean
-     * @param millisAgo The number of milliseconds old that marks a file for deletion.
+     * @return how many bytes were deleted
      */
-    public static void clearOldFiles(File f, long millisAgo) {
-        if (f == null) {
-            Utils.debugLog(TAG, "No files to be cleared.");
-            return;
-        }
-        long olderThan = System.currentTimeMillis() - millisAgo;
-        if (f.isDirectory()) {
-            File[] files = f.listFiles();
-            if (files == null) {
-                Utils.debugLog(TAG, "No more files to be cleared.");
-                return;
-            }
-            for (File file : files) {
-                clearOldFiles(file, millisAgo);
-            }
-            deleteFileAndLog(f);
-        } else if (Build.VERSION.SDK_INT <= 21) {
-            if (FileUtils.isFileOlder(f, olderThan)) {
-                deleteFileAndLog(f);
-            }
-        } else {
-            Impl21.deleteIfOld(f, olderThan);
-        }
-    }
-
-    private static void deleteFileAndLog(final File file) {
-        file.delete();
-        Utils.debugLog(TAG, "Deleted file: " + file);
-    }
-
-    @RequiresApi(api = 21)
-    private static class Impl21 {
-        /**
-         * Recursively delete files in {@code f} that were last used
-         * {@code millisAgo} milliseconds ago.  On {@code android-21} and newer, this
-         * is based on the last access of the file, on older Android versions, it is
-         * based on the last time the file was modified, e.g. downloaded.
-         *
-         * @param file      The file or directory to clean
-         * @param olderThan The number of milliseconds old that marks a file for deletion.
-         */
-        public static void deleteIfOld(File file, long olderThan) {
-            if (file == null || !file.exists()) {
-                Utils.debugLog(TAG, "No files to be cleared.");
-                return;
-            }
-            try {
-                StructStat stat = Os.lstat(file.getAbsolutePath());
-                if ((stat.st_atime * 1000L) < olderThan) {
-                    deleteFileAndLog(file);
-                }
-            } catch (ErrnoException e) {
-                Utils.debugLog(TAG, "An exception occurred while deleting: ", e);
-            }
-        }
+    static long deleteExpiredApksFromCache(@NonNull Context context) {
+        ApkCacheIndex index = ApkCacheIndex.getInstance(context);
+        index.reconcile();
+        long before = index.getTotalSize();
+        index.trim(Preferences.get().getKeepCacheTime());
+        return before - index.getTotalSize();
     }
 }
@@ -0,0 +1,112 @@
+package org.fdroid.fdroid.work;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.fdroid.fdroid.UpdateService;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.DatabaseMaintenance;
+
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+/**
+ * Keeps the database from growing forever and the query planner up to date,
+ * using {@link DatabaseMaintenance}.  This runs with the same constraints as
+ * {@link CleanCacheWorker}, so only when the device is charging and idle.
+ * <p>
+ * The database is busy while a repo update is running, so this gives way to
+ * it: the update is checked for before each step, and if one is running, the
+ * work is retried later with a backoff.
+ * <p>
+ * The size of the database before and after, and how long it took, are
+ * logged and also set as the output {@link Data} of the work.
+ */
+public class DatabaseMaintenanceWorker extends Worker {
+    public static final String TAG = "DatabaseMaintenanceWorker";
+
+    public static final String KEY_SIZE_BEFORE = "sizeBefore";
+    public static final String KEY_SIZE_AFTER = "sizeAfter";
+    public static final String KEY_DURATION_MILLIS = "durationMillis";
+
+    public DatabaseMaintenanceWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Schedule the weekly database maintenance, unless it is already scheduled.
+     * Should be called on startup.
+     */
+    public static void schedule(@NonNull final Context context) {
+        final Constraints.Builder constraintsBuilder = new Constraints.Builder()
+                .setRequiresCharging(true)
+                .setRequiresBatteryNotLow(true)
+                .setRequiresStorageNotLow(true);
+        if (Build.VERSION.SDK_INT >= 23) {
+            constraintsBuilder.setRequiresDeviceIdle(true);
+        }
+        final PeriodicWorkRequest maintenance =
+                new PeriodicWorkRequest.Builder(DatabaseMaintenanceWorker.class, 7, TimeUnit.DAYS)
+                        .setConstraints(constraintsBuilder.build())
+                        .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 30, TimeUnit.MINUTES)
+                        .build();
+        WorkManager.getInstance(context)
+                .enqueueUniquePeriodicWork(TAG, ExistingPeriodicWorkPolicy.KEEP, maintenance);
+        Utils.debugLog(TAG, "Scheduled periodic work for database maintenance.");
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        if (shouldStop()) {
+            Utils.debugLog(TAG, "Database is busy, trying again later.");
+            return Result.retry();
+        }
+        try {
+            long start = SystemClock.elapsedRealtime();
+            DatabaseMaintenance maintenance = new DatabaseMaintenance(getApplicationContext());
+            long sizeBefore = maintenance.getSize();
+            Utils.debugLog(TAG, "Database is " + sizeBefore + " bytes, " + maintenance.getFreeSize() + " free");
+
+            DatabaseMaintenance.Interruption interruption = this::shouldStop;
+            if (!maintenance.analyze(interruption) || !maintenance.vacuum(interruption)) {
+                Utils.debugLog(TAG, "Interrupted, trying again later.");
+                return Result.retry();
+            }
+            maintenance.optimize();
+
+            long sizeAfter = maintenance.getSize();
+            long duration = SystemClock.elapsedRealtime() - start;
+            Log.i(TAG, "Database went from " + sizeBefore + " to " + sizeAfter + " bytes in " + duration + "ms");
+            return Result.success(new Data.Builder()
+                    .putLong(KEY_SIZE_BEFORE, sizeBefore)
+                    .putLong(KEY_SIZE_AFTER, sizeAfter)
+                    .putLong(KEY_DURATION_MILLIS, duration)
+                    .build());
+        } catch (SQLiteDatabaseLockedException e) {
+            Utils.debugLog(TAG, "Database is locked, trying again later.", e);
+            return Result.retry();
+        } catch (Exception e) {
+            Log.e(TAG, "Database maintenance failed", e);
+            return Result.failure();
+        }
+    }
+
+    private boolean shouldStop() {
+        return isStopped() || UpdateService.isUpdating();
+    }
+}
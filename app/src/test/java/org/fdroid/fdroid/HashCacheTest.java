@@ -0,0 +1,113 @@
+package org.fdroid.fdroid;
+
+import android.content.Context;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class HashCacheTest {
+
+    private File dir;
+    private File cacheFile;
+
+    @Before
+    public void setUp() {
+        Context context = ApplicationProvider.getApplicationContext();
+        dir = new File(context.getCacheDir(), "HashCacheTest");
+        dir.mkdirs();
+        cacheFile = new File(dir, "hash-cache");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testMatchesUncachedHash() throws IOException {
+        File file = new File(dir, "test.apk");
+        FileUtils.writeStringToFile(file, "some APK contents", StandardCharsets.UTF_8);
+        HashCache hashCache = new HashCache(cacheFile);
+        String expected = Utils.getBinaryHash(file, "sha256");
+        assertEquals(expected, hashCache.getHash(file, "sha256"));
+        assertEquals(expected, hashCache.getHash(file, "sha256"));
+        assertEquals(1, hashCache.size());
+    }
+
+    @Test
+    public void testChangedFileIsRehashed() throws IOException {
+        File file = new File(dir, "test.obb");
+        FileUtils.writeStringToFile(file, "first", StandardCharsets.UTF_8);
+        HashCache hashCache = new HashCache(cacheFile);
+        String first = hashCache.getHash(file, "sha256");
+        FileUtils.writeStringToFile(file, "second, which is longer", StandardCharsets.UTF_8);
+        String second = hashCache.getHash(file, "sha256");
+        assertNotEquals(first, second);
+        assertEquals(Utils.getBinaryHash(file, "sha256"), second);
+        assertEquals(1, hashCache.size());
+    }
+
+    @Test
+    public void testPersistedAcrossInstances() throws IOException {
+        File file = new File(dir, "test.apk");
+        FileUtils.writeStringToFile(file, "persisted", StandardCharsets.UTF_8);
+        HashCache hashCache = new HashCache(cacheFile);
+        String hash = hashCache.getHash(file, "sha256");
+        hashCache.flush();
+
+        HashCache reloaded = new HashCache(cacheFile);
+        assertEquals(1, reloaded.size());
+        assertEquals(hash, reloaded.getHash(file, "sha256"));
+    }
+
+    @Test
+    public void testHitsAreSaved() throws IOException {
+        File file = new File(dir, "test.apk");
+        FileUtils.writeStringToFile(file, "still installed", StandardCharsets.UTF_8);
+        HashCache hashCache = new HashCache(cacheFile);
+        String hash = hashCache.getHash(file, "sha256");
+        long longAgo = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(80);
+        ReflectionHelpers.setField(getEntry(hashCache, file), "lastUsed", longAgo);
+        ReflectionHelpers.setField(hashCache, "unsavedCount", 1);
+        hashCache.flush();
+
+        HashCache reloaded = new HashCache(cacheFile);
+        assertEquals(hash, reloaded.getHash(file, "sha256"));
+        reloaded.flush();
+
+        long lastUsed = ReflectionHelpers.getField(getEntry(new HashCache(cacheFile), file), "lastUsed");
+        assertTrue("the hit is saved, so it is not dropped as too old", lastUsed > longAgo);
+    }
+
+    @Test
+    public void testMissingFile() {
+        HashCache hashCache = new HashCache(cacheFile);
+        assertNull(hashCache.getHash(new File(dir, "does-not-exist.apk"), "sha256"));
+        assertEquals(0, hashCache.size());
+    }
+
+    private static Object getEntry(HashCache hashCache, File file) throws IOException {
+        assertEquals(1, hashCache.size());
+        Map<String, ?> entries = ReflectionHelpers.getField(hashCache, "entries");
+        return entries.get(file.getCanonicalPath());
+    }
+}
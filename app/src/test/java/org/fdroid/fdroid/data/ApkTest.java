@@ -22,6 +22,7 @@ import androidx.test.core.app.ApplicationProvider;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
@@ -81,6 +82,18 @@ public class ApkTest {
         assertEquals(context.getCacheDir(), path);
     }
 
+    @Test
+    public void testGetDeltaFile() {
+        Apk apk = new Apk();
+        assertNull(apk.getDeltaFile(1));
+
+        apk.deltas = new String[]{"11:org.example_11-12.delta", "1:org.example_1-12.delta"};
+        assertEquals("org.example_1-12.delta", apk.getDeltaFile(1));
+        assertEquals("org.example_11-12.delta", apk.getDeltaFile(11));
+        assertNull(apk.getDeltaFile(2));
+        assertNull(apk.getDeltaFile(12));
+    }
+
     private void copyResourceFileToCache(Apk apk) throws IOException {
         FileUtils.copyInputStreamToFile(getClass().getClassLoader().getResource(apk.apkName).openStream(),
                 ApkCache.getApkDownloadPath(context, apk.getCanonicalUrl()));
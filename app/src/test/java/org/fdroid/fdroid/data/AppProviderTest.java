@@ -100,6 +100,41 @@ public class AppProviderTest extends FDroidProviderTest {
         cursor.close();
     }
 
+    @Test
+    public void testPages() {
+        insertApps(12);
+        Uri uri = AppProvider.getContentUri();
+        String[] projection = new String[]{Cols.Package.PACKAGE_NAME};
+        String sortOrder = Schema.PackageTable.NAME + "." + Schema.PackageTable.Cols.PACKAGE_NAME;
+
+        List<String> all = new ArrayList<>();
+        Cursor cursor = contentResolver.query(uri, projection, null, null, sortOrder);
+        assertNotNull(cursor);
+        while (cursor.moveToNext()) {
+            all.add(cursor.getString(0));
+        }
+        cursor.close();
+        assertEquals(12, all.size());
+
+        List<String> paged = new ArrayList<>();
+        for (int offset = 0; offset < 15; offset += 5) {
+            cursor = contentResolver.query(AppProvider.getPageUri(uri, 5, offset), projection, null, null, sortOrder);
+            assertNotNull(cursor);
+            assertEquals(offset < 10 ? 5 : 2, cursor.getCount());
+            while (cursor.moveToNext()) {
+                paged.add(cursor.getString(0));
+            }
+            cursor.close();
+        }
+        assertEquals(all, paged);
+
+        cursor = contentResolver.query(uri, new String[]{Cols._COUNT}, null, null, null);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(12, cursor.getInt(0));
+        cursor.close();
+    }
+
     private void insertApps(int count) {
         for (int i = 0; i < count; i++) {
             insertApp("com.example.test." + i, "Test app " + i);
@@ -15,6 +15,7 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -160,7 +161,7 @@ public class CategoryProviderTest extends FDroidProviderTest {
 
     /**
      * This does not include {@code sortOrder} since that is defined in
-     * {@link org.fdroid.fdroid.views.categories.CategoryController#onCreateLoader(int, android.os.Bundle)}
+     * {@link org.fdroid.fdroid.views.categories.CategoryPreviewLoader#loadInBackground()}
      * so these results are sorted by the default sort.
      */
     @Test
@@ -187,6 +188,32 @@ public class CategoryProviderTest extends FDroidProviderTest {
         assertArrayEquals(new String[]{"com.banana", "com.tomato"}, getTopAppsFromCategory("Vegetable", 10));
     }
 
+    @Test
+    public void topAppsFromAllCategories() {
+        insertAppWithCategory("com.dog", "Dog", "Animal");
+        insertAppWithCategory("com.cat", "Cat", "Animal");
+        insertAppWithCategory("com.dog.rock", "Dog Rock", "Animal,Mineral");
+        insertAppWithCategory("com.rock", "Rock", "Mineral");
+        insertAppWithCategory("com.no.category", "None", "");
+
+        Cursor cursor = contentResolver.query(AppProvider.getTopFromAllCategoriesUri(),
+                new String[]{Cols.Category.CATEGORY_NAME, Cols.Package.PACKAGE_NAME}, null, null,
+                Cols.Category.CATEGORY_NAME + ", " + Cols.Package.PACKAGE_NAME);
+        List<String> rows = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            rows.add(cursor.getString(0) + "/" + cursor.getString(1));
+        }
+        cursor.close();
+
+        assertEquals(Arrays.asList(
+                "Animal/com.cat",
+                "Animal/com.dog",
+                "Animal/com.dog.rock",
+                "Mineral/com.dog.rock",
+                "Mineral/com.rock"
+        ), rows);
+    }
+
     public String[] getTopAppsFromCategory(String category, int numToGet) {
         List<App> apps = AppProvider.Helper.cursorToList(contentResolver
                 .query(AppProvider.getTopFromCategoryUri(category, numToGet), Cols.ALL, null, null, Cols.NAME));
@@ -0,0 +1,45 @@
+package org.fdroid.fdroid.data;
+
+import android.app.Application;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@Config(application = Application.class)
+@RunWith(RobolectricTestRunner.class)
+public class DatabaseMaintenanceTest extends FDroidProviderTest {
+
+    @Test
+    public void testReleasesFreePages() {
+        for (int i = 0; i < 200; i++) {
+            AppProviderTest.insertApp(contentResolver, context, "org.example.app" + i, "App " + i,
+                    new ContentValues());
+        }
+        SQLiteDatabase db = DBHelper.getInstance(context).getWritableDatabase();
+        db.execSQL("DELETE FROM " + Schema.AppMetadataTable.NAME);
+
+        DatabaseMaintenance maintenance = new DatabaseMaintenance(context);
+        assertTrue(maintenance.analyze(() -> false));
+        // the first run switches the database over to incremental vacuum
+        assertTrue(maintenance.vacuum(() -> false));
+        assertTrue(maintenance.vacuum(() -> false));
+        maintenance.optimize();
+        assertEquals(0, maintenance.getFreeSize());
+        assertTrue(maintenance.getSize() > 0);
+    }
+
+    @Test
+    public void testInterrupted() {
+        DatabaseMaintenance maintenance = new DatabaseMaintenance(context);
+        assertFalse(maintenance.analyze(() -> true));
+        assertFalse(maintenance.vacuum(() -> true));
+    }
+}
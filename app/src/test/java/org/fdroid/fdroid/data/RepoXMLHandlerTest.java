@@ -51,6 +51,7 @@ import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -99,7 +100,7 @@ public class RepoXMLHandlerTest {
             localApk.packageName = indexApk.packageName;
             localApk.versionCode = indexApk.versionCode;
             localApk.hashType = indexApk.hashType;
-            App.initInstalledObbFiles(localApk);
+            App.initInstalledObbFiles(ApplicationProvider.getApplicationContext(), localApk);
             assertEquals(indexApk.obbMainFile, localApk.obbMainFile);
             assertEquals(indexApk.obbMainFileSha256, localApk.obbMainFileSha256);
             assertEquals(indexApk.obbPatchFile, localApk.obbPatchFile);
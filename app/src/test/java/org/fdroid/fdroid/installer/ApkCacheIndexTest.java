@@ -0,0 +1,182 @@
+package org.fdroid.fdroid.installer;
+
+import android.content.ContextWrapper;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ApkCacheIndexTest {
+
+    private File indexFile;
+    private File cacheDir;
+
+    @Before
+    public final void setUp() {
+        ContextWrapper context = ApplicationProvider.getApplicationContext();
+        indexFile = new File(context.getFilesDir(), "test-apk-cache-index");
+        cacheDir = new File(context.getCacheDir(), "test-apk-cache");
+    }
+
+    @After
+    public final void tearDown() {
+        FileUtils.deleteQuietly(indexFile);
+        FileUtils.deleteQuietly(cacheDir);
+    }
+
+    @Test
+    public void testScanExistingFiles() throws IOException {
+        long now = System.currentTimeMillis();
+        File old = writeFile("f-droid.org--1/old.apk", now - TimeUnit.DAYS.toMillis(3));
+        File recent = writeFile("example.com--1/recent.apk", now);
+
+        ApkCacheIndex index = new ApkCacheIndex(indexFile, cacheDir);
+        assertEquals(old.length() + recent.length(), index.getTotalSize());
+        assertEquals(1, index.trim(TimeUnit.DAYS.toMillis(1)));
+        assertFalse(old.exists());
+        assertFalse("empty repo dirs are removed", old.getParentFile().exists());
+        assertTrue(recent.exists());
+        assertTrue(cacheDir.exists());
+        assertEquals(recent.length(), index.getTotalSize());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedGoFirst() throws IOException, InterruptedException {
+        File a = writeFile("repo/a.apk", 0);
+        File b = writeFile("repo/b.apk", 0);
+        File c = writeFile("repo/c.apk", 0);
+
+        ApkCacheIndex index = new ApkCacheIndex(indexFile, cacheDir);
+        index.recordUse(a);
+        index.recordUse(b);
+        index.recordUse(c);
+        Thread.sleep(20);
+        long cutoff = System.currentTimeMillis();
+        Thread.sleep(20);
+        index.recordUse(a);
+
+        assertEquals(2, index.trim(System.currentTimeMillis() - cutoff));
+        assertTrue("just used, so it stays", a.exists());
+        assertFalse(b.exists());
+        assertFalse(c.exists());
+    }
+
+    @Test
+    public void testPinnedAreKept() throws IOException, InterruptedException {
+        File pinned = writeFile("repo/pinned.apk", 0);
+        File notYetDownloaded = new File(cacheDir, "repo/download.apk");
+
+        ApkCacheIndex index = new ApkCacheIndex(indexFile, cacheDir);
+        index.pin(pinned);
+        index.pin(notYetDownloaded);
+        assertEquals(0, index.trim(0));
+        assertTrue(pinned.exists());
+
+        index.unpin(pinned);
+        Thread.sleep(20);
+        assertEquals(1, index.trim(0));
+        assertFalse(pinned.exists());
+    }
+
+    @Test
+    public void testIndexIsSaved() throws IOException {
+        File a = writeFile("repo/a.apk", 0);
+        ApkCacheIndex index = new ApkCacheIndex(indexFile, cacheDir);
+        index.pin(a);
+        assertTrue(indexFile.exists());
+
+        ApkCacheIndex reloaded = new ApkCacheIndex(indexFile, cacheDir);
+        assertEquals(a.length(), reloaded.getTotalSize());
+        assertEquals(0, reloaded.trim(0));
+
+        reloaded.remove(a);
+        assertEquals(0, reloaded.getTotalSize());
+    }
+
+    @Test
+    public void testReconcileFindsUnrecordedFiles() throws IOException, InterruptedException {
+        long now = System.currentTimeMillis();
+        File recorded = writeFile("repo/recorded.apk", 0);
+        File pinned = new File(cacheDir, "repo/main.1.org.example.obb");
+        ApkCacheIndex index = new ApkCacheIndex(indexFile, cacheDir);
+        index.recordUse(recorded);
+        index.pin(pinned);
+
+        // written without telling the index, like a download cut short
+        File partial = writeFile("repo/partial.apk", now - TimeUnit.DAYS.toMillis(3));
+        File gone = writeFile("repo/gone.apk", 0);
+        index.recordUse(gone);
+        long goneSize = gone.length();
+        assertTrue(gone.delete());
+        assertEquals(recorded.length() + goneSize, index.getTotalSize());
+
+        index.reconcile();
+        assertEquals(recorded.length() + partial.length(), index.getTotalSize());
+        assertEquals("only the old file that was never recorded goes", 1, index.trim(TimeUnit.DAYS.toMillis(1)));
+        assertFalse(partial.exists());
+        assertTrue(recorded.exists());
+
+        FileUtils.writeStringToFile(pinned, "not really an OBB", StandardCharsets.UTF_8);
+        assertTrue(pinned.setLastModified(now - TimeUnit.DAYS.toMillis(3)));
+        index.reconcile();
+        Thread.sleep(20);
+        assertEquals(1, index.trim(0));
+        assertFalse(recorded.exists());
+        assertTrue("pinned until the install is done", pinned.exists());
+    }
+
+    @Test
+    public void testReconcileOnlyListsChangedDirs() throws IOException {
+        long now = System.currentTimeMillis();
+        File a = writeFile("repo/a.apk", 0);
+        File repoDir = a.getParentFile();
+        assertTrue(repoDir.setLastModified(now - TimeUnit.HOURS.toMillis(1)));
+        ApkCacheIndex index = new ApkCacheIndex(indexFile, cacheDir);
+        assertEquals(a.length(), index.getTotalSize());
+
+        File b = writeFile("repo/b.apk", 0);
+        assertTrue(repoDir.setLastModified(now - TimeUnit.HOURS.toMillis(1)));
+        index.reconcile();
+        assertEquals("the dir looks unchanged, so it is not listed", a.length(), index.getTotalSize());
+
+        assertTrue(repoDir.setLastModified(now - TimeUnit.MINUTES.toMillis(1)));
+        index.reconcile();
+        assertEquals(a.length() + b.length(), index.getTotalSize());
+
+        FileUtils.deleteDirectory(repoDir);
+        index.reconcile();
+        assertEquals(0, index.getTotalSize());
+    }
+
+    @Test
+    public void testBudget() {
+        ApkCacheIndex index = new ApkCacheIndex(indexFile, cacheDir);
+        long budget = index.getBudget();
+        assertTrue(budget >= ApkCacheIndex.MIN_BUDGET);
+        assertTrue(budget <= ApkCacheIndex.MAX_BUDGET);
+    }
+
+    private File writeFile(String path, long lastModified) throws IOException {
+        File file = new File(cacheDir, path);
+        FileUtils.writeStringToFile(file, "not really an APK: " + path, StandardCharsets.UTF_8);
+        if (lastModified > 0) {
+            assertTrue(file.setLastModified(lastModified));
+        }
+        return file;
+    }
+}
@@ -3,6 +3,8 @@ package org.fdroid.fdroid.installer;
 import android.content.ContextWrapper;
 import android.util.Log;
 
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.Utils;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -10,10 +12,13 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.shadows.ShadowLog;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import androidx.test.core.app.ApplicationProvider;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
@@ -61,4 +66,25 @@ public class ApkCacheTest {
                 ApkCache.getApkDownloadPath(context,
                         "https://example.com/fdroid/repo/Norway_bouvet_europe_2.obf"));
     }
+
+    @Test
+    public void testStageFile() throws IOException {
+        File source = new File(cacheDir, "test-stage-source.apk");
+        FileUtils.writeStringToFile(source, "not really an APK", StandardCharsets.UTF_8);
+        String sha256 = Utils.getBinaryHash(source, "sha256");
+        File dest = new File(context.getFilesDir(), "test-stage-dest.apk");
+
+        assertTrue(ApkCache.stageFile(source, dest, sha256, "sha256"));
+        assertEquals("not really an APK", FileUtils.readFileToString(dest, StandardCharsets.UTF_8));
+        assertTrue("the cached file is kept", source.exists());
+
+        // staging again replaces the old one
+        assertTrue(ApkCache.stageFile(source, dest, null, "sha256"));
+        assertTrue(dest.exists());
+
+        String wrongHash = "0000000000000000000000000000000000000000000000000000000000000000";
+        assertFalse(ApkCache.stageFile(source, dest, wrongHash, "sha256"));
+        assertFalse("a file that does not match is not left around", dest.exists());
+        source.delete();
+    }
 }
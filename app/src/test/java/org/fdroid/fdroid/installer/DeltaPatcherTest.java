@@ -0,0 +1,120 @@
+package org.fdroid.fdroid.installer;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class DeltaPatcherTest {
+
+    private File base;
+    private File delta;
+
+    @Before
+    public void setUp() throws IOException {
+        base = File.createTempFile("DeltaPatcherTest", ".apk");
+        delta = File.createTempFile("DeltaPatcherTest", ".delta");
+        FileUtils.writeStringToFile(base, "hello old world", StandardCharsets.US_ASCII);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(base);
+        FileUtils.deleteQuietly(delta);
+    }
+
+    @Test
+    public void testApply() throws IOException {
+        byte[] diff = new byte["hello ".length()];
+        byte[] changed = "new".getBytes(StandardCharsets.US_ASCII);
+        byte[] old = "old".getBytes(StandardCharsets.US_ASCII);
+        byte[] diffChanged = new byte[changed.length];
+        for (int i = 0; i < changed.length; i++) {
+            diffChanged[i] = (byte) (changed[i] - old[i]);
+        }
+        DataOutputStream blocks = startDelta("hello new world!!".length());
+        writeBlock(blocks, diff, new byte[0], 0);
+        writeBlock(blocks, diffChanged, new byte[0], 0);
+        writeBlock(blocks, new byte[" world".length()], "!!".getBytes(StandardCharsets.US_ASCII), 0);
+        blocks.close();
+
+        assertEquals("hello new world!!", apply(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testReadingPastTheOldFileGivesZeros() throws IOException {
+        DataOutputStream blocks = startDelta(3);
+        byte[] diff = "abc".getBytes(StandardCharsets.US_ASCII);
+        writeBlock(blocks, diff, new byte[0], 0);
+        blocks.close();
+        FileUtils.writeStringToFile(base, "", StandardCharsets.US_ASCII);
+
+        assertEquals("abc", apply(Long.MAX_VALUE));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTooBig() throws IOException {
+        startDelta(1000).close();
+        apply(999);
+    }
+
+    @Test
+    public void testBroken() throws IOException {
+        FileUtils.writeStringToFile(delta, "BSDIFF40 is not supported", StandardCharsets.US_ASCII);
+        assertThrows();
+
+        DataOutputStream blocks = startDelta(10);
+        writeBlock(blocks, new byte[5], new byte[6], 0);
+        blocks.close();
+        assertThrows();
+
+        blocks = startDelta(10);
+        writeBlock(blocks, new byte[5], new byte[0], 0);
+        blocks.close();
+        assertThrows();
+    }
+
+    private void assertThrows() {
+        try {
+            apply(Long.MAX_VALUE);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private String apply(long maxSize) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DeltaPatcher.apply(base, delta, output, maxSize);
+        return new String(output.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private DataOutputStream startDelta(long newSize) throws IOException {
+        FileOutputStream file = new FileOutputStream(delta);
+        DataOutputStream header = new DataOutputStream(file);
+        header.write(DeltaPatcher.MAGIC);
+        header.writeLong(newSize);
+        header.flush();
+        return new DataOutputStream(new DeflaterOutputStream(file));
+    }
+
+    private static void writeBlock(DataOutputStream blocks, byte[] diff, byte[] extra, long seek)
+            throws IOException {
+        blocks.writeLong(diff.length);
+        blocks.writeLong(extra.length);
+        blocks.writeLong(seek);
+        blocks.write(diff);
+        blocks.write(extra);
+    }
+}
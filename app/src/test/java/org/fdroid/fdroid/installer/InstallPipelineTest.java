@@ -0,0 +1,80 @@
+package org.fdroid.fdroid.installer;
+
+import android.net.Uri;
+
+import org.fdroid.fdroid.data.Apk;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class InstallPipelineTest {
+
+    private static final Uri LOCAL = Uri.parse("file:///tmp/test.apk");
+
+    @Test
+    public void testBatchInstallsInRankOrder() {
+        InstallPipeline pipeline = new InstallPipeline();
+        pipeline.add("https://f-droid.org/repo/a.apk", 0, false);
+        pipeline.add("https://f-droid.org/repo/b.apk", 1, false);
+        pipeline.add("https://f-droid.org/repo/c.apk", 2, false);
+
+        // the biggest one happens to finish first, nothing else is ready, so it goes
+        pipeline.setReady("https://f-droid.org/repo/c.apk", LOCAL, new Apk());
+        assertOrder(pipeline.next(), "https://f-droid.org/repo/c.apk");
+
+        // both wait while the installer is busy, then the better ranked goes first
+        pipeline.setReady("https://f-droid.org/repo/b.apk", LOCAL, new Apk());
+        pipeline.setReady("https://f-droid.org/repo/a.apk", LOCAL, new Apk());
+        assertOrder(pipeline.next());
+        pipeline.remove("https://f-droid.org/repo/c.apk");
+        assertOrder(pipeline.next(), "https://f-droid.org/repo/a.apk");
+        pipeline.remove("https://f-droid.org/repo/a.apk");
+        assertOrder(pipeline.next(), "https://f-droid.org/repo/b.apk");
+        pipeline.remove("https://f-droid.org/repo/b.apk");
+        assertTrue(pipeline.isEmpty());
+    }
+
+    @Test
+    public void testLastWaitsForEverythingElse() {
+        InstallPipeline pipeline = new InstallPipeline();
+        pipeline.add("https://f-droid.org/repo/a.apk", 0, false);
+        pipeline.add("https://f-droid.org/repo/fdroid.apk", 1, true);
+
+        pipeline.setReady("https://f-droid.org/repo/fdroid.apk", LOCAL, new Apk());
+        assertOrder(pipeline.next());
+        pipeline.setReady("https://f-droid.org/repo/a.apk", LOCAL, new Apk());
+        assertOrder(pipeline.next(), "https://f-droid.org/repo/a.apk");
+        assertOrder(pipeline.next());
+        pipeline.remove("https://f-droid.org/repo/a.apk");
+        assertOrder(pipeline.next(), "https://f-droid.org/repo/fdroid.apk");
+    }
+
+    @Test
+    public void testSingleInstallsGoStraightThrough() {
+        InstallPipeline pipeline = new InstallPipeline();
+        pipeline.add("https://f-droid.org/repo/a.apk", 0, false);
+        pipeline.setReady("https://f-droid.org/repo/a.apk", LOCAL, new Apk());
+        assertOrder(pipeline.next(), "https://f-droid.org/repo/a.apk");
+
+        pipeline.add("https://f-droid.org/repo/single.apk", InstallPipeline.NO_RANK, false);
+        pipeline.setReady("https://f-droid.org/repo/single.apk", LOCAL, new Apk());
+        assertOrder(pipeline.next(), "https://f-droid.org/repo/single.apk");
+
+        // ready without being added, e.g. after the service was restarted
+        pipeline.setReady("https://f-droid.org/repo/other.apk", LOCAL, new Apk());
+        assertOrder(pipeline.next(), "https://f-droid.org/repo/other.apk");
+    }
+
+    private static void assertOrder(List<InstallPipeline.Entry> entries, String... canonicalUrls) {
+        assertEquals(canonicalUrls.length, entries.size());
+        for (int i = 0; i < canonicalUrls.length; i++) {
+            assertEquals(canonicalUrls[i], entries.get(i).canonicalUrl);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.fdroid.fdroid.nearby;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class HaveListTest {
+
+    private static final String SIG = "0123456789ABCDEF0123456789ABCDEF";
+
+    @Test
+    public void testRoundTrip() {
+        HaveList haveList = HaveList.create(300);
+        for (int i = 0; i < 300; i++) {
+            haveList.add("org.example.app" + i, i, SIG);
+        }
+        String encoded = haveList.encode();
+        assertTrue("a few bytes per app, got " + encoded.length(), encoded.length() < 300 * 8);
+
+        HaveList decoded = HaveList.decode(encoded);
+        for (int i = 0; i < 300; i++) {
+            assertTrue(decoded.mightContain("org.example.app" + i, i, "0123456789abcdef0123456789abcdef"));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 300; i++) {
+            if (decoded.mightContain("org.example.app" + i, i + 1, SIG)
+                    || decoded.mightContain("org.example.other" + i, i, SIG)
+                    || decoded.mightContain("org.example.app" + i, i, "fedcba9876543210fedcba9876543210")) {
+                falsePositives++;
+            }
+        }
+        assertTrue("too many false positives: " + falsePositives, falsePositives <= 1);
+    }
+
+    @Test
+    public void testEmpty() {
+        HaveList decoded = HaveList.decode(HaveList.create(0).encode());
+        assertFalse(decoded.mightContain("org.example.app", 1, SIG));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeGarbage() {
+        HaveList.decode("bm90IGEgaGF2ZS1saXN0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeMissing() {
+        HaveList.decode(null);
+    }
+}
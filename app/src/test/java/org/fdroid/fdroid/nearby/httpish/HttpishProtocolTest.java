@@ -0,0 +1,164 @@
+package org.fdroid.fdroid.nearby.httpish;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.fdroid.fdroid.nearby.TransferCompression;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class HttpishProtocolTest {
+
+    private static final InputStream NO_INPUT = new ByteArrayInputStream(new byte[0]);
+
+    @Test
+    public void testPipelinedRequests() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Request.create(Request.Methods.HEAD, "/fdroid/repo/index-v1.jar", NO_INPUT, wire).write();
+        Request.create(Request.Methods.GET, "/fdroid/repo/index-v1.jar", NO_INPUT, wire).write();
+
+        InputStream serverInput = new ByteArrayInputStream(wire.toByteArray());
+        ByteArrayOutputStream serverOutput = new ByteArrayOutputStream();
+        Request head = Request.listenForRequest(serverInput, serverOutput);
+        assertEquals(Request.Methods.HEAD, head.getMethod());
+        assertEquals("/fdroid/repo/index-v1.jar", head.getPath());
+        assertEquals("keep-alive", head.getHeaderValue("Connection"));
+        Request get = Request.listenForRequest(serverInput, serverOutput);
+        assertEquals(Request.Methods.GET, get.getMethod());
+        assertEquals("/fdroid/repo/index-v1.jar", get.getPath());
+        assertNull(Request.listenForRequest(serverInput, serverOutput));
+    }
+
+    @Test
+    public void testLegacyRequest() throws IOException {
+        byte[] wire = "GET /fdroid/repo/index.jar\n\n".getBytes(StandardCharsets.UTF_8);
+        InputStream serverInput = new ByteArrayInputStream(wire);
+        Request request = Request.listenForRequest(serverInput, new ByteArrayOutputStream());
+        assertEquals(Request.Methods.GET, request.getMethod());
+        assertEquals("/fdroid/repo/index.jar", request.getPath());
+        assertNull(Request.listenForRequest(serverInput, new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void testSeveralResponsesOnOneConnection() throws IOException {
+        byte[] content = "hello swap".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        new Response.Builder(new ByteArrayInputStream(content))
+                .setFileSize(content.length)
+                .setETag("abc123")
+                .build()
+                .send(wire);
+        new Response.Builder()
+                .setStatusCode(HttpURLConnection.HTTP_NOT_FOUND)
+                .setFileSize(0)
+                .build()
+                .send(wire);
+        new Response(HttpURLConnection.HTTP_FORBIDDEN, "text/plain", "FORBIDDEN").send(wire);
+
+        InputStream clientInput = new ByteArrayInputStream(wire.toByteArray());
+        ByteArrayOutputStream clientOutput = new ByteArrayOutputStream();
+
+        Response first = Request.create(Request.Methods.GET, "/a", clientInput, clientOutput).readResponse();
+        assertEquals(HttpURLConnection.HTTP_OK, first.getStatusCode());
+        assertTrue(first.isKeepAlive());
+        assertEquals(content.length, first.getFileSize());
+        assertEquals("abc123", first.toFileDetails().getCacheTag());
+        assertEquals("hello swap", readBody(first));
+
+        Response second = Request.create(Request.Methods.GET, "/b", clientInput, clientOutput).readResponse();
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, second.getStatusCode());
+        assertEquals(0, second.getFileSize());
+        assertEquals("", readBody(second));
+
+        Response third = Request.create(Request.Methods.GET, "/c", clientInput, clientOutput).readResponse();
+        assertEquals(HttpURLConnection.HTTP_FORBIDDEN, third.getStatusCode());
+        assertFalse(third.isKeepAlive());
+        assertEquals("FORBIDDEN", readBody(third));
+        assertEquals(-1, clientInput.read());
+    }
+
+    @Test
+    public void testLegacyResponse() throws IOException {
+        byte[] wire = "HTTP(ish)/0.1 200 OK\nContent-Length: 3\n\nabc".getBytes(StandardCharsets.UTF_8);
+        InputStream clientInput = new ByteArrayInputStream(wire);
+        Response response = Request.create(Request.Methods.GET, "/a", clientInput, new ByteArrayOutputStream())
+                .readResponse();
+        assertEquals(HttpURLConnection.HTTP_OK, response.getStatusCode());
+        assertFalse(response.isKeepAlive());
+        assertEquals("abc", readBody(response));
+    }
+
+    @Test
+    public void testGzippedResponse() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Request.create(Request.Methods.GET, "/index.html", NO_INPUT, wire).write();
+        Request request = Request.listenForRequest(new ByteArrayInputStream(wire.toByteArray()),
+                new ByteArrayOutputStream());
+        assertTrue(TransferCompression.isAccepted(request.getHeaderValue("Accept-Encoding")));
+
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            html.append("<p>swap ").append(i).append("</p>\n");
+        }
+        byte[] gzipped = TransferCompression.gzip(html.toString().getBytes(StandardCharsets.UTF_8));
+        assertNotNull(gzipped);
+        wire.reset();
+        new Response.Builder(new ByteArrayInputStream(gzipped))
+                .setFileSize(gzipped.length)
+                .setContentEncoding(TransferCompression.GZIP)
+                .build()
+                .send(wire);
+
+        InputStream clientInput = new ByteArrayInputStream(wire.toByteArray());
+        Response response = Request.create(Request.Methods.GET, "/index.html", clientInput,
+                new ByteArrayOutputStream()).readResponse();
+        assertTrue(response.isGzipped());
+        assertEquals(gzipped.length, response.getFileSize());
+        BoundedInputStream body = new BoundedInputStream(response.toContentStream(), response.getFileSize());
+        assertEquals(html.toString(), IOUtils.toString(new GZIPInputStream(body), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRangeRequest() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Request.create(Request.Methods.GET, "/fdroid/repo/app.apk", NO_INPUT, wire)
+                .addHeader("Range", "bytes=1024-")
+                .write();
+        Request request = Request.listenForRequest(new ByteArrayInputStream(wire.toByteArray()),
+                new ByteArrayOutputStream());
+        assertEquals("bytes=1024-", request.getHeaderValue("Range"));
+        assertEquals("keep-alive", request.getHeaderValue("Connection"));
+
+        wire.reset();
+        new Response.Builder(new ByteArrayInputStream(new byte[0]))
+                .setStatusCode(HttpURLConnection.HTTP_PARTIAL)
+                .setFileSize(0)
+                .build()
+                .send(wire);
+        Response response = Request.create(Request.Methods.GET, "/fdroid/repo/app.apk",
+                new ByteArrayInputStream(wire.toByteArray()), new ByteArrayOutputStream()).readResponse();
+        assertEquals(HttpURLConnection.HTTP_PARTIAL, response.getStatusCode());
+        assertTrue(response.acceptsRanges());
+    }
+
+    private static String readBody(Response response) throws IOException {
+        BoundedInputStream body = new BoundedInputStream(response.toContentStream(), response.getFileSize());
+        body.setPropagateClose(false);
+        return new String(IOUtils.toByteArray(body), StandardCharsets.UTF_8);
+    }
+}
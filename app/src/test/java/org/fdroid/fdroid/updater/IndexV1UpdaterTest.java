@@ -424,6 +424,7 @@ public class IndexV1UpdaterTest extends FDroidProviderTest {
         String[] ignoredInApk = new String[]{
                 "compatible",
                 "CREATOR",
+                "deltas",
                 "installedFile",
                 "repoAddress",
                 "repoVersion",
@@ -453,6 +454,29 @@ public class IndexV1UpdaterTest extends FDroidProviderTest {
         }
     }
 
+    @Test
+    public void testParseDeltas() throws IOException {
+        ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(FAKE_REPO_ID);
+        Apk apk = mapper.readValue("{\"versionCode\": 3, \"deltas\": {"
+                + "\"1\": \"org.example_1-3.delta\", "
+                + "\"2\": \"org.example_2-3.delta\", "
+                + "\"x\": \"org.example_x-3.delta\", "
+                + "\"4\": \"\", "
+                + "\"5\": \"../org.example_5-3.delta\", "
+                + "\"6\": \"org.example_6,7-3.delta\", "
+                + "\"8\": \".hidden.delta\"}}", Apk.class);
+        assertArrayEquals(new String[]{"1:org.example_1-3.delta", "2:org.example_2-3.delta"}, apk.deltas);
+        assertEquals("org.example_2-3.delta", apk.getDeltaFile(2));
+        assertNull(apk.getDeltaFile(5));
+
+        apk = mapper.readValue("{\"versionCode\": 3, \"deltas\": {\"1\": \"../escape.delta\"}}", Apk.class);
+        assertNull("nothing usable, so no deltas at all", apk.deltas);
+        assertNull(apk.getDeltaFile(1));
+
+        apk = mapper.readValue("{\"versionCode\": 3}", Apk.class);
+        assertNull(apk.deltas);
+    }
+
     @Test
     public void testInstanceVariablesAreProperlyMarked() throws IOException {
         ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(FAKE_REPO_ID);
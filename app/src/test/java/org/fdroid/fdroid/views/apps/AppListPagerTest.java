@@ -0,0 +1,173 @@
+package org.fdroid.fdroid.views.apps;
+
+import android.app.Application;
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.Schema.AppMetadataTable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ContentProviderController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.core.app.ApplicationProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@Config(application = Application.class)
+@RunWith(RobolectricTestRunner.class)
+public class AppListPagerTest {
+
+    private static final String AUTHORITY = "org.fdroid.fdroid.test.AppListPagerTest";
+    private static final Uri URI = Uri.parse("content://" + AUTHORITY + "/apps");
+    private static final String[] PROJECTION = {AppMetadataTable.Cols.NAME};
+    private static final int COUNT = 10;
+
+    private static final List<MatrixCursor> PAGES = new CopyOnWriteArrayList<>();
+    private static CountDownLatch pageQueried;
+    private static CountDownLatch releasePages;
+
+    private ContentProviderController<PagingProvider> providerController;
+    private Context context;
+
+    @Before
+    public void setUp() {
+        PAGES.clear();
+        pageQueried = new CountDownLatch(1);
+        releasePages = new CountDownLatch(1);
+        providerController = TestUtils.registerContentProvider(AUTHORITY, PagingProvider.class);
+        context = ApplicationProvider.getApplicationContext();
+    }
+
+    @After
+    public void tearDown() {
+        releasePages.countDown();
+        providerController.shutdown();
+    }
+
+    @Test
+    public void testReloadWhilePageIsLoading() throws InterruptedException {
+        // the count, and how many pages were loaded
+        final int[] count = {-1, 0};
+        AppListPager pager = new AppListPager(context, URI, PROJECTION, null, null, new AppListPager.Listener() {
+            @Override
+            public void onCountChanged(int newCount) {
+                count[0] = newCount;
+            }
+
+            @Override
+            public void onPageLoaded(int positionStart, int itemCount) {
+                count[1]++;
+            }
+        });
+        waitFor(() -> count[0] == COUNT);
+
+        pager.getApp(0);
+        assertTrue(pageQueried.await(5, TimeUnit.SECONDS));
+        // the page query is still running when the data changes
+        context.getContentResolver().notifyChange(URI, null);
+        ShadowLooper.idleMainLooper(1, TimeUnit.SECONDS);
+        releasePages.countDown();
+
+        waitFor(() -> !PAGES.isEmpty() && PAGES.get(0).isClosed());
+        assertEquals(1, PAGES.size());
+
+        pager.getApp(0);
+        waitFor(() -> count[1] == 1);
+        assertEquals(2, PAGES.size());
+        assertFalse("the page that is shown stays open", PAGES.get(1).isClosed());
+        pager.close();
+        for (MatrixCursor cursor : PAGES) {
+            assertTrue(cursor.isClosed());
+        }
+    }
+
+    /**
+     * Runs what the background threads posted to the main thread until
+     * {@code condition} is met.
+     */
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (!condition.isMet()) {
+            assertTrue("timed out", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+            ShadowLooper.idleMainLooper();
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+
+    /**
+     * Counts to {@link #COUNT}, and holds the first page query until
+     * {@link #releasePages} to keep it running while the pager reloads.
+     */
+    public static class PagingProvider extends ContentProvider {
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Nullable
+        @Override
+        public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                            @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+            if (projection != null && AppMetadataTable.Cols._COUNT.equals(projection[0])) {
+                MatrixCursor cursor = new MatrixCursor(projection);
+                cursor.addRow(new Object[]{COUNT});
+                return cursor;
+            }
+            pageQueried.countDown();
+            try {
+                releasePages.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            MatrixCursor cursor = new MatrixCursor(projection);
+            PAGES.add(cursor);
+            return cursor;
+        }
+
+        @Nullable
+        @Override
+        public String getType(@NonNull Uri uri) {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection,
+                          @Nullable String[] selectionArgs) {
+            return 0;
+        }
+    }
+}
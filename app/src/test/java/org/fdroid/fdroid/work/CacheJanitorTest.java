@@ -0,0 +1,144 @@
+package org.fdroid.fdroid.work;
+
+import android.content.Context;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Robolectric does not support file times fully, so these use a negative
+ * max age to make every file count as expired, or a very long one to keep
+ * them all.  The time based deletion is tested in {@code androidTest}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CacheJanitorTest {
+
+    private static final long EXPIRED = -TimeUnit.HOURS.toMillis(1);
+    private static final long FOREVER = TimeUnit.DAYS.toMillis(100000);
+
+    private final Context context = ApplicationProvider.getApplicationContext();
+    private File stateFile;
+    private File dir;
+
+    @Before
+    public final void setUp() {
+        stateFile = new File(context.getFilesDir(), "test-cache-janitor");
+        dir = new File(context.getCacheDir(), "test-cache-janitor");
+    }
+
+    @After
+    public final void tearDown() {
+        FileUtils.deleteQuietly(stateFile);
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testRootFilter() throws IOException {
+        File index = writeFile("index-1234-downloaded");
+        File download = writeFile("dl-5678");
+        File other = writeFile("other.txt");
+        File inIndexDir = writeFile("index-dir/nested");
+        File inOtherDir = writeFile("other-dir/nested");
+
+        CacheJanitor janitor = new CacheJanitor(context, stateFile,
+                new CacheJanitor.Root(CacheJanitor.Category.INDEX_FILES, dir, EXPIRED, false) {
+                    @Override
+                    boolean accept(String name) {
+                        return name.startsWith("index-") || name.startsWith("dl-");
+                    }
+                });
+        runPass(janitor);
+        assertFalse(index.exists());
+        assertFalse(download.exists());
+        assertFalse(inIndexDir.exists());
+        assertFalse("emptied dirs are deleted", inIndexDir.getParentFile().exists());
+        assertTrue(other.exists());
+        assertTrue(inOtherDir.exists());
+        assertTrue("the root is kept", dir.exists());
+        assertEquals(index.getName().length() + download.getName().length() + "nested".length(),
+                (long) janitor.getReclaimed().get(CacheJanitor.Category.INDEX_FILES));
+    }
+
+    @Test
+    public void testFilesOnly() throws IOException {
+        File file = writeFile("fake.apk");
+        File inDir = writeFile("subdir/fake.apk");
+
+        runPass(new CacheJanitor(context, stateFile,
+                new CacheJanitor.Root(CacheJanitor.Category.INSTALLER_FILES, dir, EXPIRED, true)));
+        assertFalse(file.exists());
+        assertTrue(inDir.exists());
+    }
+
+    @Test
+    public void testSlicesResumeAfterSave() throws IOException {
+        int count = CacheJanitor.SLICE_OPS * 2;
+        for (int i = 0; i < count; i++) {
+            writeFile("icon" + i + ".png");
+        }
+        CacheJanitor.Root root = new CacheJanitor.Root(CacheJanitor.Category.ICONS, dir, EXPIRED, false);
+
+        CacheJanitor janitor = new CacheJanitor(context, stateFile, root);
+        assertFalse("one slice cannot do it all", janitor.runSlice());
+        janitor.save();
+
+        int slices = 0;
+        janitor = new CacheJanitor(context, stateFile, root);
+        while (!janitor.runSlice()) {
+            slices++;
+            janitor.save();
+            janitor = new CacheJanitor(context, stateFile, root);
+        }
+        assertTrue(slices > 0);
+        String[] left = dir.list();
+        assertTrue(left == null || left.length == 0);
+    }
+
+    @Test
+    public void testKeepsFreshFiles() throws IOException {
+        File file = writeFile("icon.png");
+        CacheJanitor janitor = new CacheJanitor(context, stateFile,
+                new CacheJanitor.Root(CacheJanitor.Category.ICONS, dir, FOREVER, false));
+        runPass(janitor);
+        janitor.save();
+        runPass(janitor);
+        assertTrue(file.exists());
+        assertNull(janitor.getReclaimed().get(CacheJanitor.Category.ICONS));
+    }
+
+    @Test
+    public void testMissingRoot() {
+        runPass(new CacheJanitor(context, stateFile,
+                new CacheJanitor.Root(CacheJanitor.Category.ICONS, dir, EXPIRED, false)));
+        runPass(new CacheJanitor(context, stateFile,
+                new CacheJanitor.Root(CacheJanitor.Category.ICONS, null, EXPIRED, false)));
+    }
+
+    private static void runPass(CacheJanitor janitor) {
+        while (!janitor.runSlice()) {
+            // keep going until the whole pass is done
+        }
+    }
+
+    private File writeFile(String path) throws IOException {
+        File file = new File(dir, path);
+        FileUtils.writeStringToFile(file, file.getName(), StandardCharsets.UTF_8);
+        return file;
+    }
+}
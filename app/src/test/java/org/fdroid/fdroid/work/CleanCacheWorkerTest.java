@@ -59,7 +59,10 @@ public class CleanCacheWorkerTest {
         assertTrue(obf.createNewFile());
         File zip = new File(FILES_DIR, "fake.zip");
         assertTrue(zip.createNewFile());
-        CleanCacheWorker.deleteOldInstallerFiles(CONTEXT);
+        CacheJanitor janitor = CacheJanitor.create(CONTEXT);
+        while (!janitor.runSlice()) {
+            // keep going until the whole pass is done
+        }
         assertFalse(apk.exists());
         assertFalse(giantblob.exists());
         assertFalse(obf.exists());
@@ -81,15 +84,9 @@ public class CleanCacheWorkerTest {
      * Pure smoke check, Robolectric does not support file times fully.
      */
     @Test
-    public void testDeleteStrayIndexFiles() {
-        CleanCacheWorker.deleteStrayIndexFiles(CONTEXT);
-    }
-
-    /**
-     * Pure smoke check, Robolectric does not support file times fully.
-     */
-    @Test
-    public void testDeleteOldIcons() {
-        CleanCacheWorker.deleteOldIcons(CONTEXT);
+    public void testCacheJanitorSlice() {
+        CacheJanitor janitor = CacheJanitor.create(CONTEXT);
+        janitor.runSlice();
+        janitor.save();
     }
 }
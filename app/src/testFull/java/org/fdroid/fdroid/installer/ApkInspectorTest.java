@@ -0,0 +1,153 @@
+package org.fdroid.fdroid.installer;
+
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.BERSet;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.Attributes;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.cms.SignedData;
+import org.bouncycastle.asn1.cms.SignerIdentifier;
+import org.bouncycastle.asn1.cms.SignerInfo;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.nearby.LocalRepoKeyStore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateFactory;
+import java.util.Collection;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+public class ApkInspectorTest {
+
+    @Test
+    public void testUrzip() throws IOException, CertificateEncodingException {
+        File apk = TestUtils.copyResourceToTempFile("urzip.apk");
+        assertNotNull(apk);
+        ApkInspector inspector = ApkInspector.inspect(apk);
+        assertEquals("info.guardianproject.urzip", inspector.getPackageName());
+        assertEquals(100, inspector.getVersionCode());
+        assertEquals("0.1", inspector.getVersionName());
+        assertEquals(4, inspector.getMinSdkVersion());
+        assertEquals(18, inspector.getTargetSdkVersion());
+        assertEquals(0, inspector.getRequestedPermissions().length);
+        assertEquals(0, inspector.getNativecode().length);
+        assertSame(inspector, ApkInspector.inspect(apk));
+
+        JarFile jarFile = new JarFile(apk);
+        JarEntry entry = jarFile.getJarEntry(ApkInspector.MANIFEST_NAME);
+        InputStream input = jarFile.getInputStream(entry);
+        IOUtils.toByteArray(input);
+        input.close();
+        assertArrayEquals(entry.getCertificates()[0].getEncoded(), inspector.getCertificate());
+        jarFile.close();
+        apk.delete();
+    }
+
+    /**
+     * The signing certificate is the one named in the {@code SignerInfo},
+     * even when the signature block lists another certificate first.
+     */
+    @Test
+    public void testCertificateMatchesSigner() throws Exception {
+        File urzip = TestUtils.copyResourceToTempFile("urzip.apk");
+        assertNotNull(urzip);
+        JarFile jarFile = new JarFile(urzip);
+        JarEntry manifestEntry = jarFile.getJarEntry(ApkInspector.MANIFEST_NAME);
+        byte[] manifest = IOUtils.toByteArray(jarFile.getInputStream(manifestEntry));
+        Certificate signer = manifestEntry.getCertificates()[0];
+        jarFile.close();
+        Certificate other = LocalRepoKeyStore.get(ApplicationProvider.getApplicationContext()).getCertificate();
+        assertNotNull(other);
+
+        byte[] signatureBlock = createSignatureBlock(signer, other, signer);
+        Collection<? extends Certificate> certificates = CertificateFactory.getInstance("X.509")
+                .generateCertificates(new ByteArrayInputStream(signatureBlock));
+        assertEquals("the signer is not the first certificate", other, certificates.iterator().next());
+
+        File apk = File.createTempFile(getClass().getName(), ".apk");
+        ZipOutputStream output = new ZipOutputStream(new FileOutputStream(apk));
+        output.putNextEntry(new ZipEntry(ApkInspector.MANIFEST_NAME));
+        output.write(manifest);
+        output.putNextEntry(new ZipEntry("META-INF/CERT.RSA"));
+        output.write(signatureBlock);
+        output.close();
+
+        ApkInspector inspector = ApkInspector.inspect(apk);
+        assertEquals("info.guardianproject.urzip", inspector.getPackageName());
+        assertArrayEquals(signer.getEncoded(), inspector.getCertificate());
+        apk.delete();
+        urzip.delete();
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAnApk() throws IOException {
+        File file = File.createTempFile(getClass().getName(), ".apk");
+        FileOutputStream output = new FileOutputStream(file);
+        output.write("not a zip file".getBytes(StandardCharsets.UTF_8));
+        output.close();
+        try {
+            ApkInspector.inspect(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A PKCS#7 signature block that names {@code signer} in its
+     * {@code SignerInfo} and holds {@code certificates} in the given order.
+     * The signature itself is not valid, since it is never verified.  The
+     * certificates go in a {@link BERSet}, since DER would sort them.
+     */
+    private static byte[] createSignatureBlock(Certificate signer, Certificate... certificates)
+            throws CertificateEncodingException, IOException {
+        ASN1EncodableVector certificateVector = new ASN1EncodableVector();
+        for (Certificate certificate : certificates) {
+            certificateVector.add(org.bouncycastle.asn1.x509.Certificate.getInstance(certificate.getEncoded()));
+        }
+        AlgorithmIdentifier digestAlgorithm =
+                new AlgorithmIdentifier(NISTObjectIdentifiers.id_sha256, DERNull.INSTANCE);
+        SignerInfo signerInfo = new SignerInfo(
+                new SignerIdentifier(new IssuerAndSerialNumber(
+                        org.bouncycastle.asn1.x509.Certificate.getInstance(signer.getEncoded()))),
+                digestAlgorithm,
+                (Attributes) null,
+                new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption, DERNull.INSTANCE),
+                new DEROctetString(new byte[256]),
+                null);
+        SignedData signedData = new SignedData(
+                new DERSet(digestAlgorithm),
+                new ContentInfo(CMSObjectIdentifiers.data, null),
+                new BERSet(certificateVector),
+                null,
+                new DERSet(signerInfo));
+        return new ContentInfo(CMSObjectIdentifiers.signedData, signedData).getEncoded();
+    }
+}
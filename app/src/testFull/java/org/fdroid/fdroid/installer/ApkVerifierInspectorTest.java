@@ -0,0 +1,74 @@
+package org.fdroid.fdroid.installer;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.data.Apk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.File;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The checks in {@link ApkVerifier} that only need {@link ApkInspector},
+ * so unlike the androidTest {@code ApkVerifierTest}, they run in Robolectric.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ApkVerifierInspectorTest {
+
+    private Context context;
+    private File urzip;
+    private int sdkInt;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        urzip = TestUtils.copyResourceToTempFile("urzip.apk");
+        assertNotNull(urzip);
+        sdkInt = Build.VERSION.SDK_INT;
+    }
+
+    @After
+    public void tearDown() {
+        ReflectionHelpers.setStaticField(Build.VERSION.class, "SDK_INT", sdkInt);
+        urzip.delete();
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        new ApkVerifier(context, Uri.fromFile(urzip), createUrzipApk()).verifyApk();
+    }
+
+    @Test
+    public void testMinSdkVersionTooHigh() throws Exception {
+        // urzip.apk has minSdkVersion 4
+        ReflectionHelpers.setStaticField(Build.VERSION.class, "SDK_INT", 3);
+        try {
+            new ApkVerifier(context, Uri.fromFile(urzip), createUrzipApk()).verifyApk();
+            fail("an APK that needs a newer SDK must not pass");
+        } catch (ApkVerifier.ApkVerificationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("SDK 4"));
+        }
+    }
+
+    private static Apk createUrzipApk() {
+        Apk apk = new Apk();
+        apk.packageName = "info.guardianproject.urzip";
+        apk.versionCode = 100;
+        apk.targetSdkVersion = 18;
+        apk.requestedPermissions = new String[0];
+        return apk;
+    }
+}
@@ -0,0 +1,122 @@
+package org.fdroid.fdroid.nearby;
+
+import android.content.Context;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.fdroid.fdroid.IndexV1Updater;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.Repo;
+import org.fdroid.fdroid.data.SanitizedFile;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class IndexV1BuilderTest {
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        Preferences.setupForTests(context);
+    }
+
+    /**
+     * The swap {@code index-v1.json} has to come back out of the same
+     * {@link ObjectMapper} setup that {@link IndexV1Updater} parses with.
+     */
+    @Test
+    public void testRoundTrip() throws IOException, LocalRepoKeyStore.InitException {
+        File apkFile = File.createTempFile(getClass().getName(), ".apk");
+        apkFile.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(apkFile);
+        out.write(new byte[1234]);
+        out.close();
+
+        App app = new App();
+        app.packageName = "org.example.swapped";
+        app.name = "Swapped";
+        app.summary = "Came over swap";
+        app.iconFromApk = App.getIconName(app.packageName, 42);
+        app.added = new Date(1500000000000L);
+        app.lastUpdated = new Date(1600000000000L);
+        app.installedApk = new Apk();
+        app.installedApk.packageName = app.packageName;
+        app.installedApk.versionCode = 42;
+        app.installedApk.versionName = "4.2";
+        app.installedApk.apkName = app.packageName + "_42.apk";
+        app.installedApk.hashType = "sha256";
+        app.installedApk.hash = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+        app.installedApk.sig = "0123456789ABCDEF0123456789ABCDEF";
+        app.installedApk.minSdkVersion = 14;
+        app.installedApk.targetSdkVersion = 28;
+        app.installedApk.nativecode = new String[]{"arm64-v8a", "x86_64"};
+        app.installedApk.requestedPermissions = new String[]{"android.permission.INTERNET"};
+        app.installedApk.installedFile = SanitizedFile.knownSanitized(apkFile);
+
+        Map<String, App> apps = new HashMap<>();
+        apps.put(app.packageName, app);
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        new LocalRepoManager.IndexV1Builder().build(context, apps, json);
+
+        ObjectMapper mapper = IndexV1Updater.getObjectMapperInstance(1);
+        JsonNode root = mapper.readTree(json.toByteArray());
+        assertTrue(root.get("repo").get("timestamp").asLong() > 0);
+        assertEquals(Repo.VERSION_DENSITY_SPECIFIC_ICONS, root.get("repo").get("version").asInt());
+
+        App parsedApp = mapper.treeToValue(root.get("apps").get(0), App.class);
+        assertEquals(app.packageName, parsedApp.packageName);
+        assertEquals(app.name, parsedApp.name);
+        assertEquals(app.summary, parsedApp.summary);
+        assertEquals(app.iconFromApk, parsedApp.iconFromApk);
+        assertEquals(app.added, parsedApp.added);
+        assertEquals(app.lastUpdated, parsedApp.lastUpdated);
+        assertEquals(42, parsedApp.suggestedVersionCode);
+
+        Apk parsedApk = mapper.treeToValue(root.get("packages").get(app.packageName).get(0), Apk.class);
+        assertEquals(app.packageName, parsedApk.packageName);
+        assertEquals(42, parsedApk.versionCode);
+        assertEquals("4.2", parsedApk.versionName);
+        assertEquals(app.installedApk.apkName, parsedApk.apkName);
+        assertEquals(app.installedApk.hash, parsedApk.hash);
+        assertEquals("0123456789abcdef0123456789abcdef", parsedApk.sig);
+        assertEquals(1234, parsedApk.size);
+        assertEquals(14, parsedApk.minSdkVersion);
+        assertEquals(28, parsedApk.targetSdkVersion);
+        assertEquals(Apk.SDK_VERSION_MAX_VALUE, parsedApk.maxSdkVersion);
+        assertArrayEquals(app.installedApk.nativecode, parsedApk.nativecode);
+        assertTrue(Arrays.asList(parsedApk.requestedPermissions).contains("android.permission.INTERNET"));
+        assertNull(root.get("repo").get(HaveList.OMITTED));
+
+        // a filtered index lists what it left out, so clients can check for have-list false positives
+        json = new ByteArrayOutputStream();
+        new LocalRepoManager.IndexV1Builder().build(context, new HashMap<String, App>(), apps, json);
+        root = mapper.readTree(json.toByteArray());
+        assertEquals(0, root.get("apps").size());
+        JsonNode omitted = root.get("repo").get(HaveList.OMITTED).get(app.packageName);
+        assertEquals(42, omitted.get("versionCode").asInt());
+        assertEquals("0123456789abcdef0123456789abcdef", omitted.get("sig").asText());
+    }
+}
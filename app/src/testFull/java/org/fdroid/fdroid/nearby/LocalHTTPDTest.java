@@ -48,14 +48,27 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.shadows.ShadowLog;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
+import java.net.Socket;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import androidx.test.core.app.ApplicationProvider;
 
@@ -64,6 +77,7 @@ import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -224,6 +238,63 @@ public class LocalHTTPDTest {
         connection.disconnect();
     }
 
+    @Test
+    public void testGzipOnlyForText() throws IOException {
+        StringBuilder html = new StringBuilder("<html><body><ul>");
+        for (int i = 0; i < 200; i++) {
+            html.append("<li><a href=\"app").append(i).append(".apk\">app").append(i).append("</a></li>");
+        }
+        html.append("</ul></body></html>");
+        File indexFile = new File(webRoot, "index.html");
+        FileUtils.writeStringToFile(indexFile, html.toString(), "UTF-8");
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/index.html").openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("gzip", connection.getContentEncoding());
+        assertTrue(connection.getContentLength() < indexFile.length());
+        assertEquals(html.toString(), IOUtils.toString(new GZIPInputStream(connection.getInputStream()), "UTF-8"));
+        connection.disconnect();
+
+        connection = (HttpURLConnection) new URL(baseUrl + "/index.html").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertNull(connection.getContentEncoding());
+        assertEquals(indexFile.length(), connection.getContentLength());
+        connection.disconnect();
+
+        String fileName = "urzip.apk";
+        File apkFile = new File(webRoot, fileName);
+        IOUtils.copy(classLoader.getResourceAsStream(fileName), new FileOutputStream(apkFile));
+        connection = (HttpURLConnection) new URL(baseUrl + "/" + fileName).openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(200, connection.getResponseCode());
+        assertNull(connection.getContentEncoding());
+        assertEquals(apkFile.length(), connection.getContentLength());
+        connection.disconnect();
+    }
+
+    @Test
+    public void testGzipOnlyOnce() throws IOException {
+        StringBuilder html = new StringBuilder("<html><body><ul>");
+        for (int i = 0; i < 200; i++) {
+            html.append("<li>org.example.app").append(i).append("</li>");
+        }
+        html.append("</ul></body></html>");
+        byte[] expected = html.toString().getBytes("UTF-8");
+        FileUtils.writeByteArrayToFile(new File(webRoot, "apps.html"), expected);
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/apps.html").openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(200, connection.getResponseCode());
+        List<String> contentEncoding = connection.getHeaderFields().get("Content-Encoding");
+        assertEquals(Collections.singletonList("gzip"), contentEncoding);
+        assertNull(connection.getHeaderField("Transfer-Encoding"));
+        byte[] body = IOUtils.toByteArray(connection.getInputStream());
+        assertEquals(body.length, connection.getContentLength());
+        Assert.assertArrayEquals(expected, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(body))));
+        connection.disconnect();
+    }
+
     @Test
     public void testPostRequest() throws IOException {
         URL url = new URL(baseUrl + "/request-swap");
@@ -453,6 +524,148 @@ public class LocalHTTPDTest {
         }
     }
 
+    @Test
+    public void testSuffixRange() throws IOException {
+        HttpURLConnection connection = null;
+        try {
+            connection = getNoKeepAliveConnection(baseUrl + "/testdir/test.html");
+            connection.addRequestProperty("range", "bytes=-8");
+            assertEquals(206, connection.getResponseCode());
+            assertEquals("</html>", IOUtils.toString(connection.getInputStream(), "UTF-8").trim());
+            assertEquals("bytes 76-83/84", connection.getHeaderField("Content-Range"));
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void testIfRangeMismatchSendsWholeFile() throws IOException {
+        HttpURLConnection connection = null;
+        try {
+            connection = getNoKeepAliveConnection(baseUrl + "/testdir/test.html");
+            connection.addRequestProperty("range", "bytes=10-20");
+            connection.addRequestProperty("if-range", "\"not-the-etag\"");
+            assertEquals(200, connection.getResponseCode());
+            assertEquals("84", connection.getHeaderField("Content-Length"));
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void testIfNoneMatchEtag() throws IOException {
+        HttpURLConnection connection = getNoKeepAliveConnection(baseUrl + "/testdir/test.html");
+        assertEquals(200, connection.getResponseCode());
+        String etag = connection.getHeaderField(HttpDownloader.HEADER_FIELD_ETAG);
+        connection.disconnect();
+
+        connection = getNoKeepAliveConnection(baseUrl + "/testdir/test.html");
+        connection.addRequestProperty("if-none-match", "\"something-else\", W/" + etag);
+        assertEquals(304, connection.getResponseCode());
+        connection.disconnect();
+    }
+
+    /**
+     * A sparse file is used so that this does not actually need 3GB of disk.
+     */
+    @Test
+    public void testFileOver2GB() throws IOException {
+        File bigFile = new File(webRoot, "big.obb");
+        long length = 3L * 1024 * 1024 * 1024;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(bigFile, "rw");
+        randomAccessFile.setLength(length);
+        randomAccessFile.seek(length - 4);
+        randomAccessFile.write(new byte[]{1, 2, 3, 4});
+        randomAccessFile.close();
+
+        HttpURLConnection connection = getNoKeepAliveConnection(baseUrl + "/big.obb");
+        connection.setRequestMethod("HEAD");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(String.valueOf(length), connection.getHeaderField("Content-Length"));
+        connection.disconnect();
+
+        connection = getNoKeepAliveConnection(baseUrl + "/big.obb");
+        connection.addRequestProperty("range", "bytes=-4");
+        assertEquals(206, connection.getResponseCode());
+        Assert.assertArrayEquals(new byte[]{1, 2, 3, 4}, IOUtils.toByteArray(connection.getInputStream()));
+        assertEquals("bytes " + (length - 4) + "-" + (length - 1) + "/" + length,
+                connection.getHeaderField("Content-Range"));
+        connection.disconnect();
+        assertTrue(bigFile.delete());
+    }
+
+    /**
+     * Simulates a classroom full of devices downloading the same APK at
+     * once, and prints the throughput so this can be used as a benchmark.
+     * These all come from the same address, so most get {@code 503} at
+     * first and have to come back later, like real clients would.
+     */
+    @Test
+    public void testConcurrentDownloads() throws Exception {
+        final int clients = 20;
+        final byte[] expected = new byte[8 * 1024 * 1024];
+        new Random(0).nextBytes(expected);
+        FileUtils.writeByteArrayToFile(new File(webRoot, "big.apk"), expected);
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Future<byte[]>> downloads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            downloads.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException, InterruptedException {
+                    while (true) {
+                        HttpURLConnection connection = getNoKeepAliveConnection(baseUrl + "/big.apk");
+                        try {
+                            if (connection.getResponseCode() == 503) {
+                                Thread.sleep(100);
+                                continue;
+                            }
+                            assertEquals(200, connection.getResponseCode());
+                            assertEquals(String.valueOf(expected.length),
+                                    connection.getHeaderField("Content-Length"));
+                            return IOUtils.toByteArray(connection.getInputStream());
+                        } finally {
+                            connection.disconnect();
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<byte[]> download : downloads) {
+            Assert.assertArrayEquals(expected, download.get(60, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        assertEquals(0, localHttpd.getRunner().getActiveCount());
+        assertEquals(0, localHttpd.getRunner().getQueuedCount());
+    }
+
+    @Test
+    public void testBusyServerSendsRetryAfter() throws Exception {
+        BoundedAsyncRunner runner = new BoundedAsyncRunner(1, 1, 1, 7);
+        localHttpd.setAsyncRunner(runner);
+
+        // an idle connection that keeps the only worker busy
+        Socket idle = new Socket("localhost", port);
+        try {
+            do {
+                Thread.sleep(50);
+            } while (runner.getActiveCount() == 0);
+
+            HttpURLConnection connection = getNoKeepAliveConnection(baseUrl + "/testdir/test.html");
+            assertEquals(503, connection.getResponseCode());
+            assertEquals("7", connection.getHeaderField("Retry-After"));
+            connection.disconnect();
+            assertEquals(1, runner.getRejectedCount());
+            assertEquals(1, runner.getActiveCount());
+        } finally {
+            idle.close();
+        }
+    }
+
     private HttpURLConnection getNoKeepAliveConnection(String urlString) throws IOException {
         URL url = new URL(urlString);
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
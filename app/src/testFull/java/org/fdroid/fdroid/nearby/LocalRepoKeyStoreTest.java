@@ -15,16 +15,20 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.cert.Certificate;
+import java.util.Collections;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 
 import androidx.test.core.app.ApplicationProvider;
+import kellinwood.zipio.ZioEntry;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
 public class LocalRepoKeyStoreTest {
@@ -56,4 +60,64 @@ public class LocalRepoKeyStoreTest {
         assertEquals(17187, data.length);
         assertNotNull(IndexUpdater.getSigningCertFromJar(indexEntry));
     }
+
+    @Test
+    public void testSignEntriesDirectly() throws IOException, LocalRepoKeyStore.InitException,
+            IndexUpdater.SigningException {
+        Context context = ApplicationProvider.getApplicationContext();
+
+        ZioEntry entry = new ZioEntry(IndexUpdater.DATA_FILE_NAME);
+        OutputStream output = entry.getOutputStream();
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("smallRepo.xml");
+        IOUtils.copy(inputStream, output);
+        output.close();
+
+        File xmlIndexJar = File.createTempFile(getClass().getName(), IndexUpdater.SIGNED_FILE_NAME);
+        LocalRepoKeyStore.get(context).signZip(Collections.singletonMap(entry.getName(), entry), xmlIndexJar);
+
+        JarFile jarFile = new JarFile(xmlIndexJar, true);
+        String manifest = IOUtils.toString(jarFile.getInputStream(jarFile.getEntry(JarFile.MANIFEST_NAME)), "UTF-8");
+        assertTrue(manifest, manifest.contains("SHA-256-Digest: "));
+        JarEntry indexEntry = (JarEntry) jarFile.getEntry(IndexUpdater.DATA_FILE_NAME);
+        byte[] data = IOUtils.toByteArray(jarFile.getInputStream(indexEntry));
+        assertEquals(17187, data.length);
+        assertNotNull(IndexUpdater.getSigningCertFromJar(indexEntry));
+    }
+
+    @Test
+    public void testSignerIsReused() throws IOException, LocalRepoKeyStore.InitException,
+            IndexUpdater.SigningException {
+        Context context = ApplicationProvider.getApplicationContext();
+        LocalRepoKeyStore localRepoKeyStore = LocalRepoKeyStore.get(context);
+
+        signAndVerify(localRepoKeyStore);
+        LocalRepoKeyStore.SigningStats first = localRepoKeyStore.getSigningStats();
+        assertTrue(first.keyLoadCount > 0);
+
+        signAndVerify(localRepoKeyStore);
+        LocalRepoKeyStore.SigningStats second = localRepoKeyStore.getSigningStats();
+        assertEquals(first.signCount + 1, second.signCount);
+        assertEquals("the key is not loaded again", first.keyLoadCount, second.keyLoadCount);
+    }
+
+    private void signAndVerify(LocalRepoKeyStore localRepoKeyStore) throws IOException,
+            IndexUpdater.SigningException {
+        ZioEntry entry = new ZioEntry(IndexUpdater.DATA_FILE_NAME);
+        OutputStream output = entry.getOutputStream();
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("smallRepo.xml");
+        IOUtils.copy(inputStream, output);
+        output.close();
+
+        File xmlIndexJar = File.createTempFile(getClass().getName(), IndexUpdater.SIGNED_FILE_NAME);
+        localRepoKeyStore.signZip(Collections.singletonMap(entry.getName(), entry), xmlIndexJar);
+
+        JarFile jarFile = new JarFile(xmlIndexJar, true);
+        JarEntry indexEntry = (JarEntry) jarFile.getEntry(IndexUpdater.DATA_FILE_NAME);
+        byte[] data = IOUtils.toByteArray(jarFile.getInputStream(indexEntry));
+        assertEquals(17187, data.length);
+        Certificate[] certs = indexEntry.getCertificates();
+        assertNotNull(certs);
+        assertEquals(localRepoKeyStore.getCertificate(), certs[0]);
+        assertNotNull(IndexUpdater.getSigningCertFromJar(indexEntry));
+    }
 }
@@ -0,0 +1,263 @@
+package org.fdroid.fdroid.nearby;
+
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.Preferences;
+import org.fdroid.fdroid.TestUtils;
+import org.fdroid.fdroid.Utils;
+import org.fdroid.fdroid.data.Apk;
+import org.fdroid.fdroid.data.App;
+import org.fdroid.fdroid.data.DBHelper;
+import org.fdroid.fdroid.data.RepoProvider;
+import org.fdroid.fdroid.installer.ApkCache;
+import org.fdroid.fdroid.installer.InstallManagerService;
+import org.fdroid.fdroid.net.Downloader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLog;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.test.core.app.ApplicationProvider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+public class SwapTransferManagerTest {
+
+    private static final int PORT = 38724;
+    private static final String REPO_ADDRESS = "http://localhost:" + PORT + "/fdroid/repo";
+    private static final long TIMEOUT_MILLIS = 20000;
+
+    private Application context;
+    private SwapTransferManager manager;
+    private LocalHTTPD localHttpd;
+    private File repoDir;
+    private final List<Intent> broadcasts = new ArrayList<>();
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            broadcasts.add(intent);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        ShadowLog.stream = System.out;
+        context = ApplicationProvider.getApplicationContext();
+        TestUtils.registerContentProvider(RepoProvider.getAuthority(), RepoProvider.class);
+        Preferences.setupForTests(context);
+
+        File webRoot = new File(context.getCacheDir(), "swap-webroot");
+        FileUtils.deleteDirectory(webRoot);
+        repoDir = new File(webRoot, "fdroid/repo");
+        assertTrue(repoDir.mkdirs());
+        localHttpd = new LocalHTTPD(context, "localhost", PORT, webRoot, false);
+
+        manager = new SwapTransferManager(context);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Downloader.ACTION_STARTED);
+        filter.addAction(Downloader.ACTION_INTERRUPTED);
+        filter.addAction(Downloader.ACTION_COMPLETE);
+        LocalBroadcastManager.getInstance(context).registerReceiver(receiver, filter);
+    }
+
+    @After
+    public void tearDown() {
+        manager.clear();
+        LocalBroadcastManager.getInstance(context).unregisterReceiver(receiver);
+        localHttpd.stop();
+        DBHelper.clearDbHelperSingleton();
+    }
+
+    @Test
+    public void testResumeFromPartialFile() throws Exception {
+        byte[] content = writeApk("resume.apk", 256 * 1024);
+        Apk apk = createApk("resume.apk", content);
+        File partial = ApkCache.getApkDownloadPath(context, apk.getCanonicalUrl());
+        FileUtils.writeByteArrayToFile(partial, Arrays.copyOf(content, content.length / 3));
+
+        SwapTransferManager.Transfer transfer = new SwapTransferManager.Transfer(createApp(apk), apk, partial);
+        assertEquals(content.length / 3, transfer.offset);
+
+        localHttpd.start();
+        manager.queue(createApp(apk), apk);
+        transfer = manager.getManifest().get(0);
+        waitForState(transfer, SwapTransferManager.State.COMPLETE);
+
+        assertArrayEquals(content, FileUtils.readFileToByteArray(partial));
+        assertEquals(content.length, transfer.offset);
+        assertEquals(content.length, manager.getProgress()[0]);
+        assertTrue(getActions().contains(Downloader.ACTION_COMPLETE));
+        assertTrue(getStartedServices().contains(InstallManagerService.class.getName()));
+    }
+
+    @Test
+    public void testConnectionLostResumesWithBackoff() throws Exception {
+        byte[] content = writeApk("retry.apk", 64 * 1024);
+        Apk apk = createApk("retry.apk", content);
+
+        // nothing is listening yet, so the transfer is stopped, not failed
+        manager.queue(createApp(apk), apk);
+        SwapTransferManager.Transfer transfer = manager.getManifest().get(0);
+        waitForState(transfer, SwapTransferManager.State.INTERRUPTED);
+        assertFalse("waiting for the connection is not an error",
+                getActions().contains(Downloader.ACTION_INTERRUPTED));
+        assertEquals(1, manager.getManifest().size());
+
+        localHttpd.start();
+        Robolectric.getForegroundThreadScheduler().advanceBy(5, TimeUnit.SECONDS);
+        waitForState(transfer, SwapTransferManager.State.COMPLETE);
+        assertArrayEquals(content, FileUtils.readFileToByteArray(transfer.file));
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        byte[] content = writeApk("cancel.apk", 64 * 1024);
+        Apk apk = createApk("cancel.apk", content);
+
+        manager.queue(createApp(apk), apk);
+        SwapTransferManager.Transfer transfer = manager.getManifest().get(0);
+        waitForState(transfer, SwapTransferManager.State.INTERRUPTED);
+
+        manager.cancel(apk.getCanonicalUrl());
+        ShadowLooper.runUiThreadTasks();
+        assertEquals(SwapTransferManager.State.FAILED, transfer.state);
+        assertTrue(manager.getManifest().isEmpty());
+        assertTrue(getActions().contains(Downloader.ACTION_INTERRUPTED));
+
+        // a resume after the cancel does not start it again
+        localHttpd.start();
+        manager.resume();
+        Robolectric.getForegroundThreadScheduler().advanceBy(5, TimeUnit.SECONDS);
+        Thread.sleep(500);
+        assertEquals(SwapTransferManager.State.FAILED, transfer.state);
+    }
+
+    @Test
+    public void testCancelAfterDownloadDoesNotInstall() throws Exception {
+        byte[] content = writeApk("late.apk", 64 * 1024);
+        Apk apk = createApk("late.apk", content);
+
+        manager.queue(createApp(apk), apk);
+        SwapTransferManager.Transfer transfer = manager.getManifest().get(0);
+        waitForState(transfer, SwapTransferManager.State.INTERRUPTED);
+
+        // the download finished just before the cancel came in
+        FileUtils.writeByteArrayToFile(transfer.file, content);
+        manager.cancel(apk.getCanonicalUrl());
+        manager.verify(transfer);
+        ShadowLooper.runUiThreadTasks();
+
+        assertEquals(SwapTransferManager.State.FAILED, transfer.state);
+        assertFalse(getActions().contains(Downloader.ACTION_COMPLETE));
+        assertFalse(getStartedServices().contains(InstallManagerService.class.getName()));
+    }
+
+    @Test
+    public void testHashMismatchRetriesOnceThenFails() throws Exception {
+        byte[] content = writeApk("changed.apk", 64 * 1024);
+        Apk apk = createApk("changed.apk", content);
+        apk.hash = "0000000000000000000000000000000000000000000000000000000000000000";
+
+        localHttpd.start();
+        manager.queue(createApp(apk), apk);
+        SwapTransferManager.Transfer transfer = manager.getManifest().get(0);
+        waitForState(transfer, SwapTransferManager.State.FAILED);
+
+        assertEquals(2, transfer.hashFailures);
+        assertFalse(transfer.file.exists());
+        assertTrue(manager.getManifest().isEmpty());
+        Intent interrupted = null;
+        for (Intent intent : broadcasts) {
+            if (Downloader.ACTION_INTERRUPTED.equals(intent.getAction())) {
+                interrupted = intent;
+            }
+        }
+        assertNotNull(interrupted);
+        assertNotNull(interrupted.getStringExtra(Downloader.EXTRA_ERROR_MESSAGE));
+        assertFalse(getActions().contains(Downloader.ACTION_COMPLETE));
+    }
+
+    private byte[] writeApk(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        FileUtils.writeByteArrayToFile(new File(repoDir, name), content);
+        return content;
+    }
+
+    private Apk createApk(String name, byte[] content) {
+        File file = new File(repoDir, name);
+        Apk apk = new Apk();
+        apk.packageName = "org.example." + name.replace(".apk", "");
+        apk.versionCode = 1;
+        apk.apkName = name;
+        apk.repoAddress = REPO_ADDRESS;
+        apk.size = content.length;
+        apk.hashType = "sha256";
+        apk.hash = Utils.getBinaryHash(file, "sha256");
+        return apk;
+    }
+
+    private static App createApp(Apk apk) {
+        App app = new App();
+        app.packageName = apk.packageName;
+        app.name = apk.packageName;
+        return app;
+    }
+
+    private List<String> getStartedServices() {
+        List<String> services = new ArrayList<>();
+        Intent intent;
+        while ((intent = shadowOf(context).getNextStartedService()) != null) {
+            services.add(intent.getComponent().getClassName());
+        }
+        return services;
+    }
+
+    private List<String> getActions() {
+        List<String> actions = new ArrayList<>();
+        for (Intent intent : broadcasts) {
+            actions.add(intent.getAction());
+        }
+        return actions;
+    }
+
+    /**
+     * The transfers run on their own threads, and their broadcasts are
+     * delivered on the main looper, so keep running that while waiting.
+     */
+    private static void waitForState(SwapTransferManager.Transfer transfer, SwapTransferManager.State state)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (transfer.state != state) {
+            assertTrue("Still " + transfer.state + " instead of " + state, System.currentTimeMillis() < end);
+            ShadowLooper.runUiThreadTasks();
+            Thread.sleep(50);
+        }
+        ShadowLooper.runUiThreadTasks();
+    }
+}
@@ -0,0 +1,110 @@
+package org.fdroid.fdroid.net;
+
+import android.net.Uri;
+
+import org.apache.commons.io.FileUtils;
+import org.fdroid.fdroid.ProgressListener;
+import org.fdroid.fdroid.nearby.BluetoothClient;
+import org.fdroid.fdroid.nearby.BluetoothConnection;
+import org.fdroid.fdroid.nearby.TransferCompression;
+import org.fdroid.fdroid.nearby.httpish.Response;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class BluetoothDownloaderTest {
+
+    private static final String MAC_ADDRESS = "84:CF:BF:8B:3E:34";
+
+    @After
+    public void tearDown() {
+        BluetoothConnection connection = new BluetoothClient(MAC_ADDRESS).takeIdleConnection();
+        if (connection != null) {
+            connection.closeQuietly();
+        }
+    }
+
+    @Test
+    public void testGzippedProgressEndsAtTotal() throws IOException, InterruptedException {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            html.append("<p>swap ").append(i).append("</p>\n");
+        }
+        byte[] content = html.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] gzipped = TransferCompression.gzip(content);
+        assertNotNull(gzipped);
+
+        // the response is already waiting on the connection that the downloader will reuse
+        FakeConnection serverSide = new FakeConnection(new ByteArrayInputStream(new byte[0]));
+        new Response.Builder(new ByteArrayInputStream(gzipped))
+                .setFileSize(gzipped.length)
+                .setContentEncoding(TransferCompression.GZIP)
+                .build()
+                .send(serverSide);
+        FakeConnection connection = new FakeConnection(new ByteArrayInputStream(serverSide.written.toByteArray()));
+        new BluetoothClient(MAC_ADDRESS).keepIdle(connection);
+
+        File destFile = File.createTempFile(getClass().getName(), ".html");
+        // bytes read, total bytes, and the most it was past the total
+        final long[] progress = {-1, -1, 0};
+        BluetoothDownloader downloader = new BluetoothDownloader(
+                Uri.parse("bluetooth://84-CF-BF-8B-3E-34/fdroid/repo/index.html"), destFile);
+        downloader.setListener(new ProgressListener() {
+            @Override
+            public void onProgress(long bytesRead, long totalBytes) {
+                // this runs on the progress timer, where a failed assert would go unnoticed
+                progress[2] = Math.max(progress[2], bytesRead - totalBytes);
+                progress[0] = bytesRead;
+                progress[1] = totalBytes;
+            }
+        });
+        downloader.download();
+
+        assertArrayEquals(content, FileUtils.readFileToByteArray(destFile));
+        assertEquals(gzipped.length, progress[1]);
+        assertEquals(progress[1], progress[0]);
+        assertEquals("progress never goes past the total", 0, progress[2]);
+        destFile.delete();
+    }
+
+    /**
+     * Replays what the other side sent, and keeps what is written to it.
+     */
+    private static class FakeConnection extends BluetoothConnection {
+        private final InputStream input;
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        FakeConnection(InputStream input) {
+            super(null);
+            this.input = input;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return written;
+        }
+
+        @Override
+        public void closeQuietly() {
+        }
+    }
+}
@@ -130,6 +130,8 @@ public class SwapRepoTest {
             File indexJarFile = LocalRepoManager.get(context).getIndexJar();
             System.out.println("indexJarFile:" + indexJarFile);
             assertTrue(indexJarFile.isFile());
+            assertTrue("staged, so it is not built again", LocalRepoManager.get(context)
+                    .isAppCurrent(context.getPackageName()));
 
             localHttpd = new LocalHTTPD(
                     context,